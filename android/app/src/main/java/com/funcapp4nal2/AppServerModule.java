@@ -3,6 +3,7 @@ package com.funcapp4nal2;
 import android.content.Context;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
@@ -13,6 +14,10 @@ import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import com.nal2.Nal2Engine;
+import com.nal2.Nal2Module;
+import com.nal2.Nal2ResponseBuffer;
+
 import org.java_websocket.WebSocket;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
@@ -25,16 +30,33 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Nonnull;
 
 public class AppServerModule extends ReactContextBaseJavaModule {
+    private static final String TAG = "AppServerModule";
     private static final String MODULE_NAME = "AppServerModule";
 
+    // WebSocket关闭码：服务器暂时无法处理（RFC 6455的1013）
+    private static final int CLOSE_TRY_AGAIN_LATER = 1013;
+    // HTTP处理线程数和等待处理的连接数上限
+    private static final int HTTP_THREADS = 10;
+    private static final int HTTP_QUEUE_CAPACITY = 32;
+    // 返回503时建议客户端的重试间隔（秒）
+    private static final int RETRY_AFTER_SECONDS = 1;
+
     private final ReactApplicationContext reactContext;
     private NAL2WebSocketServer webSocketServer;
     private HttpServerThread httpServerThread;
@@ -42,10 +64,13 @@ public class AppServerModule extends ReactContextBaseJavaModule {
     private boolean isRunning = false;
     private Map<String, WebSocket> connectedClients = new HashMap<>();
     private int clientIdCounter = 0;
+    private final Nal2Engine engine;
 
     public AppServerModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        // 与RN注册的Nal2模块共用同一个实例（请求合并和调度状态只有一份）
+        this.engine = Nal2Module.getInstance(reactContext);
     }
 
     @Nonnull
@@ -271,9 +296,32 @@ public class AppServerModule extends ReactContextBaseJavaModule {
             sendEvent("onWebSocketMessage", params);
         }
 
+        /**
+         * 二进制消息为NAL2二进制协议的请求帧（见Nal2BinaryCodec），直接交给NAL2引擎处理，
+         * 响应帧作为二进制消息发回
+         */
         @Override
-        public void onMessage(WebSocket conn, ByteBuffer message) {
-            // Handle binary messages if needed
+        public void onMessage(final WebSocket conn, ByteBuffer message) {
+            byte[] body = new byte[message.remaining()];
+            message.get(body);
+            engine.process(body, true, true).whenComplete(new BiConsumer<Nal2ResponseBuffer, Throwable>() {
+                @Override
+                public void accept(Nal2ResponseBuffer response, Throwable error) {
+                    if (error != null) {
+                        Log.e(TAG, "处理NAL2二进制消息失败", error);
+                        conn.close(CLOSE_TRY_AGAIN_LATER, "NAL2引擎繁忙");
+                        return;
+                    }
+                    try {
+                        // send()只把数据放入发送队列，缓冲区要复制后才能归还
+                        if (conn.isOpen()) {
+                            conn.send(Arrays.copyOf(response.array(), response.length()));
+                        }
+                    } finally {
+                        response.release();
+                    }
+                }
+            });
         }
 
         @Override
@@ -293,7 +341,10 @@ public class AppServerModule extends ReactContextBaseJavaModule {
     private class HttpServerThread extends Thread {
         private ServerSocket serverSocket;
         private boolean running = true;
-        private ExecutorService executorService = Executors.newFixedThreadPool(10);
+        // 等待处理的连接数有界，队列满时立即返回503，而不是让连接排队到超时
+        private ExecutorService executorService = new ThreadPoolExecutor(HTTP_THREADS, HTTP_THREADS,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(HTTP_QUEUE_CAPACITY),
+                new ThreadPoolExecutor.AbortPolicy());
 
         public HttpServerThread(int port) throws IOException {
             this.serverSocket = new ServerSocket(port + 1); // HTTP在不同端口
@@ -304,7 +355,12 @@ public class AppServerModule extends ReactContextBaseJavaModule {
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    executorService.execute(new HttpRequestHandler(clientSocket));
+                    try {
+                        executorService.execute(new HttpRequestHandler(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        Log.w(TAG, "HTTP连接队列已满，拒绝连接");
+                        rejectBusy(clientSocket, "服务器繁忙，请稍后重试");
+                    }
                 } catch (IOException e) {
                     if (running) {
                         e.printStackTrace();
@@ -338,6 +394,8 @@ public class AppServerModule extends ReactContextBaseJavaModule {
 
         @Override
         public void run() {
+            // NAL2请求的响应在引擎完成后异步写出，由回调关闭连接
+            boolean pending = false;
             try {
                 BufferedReader in = new BufferedReader(
                         new InputStreamReader(clientSocket.getInputStream()));
@@ -371,6 +429,13 @@ public class AppServerModule extends ReactContextBaseJavaModule {
                     body = new String(bodyChars);
                 }
 
+                if (method.equals("POST") && (path.equals("/api/nal2/process") || path.equals("/api/nal2"))) {
+                    // NAL2请求直接交给NAL2引擎，当前线程不等待结果
+                    processNAL2Request(clientSocket, body);
+                    pending = true;
+                    return;
+                }
+
                 // 触发HTTP请求事件
                 WritableMap params = Arguments.createMap();
                 params.putString("requestId", String.valueOf(System.currentTimeMillis()));
@@ -391,12 +456,98 @@ public class AppServerModule extends ReactContextBaseJavaModule {
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (!pending) {
+                    closeQuietly(clientSocket);
                 }
             }
         }
     }
+
+    /**
+     * 在NAL2引擎上处理JSON请求体，完成后在HTTP线程池上写出响应并关闭连接
+     */
+    private void processNAL2Request(final Socket clientSocket, String body) {
+        engine.process(body.getBytes(StandardCharsets.UTF_8), false, false).whenCompleteAsync(
+                new BiConsumer<Nal2ResponseBuffer, Throwable>() {
+                    @Override
+                    public void accept(Nal2ResponseBuffer response, Throwable error) {
+                        try {
+                            OutputStream out = clientSocket.getOutputStream();
+                            if (error instanceof RejectedExecutionException) {
+                                Log.w(TAG, "NAL2引擎队列已满，拒绝请求");
+                                writeBusy(out, "NAL2引擎繁忙，请稍后重试");
+                            } else if (error != null) {
+                                Log.e(TAG, "处理NAL2请求失败", error);
+                                byte[] errorBody = "{\"return\":-1,\"error\":\"Internal Server Error\"}"
+                                        .getBytes(StandardCharsets.UTF_8);
+                                writeResponse(out, "500 Internal Server Error", "application/json; charset=utf-8",
+                                        errorBody, errorBody.length);
+                            } else {
+                                writeResponse(out, "200 OK", response.getContentType(), response.array(),
+                                        response.length());
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            if (response != null) {
+                                response.release();
+                            }
+                            closeQuietly(clientSocket);
+                        }
+                    }
+                }, httpExecutor());
+    }
+
+    private Executor httpExecutor() {
+        HttpServerThread thread = httpServerThread;
+        return thread != null ? thread.executorService : ForkJoinPool.commonPool();
+    }
+
+    // 在接受连接的线程上直接写出503并关闭，不读取请求
+    private static void rejectBusy(Socket clientSocket, String message) {
+        try {
+            writeBusy(clientSocket.getOutputStream(), message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(clientSocket);
+        }
+    }
+
+    /** 过载时返回503和Retry-After，客户端退避后重试 */
+    private static void writeBusy(OutputStream out, String message) throws IOException {
+        byte[] body = ("{\"return\":-1,\"error\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+        writeResponse(out, "503 Service Unavailable", "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n",
+                "application/json; charset=utf-8", body, body.length);
+    }
+
+    private static void writeResponse(OutputStream out, String status, String contentType, byte[] body, int length)
+            throws IOException {
+        writeResponse(out, status, "", contentType, body, length);
+    }
+
+    /**
+     * @param extraHeaders 额外的响应头，每行以\r\n结尾，没有时为空字符串
+     */
+    private static void writeResponse(OutputStream out, String status, String extraHeaders, String contentType,
+            byte[] body, int length) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                extraHeaders +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + length + "\r\n" +
+                "Access-Control-Allow-Origin: *\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body, 0, length);
+        out.flush();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package com.funcapp4nal2;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按客户端限制同时处理中的NAL2请求数
+ * 单个客户端（按IP地址）的并发请求达到上限后，新请求立即返回503，不进入NAL2引擎队列，
+ * 避免一个客户端占满引擎队列而让其它客户端的请求排队到超时。
+ * 可在任意线程调用。
+ */
+final class ClientAdmission {
+
+    static final int DEFAULT_MAX_REQUESTS_PER_CLIENT = 8;
+
+    // 客户端 -> 处理中的请求数，归零时移除
+    private final Map<String, Integer> inFlight = new HashMap<String, Integer>();
+    private int maxRequestsPerClient = DEFAULT_MAX_REQUESTS_PER_CLIENT;
+
+    private long admitted;
+    private long clientRejects;
+    private long engineRejects;
+
+    /**
+     * 为客户端占用一个处理中的位置
+     *
+     * @return 是否接受，false时调用方应返回503且不调用release
+     */
+    synchronized boolean tryAcquire(String client) {
+        Integer count = inFlight.get(client);
+        int n = count != null ? count : 0;
+        if (n >= maxRequestsPerClient) {
+            clientRejects++;
+            return false;
+        }
+        inFlight.put(client, n + 1);
+        admitted++;
+        return true;
+    }
+
+    /** 请求处理完成（包括失败）后归还位置 */
+    synchronized void release(String client) {
+        Integer count = inFlight.get(client);
+        if (count == null) {
+            return;
+        }
+        if (count <= 1) {
+            inFlight.remove(client);
+        } else {
+            inFlight.put(client, count - 1);
+        }
+    }
+
+    /** 已接受的请求因NAL2引擎队列已满被拒绝 */
+    synchronized void engineRejected() {
+        engineRejects++;
+    }
+
+    /**
+     * @throws IllegalArgumentException maxRequestsPerClient小于1
+     */
+    synchronized void setMaxRequestsPerClient(int maxRequestsPerClient) {
+        if (maxRequestsPerClient < 1) {
+            throw new IllegalArgumentException("每个客户端的并发请求数必须大于0");
+        }
+        this.maxRequestsPerClient = maxRequestsPerClient;
+    }
+
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("max_requests_per_client", maxRequestsPerClient);
+        stats.put("clients", inFlight.size());
+        stats.put("admitted", admitted);
+        stats.put("client_rejects", clientRejects);
+        stats.put("engine_rejects", engineRejects);
+        return stats;
+    }
+}
@@ -0,0 +1,390 @@
+package com.funcapp4nal2;
+
+import java.util.Arrays;
+
+/**
+ * 字节级的增量HTTP请求解析器
+ * 直接在连接的输入缓冲区上解析，数据不完整时记住位置，收到更多数据后从该位置继续。
+ * 请求头名不区分大小写，只保留服务器用到的请求头；支持Content-Length和chunked传输编码。
+ * 每个连接一个实例，解析完一个请求后调用reset()复用。只在Selector线程上使用。
+ */
+final class HttpRequestParser {
+
+    /** 解析错误，对应HTTP错误状态码 */
+    static final class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+        final String reason;
+
+        ParseException(int statusCode, String reason) {
+            super(reason);
+            this.statusCode = statusCode;
+            this.reason = reason;
+        }
+    }
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_DATA_END = 5;
+    private static final int TRAILERS = 6;
+    private static final int DONE = 7;
+
+    private final int maxHeaderBytes;
+    private final int maxBodyBytes;
+
+    private int state;
+    // 已解析到的位置（相对于缓冲区开头）
+    private int pos;
+
+    private String method;
+    private String path;
+    private boolean http11;
+    private int contentLength;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+    private String contentType;
+    private String accept;
+
+    private byte[] body;
+    private int bodyLength;
+    private int chunkRemaining;
+
+    HttpRequestParser(int maxHeaderBytes, int maxBodyBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+        reset();
+    }
+
+    /** 准备解析下一个请求 */
+    void reset() {
+        state = REQUEST_LINE;
+        pos = 0;
+        method = null;
+        path = null;
+        http11 = false;
+        contentLength = -1;
+        chunked = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        contentType = null;
+        accept = null;
+        body = null;
+        bodyLength = 0;
+        chunkRemaining = 0;
+    }
+
+    /**
+     * 继续解析缓冲区中的数据
+     *
+     * @param buf    输入缓冲区，请求从下标0开始
+     * @param length 缓冲区中的有效数据长度
+     * @return 请求是否已完整，完整时getConsumed()为该请求占用的字节数
+     */
+    boolean parse(byte[] buf, int length) throws ParseException {
+        while (state != DONE) {
+            switch (state) {
+                case REQUEST_LINE:
+                case HEADERS:
+                case CHUNK_SIZE:
+                case CHUNK_DATA_END:
+                case TRAILERS: {
+                    int lineEnd = indexOfLf(buf, pos, length);
+                    if (lineEnd < 0) {
+                        if (state <= HEADERS && length > maxHeaderBytes) {
+                            throw new ParseException(431, "Request Header Fields Too Large");
+                        }
+                        return false;
+                    }
+                    int start = pos;
+                    int end = lineEnd > start && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+                    pos = lineEnd + 1;
+                    if (state <= HEADERS && pos > maxHeaderBytes) {
+                        throw new ParseException(431, "Request Header Fields Too Large");
+                    }
+                    onLine(buf, start, end);
+                    break;
+                }
+                case BODY: {
+                    if (length - pos < contentLength) {
+                        return false;
+                    }
+                    body = Arrays.copyOfRange(buf, pos, pos + contentLength);
+                    bodyLength = contentLength;
+                    pos += contentLength;
+                    state = DONE;
+                    break;
+                }
+                case CHUNK_DATA: {
+                    int n = Math.min(chunkRemaining, length - pos);
+                    if (n == 0) {
+                        return false;
+                    }
+                    appendBody(buf, pos, n);
+                    pos += n;
+                    chunkRemaining -= n;
+                    if (chunkRemaining == 0) {
+                        state = CHUNK_DATA_END;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("未知状态: " + state);
+            }
+        }
+        return true;
+    }
+
+    private void onLine(byte[] buf, int start, int end) throws ParseException {
+        switch (state) {
+            case REQUEST_LINE:
+                if (start == end) {
+                    // 允许请求之间多余的空行
+                    return;
+                }
+                parseRequestLine(buf, start, end);
+                state = HEADERS;
+                break;
+            case HEADERS:
+                if (start == end) {
+                    endOfHeaders();
+                } else {
+                    parseHeader(buf, start, end);
+                }
+                break;
+            case CHUNK_SIZE:
+                chunkRemaining = parseChunkSize(buf, start, end);
+                state = chunkRemaining == 0 ? TRAILERS : CHUNK_DATA;
+                break;
+            case CHUNK_DATA_END:
+                if (start != end) {
+                    throw new ParseException(400, "Bad Request");
+                }
+                state = CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                // 忽略trailer，空行表示结束
+                if (start == end) {
+                    state = DONE;
+                }
+                break;
+            default:
+                throw new IllegalStateException("未知状态: " + state);
+        }
+    }
+
+    private void parseRequestLine(byte[] buf, int start, int end) throws ParseException {
+        int sp1 = indexOf(buf, start, end, (byte) ' ');
+        if (sp1 <= start) {
+            throw new ParseException(400, "Bad Request");
+        }
+        int sp2 = indexOf(buf, sp1 + 1, end, (byte) ' ');
+        int pathEnd = sp2 < 0 ? end : sp2;
+        if (pathEnd <= sp1 + 1) {
+            throw new ParseException(400, "Bad Request");
+        }
+        method = ascii(buf, start, sp1);
+        path = ascii(buf, sp1 + 1, pathEnd);
+        http11 = sp2 >= 0 && regionEquals(buf, sp2 + 1, end, "HTTP/1.1");
+    }
+
+    private void parseHeader(byte[] buf, int start, int end) throws ParseException {
+        int colon = indexOf(buf, start, end, (byte) ':');
+        if (colon <= start) {
+            throw new ParseException(400, "Bad Request");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        if (equalsIgnoreCase(buf, start, colon, "content-length")) {
+            int length = parseDecimal(buf, valueStart, valueEnd);
+            // 重复的Content-Length只允许取值相同，否则无法确定请求体边界
+            if (contentLength >= 0 && contentLength != length) {
+                throw new ParseException(400, "Bad Request");
+            }
+            contentLength = length;
+        } else if (equalsIgnoreCase(buf, start, colon, "transfer-encoding")) {
+            chunked = containsIgnoreCase(buf, valueStart, valueEnd, "chunked");
+        } else if (equalsIgnoreCase(buf, start, colon, "connection")) {
+            connectionClose = containsIgnoreCase(buf, valueStart, valueEnd, "close");
+            connectionKeepAlive = containsIgnoreCase(buf, valueStart, valueEnd, "keep-alive");
+        } else if (equalsIgnoreCase(buf, start, colon, "content-type")) {
+            contentType = ascii(buf, valueStart, valueEnd);
+        } else if (equalsIgnoreCase(buf, start, colon, "accept")) {
+            accept = ascii(buf, valueStart, valueEnd);
+        }
+    }
+
+    private void endOfHeaders() throws ParseException {
+        if (chunked) {
+            // 同时出现时以chunked为准
+            body = new byte[256];
+            state = CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            if (contentLength > maxBodyBytes) {
+                throw new ParseException(413, "Payload Too Large");
+            }
+            state = BODY;
+        } else {
+            body = new byte[0];
+            state = DONE;
+        }
+    }
+
+    private int parseChunkSize(byte[] buf, int start, int end) throws ParseException {
+        int size = 0;
+        int i = start;
+        for (; i < end && buf[i] != ';'; i++) {
+            int digit = Character.digit(buf[i], 16);
+            if (digit < 0) {
+                if (buf[i] == ' ' || buf[i] == '\t') {
+                    continue;
+                }
+                throw new ParseException(400, "Bad Request");
+            }
+            size = size * 16 + digit;
+            if (size > maxBodyBytes || bodyLength + size > maxBodyBytes) {
+                throw new ParseException(413, "Payload Too Large");
+            }
+        }
+        if (i == start) {
+            throw new ParseException(400, "Bad Request");
+        }
+        return size;
+    }
+
+    private int parseDecimal(byte[] buf, int start, int end) throws ParseException {
+        if (start == end) {
+            throw new ParseException(400, "Bad Request");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException(400, "Bad Request");
+            }
+            value = value * 10 + digit;
+            if (value > maxBodyBytes) {
+                throw new ParseException(413, "Payload Too Large");
+            }
+        }
+        return (int) value;
+    }
+
+    private void appendBody(byte[] buf, int offset, int n) {
+        if (bodyLength + n > body.length) {
+            body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + n));
+        }
+        System.arraycopy(buf, offset, body, bodyLength, n);
+        bodyLength += n;
+    }
+
+    /** 当前请求占用的字节数（请求完整后有效） */
+    int getConsumed() {
+        return pos;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /** 请求体原始字节（请求完整后有效） */
+    byte[] getBody() {
+        return body.length == bodyLength ? body : Arrays.copyOf(body, bodyLength);
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getAccept() {
+        return accept;
+    }
+
+    /** 客户端是否希望保持连接：HTTP/1.1默认保持，HTTP/1.0需要显式keep-alive */
+    boolean isKeepAlive() {
+        return http11 ? !connectionClose : connectionKeepAlive;
+    }
+
+    private static int indexOfLf(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(byte[] buf, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buf[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private static boolean regionEquals(byte[] buf, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // lower必须是小写
+    private static boolean equalsIgnoreCase(byte[] buf, int start, int end, String lower) {
+        if (end - start != lower.length()) {
+            return false;
+        }
+        for (int i = 0; i < lower.length(); i++) {
+            if (toLower(buf[start + i]) != lower.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsIgnoreCase(byte[] buf, int start, int end, String lower) {
+        outer:
+        for (int i = start; i <= end - lower.length(); i++) {
+            for (int j = 0; j < lower.length(); j++) {
+                if (toLower(buf[i + j]) != lower.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
@@ -13,46 +13,49 @@ import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import com.nal2.Nal2BinaryCodec;
+import com.nal2.Nal2Engine;
 import com.nal2.Nal2Module;
+import com.nal2.Nal2ResponseBuffer;
 
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Nonnull;
 
 /**
  * 简单的HTTP服务器模块 - 不使用WebSocket
  * App作为HTTP服务器，Web端通过HTTP POST请求调用NAL2功能
+ * 底层为NIO非阻塞服务器（见NioHttpServer），等待NAL2结果时不占用线程
  */
 public class HttpServerModule extends ReactContextBaseJavaModule {
     private static final String TAG = "HttpServerModule";
     private static final String MODULE_NAME = "HttpServerModule";
+    // 过载时建议客户端的重试间隔（秒）
+    private static final int RETRY_AFTER_SECONDS = 1;
 
     private final ReactApplicationContext reactContext;
-    private ServerSocket serverSocket;
-    private ExecutorService executorService;
-    private Thread serverThread;
+    private NioHttpServer server;
     private boolean isRunning = false;
     private int serverPort = 8080;
-    private Nal2Module nal2Module;
+    private int idleTimeoutMs = NioHttpServer.DEFAULT_IDLE_TIMEOUT_MS;
+    private int maxRequestsPerConnection = NioHttpServer.DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+    private final Nal2Module nal2Module;
+    private final Nal2Engine engine;
+    private final ClientAdmission admission = new ClientAdmission();
 
     public HttpServerModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
-        this.nal2Module = new Nal2Module(reactContext);
+        // 与RN注册的Nal2模块共用同一个实例（请求合并和调度状态只有一份）
+        this.nal2Module = Nal2Module.getInstance(reactContext);
+        this.engine = nal2Module;
     }
 
     @Nonnull
@@ -95,22 +98,20 @@ public class HttpServerModule extends ReactContextBaseJavaModule {
         try {
             serverPort = port;
 
-            // 创建ServerSocket
-            serverSocket = new ServerSocket();
-            serverSocket.setReuseAddress(true);
-            serverSocket.bind(new InetSocketAddress(port));
-
-            // 创建线程池
-            executorService = Executors.newFixedThreadPool(10);
+            // 创建并启动NIO服务器，所有连接由一个Selector线程处理
+            server = new NioHttpServer(port, new NioHttpServer.Handler() {
+                @Override
+                public void handle(NioHttpServer.Request request, NioHttpServer.Exchange exchange) {
+                    handleRequest(request, exchange);
+                }
+            });
+            server.setKeepAlive(idleTimeoutMs, maxRequestsPerConnection);
+            server.start();
 
             isRunning = true;
 
             Log.d(TAG, "HTTP服务器启动成功: " + getLocalIpAddress() + ":" + port);
 
-            // 在后台线程中接受连接
-            serverThread = new Thread(new ServerRunnable());
-            serverThread.start();
-
             WritableMap result = Arguments.createMap();
             result.putBoolean("success", true);
             result.putInt("port", port);
@@ -137,16 +138,9 @@ public class HttpServerModule extends ReactContextBaseJavaModule {
         try {
             isRunning = false;
 
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-
-            if (executorService != null) {
-                executorService.shutdown();
-            }
-
-            if (serverThread != null) {
-                serverThread.interrupt();
+            if (server != null) {
+                server.stop();
+                server = null;
             }
 
             Log.d(TAG, "服务器已停止");
@@ -161,6 +155,39 @@ public class HttpServerModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * 设置HTTP长连接参数，对运行中的服务器立即生效
+     *
+     * @param idleTimeoutMs            空闲超时（毫秒）
+     * @param maxRequestsPerConnection 每个连接最多处理的请求数，1表示每个请求后关闭连接
+     */
+    @ReactMethod
+    public void setKeepAliveOptions(int idleTimeoutMs, int maxRequestsPerConnection, Promise promise) {
+        if (idleTimeoutMs <= 0 || maxRequestsPerConnection <= 0) {
+            promise.reject("INVALID_ARGUMENT", "长连接参数必须大于0");
+            return;
+        }
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        if (server != null) {
+            server.setKeepAlive(idleTimeoutMs, maxRequestsPerConnection);
+        }
+        promise.resolve(true);
+    }
+
+    /**
+     * 设置每个客户端（按IP地址）同时处理中的NAL2请求数上限，超过时立即返回503
+     */
+    @ReactMethod
+    public void setAdmissionOptions(int maxRequestsPerClient, Promise promise) {
+        if (maxRequestsPerClient <= 0) {
+            promise.reject("INVALID_ARGUMENT", "每个客户端的并发请求数必须大于0");
+            return;
+        }
+        admission.setMaxRequestsPerClient(maxRequestsPerClient);
+        promise.resolve(true);
+    }
+
     /**
      * 获取服务器状态
      */
@@ -174,20 +201,8 @@ public class HttpServerModule extends ReactContextBaseJavaModule {
     }
 
     // 辅助方法：发送JSON响应
-    private void sendJSONResponse(OutputStream out, int statusCode, String json) throws IOException {
-        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
-
-        PrintWriter writer = new PrintWriter(out, true);
-        writer.println("HTTP/1.1 " + statusCode + " OK");
-        writer.println("Content-Type: application/json; charset=utf-8");
-        writer.println("Content-Length: " + jsonBytes.length);
-        writer.println("Access-Control-Allow-Origin: *");
-        writer.println("Connection: close");
-        writer.println();
-        writer.flush();
-
-        out.write(jsonBytes);
-        out.flush();
+    private void sendJSONResponse(NioHttpServer.Exchange exchange, int statusCode, String json) {
+        exchange.respondJSON(statusCode, "OK", json);
     }
 
     /**
@@ -246,315 +261,154 @@ public class HttpServerModule extends ReactContextBaseJavaModule {
     }
 
     /**
-     * 服务器运行线程
-     */
-    private class ServerRunnable implements Runnable {
-        @Override
-        public void run() {
-            Log.d(TAG, "服务器线程启动");
-
-            while (isRunning && serverSocket != null && !serverSocket.isClosed()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    Log.d(TAG, "接受新连接: " + clientSocket.getRemoteSocketAddress());
-
-                    // 在线程池中处理请求
-                    executorService.execute(new HttpRequestHandler(clientSocket));
-
-                } catch (IOException e) {
-                    if (isRunning) {
-                        Log.e(TAG, "接受连接失败", e);
-                    }
-                }
-            }
-
-            Log.d(TAG, "服务器线程退出");
-        }
-    }
-
-    /**
-     * HTTP请求处理器
+     * 路由请求，在Selector线程上调用，不能阻塞
      */
-    private class HttpRequestHandler implements Runnable {
-        private Socket clientSocket;
-
-        public HttpRequestHandler(Socket socket) {
-            this.clientSocket = socket;
-        }
-
-        @Override
-        public void run() {
-            try {
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-                OutputStream out = clientSocket.getOutputStream();
-
-                // 读取请求行
-                String requestLine = in.readLine();
-                if (requestLine == null) {
-                    clientSocket.close();
-                    return;
-                }
+    private void handleRequest(NioHttpServer.Request request, NioHttpServer.Exchange exchange) {
+        String method = request.method;
+        String path = request.path;
 
-                Log.d(TAG, "收到请求: " + requestLine);
-
-                String[] requestParts = requestLine.split(" ");
-                if (requestParts.length < 2) {
-                    sendError(out, 400, "Bad Request");
-                    return;
-                }
+        Log.d(TAG, "收到请求: " + method + " " + path + "，请求体长度: " + request.body.length);
 
-                String method = requestParts[0];
-                String path = requestParts[1];
-
-                // 读取请求头
-                int contentLength = 0;
-                String line;
-                while ((line = in.readLine()) != null && !line.isEmpty()) {
-                    if (line.startsWith("Content-Length:")) {
-                        contentLength = Integer.parseInt(line.substring(15).trim());
-                    }
-                }
-
-                // 读取请求体
-                String body = "";
-                if (contentLength > 0) {
-                    char[] bodyChars = new char[contentLength];
-                    int read = in.read(bodyChars, 0, contentLength);
-                    body = new String(bodyChars, 0, read);
-                }
-
-                Log.d(TAG, "请求体: " + body);
-
-                // 处理不同的路径
-                if (path.equals("/api/nal2/process") || path.equals("/api/nal2")) {
-                    if (method.equals("POST")) {
-                        // NAL2请求：不在这里关闭socket，等RN处理完后再关闭
-                        handleNAL2Request(clientSocket, out, body);
-                        return; // 不执行finally块
-                    } else if (method.equals("OPTIONS")) {
-                        handleCORS(out);
-                    } else {
-                        sendError(out, 405, "Method Not Allowed");
-                    }
-                } else if (path.equals("/") || path.equals("/health")) {
-                    handleHealthCheck(out);
+        try {
+            // 处理不同的路径
+            if (path.equals("/api/nal2/process") || path.equals("/api/nal2")) {
+                if (method.equals("POST")) {
+                    // NAL2请求：在NAL2引擎线程上排队执行，完成后再发送响应
+                    handleNAL2Request(exchange, request);
+                } else if (method.equals("OPTIONS")) {
+                    handleCORS(exchange);
                 } else {
-                    sendError(out, 404, "Not Found");
-                }
-
-            } catch (Exception e) {
-                Log.e(TAG, "处理请求失败", e);
-            } finally {
-                // 只有非NAL2请求才在这里关闭socket
-                try {
-                    if (!clientSocket.isClosed()) {
-                        clientSocket.close();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "关闭连接失败", e);
+                    sendError(exchange, 405, "Method Not Allowed");
                 }
+            } else if (path.equals("/api/nal2/stats")) {
+                JSONObject stats = new JSONObject(nal2Module.statsJson());
+                stats.put("admission", admission.toJSON());
+                sendJSONResponse(exchange, 200, stats.toString());
+            } else if (path.equals("/") || path.equals("/health")) {
+                handleHealthCheck(exchange);
+            } else {
+                sendError(exchange, 404, "Not Found");
             }
+        } catch (Exception e) {
+            Log.e(TAG, "处理请求失败", e);
+            sendError(exchange, 500, "Internal Server Error");
         }
+    }
 
-        private void handleNAL2Request(Socket socket, OutputStream out, String body) throws IOException {
-            long startTime = System.currentTimeMillis();
-
-            try {
-                Log.d(TAG, "收到NAL2请求，请求体长度: " + body.length());
-
-                // 使用Promise同步调用Nal2Module
-                final String[] responseStr = new String[1];
-                final Exception[] error = new Exception[1];
-                final Object lock = new Object();
-                final boolean[] completed = new boolean[1];
-
-                Promise promise = new Promise() {
-                    @Override
-                    public void resolve(Object value) {
-                        synchronized (lock) {
-                            responseStr[0] = value.toString();
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String code, String message) {
-                        synchronized (lock) {
-                            error[0] = new Exception(message);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String code, String message, Throwable throwable) {
-                        synchronized (lock) {
-                            error[0] = new Exception(message, throwable);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String code, Throwable throwable) {
-                        synchronized (lock) {
-                            error[0] = new Exception(throwable);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(Throwable throwable) {
-                        synchronized (lock) {
-                            error[0] = new Exception(throwable);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String message) {
-                        synchronized (lock) {
-                            error[0] = new Exception(message);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String code, String message, Throwable throwable, WritableMap userInfo) {
-                        synchronized (lock) {
-                            error[0] = new Exception(message, throwable);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String code, String message, WritableMap userInfo) {
-                        synchronized (lock) {
-                            error[0] = new Exception(message);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String code, Throwable throwable, WritableMap userInfo) {
-                        synchronized (lock) {
-                            error[0] = new Exception(throwable);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
-
-                    @Override
-                    public void reject(String message, WritableMap userInfo) {
-                        synchronized (lock) {
-                            error[0] = new Exception(message);
-                            completed[0] = true;
-                            lock.notify();
-                        }
-                    }
+    private void handleNAL2Request(final NioHttpServer.Exchange exchange, final NioHttpServer.Request request) {
+        // 同一客户端处理中的请求过多：立即拒绝，不进入引擎队列
+        if (!admission.tryAcquire(request.client)) {
+            Log.w(TAG, "客户端并发请求过多，拒绝: " + request.client);
+            sendBusy(exchange, "客户端并发请求过多，请稍后重试");
+            return;
+        }
 
+        // 请求格式由Content-Type决定，响应格式由Accept决定（没有时与请求相同）
+        boolean binaryRequest = Nal2BinaryCodec.isBinary(request.contentType);
+        boolean binaryResponse = Nal2BinaryCodec.acceptsBinary(request.accept, binaryRequest);
+        Log.d(TAG, "收到NAL2请求，请求体长度: " + request.body.length + "，二进制请求: " + binaryRequest
+                + "，二进制响应: " + binaryResponse);
+
+        // 请求体字节直接交给NAL2引擎解析（在引擎线程上排队执行），完成后在引擎线程上写回响应
+        final long startTime = System.currentTimeMillis();
+        final CompletableFuture<Nal2ResponseBuffer> future =
+                engine.process(request.body, binaryRequest, binaryResponse);
+        // 客户端断开或请求超时：尚未开始执行的请求不再执行
+        exchange.setOnAbandoned(new Runnable() {
+            @Override
+            public void run() {
+                future.cancel(false);
+            }
+        });
+        future.whenComplete(
+                new BiConsumer<Nal2ResponseBuffer, Throwable>() {
                     @Override
-                    public void reject(Throwable throwable, WritableMap userInfo) {
-                        synchronized (lock) {
-                            error[0] = new Exception(throwable);
-                            completed[0] = true;
-                            lock.notify();
-                        }
+                    public void accept(Nal2ResponseBuffer response, Throwable error) {
+                        admission.release(request.client);
+                        sendNAL2Response(exchange, response, error, startTime);
                     }
-                };
-
-                // 调用Nal2Module的processRequestSync方法
-                nal2Module.processRequestSync(body, promise);
+                });
+    }
 
-                // 等待结果（最多30秒）
-                synchronized (lock) {
-                    if (!completed[0]) {
-                        lock.wait(30000);
-                    }
-                }
+    private void handleHealthCheck(NioHttpServer.Exchange exchange) {
+        try {
+            JSONObject response = new JSONObject();
+            response.put("status", "ok");
+            response.put("server", "FuncApp4NAL2");
+            response.put("version", "2.0.0");
 
-                long processingTime = System.currentTimeMillis() - startTime;
-                Log.d(TAG, "NAL2处理完成，耗时: " + processingTime + "ms");
+            sendJSONResponse(exchange, 200, response.toString());
+        } catch (Exception e) {
+            sendError(exchange, 500, "Internal Server Error");
+        }
+    }
 
-                if (error[0] != null) {
-                    throw error[0];
-                }
+    private void handleCORS(NioHttpServer.Exchange exchange) {
+        exchange.respond(200, "OK", new String[] {
+                "Access-Control-Allow-Methods: GET, POST, OPTIONS",
+                "Access-Control-Allow-Headers: Content-Type, Accept"
+        }, null, new byte[0]);
+    }
 
-                if (responseStr[0] == null) {
-                    throw new Exception("处理超时");
-                }
+    /** 过载时返回503和Retry-After，响应体与其它NAL2错误相同 */
+    private void sendBusy(NioHttpServer.Exchange exchange, String message) {
+        String body;
+        try {
+            JSONObject errorResponse = new JSONObject();
+            errorResponse.put("return", -1);
+            errorResponse.put("error", message);
+            body = errorResponse.toString();
+        } catch (Exception e) {
+            body = "{\"return\":-1}";
+        }
+        exchange.respond(503, "Service Unavailable", new String[] { "Retry-After: " + RETRY_AFTER_SECONDS },
+                "application/json; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+    }
 
-                // 发送响应
-                sendJSONResponse(out, 200, responseStr[0]);
+    private void sendError(NioHttpServer.Exchange exchange, int statusCode, String message) {
+        exchange.respondJSON(statusCode, message, "{\"error\":\"" + message + "\"}");
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "处理NAL2请求失败", e);
-
-                // 返回错误响应
-                try {
-                    JSONObject errorResponse = new JSONObject();
-                    errorResponse.put("return", -1);
-                    errorResponse.put("error", e.getMessage());
-                    sendJSONResponse(out, 500, errorResponse.toString());
-                } catch (Exception e2) {
-                    sendError(out, 500, "Internal Server Error: " + e.getMessage());
-                }
-            } finally {
-                // 关闭socket
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "关闭socket失败", e);
-                }
-            }
+    /**
+     * 把NAL2引擎的结果写回HTTP响应，在NAL2引擎线程上调用
+     */
+    private void sendNAL2Response(NioHttpServer.Exchange exchange, final Nal2ResponseBuffer response,
+            Throwable error, long startTime) {
+        if (error instanceof CancellationException) {
+            Log.d(TAG, "客户端已断开，取消NAL2请求");
+            return;
+        }
+        if (error instanceof RejectedExecutionException) {
+            // 引擎队列已满：快速失败，客户端按Retry-After退避后重试
+            admission.engineRejected();
+            Log.w(TAG, "NAL2引擎队列已满，拒绝请求");
+            sendBusy(exchange, "NAL2引擎繁忙，请稍后重试");
+            return;
         }
+        if (error != null) {
+            String message = error.getMessage();
+            Log.e(TAG, "处理NAL2请求失败: " + message);
 
-        private void handleHealthCheck(OutputStream out) throws IOException {
+            // 返回错误响应
             try {
-                JSONObject response = new JSONObject();
-                response.put("status", "ok");
-                response.put("server", "FuncApp4NAL2");
-                response.put("version", "2.0.0");
-
-                sendJSONResponse(out, 200, response.toString());
+                JSONObject errorResponse = new JSONObject();
+                errorResponse.put("return", -1);
+                errorResponse.put("error", message);
+                sendJSONResponse(exchange, 500, errorResponse.toString());
             } catch (Exception e) {
-                sendError(out, 500, "Internal Server Error");
+                sendError(exchange, 500, "Internal Server Error: " + message);
             }
+            return;
         }
 
-        private void handleCORS(OutputStream out) throws IOException {
-            PrintWriter writer = new PrintWriter(out, true);
-            writer.println("HTTP/1.1 200 OK");
-            writer.println("Access-Control-Allow-Origin: *");
-            writer.println("Access-Control-Allow-Methods: GET, POST, OPTIONS");
-            writer.println("Access-Control-Allow-Headers: Content-Type");
-            writer.println("Content-Length: 0");
-            writer.println();
-            writer.flush();
-        }
-
-        private void sendError(OutputStream out, int statusCode, String message) throws IOException {
-            String response = "{\"error\":\"" + message + "\"}";
-            byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
-
-            PrintWriter writer = new PrintWriter(out, true);
-            writer.println("HTTP/1.1 " + statusCode + " " + message);
-            writer.println("Content-Type: application/json; charset=utf-8");
-            writer.println("Content-Length: " + responseBytes.length);
-            writer.println("Access-Control-Allow-Origin: *");
-            writer.println("Connection: close");
-            writer.println();
-            writer.flush();
-
-            out.write(responseBytes);
-            out.flush();
-        }
+        Log.d(TAG, "NAL2处理完成，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+        // 池化的响应字节直接作为响应体写出，写完后归还
+        exchange.respond(200, "OK", null, response.getContentType(), response.array(), response.length(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        response.release();
+                    }
+                });
     }
 }
@@ -0,0 +1,616 @@
+package com.funcapp4nal2;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于NIO Selector的非阻塞HTTP服务器
+ * 单个Selector线程负责所有连接的读写，请求解析完成后交给Handler处理。
+ * Handler不能阻塞，可以在任意线程调用Exchange.respond()完成响应，
+ * 等待NAL2引擎结果期间不占用任何线程。
+ * 支持HTTP/1.1长连接和管线化：同一连接上的多个请求可以同时处理，响应按请求顺序写出。
+ */
+final class NioHttpServer {
+    private static final String TAG = "NioHttpServer";
+
+    /** 请求处理超时（毫秒），超时后返回500 */
+    static final long REQUEST_TIMEOUT_MS = 30000;
+
+    /** 默认长连接空闲超时（毫秒） */
+    static final int DEFAULT_IDLE_TIMEOUT_MS = 15000;
+
+    /** 默认每个连接最多处理的请求数，达到后关闭连接 */
+    static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 1000;
+
+    // 检查请求超时和空闲连接的间隔（毫秒）
+    private static final long TIMEOUT_CHECK_INTERVAL_MS = 250;
+
+    // 每个连接同时处理中的管线化请求上限，达到后暂停读取
+    private static final int MAX_PIPELINED_REQUESTS = 16;
+
+    // 请求头和请求体的最大长度
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    // 连接输入缓冲区中尚未处理完的请求的最大字节数，另外为chunked编码的分块头和尾部留出余量
+    private static final int MAX_BUFFERED_BYTES = MAX_HEADER_BYTES + MAX_BODY_BYTES + MAX_BODY_BYTES / 16;
+
+    // Selector线程共用的直接缓冲区，所有读取都经过它
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    // 连接输入缓冲区的大小和池中最多保留的数量
+    private static final int IN_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    /** 请求处理器，在Selector线程上调用，不能阻塞 */
+    interface Handler {
+        void handle(Request request, Exchange exchange);
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final BufferPool bufferPool = new BufferPool(IN_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private volatile int idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+    NioHttpServer(int port, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "HTTP-Selector");
+        selectorThread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 设置长连接参数
+     *
+     * @param idleTimeoutMs            空闲超时（毫秒），没有处理中的请求且超过该时间没有读写时关闭连接
+     * @param maxRequestsPerConnection 每个连接最多处理的请求数，1表示不使用长连接
+     */
+    void setKeepAlive(int idleTimeoutMs, int maxRequestsPerConnection) {
+        if (idleTimeoutMs <= 0 || maxRequestsPerConnection <= 0) {
+            throw new IllegalArgumentException("长连接参数必须大于0");
+        }
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    private void loop() {
+        Log.d(TAG, "Selector线程启动");
+        long nextTimeoutCheck = 0;
+        try {
+            while (running) {
+                selector.select(1000);
+                drainCompleted();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(connection);
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "连接异常: " + e.getMessage());
+                        if (key.attachment() instanceof Connection) {
+                            close((Connection) key.attachment());
+                        }
+                    }
+                }
+
+                // 超时检查要遍历所有连接，按固定间隔执行，不在每次I/O事件后执行
+                long now = System.currentTimeMillis();
+                if (now >= nextTimeoutCheck) {
+                    checkTimeouts(now);
+                    nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL_MS;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                Log.e(TAG, "Selector异常退出", e);
+            }
+        } finally {
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                close(connection);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "关闭服务器失败", e);
+            }
+            running = false;
+            Log.d(TAG, "Selector线程退出");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel, clientAddress(channel), bufferPool.acquire(),
+                    new HttpRequestParser(MAX_HEADER_BYTES, MAX_BODY_BYTES));
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            Log.d(TAG, "接受新连接: " + channel.socket().getRemoteSocketAddress());
+        }
+    }
+
+    // 客户端IP地址，用于按客户端限流；取不到时为"unknown"
+    private static String clientAddress(SocketChannel channel) {
+        InetAddress address = channel.socket().getInetAddress();
+        return address != null ? address.getHostAddress() : "unknown";
+    }
+
+    /**
+     * 边读边解析：每次读取后立即解析，请求头或请求体（声明的或已收到的）超出上限时在读入过程中拒绝，
+     * 不再把Socket中所有可读的数据先放进缓冲区；不能再接收请求（关闭中或管线化请求已满）时停止读取
+     */
+    private void read(Connection connection) throws IOException {
+        while (!connection.closing && connection.exchanges.size() < MAX_PIPELINED_REQUESTS) {
+            ioBuffer.clear();
+            int n = connection.channel.read(ioBuffer);
+            if (n < 0) {
+                // 客户端关闭了发送方向：已收到的请求处理完后再关闭
+                connection.inputClosed = true;
+                break;
+            }
+            if (n == 0) {
+                break;
+            }
+            connection.lastActivity = System.currentTimeMillis();
+            if (connection.inLength + n > MAX_BUFFERED_BYTES) {
+                // 请求头超限时解析器已返回431，这里只可能是请求体（含分块头）超限
+                rejectRequest(connection, 413, "Payload Too Large");
+                break;
+            }
+            ioBuffer.flip();
+            connection.append(ioBuffer, bufferPool);
+            while (connection.channel.isOpen() && parseRequest(connection)) {
+                // 继续解析同一次读取中管线化的后续请求
+            }
+        }
+        if (connection.inputClosed && connection.exchanges.isEmpty()) {
+            close(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * 从连接的输入缓冲区中解析一个完整的请求并交给Handler
+     *
+     * @return 是否解析出了请求
+     */
+    private boolean parseRequest(Connection connection) {
+        if (connection.closing || connection.exchanges.size() >= MAX_PIPELINED_REQUESTS) {
+            return false;
+        }
+        HttpRequestParser parser = connection.parser;
+        try {
+            if (!parser.parse(connection.in, connection.inLength)) {
+                return false;
+            }
+        } catch (HttpRequestParser.ParseException e) {
+            rejectRequest(connection, e.statusCode, e.reason);
+            return false;
+        }
+
+        Request request = new Request(connection.client, parser.getMethod(), parser.getPath(),
+                parser.getContentType(), parser.getAccept(), parser.getBody());
+        // 达到请求数上限后关闭
+        connection.requestCount++;
+        if (!parser.isKeepAlive() || connection.requestCount >= maxRequestsPerConnection) {
+            connection.closing = true;
+        }
+        connection.consume(parser.getConsumed(), bufferPool);
+        parser.reset();
+
+        Exchange exchange = new Exchange(connection, !connection.closing);
+        connection.exchanges.add(exchange);
+        try {
+            handler.handle(request, exchange);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "处理请求失败", e);
+            exchange.respondJSON(500, "Internal Server Error", "{\"error\":\"Internal Server Error\"}");
+        }
+        return true;
+    }
+
+    /** 请求格式错误：返回错误并在之后关闭连接（后续数据无法再正确分帧） */
+    private void rejectRequest(Connection connection, int statusCode, String reason) {
+        connection.closing = true;
+        Exchange exchange = new Exchange(connection, false);
+        connection.exchanges.add(exchange);
+        exchange.respondJSON(statusCode, reason, "{\"error\":\"" + reason + "\"}");
+    }
+
+    /** 根据连接状态设置关注的事件：写阻塞时等待OP_WRITE，可以接收新请求时等待OP_READ */
+    private void updateInterest(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (connection.writeBlocked) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!connection.closing && !connection.inputClosed
+                && connection.exchanges.size() < MAX_PIPELINED_REQUESTS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    private void drainCompleted() {
+        Connection connection;
+        while ((connection = completed.poll()) != null) {
+            if (!connection.channel.isOpen()) {
+                // 连接关闭后才完成的响应不会再写出，归还响应体缓冲区
+                for (Exchange exchange : connection.exchanges) {
+                    if (exchange.response != null) {
+                        exchange.written();
+                    }
+                }
+            } else {
+                try {
+                    flush(connection);
+                } catch (IOException e) {
+                    Log.d(TAG, "写入响应失败: " + e.getMessage());
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按请求顺序写出已完成的响应，写不完时等待OP_WRITE
+     * 管线化时后面的请求即使先完成，也要等前面的响应写完
+     */
+    private void flush(Connection connection) throws IOException {
+        connection.writeBlocked = false;
+        while (!connection.exchanges.isEmpty()) {
+            Exchange head = connection.exchanges.peek();
+            ByteBuffer[] response = head.response;
+            if (response == null) {
+                break;
+            }
+            // 响应头和响应体一次聚集写，不再拼接复制
+            connection.channel.write(response);
+            if (response[0].hasRemaining() || response[1].hasRemaining()) {
+                // Socket发送缓冲区已满
+                connection.writeBlocked = true;
+                updateInterest(connection);
+                return;
+            }
+            connection.exchanges.poll();
+            head.written();
+            connection.lastActivity = System.currentTimeMillis();
+            if (!head.keepAlive) {
+                close(connection);
+                return;
+            }
+        }
+        if (connection.exchanges.isEmpty() && connection.inputClosed) {
+            close(connection);
+            return;
+        }
+        // 处理暂停读取期间已缓冲的管线化请求
+        while (connection.channel.isOpen() && parseRequest(connection)) {
+            // 继续解析
+        }
+        if (connection.channel.isOpen()) {
+            updateInterest(connection);
+        }
+    }
+
+    private void checkTimeouts(long now) {
+        // 倒序遍历，close()只移除当前连接
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            Connection connection = connections.get(i);
+            if (connection.exchanges.isEmpty()) {
+                if (now - connection.lastActivity > idleTimeoutMs) {
+                    Log.d(TAG, "长连接空闲超时，关闭");
+                    close(connection);
+                }
+                continue;
+            }
+            for (Exchange exchange : connection.exchanges) {
+                if (exchange.response == null && now - exchange.startTime > REQUEST_TIMEOUT_MS) {
+                    Log.w(TAG, "请求处理超时");
+                    exchange.respondJSON(500, "Internal Server Error", "{\"return\":-1,\"error\":\"处理超时\"}");
+                    exchange.abandoned();
+                }
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        connections.remove(connection);
+        for (Exchange exchange : connection.exchanges) {
+            if (exchange.response != null) {
+                exchange.written();
+            } else {
+                // 客户端已断开，尚未完成的请求不再需要
+                exchange.abandoned();
+            }
+        }
+        if (connection.in != null) {
+            bufferPool.release(connection.in);
+            connection.in = null;
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "关闭连接失败", e);
+        }
+    }
+
+    /** 解析后的HTTP请求 */
+    static final class Request {
+        // 客户端IP地址
+        final String client;
+        final String method;
+        final String path;
+        // Content-Type和Accept请求头，没有时为null
+        final String contentType;
+        final String accept;
+        // 请求体原始字节（chunked编码已解码）
+        final byte[] body;
+
+        Request(String client, String method, String path, String contentType, String accept, byte[] body) {
+            this.client = client;
+            this.method = method;
+            this.path = path;
+            this.contentType = contentType;
+            this.accept = accept;
+            this.body = body;
+        }
+    }
+
+    /**
+     * 一次请求/响应交换，respond可以在任意线程调用，只有第一次调用生效
+     */
+    final class Exchange {
+        private final Connection connection;
+        private final AtomicBoolean responded = new AtomicBoolean();
+        final long startTime = System.currentTimeMillis();
+        // 响应后是否保持连接
+        final boolean keepAlive;
+        // 响应头和响应体，用一次聚集写写出
+        volatile ByteBuffer[] response;
+        // 响应写完（或连接关闭）后调用，用于归还响应体缓冲区
+        volatile Runnable onWritten;
+        // 响应之前连接关闭或请求超时时调用，用于取消尚未执行的处理
+        private Runnable onAbandoned;
+
+        Exchange(Connection connection, boolean keepAlive) {
+            this.connection = connection;
+            this.keepAlive = keepAlive;
+        }
+
+        void respondJSON(int statusCode, String reason, String json) {
+            respond(statusCode, reason, null, "application/json; charset=utf-8",
+                    json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param extraHeaders 额外的响应头（完整的"Name: value"行），可为null
+         * @param contentType  Content-Type，body为空时可为null
+         */
+        void respond(int statusCode, String reason, String[] extraHeaders, String contentType, byte[] body) {
+            respond(statusCode, reason, extraHeaders, contentType, body, body.length, null);
+        }
+
+        /**
+         * 响应体直接使用body的[0, bodyLength)，不复制
+         *
+         * @param onWritten 响应写完或不再需要body时调用（Selector线程或当前线程），可为null
+         */
+        void respond(int statusCode, String reason, String[] extraHeaders, String contentType, byte[] body,
+                int bodyLength, Runnable onWritten) {
+            if (!responded.compareAndSet(false, true) || !connection.channel.isOpen()) {
+                // 已经响应过，或连接已关闭（客户端断开后引擎才完成），响应不会写出
+                if (onWritten != null) {
+                    onWritten.run();
+                }
+                return;
+            }
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(statusCode).append(' ').append(reason).append("\r\n");
+            if (contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            head.append("Content-Length: ").append(bodyLength).append("\r\n");
+            head.append("Access-Control-Allow-Origin: *\r\n");
+            if (extraHeaders != null) {
+                for (String header : extraHeaders) {
+                    head.append(header).append("\r\n");
+                }
+            }
+            if (keepAlive) {
+                head.append("Connection: keep-alive\r\n");
+                head.append("Keep-Alive: timeout=").append(idleTimeoutMs / 1000).append("\r\n\r\n");
+            } else {
+                head.append("Connection: close\r\n\r\n");
+            }
+
+            this.onWritten = onWritten;
+            response = new ByteBuffer[] {
+                    ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)),
+                    ByteBuffer.wrap(body, 0, bodyLength)
+            };
+
+            completed.add(connection);
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        /**
+         * 设置请求被放弃（客户端断开或处理超时）时的回调，只能在Handler.handle中调用
+         */
+        void setOnAbandoned(Runnable onAbandoned) {
+            this.onAbandoned = onAbandoned;
+        }
+
+        // 在Selector线程上调用
+        void abandoned() {
+            Runnable callback = onAbandoned;
+            onAbandoned = null;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        // 在Selector线程上调用，响应体缓冲区不再使用
+        void written() {
+            Runnable callback = onWritten;
+            onWritten = null;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    /** 单个客户端连接的状态，只在Selector线程上访问 */
+    private static final class Connection {
+        final SocketChannel channel;
+        final String client;
+        final HttpRequestParser parser;
+        SelectionKey key;
+        byte[] in;
+        int inLength;
+        final ArrayDeque<Exchange> exchanges = new ArrayDeque<Exchange>();
+        long lastActivity = System.currentTimeMillis();
+        int requestCount;
+        // 已收到最后一个请求（Connection: close或达到请求数上限），不再读取
+        boolean closing;
+        // 客户端已关闭发送方向
+        boolean inputClosed;
+        boolean writeBlocked;
+
+        Connection(SocketChannel channel, String client, byte[] in, HttpRequestParser parser) {
+            this.channel = channel;
+            this.client = client;
+            this.in = in;
+            this.parser = parser;
+        }
+
+        void append(ByteBuffer buffer, BufferPool pool) {
+            int n = buffer.remaining();
+            if (inLength + n > in.length) {
+                // 超出池中缓冲区大小（大请求体），换成更大的非池化缓冲区
+                byte[] grown = Arrays.copyOf(in, Math.max(in.length * 2, inLength + n));
+                pool.release(in);
+                in = grown;
+            }
+            buffer.get(in, inLength, n);
+            inLength += n;
+        }
+
+        void consume(int n, BufferPool pool) {
+            int remaining = inLength - n;
+            if (in.length > IN_BUFFER_SIZE && remaining <= IN_BUFFER_SIZE) {
+                // 大请求处理完后换回池中的缓冲区，空闲的长连接不长期占用大缓冲区
+                byte[] pooled = pool.acquire();
+                System.arraycopy(in, n, pooled, 0, remaining);
+                in = pooled;
+            } else {
+                System.arraycopy(in, n, in, 0, remaining);
+            }
+            inLength = remaining;
+        }
+    }
+
+    /**
+     * 固定大小的输入缓冲区池，连接关闭后缓冲区回收复用，只在Selector线程上使用
+     */
+    private static final class BufferPool {
+        private final int bufferSize;
+        private final int maxPooled;
+        private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+
+        BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        byte[] acquire() {
+            byte[] buffer = free.poll();
+            return buffer != null ? buffer : new byte[bufferSize];
+        }
+
+        void release(byte[] buffer) {
+            if (buffer.length == bufferSize && free.size() < maxPooled) {
+                free.push(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.funcapp4nal2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpRequestParserTest {
+
+    private static final int MAX_HEADER_BYTES = 1024;
+    private static final int MAX_BODY_BYTES = 4096;
+
+    private final HttpRequestParser parser = new HttpRequestParser(MAX_HEADER_BYTES, MAX_BODY_BYTES);
+
+    @Test
+    public void parsesRequestWithoutBody() throws Exception {
+        byte[] request = bytes("GET /api/nal2/stats HTTP/1.1\r\nHost: localhost\r\nAccept: application/json\r\n\r\n");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("GET", parser.getMethod());
+        assertEquals("/api/nal2/stats", parser.getPath());
+        assertEquals("application/json", parser.getAccept());
+        assertNull(parser.getContentType());
+        assertEquals(0, parser.getBody().length);
+        assertEquals(request.length, parser.getConsumed());
+        assertTrue(parser.isKeepAlive());
+    }
+
+    @Test
+    public void headerNamesAreCaseInsensitive() throws Exception {
+        byte[] request = bytes("POST / HTTP/1.1\r\ncOnTeNt-LeNgTh: 2\r\nCONTENT-TYPE:  text/plain \r\n\r\nok");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("text/plain", parser.getContentType());
+        assertEquals("ok", string(parser.getBody()));
+    }
+
+    @Test
+    public void acceptsBareLfLineEndings() throws Exception {
+        byte[] request = bytes("POST / HTTP/1.1\nContent-Length: 3\n\nabc");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("abc", string(parser.getBody()));
+    }
+
+    @Test
+    public void resumesAcrossEverySplitPoint() throws Exception {
+        byte[] request = bytes("POST /api/nal2/process HTTP/1.1\r\nContent-Type: application/json\r\n"
+                + "Content-Length: 13\r\n\r\n{\"a\":[1,2,3]}");
+
+        // 数据逐字节到达：请求头、空行和请求体的每个边界上都不完整
+        for (int length = 0; length < request.length; length++) {
+            assertFalse("length " + length, parser.parse(request, length));
+        }
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("{\"a\":[1,2,3]}", string(parser.getBody()));
+        assertEquals(request.length, parser.getConsumed());
+    }
+
+    @Test
+    public void decodesChunkedBody() throws Exception {
+        byte[] request = bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\nX-Trailer: 1\r\n\r\n");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("hello, world", string(parser.getBody()));
+        assertEquals(request.length, parser.getConsumed());
+    }
+
+    @Test
+    public void resumesChunkedBodyAcrossEverySplitPoint() throws Exception {
+        byte[] request = bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "A\r\n0123456789\r\n3\r\nabc\r\n0\r\n\r\n");
+
+        for (int length = 0; length < request.length; length++) {
+            assertFalse("length " + length, parser.parse(request, length));
+        }
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("0123456789abc", string(parser.getBody()));
+    }
+
+    @Test
+    public void chunkedTakesPrecedenceOverContentLength() throws Exception {
+        byte[] request = bytes("POST / HTTP/1.1\r\nContent-Length: 100\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "2\r\nok\r\n0\r\n\r\n");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("ok", string(parser.getBody()));
+    }
+
+    @Test
+    public void rejectsMalformedChunk() {
+        expectError(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        parser.reset();
+        expectError(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nokX\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void parsesPipelinedRequests() throws Exception {
+        String first = "POST /a HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc";
+        String second = "GET /b HTTP/1.1\r\n\r\n";
+        byte[] buf = bytes(first + second);
+
+        assertTrue(parser.parse(buf, buf.length));
+        assertEquals("/a", parser.getPath());
+        assertEquals("abc", string(parser.getBody()));
+        int consumed = parser.getConsumed();
+        assertEquals(first.length(), consumed);
+
+        // 与NioHttpServer.Connection.consume()相同：剩余数据移到缓冲区开头
+        byte[] rest = Arrays.copyOfRange(buf, consumed, buf.length);
+        parser.reset();
+        assertTrue(parser.parse(rest, rest.length));
+        assertEquals("GET", parser.getMethod());
+        assertEquals("/b", parser.getPath());
+        assertEquals(second.length(), parser.getConsumed());
+    }
+
+    @Test
+    public void leavesPartialPipelinedRequestUnconsumed() throws Exception {
+        byte[] buf = bytes("GET /a HTTP/1.1\r\n\r\nGET /b HT");
+
+        assertTrue(parser.parse(buf, buf.length));
+        int consumed = parser.getConsumed();
+        byte[] rest = Arrays.copyOfRange(buf, consumed, buf.length);
+        parser.reset();
+        assertFalse(parser.parse(rest, rest.length));
+    }
+
+    @Test
+    public void skipsBlankLinesBetweenRequests() throws Exception {
+        byte[] request = bytes("\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("/", parser.getPath());
+    }
+
+    @Test
+    public void keepAliveFollowsHttpVersion() throws Exception {
+        assertKeepAlive(true, "GET / HTTP/1.1\r\n\r\n");
+        assertKeepAlive(false, "GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertKeepAlive(false, "GET / HTTP/1.0\r\n\r\n");
+        assertKeepAlive(true, "GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsBodyOverLimit() {
+        expectError(413, "POST / HTTP/1.1\r\nContent-Length: " + (MAX_BODY_BYTES + 1) + "\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsChunkedBodyOverLimit() {
+        String chunk = Integer.toHexString(MAX_BODY_BYTES / 2 + 1);
+        StringBuilder request = new StringBuilder("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+        for (int i = 0; i < 2; i++) {
+            request.append(chunk).append("\r\n");
+            for (int j = 0; j < MAX_BODY_BYTES / 2 + 1; j++) {
+                request.append('x');
+            }
+            request.append("\r\n");
+        }
+        expectError(413, request.toString());
+    }
+
+    @Test
+    public void rejectsHeadersOverLimit() {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\nX-Padding: ");
+        while (request.length() <= MAX_HEADER_BYTES) {
+            request.append('x');
+        }
+        // 还没有收到行尾时也按已缓冲的长度判断
+        expectError(431, request.toString());
+        parser.reset();
+        expectError(431, request.append("\r\n\r\n").toString());
+    }
+
+    @Test
+    public void rejectsConflictingContentLength() {
+        expectError(400, "POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 4\r\n\r\nabcd");
+    }
+
+    @Test
+    public void acceptsRepeatedIdenticalContentLength() throws Exception {
+        byte[] request = bytes("POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 3\r\n\r\nabc");
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("abc", string(parser.getBody()));
+    }
+
+    @Test
+    public void rejectsInvalidContentLength() {
+        expectError(400, "POST / HTTP/1.1\r\nContent-Length: 1x\r\n\r\n");
+        parser.reset();
+        expectError(400, "POST / HTTP/1.1\r\nContent-Length:\r\n\r\n");
+    }
+
+    @Test
+    public void rejectsMalformedRequestLine() {
+        expectError(400, "GET\r\n\r\n");
+        parser.reset();
+        expectError(400, "GET  HTTP/1.1\r\n\r\n");
+        parser.reset();
+        expectError(400, "GET / HTTP/1.1\r\nNoColon\r\n\r\n");
+    }
+
+    @Test
+    public void resetClearsPreviousRequest() throws Exception {
+        byte[] first = bytes("POST / HTTP/1.1\r\nContent-Type: text/plain\r\nContent-Length: 1\r\n\r\na");
+        assertTrue(parser.parse(first, first.length));
+        parser.reset();
+
+        byte[] second = bytes("GET /x HTTP/1.1\r\n\r\n");
+        assertTrue(parser.parse(second, second.length));
+        assertNull(parser.getContentType());
+        assertArrayEquals(new byte[0], parser.getBody());
+    }
+
+    private void assertKeepAlive(boolean expected, String request) throws Exception {
+        parser.reset();
+        byte[] buf = bytes(request);
+        assertTrue(parser.parse(buf, buf.length));
+        assertEquals(request, expected, parser.isKeepAlive());
+    }
+
+    private void expectError(int statusCode, String request) {
+        byte[] buf = bytes(request);
+        try {
+            parser.parse(buf, buf.length);
+            fail("expected " + statusCode);
+        } catch (HttpRequestParser.ParseException e) {
+            assertEquals(statusCode, e.statusCode);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+}
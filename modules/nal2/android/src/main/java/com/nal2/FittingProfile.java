@@ -0,0 +1,398 @@
+package com.nal2;
+
+import java.util.Arrays;
+
+/**
+ * 验配档案（不可变）
+ * 包含一个患者推入NativeManager的全部状态输入：人口学参数、AC/BC/ACother、通道数、
+ * BWC交叉频率、压缩阈值(CT)输入，以及REDD/REUR/RECD个体化覆盖值。
+ * 未设置的int字段为UNSET，未设置的数组为null，NativeStateApplier.apply只会推送已设置的部分；
+ * NativeStateApplier.restore推送完整状态，未设置的部分取DEFAULTS。
+ */
+public final class FittingProfile {
+
+    /** int字段未设置时的取值 */
+    public static final int UNSET = Integer.MIN_VALUE;
+
+    /** 空档案 */
+    public static final FittingProfile EMPTY = new Builder().build();
+
+    private static final int BANDS = 19;
+
+    /**
+     * 默认档案：新会话的基线
+     * 每个推送到NativeManager的字段都有确定的值（人口学参数为0、单通道BWC、CompressionThreshold_NL2接口的默认CT输入），
+     * 没有REDD/REUR/RECD个体化覆盖，保证新会话不继承其它会话留下的状态。
+     */
+    public static final FittingProfile DEFAULTS = new Builder()
+            .demographics(0, 0, 0, 0, 0, 0)
+            .bwc(1, new double[BANDS])
+            .compressionThreshold(0, 1, 0, 0, 0, 0, new int[] { 1 })
+            .build();
+
+    // 人口学参数
+    final int adultChild;
+    final int dateOfBirth;
+    final int experience;
+    final int compSpeed;
+    final int tonal;
+    final int gender;
+
+    // 听力图（不直接推送到NativeManager，供增益计算使用）
+    final double[] ac;
+    final double[] bc;
+    final double[] acOther;
+
+    // 通道数与BWC
+    final int channels;
+    final double[] crossOver;
+
+    // CompressionThreshold_NL2 输入
+    final int bandWidth;
+    final int selection;
+    final int wbct;
+    final int aidType;
+    final int direction;
+    final int mic;
+    final int[] calcCh;
+
+    // REDD/REUR/RECD 个体化覆盖（数组长度为9时使用9频点版本）
+    final double[] redd;
+    final int reddDefValues;
+    final double[] reur;
+    final int reurDefValues;
+    final int reurDateOfBirth;
+    final int reurDirection;
+    final int reurMic;
+    final double[] recdh;
+    final double[] recdt;
+
+    private final int hash;
+
+    private FittingProfile(Builder b) {
+        adultChild = b.adultChild;
+        dateOfBirth = b.dateOfBirth;
+        experience = b.experience;
+        compSpeed = b.compSpeed;
+        tonal = b.tonal;
+        gender = b.gender;
+        ac = copy(b.ac);
+        bc = copy(b.bc);
+        acOther = copy(b.acOther);
+        channels = b.channels;
+        crossOver = copy(b.crossOver);
+        bandWidth = b.bandWidth;
+        selection = b.selection;
+        wbct = b.wbct;
+        aidType = b.aidType;
+        direction = b.direction;
+        mic = b.mic;
+        calcCh = b.calcCh == null ? null : b.calcCh.clone();
+        redd = copy(b.redd);
+        reddDefValues = b.reddDefValues;
+        reur = copy(b.reur);
+        reurDefValues = b.reurDefValues;
+        reurDateOfBirth = b.reurDateOfBirth;
+        reurDirection = b.reurDirection;
+        reurMic = b.reurMic;
+        recdh = copy(b.recdh);
+        recdt = copy(b.recdt);
+        hash = computeHash();
+    }
+
+    public boolean hasAdultChild() {
+        return adultChild != UNSET;
+    }
+
+    public boolean hasBWC() {
+        return crossOver != null && channels != UNSET;
+    }
+
+    public boolean hasCompressionThreshold() {
+        return calcCh != null;
+    }
+
+    public int getAdultChild() {
+        return adultChild;
+    }
+
+    public int getDateOfBirth() {
+        return dateOfBirth;
+    }
+
+    public int getExperience() {
+        return experience;
+    }
+
+    public int getCompSpeed() {
+        return compSpeed;
+    }
+
+    public int getTonal() {
+        return tonal;
+    }
+
+    public int getGender() {
+        return gender;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public double[] getAC() {
+        return copy(ac);
+    }
+
+    public double[] getBC() {
+        return copy(bc);
+    }
+
+    public double[] getACother() {
+        return copy(acOther);
+    }
+
+    public double[] getCrossOver() {
+        return copy(crossOver);
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * 补全档案：未设置的人口学参数、BWC和CT输入取DEFAULTS中的值
+     * REDD/REUR/RECD为null表示未个体化（使用NAL2默认值），保持不变。
+     */
+    public FittingProfile withDefaults() {
+        Builder b = toBuilder();
+        if (adultChild == UNSET) {
+            b.adultChild(DEFAULTS.adultChild, DEFAULTS.dateOfBirth);
+        }
+        if (experience == UNSET) {
+            b.experience(DEFAULTS.experience);
+        }
+        if (compSpeed == UNSET) {
+            b.compSpeed(DEFAULTS.compSpeed);
+        }
+        if (tonal == UNSET) {
+            b.tonalLanguage(DEFAULTS.tonal);
+        }
+        if (gender == UNSET) {
+            b.gender(DEFAULTS.gender);
+        }
+        if (!hasBWC()) {
+            b.bwc(DEFAULTS.channels, DEFAULTS.crossOver);
+        }
+        if (!hasCompressionThreshold()) {
+            b.compressionThreshold(DEFAULTS.bandWidth, DEFAULTS.selection, DEFAULTS.wbct, DEFAULTS.aidType,
+                    DEFAULTS.direction, DEFAULTS.mic, DEFAULTS.calcCh);
+        }
+        return b.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FittingProfile)) {
+            return false;
+        }
+        FittingProfile p = (FittingProfile) o;
+        return hash == p.hash
+                && adultChild == p.adultChild && dateOfBirth == p.dateOfBirth && experience == p.experience
+                && compSpeed == p.compSpeed && tonal == p.tonal && gender == p.gender
+                && channels == p.channels && bandWidth == p.bandWidth && selection == p.selection
+                && wbct == p.wbct && aidType == p.aidType && direction == p.direction && mic == p.mic
+                && reddDefValues == p.reddDefValues && reurDefValues == p.reurDefValues
+                && reurDateOfBirth == p.reurDateOfBirth && reurDirection == p.reurDirection
+                && reurMic == p.reurMic
+                && Arrays.equals(ac, p.ac) && Arrays.equals(bc, p.bc) && Arrays.equals(acOther, p.acOther)
+                && Arrays.equals(crossOver, p.crossOver) && Arrays.equals(calcCh, p.calcCh)
+                && Arrays.equals(redd, p.redd) && Arrays.equals(reur, p.reur)
+                && Arrays.equals(recdh, p.recdh) && Arrays.equals(recdt, p.recdt);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    private int computeHash() {
+        int h = Arrays.hashCode(new int[] { adultChild, dateOfBirth, experience, compSpeed, tonal, gender,
+                channels, bandWidth, selection, wbct, aidType, direction, mic, reddDefValues, reurDefValues,
+                reurDateOfBirth, reurDirection, reurMic });
+        h = 31 * h + Arrays.hashCode(ac);
+        h = 31 * h + Arrays.hashCode(bc);
+        h = 31 * h + Arrays.hashCode(acOther);
+        h = 31 * h + Arrays.hashCode(crossOver);
+        h = 31 * h + Arrays.hashCode(calcCh);
+        h = 31 * h + Arrays.hashCode(redd);
+        h = 31 * h + Arrays.hashCode(reur);
+        h = 31 * h + Arrays.hashCode(recdh);
+        h = 31 * h + Arrays.hashCode(recdt);
+        return h;
+    }
+
+    private static double[] copy(double[] array) {
+        return array == null ? null : array.clone();
+    }
+
+    /**
+     * FittingProfile构建器
+     */
+    public static final class Builder {
+        private int adultChild = UNSET;
+        private int dateOfBirth = UNSET;
+        private int experience = UNSET;
+        private int compSpeed = UNSET;
+        private int tonal = UNSET;
+        private int gender = UNSET;
+        private double[] ac;
+        private double[] bc;
+        private double[] acOther;
+        private int channels = UNSET;
+        private double[] crossOver;
+        private int bandWidth = UNSET;
+        private int selection = UNSET;
+        private int wbct = UNSET;
+        private int aidType = UNSET;
+        private int direction = UNSET;
+        private int mic = UNSET;
+        private int[] calcCh;
+        private double[] redd;
+        private int reddDefValues = UNSET;
+        private double[] reur;
+        private int reurDefValues = UNSET;
+        private int reurDateOfBirth = UNSET;
+        private int reurDirection = UNSET;
+        private int reurMic = UNSET;
+        private double[] recdh;
+        private double[] recdt;
+
+        public Builder() {
+        }
+
+        private Builder(FittingProfile p) {
+            adultChild = p.adultChild;
+            dateOfBirth = p.dateOfBirth;
+            experience = p.experience;
+            compSpeed = p.compSpeed;
+            tonal = p.tonal;
+            gender = p.gender;
+            ac = p.ac;
+            bc = p.bc;
+            acOther = p.acOther;
+            channels = p.channels;
+            crossOver = p.crossOver;
+            bandWidth = p.bandWidth;
+            selection = p.selection;
+            wbct = p.wbct;
+            aidType = p.aidType;
+            direction = p.direction;
+            mic = p.mic;
+            calcCh = p.calcCh;
+            redd = p.redd;
+            reddDefValues = p.reddDefValues;
+            reur = p.reur;
+            reurDefValues = p.reurDefValues;
+            reurDateOfBirth = p.reurDateOfBirth;
+            reurDirection = p.reurDirection;
+            reurMic = p.reurMic;
+            recdh = p.recdh;
+            recdt = p.recdt;
+        }
+
+        public Builder demographics(int adultChild, int dateOfBirth, int experience, int compSpeed, int tonal,
+                int gender) {
+            return adultChild(adultChild, dateOfBirth).experience(experience).compSpeed(compSpeed)
+                    .tonalLanguage(tonal).gender(gender);
+        }
+
+        public Builder adultChild(int adultChild, int dateOfBirth) {
+            this.adultChild = adultChild;
+            this.dateOfBirth = dateOfBirth;
+            return this;
+        }
+
+        public Builder experience(int experience) {
+            this.experience = experience;
+            return this;
+        }
+
+        public Builder compSpeed(int compSpeed) {
+            this.compSpeed = compSpeed;
+            return this;
+        }
+
+        public Builder tonalLanguage(int tonal) {
+            this.tonal = tonal;
+            return this;
+        }
+
+        public Builder gender(int gender) {
+            this.gender = gender;
+            return this;
+        }
+
+        public Builder audiogram(double[] ac, double[] bc, double[] acOther) {
+            this.ac = ac;
+            this.bc = bc;
+            this.acOther = acOther;
+            return this;
+        }
+
+        public Builder channels(int channels) {
+            this.channels = channels;
+            return this;
+        }
+
+        public Builder bwc(int channels, double[] crossOver) {
+            this.channels = channels;
+            this.crossOver = crossOver;
+            return this;
+        }
+
+        public Builder compressionThreshold(int bandWidth, int selection, int wbct, int aidType, int direction,
+                int mic, int[] calcCh) {
+            this.bandWidth = bandWidth;
+            this.selection = selection;
+            this.wbct = wbct;
+            this.aidType = aidType;
+            this.direction = direction;
+            this.mic = mic;
+            this.calcCh = calcCh;
+            return this;
+        }
+
+        public Builder redd(double[] redd, int defValues) {
+            this.redd = redd;
+            this.reddDefValues = defValues;
+            return this;
+        }
+
+        public Builder reur(double[] reur, int defValues, int dateOfBirth, int direction, int mic) {
+            this.reur = reur;
+            this.reurDefValues = defValues;
+            this.reurDateOfBirth = dateOfBirth;
+            this.reurDirection = direction;
+            this.reurMic = mic;
+            return this;
+        }
+
+        public Builder recdh(double[] recdh) {
+            this.recdh = recdh;
+            return this;
+        }
+
+        public Builder recdt(double[] recdt) {
+            this.recdt = recdt;
+            return this;
+        }
+
+        public FittingProfile build() {
+            return new FittingProfile(this);
+        }
+    }
+}
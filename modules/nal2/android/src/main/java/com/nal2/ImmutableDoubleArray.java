@@ -0,0 +1,26 @@
+package com.nal2;
+
+/**
+ * 只读double数组视图
+ * 用于查找表中的共享结果，调用方无法修改底层数据
+ */
+public final class ImmutableDoubleArray {
+    private final double[] values;
+
+    ImmutableDoubleArray(double[] values) {
+        this.values = values.clone();
+    }
+
+    public int length() {
+        return values.length;
+    }
+
+    public double get(int index) {
+        return values[index];
+    }
+
+    /** 返回数据副本 */
+    public double[] toArray() {
+        return values.clone();
+    }
+}
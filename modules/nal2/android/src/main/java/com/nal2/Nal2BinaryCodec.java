@@ -0,0 +1,483 @@
+package com.nal2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NAL2二进制协议（Content-Type: application/x-nal2）的参考编解码器
+ * 只依赖JDK，可直接复制到Java客户端使用。服务端的解码在Nal2RequestDecoder.decodeBinary中，
+ * 编码在Nal2BinaryResponseWriter中，二者与本类的格式一致。格式说明见API_GUIDE.md“二进制协议”。
+ *
+ * 所有多字节整数和double均为小端序。一个请求体/响应体由一个或多个帧首尾相接组成：
+ * <pre>
+ * 请求帧: u32 帧长度（不含本字段） | u8 版本 | u16 函数ID | i32 sequence_num
+ *        | u8 session_id长度（0为无） | session_id UTF-8 | 对象 input_parameters
+ * 响应帧: u32 帧长度（不含本字段） | u8 版本 | u16 函数ID | i32 sequence_num
+ *        | i8 return | 对象 output_parameters
+ * 对象:   u16 项数 | 每项：键 + 值
+ * 键:     u8 字段ID（1-255），或0后跟 u8 长度 + UTF-8 名称（字典中没有的键）
+ * 值:     u8 类型 + 数据，类型见TYPE_*常量
+ * </pre>
+ * 函数ID和字段ID的字典只能在末尾追加，已有的ID不能改变。
+ */
+public final class Nal2BinaryCodec {
+
+    /** 二进制协议的Content-Type */
+    public static final String CONTENT_TYPE = "application/x-nal2";
+
+    /** 协议版本 */
+    public static final int VERSION = 1;
+
+    /** 未知函数的ID（无法解析的请求的错误响应使用） */
+    public static final int UNKNOWN_FUNCTION = 0;
+
+    // 值的类型
+    public static final byte TYPE_NULL = 0;
+    /** i32 */
+    public static final byte TYPE_INT32 = 1;
+    /** f64 */
+    public static final byte TYPE_FLOAT64 = 2;
+    /** u16 个数 + i32 * 个数 */
+    public static final byte TYPE_INT32_ARRAY = 3;
+    /** u16 个数 + f64 * 个数 */
+    public static final byte TYPE_FLOAT64_ARRAY = 4;
+    /** u16 字节数 + UTF-8 */
+    public static final byte TYPE_STRING = 5;
+    /** u8 0或1 */
+    public static final byte TYPE_BOOLEAN = 6;
+    /** i64 */
+    public static final byte TYPE_INT64 = 7;
+    /** 对象（见类注释） */
+    public static final byte TYPE_OBJECT = 8;
+    /** u16 个数 + 值 * 个数 */
+    public static final byte TYPE_LIST = 9;
+
+    /** 对象键中表示“名称不在字典中”的字段ID */
+    public static final int INLINE_NAME = 0;
+
+    /** 对象项数、数组长度和字符串字节数的上限 */
+    public static final int MAX_COUNT = 0xffff;
+
+    // 帧头的字节数（帧长度字段之后、session_id/return之前）
+    static final int HEADER_SIZE = 1 + 2 + 4;
+
+    // 函数ID = 下标 + 1，与Nal2Module注册到Nal2FunctionRegistry的函数一一对应
+    private static final String[] FUNCTIONS = {
+            "dllVersion", "FullPrescription", "FullPrescriptionUpdate", "CrossOverFrequencies_NL2",
+            "CenterFrequencies", "CompressionThreshold_NL2", "setBWC", "SetAdultChild", "SetExperience",
+            "SetCompSpeed", "SetTonalLanguage", "SetGender", "GetRECDh_indiv_NL2", "GetRECDh_indiv9_NL2",
+            "GetRECDt_indiv_NL2", "GetRECDt_indiv9_NL2", "SetRECDh_indiv_NL2", "SetRECDh_indiv9_NL2",
+            "SetRECDt_indiv_NL2", "SetRECDt_indiv9_NL2", "CompressionRatio_NL2", "getMPO_NL2",
+            "RealEarInsertionGain_NL2", "RealEarAidedGain_NL2", "TccCouplerGain_NL2", "EarSimulatorGain_NL2",
+            "RealEarInputOutputCurve_NL2", "TccInputOutputCurve_NL2", "EarSimulatorInputOutputCurve_NL2",
+            "Speech_o_Gram_NL2", "AidedThreshold_NL2", "GetREDDindiv", "GetREDDindiv9", "GetREURindiv",
+            "GetREURindiv9", "SetREDDindiv", "SetREDDindiv9", "SetREURindiv", "SetREURindiv9", "GainAt_NL2",
+            "GetMLE", "ReturnValues_NL2", "GetTubing_NL2", "GetTubing9_NL2", "GetVentOut_NL2",
+            "GetVentOut9_NL2", "Get_SI_NL2", "Get_SII", "ClearREDDindiv", "ClearREURindiv",
+            "ClearRECD_indiv_NL2"
+    };
+
+    // 字段ID = 下标 + 1：输入参数名、输出参数名和批量请求的$ref
+    private static final String[] FIELDS = {
+            "AC", "BC", "ACother", "channels", "limiting", "direction", "mic", "noOfAids", "levels",
+            "adultChild", "dateOfBirth", "experience", "compSpeed", "tonal", "gender", "bandWidth",
+            "selection", "WBCT", "aidType", "calcCh", "mpoType", "graphFreqs", "startLevel", "finishLevel",
+            "target", "speechLevel", "reset", "crossOver", "RECDmeasType", "tubing", "coupler",
+            "fittingDepth", "vent", "earpiece", "RECDh", "RECDt", "centreFreq", "type", "L", "graphFreq",
+            "CT", "dbOption", "defValues", "REDD", "REUR", "freqRequired", "targetType", "REAG", "Limit",
+            "s", "Speech_thresh", "REAGp", "REAGm", "nCompSpeed", "error", "version", "changed", "major",
+            "minor", "crossOverFreq", "success", "CR", "MPO", "REIG", "TccGain", "lineType", "ESG", "REIO",
+            "REIOunl", "TccIO", "TccIOunl", "ESIO", "ESIOunl", "Speech_rms", "Speech_max", "Speech_min",
+            "AT", "Gain", "MLE", "MAF", "BWC", "ESCD", "Tubing", "VentOut", "SI", "SII", "$ref"
+    };
+
+    private static final Map<String, Integer> FUNCTION_IDS = index(FUNCTIONS);
+    private static final Map<String, Integer> FIELD_IDS = index(FIELDS);
+
+    private Nal2BinaryCodec() {
+    }
+
+    /** 一个请求帧或响应帧 */
+    public static final class Frame {
+        private final String function;
+        private final int sequenceNum;
+        private final String sessionId;
+        private final int returnCode;
+        private final Map<String, Object> values;
+
+        /**
+         * @param function 函数名，不在字典中时编码为UNKNOWN_FUNCTION
+         * @param sessionId 只用于请求帧，可为null
+         * @param returnCode 只用于响应帧
+         * @param values 请求帧的input_parameters或响应帧的output_parameters
+         */
+        public Frame(String function, int sequenceNum, String sessionId, int returnCode, Map<String, Object> values) {
+            this.function = function;
+            this.sequenceNum = sequenceNum;
+            this.sessionId = sessionId;
+            this.returnCode = returnCode;
+            this.values = values;
+        }
+
+        /** 函数名，函数ID不在字典中时为null */
+        public String getFunction() {
+            return function;
+        }
+
+        public int getSequenceNum() {
+            return sequenceNum;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public int getReturnCode() {
+            return returnCode;
+        }
+
+        public Map<String, Object> getValues() {
+            return values;
+        }
+    }
+
+    /** 函数名对应的ID，不在字典中时返回UNKNOWN_FUNCTION */
+    public static int functionId(String function) {
+        Integer id = function != null ? FUNCTION_IDS.get(function) : null;
+        return id != null ? id : UNKNOWN_FUNCTION;
+    }
+
+    /** 函数ID对应的函数名，不在字典中时返回null */
+    public static String functionName(int id) {
+        return id >= 1 && id <= FUNCTIONS.length ? FUNCTIONS[id - 1] : null;
+    }
+
+    /** 函数字典的大小（最大的函数ID） */
+    public static int functionCount() {
+        return FUNCTIONS.length;
+    }
+
+    /** 字段名对应的ID，不在字典中时返回INLINE_NAME */
+    public static int fieldId(String name) {
+        Integer id = FIELD_IDS.get(name);
+        return id != null ? id : INLINE_NAME;
+    }
+
+    /** 字段ID对应的字段名，不在字典中时返回null */
+    public static String fieldName(int id) {
+        return id >= 1 && id <= FIELDS.length ? FIELDS[id - 1] : null;
+    }
+
+    /** Content-Type是否为二进制协议（忽略参数和大小写） */
+    public static boolean isBinary(String contentType) {
+        return contentType != null && contentType.trim().toLowerCase().startsWith(CONTENT_TYPE);
+    }
+
+    /**
+     * 根据Accept决定响应格式：Accept中明确列出二进制协议时用二进制，明确列出JSON时用JSON，
+     * 其它情况（没有Accept或* / *）与请求格式相同
+     */
+    public static boolean acceptsBinary(String accept, boolean binaryRequest) {
+        if (accept != null) {
+            String value = accept.toLowerCase();
+            if (value.contains(CONTENT_TYPE)) {
+                return true;
+            }
+            if (value.contains("application/json")) {
+                return false;
+            }
+        }
+        return binaryRequest;
+    }
+
+    /**
+     * 编码一个请求帧
+     * 参数值可以是Integer/Short/Byte（INT32）、Long（INT64）、Double/Float（FLOAT64）、int[]、double[]、
+     * String、Boolean、Map（嵌套对象）、Collection（列表）或null
+     */
+    public static byte[] encodeRequest(String function, int sequenceNum, String sessionId, Map<String, ?> params) {
+        Output out = new Output();
+        int start = out.beginFrame(functionId(function), sequenceNum);
+        if (sessionId == null) {
+            out.u8(0);
+        } else {
+            byte[] bytes = sessionId.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xff) {
+                throw new IllegalArgumentException("session_id过长");
+            }
+            out.u8(bytes.length);
+            out.bytes(bytes);
+        }
+        out.object(params);
+        out.endFrame(start);
+        return out.toByteArray();
+    }
+
+    /** 编码一个响应帧 */
+    public static byte[] encodeResponse(String function, int sequenceNum, int returnCode, Map<String, ?> outputs) {
+        Output out = new Output();
+        int start = out.beginFrame(functionId(function), sequenceNum);
+        out.u8(returnCode);
+        out.object(outputs);
+        out.endFrame(start);
+        return out.toByteArray();
+    }
+
+    /** 解码请求体中的所有请求帧 */
+    public static List<Frame> decodeRequests(byte[] data, int offset, int length) {
+        return decodeFrames(data, offset, length, true);
+    }
+
+    /** 解码响应体中的所有响应帧 */
+    public static List<Frame> decodeResponses(byte[] data, int offset, int length) {
+        return decodeFrames(data, offset, length, false);
+    }
+
+    private static List<Frame> decodeFrames(byte[] data, int offset, int length, boolean request) {
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        List<Frame> frames = new ArrayList<Frame>();
+        while (in.hasRemaining()) {
+            int frameLength = in.getInt();
+            if (frameLength < HEADER_SIZE || frameLength > in.remaining()) {
+                throw new IllegalArgumentException("帧长度错误: " + frameLength);
+            }
+            int frameEnd = in.position() + frameLength;
+            int version = in.get() & 0xff;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("不支持的协议版本: " + version);
+            }
+            String function = functionName(in.getShort() & 0xffff);
+            int sequenceNum = in.getInt();
+            String sessionId = null;
+            int returnCode = 0;
+            if (request) {
+                int sessionLength = in.get() & 0xff;
+                if (sessionLength > 0) {
+                    sessionId = readUtf8(in, sessionLength);
+                }
+            } else {
+                returnCode = in.get();
+            }
+            Map<String, Object> values = readObject(in);
+            if (in.position() != frameEnd) {
+                throw new IllegalArgumentException("帧长度与内容不一致");
+            }
+            frames.add(new Frame(function, sequenceNum, sessionId, returnCode, values));
+        }
+        return frames;
+    }
+
+    /** 读取一个值（类型字节已读取）：数组为int[]/double[]，对象为LinkedHashMap，列表为ArrayList */
+    static Object readValue(ByteBuffer in, int type) {
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INT32:
+                return in.getInt();
+            case TYPE_FLOAT64:
+                return in.getDouble();
+            case TYPE_INT32_ARRAY: {
+                int[] values = new int[in.getShort() & 0xffff];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.getInt();
+                }
+                return values;
+            }
+            case TYPE_FLOAT64_ARRAY: {
+                double[] values = new double[in.getShort() & 0xffff];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.getDouble();
+                }
+                return values;
+            }
+            case TYPE_STRING:
+                return readUtf8(in, in.getShort() & 0xffff);
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_INT64:
+                return in.getLong();
+            case TYPE_OBJECT:
+                return readObject(in);
+            case TYPE_LIST: {
+                int count = in.getShort() & 0xffff;
+                List<Object> values = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(readValue(in, in.get()));
+                }
+                return values;
+            }
+            default:
+                throw new IllegalArgumentException("未知的值类型: " + type);
+        }
+    }
+
+    static Map<String, Object> readObject(ByteBuffer in) {
+        int count = in.getShort() & 0xffff;
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            String name = readName(in);
+            values.put(name, readValue(in, in.get()));
+        }
+        return values;
+    }
+
+    private static String readName(ByteBuffer in) {
+        int id = in.get() & 0xff;
+        if (id == INLINE_NAME) {
+            return readUtf8(in, in.get() & 0xff);
+        }
+        String name = fieldName(id);
+        if (name == null) {
+            throw new IllegalArgumentException("未知的字段ID: " + id);
+        }
+        return name;
+    }
+
+    private static String readUtf8(ByteBuffer in, int length) {
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("字符串超出帧范围");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static Map<String, Integer> index(String[] names) {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            ids.put(names[i], i + 1);
+        }
+        return ids;
+    }
+
+    // 可增长的小端序输出
+    private static final class Output {
+        private ByteBuffer buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+        int beginFrame(int functionId, int sequenceNum) {
+            int start = buf.position();
+            ensure(4 + HEADER_SIZE);
+            buf.putInt(0);
+            buf.put((byte) VERSION);
+            buf.putShort((short) functionId);
+            buf.putInt(sequenceNum);
+            return start;
+        }
+
+        void endFrame(int start) {
+            buf.putInt(start, buf.position() - start - 4);
+        }
+
+        void u8(int value) {
+            ensure(1);
+            buf.put((byte) value);
+        }
+
+        void bytes(byte[] bytes) {
+            ensure(bytes.length);
+            buf.put(bytes);
+        }
+
+        void object(Map<String, ?> values) {
+            count(values.size());
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                name(entry.getKey());
+                value(entry.getValue());
+            }
+        }
+
+        void name(String name) {
+            int id = fieldId(name);
+            if (id != INLINE_NAME) {
+                u8(id);
+                return;
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xff) {
+                throw new IllegalArgumentException("字段名过长: " + name);
+            }
+            u8(INLINE_NAME);
+            u8(bytes.length);
+            bytes(bytes);
+        }
+
+        @SuppressWarnings("unchecked")
+        void value(Object value) {
+            ensure(9);
+            if (value == null) {
+                buf.put(TYPE_NULL);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                buf.put(TYPE_INT32).putInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                buf.put(TYPE_INT64).putLong((Long) value);
+            } else if (value instanceof Number) {
+                buf.put(TYPE_FLOAT64).putDouble(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                buf.put(TYPE_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+            } else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                buf.put(TYPE_STRING);
+                count(bytes.length);
+                bytes(bytes);
+            } else if (value instanceof int[]) {
+                int[] values = (int[]) value;
+                buf.put(TYPE_INT32_ARRAY);
+                count(values.length);
+                ensure(values.length * 4);
+                for (int v : values) {
+                    buf.putInt(v);
+                }
+            } else if (value instanceof double[]) {
+                double[] values = (double[]) value;
+                buf.put(TYPE_FLOAT64_ARRAY);
+                count(values.length);
+                ensure(values.length * 8);
+                for (double v : values) {
+                    buf.putDouble(v);
+                }
+            } else if (value instanceof Map) {
+                buf.put(TYPE_OBJECT);
+                object((Map<String, ?>) value);
+            } else if (value instanceof Collection) {
+                Collection<?> values = (Collection<?>) value;
+                buf.put(TYPE_LIST);
+                count(values.size());
+                for (Object v : values) {
+                    value(v);
+                }
+            } else {
+                throw new IllegalArgumentException("不支持的参数类型: " + value.getClass().getName());
+            }
+        }
+
+        void count(int count) {
+            if (count > MAX_COUNT) {
+                throw new IllegalArgumentException("元素个数超过" + MAX_COUNT);
+            }
+            ensure(2);
+            buf.putShort((short) count);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+
+        private void ensure(int extra) {
+            if (buf.remaining() < extra) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + extra))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buf.flip();
+                grown.put(buf);
+                buf = grown;
+            }
+        }
+    }
+}
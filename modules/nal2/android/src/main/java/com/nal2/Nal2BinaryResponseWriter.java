@@ -0,0 +1,346 @@
+package com.nal2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把响应序列化为二进制协议帧的写入器（格式见Nal2BinaryCodec）
+ * 每个响应一帧，批量请求的响应为各帧首尾相接。对象和列表的项数、帧长度先写占位，结束时回填。
+ * truncate()只能回退到帧的边界（响应开始前记录的position()）。
+ */
+public final class Nal2BinaryResponseWriter extends Nal2ResponseWriter {
+
+    private static final int INITIAL_DEPTH = 8;
+
+    private byte[] buf;
+    private int length;
+    private int frameStart;
+
+    // 打开的对象/列表：项数占位的位置、已写入的项数、是否为列表
+    private int[] countPositions = new int[INITIAL_DEPTH];
+    private int[] counts = new int[INITIAL_DEPTH];
+    private boolean[] lists = new boolean[INITIAL_DEPTH];
+    private int depth;
+
+    private volatile long responses;
+
+    @Override
+    public void begin() {
+        if (buf == null) {
+            buf = Nal2ResponseBuffer.acquire(Nal2ResponseBuffer.INITIAL_SIZE);
+        }
+        length = 0;
+        depth = 0;
+    }
+
+    @Override
+    public Nal2ResponseBuffer finish() {
+        Nal2ResponseBuffer response = new Nal2ResponseBuffer(buf, length, Nal2BinaryCodec.CONTENT_TYPE);
+        buf = null;
+        length = 0;
+        return response;
+    }
+
+    @Override
+    public int position() {
+        return length;
+    }
+
+    @Override
+    public void truncate(int position) {
+        length = position;
+        depth = 0;
+    }
+
+    @Override
+    public void beginBatch() {
+        // 批量响应没有外层结构，各帧直接相接
+    }
+
+    @Override
+    public void endBatch() {
+    }
+
+    @Override
+    public void beginResponse(int sequenceNum, String function, String sessionId, int returnCode) {
+        ensure(4 + Nal2BinaryCodec.HEADER_SIZE + 1);
+        frameStart = length;
+        writeInt(0);
+        buf[length++] = (byte) Nal2BinaryCodec.VERSION;
+        writeShort(Nal2BinaryCodec.functionId(function));
+        writeInt(sequenceNum);
+        buf[length++] = (byte) returnCode;
+        // output_parameters对象，没有类型字节
+        push(false);
+    }
+
+    @Override
+    public void endResponse(String stepId) {
+        pop();
+        int frameLength = length - frameStart - 4;
+        int end = length;
+        length = frameStart;
+        writeInt(frameLength);
+        length = end;
+        responses++;
+    }
+
+    @Override
+    public JSONObject readOutputs(int start, int end) throws JSONException {
+        Nal2BinaryCodec.Frame frame = Nal2BinaryCodec.decodeResponses(buf, start, end - start).get(0);
+        return (JSONObject) toJSON(frame.getValues());
+    }
+
+    @Override
+    public Nal2ResponseWriter beginObject() {
+        type(Nal2BinaryCodec.TYPE_OBJECT);
+        push(false);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter endObject() {
+        pop();
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter beginArray() {
+        type(Nal2BinaryCodec.TYPE_LIST);
+        push(true);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter endArray() {
+        pop();
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter name(String name) {
+        counts[depth - 1]++;
+        int id = Nal2BinaryCodec.fieldId(name);
+        if (id != Nal2BinaryCodec.INLINE_NAME) {
+            ensure(1);
+            buf[length++] = (byte) id;
+            return this;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xff) {
+            throw new IllegalArgumentException("字段名过长: " + name);
+        }
+        ensure(2 + bytes.length);
+        buf[length++] = Nal2BinaryCodec.INLINE_NAME;
+        buf[length++] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, buf, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(double value) {
+        type(Nal2BinaryCodec.TYPE_FLOAT64);
+        writeDouble(value);
+        return this;
+    }
+
+    /** int范围内的值写为INT32，否则为INT64 */
+    @Override
+    public Nal2ResponseWriter value(long value) {
+        if (value == (int) value) {
+            return value((int) value);
+        }
+        type(Nal2BinaryCodec.TYPE_INT64);
+        ensure(8);
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(int value) {
+        type(Nal2BinaryCodec.TYPE_INT32);
+        writeInt(value);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(boolean value) {
+        type(Nal2BinaryCodec.TYPE_BOOLEAN);
+        ensure(1);
+        buf[length++] = (byte) (value ? 1 : 0);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        type(Nal2BinaryCodec.TYPE_STRING);
+        writeCount(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter nullValue() {
+        type(Nal2BinaryCodec.TYPE_NULL);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(double[] values) {
+        type(Nal2BinaryCodec.TYPE_FLOAT64_ARRAY);
+        writeCount(values.length);
+        ensure(values.length * 8);
+        for (double value : values) {
+            writeDouble(value);
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(ImmutableDoubleArray values) {
+        type(Nal2BinaryCodec.TYPE_FLOAT64_ARRAY);
+        writeCount(values.length());
+        ensure(values.length() * 8);
+        for (int i = 0; i < values.length(); i++) {
+            writeDouble(values.get(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(int[] values) {
+        type(Nal2BinaryCodec.TYPE_INT32_ARRAY);
+        writeCount(values.length);
+        ensure(values.length * 4);
+        for (int value : values) {
+            writeInt(value);
+        }
+        return this;
+    }
+
+    /** 写出的响应帧数 */
+    public long getResponses() {
+        return responses;
+    }
+
+    /** 把Nal2BinaryCodec解码出的值转换为org.json对象（Map、List和数组转为JSONObject/JSONArray） */
+    static Object toJSON(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof Map) {
+            JSONObject object = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                object.put(String.valueOf(entry.getKey()), toJSON(entry.getValue()));
+            }
+            return object;
+        }
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object item : (List<?>) value) {
+                array.put(toJSON(item));
+            }
+            return array;
+        }
+        if (value instanceof double[]) {
+            JSONArray array = new JSONArray();
+            for (double item : (double[]) value) {
+                array.put(item);
+            }
+            return array;
+        }
+        if (value instanceof int[]) {
+            JSONArray array = new JSONArray();
+            for (int item : (int[]) value) {
+                array.put(item);
+            }
+            return array;
+        }
+        return value;
+    }
+
+    // 写入值的类型字节，列表中的值计入列表的项数
+    private void type(byte type) {
+        if (depth > 0 && lists[depth - 1]) {
+            counts[depth - 1]++;
+        }
+        ensure(1);
+        buf[length++] = type;
+    }
+
+    private void push(boolean list) {
+        if (depth == counts.length) {
+            countPositions = Arrays.copyOf(countPositions, depth * 2);
+            counts = Arrays.copyOf(counts, depth * 2);
+            lists = Arrays.copyOf(lists, depth * 2);
+        }
+        ensure(2);
+        countPositions[depth] = length;
+        counts[depth] = 0;
+        lists[depth] = list;
+        depth++;
+        length += 2;
+    }
+
+    // 回填项数
+    private void pop() {
+        depth--;
+        int count = counts[depth];
+        if (count > Nal2BinaryCodec.MAX_COUNT) {
+            throw new IllegalArgumentException("元素个数超过" + Nal2BinaryCodec.MAX_COUNT);
+        }
+        int position = countPositions[depth];
+        buf[position] = (byte) count;
+        buf[position + 1] = (byte) (count >>> 8);
+    }
+
+    private void writeCount(int count) {
+        if (count > Nal2BinaryCodec.MAX_COUNT) {
+            throw new IllegalArgumentException("元素个数超过" + Nal2BinaryCodec.MAX_COUNT);
+        }
+        writeShort(count);
+    }
+
+    private void writeShort(int value) {
+        ensure(2);
+        buf[length++] = (byte) value;
+        buf[length++] = (byte) (value >>> 8);
+    }
+
+    private void writeInt(int value) {
+        ensure(4);
+        buf[length++] = (byte) value;
+        buf[length++] = (byte) (value >>> 8);
+        buf[length++] = (byte) (value >>> 16);
+        buf[length++] = (byte) (value >>> 24);
+    }
+
+    private void writeDouble(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        writeInt((int) bits);
+        writeInt((int) (bits >>> 32));
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buf.length) {
+            // 与Nal2JsonResponseWriter相同，旧的小缓冲区不放回池中
+            byte[] old = buf;
+            buf = Nal2ResponseBuffer.acquire(Math.max(old.length * 2, length + extra));
+            System.arraycopy(old, 0, buf, 0, length);
+        }
+    }
+}
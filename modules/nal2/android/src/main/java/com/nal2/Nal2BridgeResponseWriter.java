@@ -0,0 +1,362 @@
+package com.nal2;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * React Native桥接的参数读取和响应写入：Nal2Module.callFunction()用它直接在ReadableMap/WritableMap
+ * 与Nal2Params/输出参数之间转换，不经过JSON文本。与JSON、二进制协议共用Nal2FunctionRegistry中的
+ * 函数和参数声明，新增函数只需注册一次。
+ * 只写入单个响应的output_parameters，不支持批量响应、position()/truncate()和finish()。
+ * 只能在NAL2引擎线程上使用。
+ */
+public final class Nal2BridgeResponseWriter extends Nal2ResponseWriter {
+
+    private static final int INITIAL_DEPTH = 8;
+
+    // 打开的对象/列表及其在父容器中的键（子容器写完后才放入父容器）
+    private Object[] containers = new Object[INITIAL_DEPTH];
+    private String[] names = new String[INITIAL_DEPTH];
+    private int depth;
+    private String pendingName;
+    private WritableMap result;
+
+    /**
+     * 把ReadableMap中的参数写入params：数值和全部为数值的数组直接保存为double，
+     * 其它数组和嵌套对象转换为org.json对象
+     */
+    public static void readParams(ReadableMap map, Nal2Params params) throws JSONException {
+        ReadableMapKeySetIterator keys = map.keySetIterator();
+        while (keys.hasNextKey()) {
+            String key = keys.nextKey();
+            switch (map.getType(key)) {
+                case Null:
+                    params.putNull(key);
+                    break;
+                case Boolean:
+                    params.putBoolean(key, map.getBoolean(key));
+                    break;
+                case Number:
+                    params.putNumber(key, map.getDouble(key));
+                    break;
+                case String:
+                    params.putString(key, map.getString(key));
+                    break;
+                case Array: {
+                    ReadableArray array = map.getArray(key);
+                    if (isNumberArray(array)) {
+                        int start = params.beginArray();
+                        for (int i = 0; i < array.size(); i++) {
+                            params.appendNumber(array.getDouble(i));
+                        }
+                        params.endArray(key, start);
+                    } else {
+                        params.putOther(key, toJSON(array));
+                    }
+                    break;
+                }
+                default:
+                    params.putOther(key, toJSON(map.getMap(key)));
+                    break;
+            }
+        }
+    }
+
+    /** 最近一次响应的output_parameters */
+    public WritableMap getResult() {
+        return result;
+    }
+
+    @Override
+    public void begin() {
+        Arrays.fill(containers, 0, depth, null);
+        depth = 0;
+        pendingName = null;
+        result = null;
+    }
+
+    @Override
+    public Nal2ResponseBuffer finish() {
+        throw new UnsupportedOperationException("桥接写入器没有响应缓冲区");
+    }
+
+    @Override
+    public int position() {
+        throw new UnsupportedOperationException("桥接写入器不支持position()");
+    }
+
+    @Override
+    public void truncate(int position) {
+        throw new UnsupportedOperationException("桥接写入器不支持truncate()");
+    }
+
+    @Override
+    public void beginBatch() {
+        throw new UnsupportedOperationException("桥接写入器不支持批量响应");
+    }
+
+    @Override
+    public void endBatch() {
+        throw new UnsupportedOperationException("桥接写入器不支持批量响应");
+    }
+
+    /** 只写入output_parameters，响应头部由Promise的resolve/reject表示 */
+    @Override
+    public void beginResponse(int sequenceNum, String function, String sessionId, int returnCode) {
+        begin();
+        push(Arguments.createMap(), null);
+    }
+
+    @Override
+    public void endResponse(String stepId) {
+        result = (WritableMap) containers[0];
+        containers[0] = null;
+        depth = 0;
+    }
+
+    @Override
+    public JSONObject readOutputs(int start, int end) {
+        throw new UnsupportedOperationException("桥接写入器不支持批量请求的$ref");
+    }
+
+    @Override
+    public Nal2ResponseWriter beginObject() {
+        push(Arguments.createMap(), takeName());
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter endObject() {
+        return pop();
+    }
+
+    @Override
+    public Nal2ResponseWriter beginArray() {
+        push(Arguments.createArray(), takeName());
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter endArray() {
+        return pop();
+    }
+
+    @Override
+    public Nal2ResponseWriter name(String name) {
+        pendingName = name;
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(double value) {
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushDouble(value);
+        } else {
+            ((WritableMap) container).putDouble(takeName(), value);
+        }
+        return this;
+    }
+
+    /** JavaScript的数值为double，long按double写入 */
+    @Override
+    public Nal2ResponseWriter value(long value) {
+        return value((double) value);
+    }
+
+    @Override
+    public Nal2ResponseWriter value(int value) {
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushInt(value);
+        } else {
+            ((WritableMap) container).putInt(takeName(), value);
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(boolean value) {
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushBoolean(value);
+        } else {
+            ((WritableMap) container).putBoolean(takeName(), value);
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushString(value);
+        } else {
+            ((WritableMap) container).putString(takeName(), value);
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter nullValue() {
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushNull();
+        } else {
+            ((WritableMap) container).putNull(takeName());
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(double[] values) {
+        WritableArray array = Arguments.createArray();
+        for (double value : values) {
+            array.pushDouble(value);
+        }
+        return add(array);
+    }
+
+    @Override
+    public Nal2ResponseWriter value(ImmutableDoubleArray values) {
+        WritableArray array = Arguments.createArray();
+        for (int i = 0; i < values.length(); i++) {
+            array.pushDouble(values.get(i));
+        }
+        return add(array);
+    }
+
+    @Override
+    public Nal2ResponseWriter value(int[] values) {
+        WritableArray array = Arguments.createArray();
+        for (int value : values) {
+            array.pushInt(value);
+        }
+        return add(array);
+    }
+
+    private String takeName() {
+        String name = pendingName;
+        pendingName = null;
+        return name;
+    }
+
+    private void push(Object container, String name) {
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+            names = Arrays.copyOf(names, depth * 2);
+        }
+        containers[depth] = container;
+        names[depth] = name;
+        depth++;
+    }
+
+    // 写完的子容器放入父容器（放入后原生容器不能再修改）
+    private Nal2ResponseWriter pop() {
+        depth--;
+        Object container = containers[depth];
+        String name = names[depth];
+        containers[depth] = null;
+        pendingName = name;
+        return container instanceof WritableArray ? add((WritableArray) container) : add((WritableMap) container);
+    }
+
+    private Nal2ResponseWriter add(WritableArray array) {
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushArray(array);
+        } else {
+            ((WritableMap) container).putArray(takeName(), array);
+        }
+        return this;
+    }
+
+    private Nal2ResponseWriter add(WritableMap map) {
+        Object container = containers[depth - 1];
+        if (container instanceof WritableArray) {
+            ((WritableArray) container).pushMap(map);
+        } else {
+            ((WritableMap) container).putMap(takeName(), map);
+        }
+        return this;
+    }
+
+    private static boolean isNumberArray(ReadableArray array) {
+        for (int i = 0; i < array.size(); i++) {
+            if (array.getType(i) != ReadableType.Number) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object toJSON(ReadableArray array) throws JSONException {
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < array.size(); i++) {
+            switch (array.getType(i)) {
+                case Null:
+                    result.put(JSONObject.NULL);
+                    break;
+                case Boolean:
+                    result.put(array.getBoolean(i));
+                    break;
+                case Number:
+                    result.put(array.getDouble(i));
+                    break;
+                case String:
+                    result.put(array.getString(i));
+                    break;
+                case Array:
+                    result.put(toJSON(array.getArray(i)));
+                    break;
+                default:
+                    result.put(toJSON(array.getMap(i)));
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private static Object toJSON(ReadableMap map) throws JSONException {
+        JSONObject result = new JSONObject();
+        ReadableMapKeySetIterator keys = map.keySetIterator();
+        while (keys.hasNextKey()) {
+            String key = keys.nextKey();
+            switch (map.getType(key)) {
+                case Null:
+                    result.put(key, JSONObject.NULL);
+                    break;
+                case Boolean:
+                    result.put(key, map.getBoolean(key));
+                    break;
+                case Number:
+                    result.put(key, map.getDouble(key));
+                    break;
+                case String:
+                    result.put(key, map.getString(key));
+                    break;
+                case Array:
+                    result.put(key, toJSON(map.getArray(key)));
+                    break;
+                default:
+                    result.put(key, toJSON(map.getMap(key)));
+                    break;
+            }
+        }
+        return result;
+    }
+}
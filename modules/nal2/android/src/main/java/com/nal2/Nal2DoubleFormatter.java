@@ -0,0 +1,278 @@
+package com.nal2;
+
+import java.math.BigInteger;
+
+/**
+ * double的最短往返格式化（Schubfach算法）
+ * 输出能被Double.parseDouble精确还原的最少有效数字，格式与JavaScript的Number#toString相同：
+ * 整数不带小数部分，小数点位置在(-6, 21]之外时使用科学计数法。
+ * 只使用整数运算，不创建对象。10的幂表在类加载时用BigInteger生成一次。
+ */
+public final class Nal2DoubleFormatter {
+
+    /** 格式化一个double最多需要的字节数 */
+    public static final int MAX_CHARS = 32;
+
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int BQ_MASK = (1 << 11) - 1;
+    private static final long T_MASK = C_MIN - 1;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    // 对每个k：10^-k = beta * 2^r，2^125 <= beta < 2^126，g = floor(beta) + 1，
+    // G[2i]为g的高64位部分（g >> 63），G[2i + 1]为低63位
+    private static final long[] G = buildTable();
+
+    private Nal2DoubleFormatter() {
+    }
+
+    /**
+     * 把v格式化到buf的pos处
+     *
+     * @return 写入后的位置；buf从pos开始至少要有MAX_CHARS字节
+     * @throws IllegalArgumentException v为NaN或无穷大（JSON不支持）
+     */
+    public static int format(double v, byte[] buf, int pos) {
+        long bits = Double.doubleToRawLongBits(v);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq == BQ_MASK) {
+            throw new IllegalArgumentException("JSON不支持的数值: " + v);
+        }
+        if (bits < 0) {
+            buf[pos++] = '-';
+        }
+        if (bq != 0) {
+            // 规格化数
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    // 整数
+                    return toChars(f, 0, buf, pos);
+                }
+            }
+            return toDecimal(-mq, c, 0, buf, pos);
+        }
+        if (t != 0) {
+            // 非规格化数。不按Double.toString保留至少两位有效数字，
+            // Double.MIN_VALUE输出5e-324而不是4.9e-324
+            return toDecimal(Q_MIN, t, 0, buf, pos);
+        }
+        buf[pos++] = '0';
+        return pos;
+    }
+
+    /** 格式化为String，主要用于调试和测试 */
+    public static String toString(double v) {
+        byte[] buf = new byte[MAX_CHARS];
+        int length = format(v, buf, 0);
+        return new String(buf, 0, length, java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    // v = c * 2^q，在舍入区间内选出有效数字最少（相同时最接近v）的十进制数
+    private static int toDecimal(int q, long c, int dk, byte[] buf, int pos) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // 2的幂的下邻居更近，舍入区间不对称
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[(k - K_MIN) << 1];
+        long g0 = G[(k - K_MIN) << 1 | 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (q == Q_MIN) {
+            // 非规格化数的舍入区间相对v较宽，可能去掉不止一位有效数字（10 * MIN_VALUE为5e-323）
+            long best = 0;
+            for (long p = 10; p <= s; p *= 10) {
+                long sp = s - s % p;
+                long tp = sp + p;
+                boolean upin = vbl + out <= sp << 2;
+                boolean wpin = (tp << 2) + out <= vbr;
+                if (upin && wpin) {
+                    long cmp = vb - ((sp + tp) << 1);
+                    best = cmp < 0 || cmp == 0 && (sp / p & 0x1) == 0 ? sp : tp;
+                } else if (upin || wpin) {
+                    best = upin ? sp : tp;
+                }
+            }
+            if (best != 0) {
+                return toChars(best, k + dk, buf, pos);
+            }
+        }
+        if (s >= 100) {
+            // 先尝试少一位有效数字
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return toChars(upin ? sp10 : tp10, k + dk, buf, pos);
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            return toChars(uin ? s : t, k + dk, buf, pos);
+        }
+        long cmp = vb - ((s + t) << 1);
+        return toChars(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk, buf, pos);
+    }
+
+    // 舍入到奇数的乘法：(g1 * 2^63 + g0) * cp / 2^127
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+    }
+
+    /** 值为f * 10^e，按JavaScript的Number#toString格式输出 */
+    private static int toChars(long f, int e, byte[] buf, int pos) {
+        if (f == 0) {
+            buf[pos++] = '0';
+            return pos;
+        }
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int n = digitCount(f);
+        // 小数点位于第point位有效数字之后
+        int point = n + e;
+        if (e >= 0 && point <= 21) {
+            pos = writeDigits(f, n, buf, pos);
+            for (int i = 0; i < e; i++) {
+                buf[pos++] = '0';
+            }
+        } else if (0 < point && point <= 21) {
+            int start = pos;
+            pos = writeDigits(f, n, buf, pos + 1);
+            System.arraycopy(buf, start + 1, buf, start, point);
+            buf[start + point] = '.';
+        } else if (-6 < point && point <= 0) {
+            buf[pos++] = '0';
+            buf[pos++] = '.';
+            for (int i = point; i < 0; i++) {
+                buf[pos++] = '0';
+            }
+            pos = writeDigits(f, n, buf, pos);
+        } else {
+            int start = pos;
+            pos = writeDigits(f, n, buf, pos + 1);
+            buf[start] = buf[start + 1];
+            if (n > 1) {
+                buf[start + 1] = '.';
+            } else {
+                pos--;
+            }
+            buf[pos++] = 'e';
+            int exponent = point - 1;
+            if (exponent < 0) {
+                buf[pos++] = '-';
+                exponent = -exponent;
+            } else {
+                buf[pos++] = '+';
+            }
+            if (exponent >= 100) {
+                buf[pos++] = (byte) ('0' + exponent / 100);
+                exponent %= 100;
+                buf[pos++] = (byte) ('0' + exponent / 10);
+            } else if (exponent >= 10) {
+                buf[pos++] = (byte) ('0' + exponent / 10);
+            }
+            buf[pos++] = (byte) ('0' + exponent % 10);
+        }
+        return pos;
+    }
+
+    private static int writeDigits(long f, int n, byte[] buf, int pos) {
+        for (int i = pos + n - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + f % 10);
+            f /= 10;
+        }
+        return pos + n;
+    }
+
+    private static int digitCount(long f) {
+        int n = 1;
+        long limit = 10;
+        while (n < 19 && f >= limit) {
+            n++;
+            limit *= 10;
+        }
+        return n;
+    }
+
+    // floor(q * log10(2))
+    private static int flog10pow2(int q) {
+        return (int) (q * 661_971_961_083L >> 41);
+    }
+
+    // floor(log10(3/4 * 2^q))
+    private static int flog10threeQuartersPow2(int q) {
+        return (int) (q * 661_971_961_083L - 274_743_187_321L >> 41);
+    }
+
+    // floor(e * log2(10))
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    // 与Math.multiplyHigh相同（Android API 31以下没有）
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    private static long[] buildTable() {
+        long[] table = new long[(K_MAX - K_MIN + 1) * 2];
+        BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            BigInteger beta;
+            if (k <= 0) {
+                BigInteger n = BigInteger.TEN.pow(-k);
+                int r = n.bitLength() - 126;
+                beta = r >= 0 ? n.shiftRight(r) : n.shiftLeft(-r);
+            } else {
+                BigInteger d = BigInteger.TEN.pow(k);
+                beta = BigInteger.ONE.shiftLeft(125 + d.bitLength()).divide(d);
+            }
+            BigInteger g = beta.add(BigInteger.ONE);
+            table[(k - K_MIN) << 1] = g.shiftRight(63).longValue();
+            table[(k - K_MIN) << 1 | 1] = g.and(mask63).longValue();
+        }
+        return table;
+    }
+}
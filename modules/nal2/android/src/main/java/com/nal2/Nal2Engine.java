@@ -0,0 +1,21 @@
+package com.nal2;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * NAL2请求处理接口，供HTTP/WebSocket服务器直接调用，不经过React Native的Promise
+ * 请求在NAL2引擎线程上排队执行，返回的future在引擎线程上完成，调用方不需要占用线程等待。
+ * 由Nal2Module实现，React Native的Promise只在@ReactMethod（processRequestSync）处适配。
+ */
+public interface Nal2Engine {
+
+    /**
+     * 处理一个请求体（单个请求或批量请求）
+     * 函数执行失败时仍正常完成，响应中return为-1；引擎队列已满时以RejectedExecutionException异常完成。
+     * 完成值的缓冲区来自缓冲池，调用方按getContentType()写出后必须调用release()归还。
+     *
+     * @param binaryRequest 请求体为二进制协议（见Nal2BinaryCodec），否则为UTF-8 JSON
+     * @param binaryResponse 以二进制协议返回响应，否则返回JSON
+     */
+    CompletableFuture<Nal2ResponseBuffer> process(byte[] body, boolean binaryRequest, boolean binaryResponse);
+}
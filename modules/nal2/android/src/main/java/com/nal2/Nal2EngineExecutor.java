@@ -0,0 +1,265 @@
+package com.nal2;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NAL2引擎执行器
+ * NativeManager内部保存全局可变状态（SetAdultChild、setBWC、SetREDDindiv等），
+ * 所有对Nal2Manager的调用都必须通过这里，在唯一的引擎线程上执行。
+ * 任务分为交互通道（界面调用、单个HTTP请求）和批量通道（批量请求、扫描），通道内按提交顺序执行，
+ * 通道间加权轮转：交互通道连续执行INTERACTIVE_WEIGHT个任务后让批量通道执行一个，
+ * 批量任务等待超过BULK_MAX_WAIT_MS时优先执行，不会饿死。
+ * 等待队列有界（容量可在运行时调整），批量通道最多占用容量的3/4，为交互通道保留余量。
+ * 队列满时提交立即抛出RejectedExecutionException，调用方应快速拒绝请求（HTTP返回503），
+ * 而不是让请求排队到超时。
+ */
+public final class Nal2EngineExecutor {
+    private static final String TAG = "Nal2EngineExecutor";
+    private static final String THREAD_NAME = "NAL2-Engine";
+
+    /** 默认等待队列容量 */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    // 批量通道有任务等待时，交互通道最多连续执行的任务数
+    private static final int INTERACTIVE_WEIGHT = 8;
+    // 批量任务的最长等待时间，超过后不再让交互通道优先
+    private static final long BULK_MAX_WAIT_MS = 1000;
+
+    /** 任务通道 */
+    public enum Lane {
+        /** 界面调用和单个请求，优先执行 */
+        INTERACTIVE,
+        /** 批量请求和扫描 */
+        BULK
+    }
+
+    // 一个通道的等待队列和统计，由执行器对象锁保护
+    private static final class LaneQueue {
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        long dispatched;
+        long rejected;
+        long waitNanos;
+        long maxWaitNanos;
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long enqueueNanos;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.enqueueNanos = System.nanoTime();
+        }
+    }
+
+    private static Nal2EngineExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private volatile int queueCapacity;
+    private volatile Thread engineThread;
+
+    // 以下字段由this保护；执行器本身的队列中只有dispatch，实际任务在各通道的队列中
+    private final LaneQueue[] lanes = new LaneQueue[Lane.values().length];
+    private int queued;
+    private int maxQueued;
+    private long rejected;
+    private int interactiveStreak;
+    private long promoted;
+
+    // 每个提交的任务对应一个dispatch，由它按通道权重取出下一个任务执行
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            next().runnable.run();
+        }
+    };
+
+    private Nal2EngineExecutor(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new LaneQueue();
+        }
+        // 执行器不会关闭，队列不限长度，execute(dispatch)不会被拒绝；容量由admit()控制
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new EngineThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static synchronized Nal2EngineExecutor getInstance() {
+        if (instance == null) {
+            instance = new Nal2EngineExecutor(DEFAULT_QUEUE_CAPACITY);
+        }
+        return instance;
+    }
+
+    /**
+     * 提交任务到引擎线程的交互通道
+     * 如果当前已在引擎线程上（任务内部嵌套调用），直接同步执行，避免自己等待自己
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * 提交无返回值的任务到引擎线程的交互通道
+     *
+     * @throws RejectedExecutionException 等待队列已满
+     */
+    public void execute(Runnable task) {
+        execute(task, Lane.INTERACTIVE);
+    }
+
+    /**
+     * 提交无返回值的任务到引擎线程的指定通道
+     *
+     * @throws RejectedExecutionException 等待队列已满（批量通道为容量的3/4）
+     */
+    public void execute(Runnable task, Lane lane) {
+        if (isEngineThread()) {
+            task.run();
+            return;
+        }
+        admit(task, lane);
+        executor.execute(dispatch);
+    }
+
+    /**
+     * 设置等待队列容量，立即生效；已在队列中的任务不受影响
+     *
+     * @throws IllegalArgumentException capacity小于1
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("队列容量必须大于0");
+        }
+        queueCapacity = capacity;
+    }
+
+    // 把任务加入通道队列，队列已满时拒绝
+    private synchronized void admit(Runnable task, Lane lane) {
+        int capacity = queueCapacity;
+        int limit = lane == Lane.BULK ? Math.max(1, capacity - capacity / 4) : capacity;
+        LaneQueue laneQueue = lanes[lane.ordinal()];
+        if (queued >= limit) {
+            rejected++;
+            laneQueue.rejected++;
+            Log.w(TAG, "引擎队列已满，拒绝任务: lane=" + lane + ", queued=" + queued);
+            throw new RejectedExecutionException("NAL2引擎队列已满: " + queued);
+        }
+        laneQueue.tasks.add(new Task(task));
+        queued++;
+        if (queued > maxQueued) {
+            maxQueued = queued;
+        }
+    }
+
+    // 在引擎线程上取出下一个任务：批量任务等待过久时优先，否则按权重轮转
+    private synchronized Task next() {
+        LaneQueue interactive = lanes[Lane.INTERACTIVE.ordinal()];
+        LaneQueue bulk = lanes[Lane.BULK.ordinal()];
+        long now = System.nanoTime();
+        LaneQueue lane;
+        if (bulk.tasks.isEmpty()) {
+            lane = interactive;
+        } else if (interactive.tasks.isEmpty() || interactiveStreak >= INTERACTIVE_WEIGHT) {
+            lane = bulk;
+        } else if (now - bulk.tasks.peek().enqueueNanos > TimeUnit.MILLISECONDS.toNanos(BULK_MAX_WAIT_MS)) {
+            lane = bulk;
+            promoted++;
+        } else {
+            lane = interactive;
+        }
+        interactiveStreak = lane == interactive ? interactiveStreak + 1 : 0;
+
+        Task task = lane.tasks.poll();
+        queued--;
+        long wait = now - task.enqueueNanos;
+        lane.dispatched++;
+        lane.waitNanos += wait;
+        if (wait > lane.maxWaitNanos) {
+            lane.maxWaitNanos = wait;
+        }
+        return task;
+    }
+
+    public boolean isEngineThread() {
+        return Thread.currentThread() == engineThread;
+    }
+
+    /** 当前排队（未开始执行）的任务数 */
+    public synchronized int getQueueSize() {
+        return queued;
+    }
+
+    /** 排队任务数的历史最大值 */
+    public synchronized int getMaxQueueSize() {
+        return maxQueued;
+    }
+
+    /** 因队列已满被拒绝的任务数 */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /** 通道当前排队的任务数 */
+    public synchronized int getQueueSize(Lane lane) {
+        return lanes[lane.ordinal()].tasks.size();
+    }
+
+    /** 通道已开始执行的任务数 */
+    public synchronized long getDispatchedCount(Lane lane) {
+        return lanes[lane.ordinal()].dispatched;
+    }
+
+    /** 通道因队列已满被拒绝的任务数 */
+    public synchronized long getRejectedCount(Lane lane) {
+        return lanes[lane.ordinal()].rejected;
+    }
+
+    /** 通道任务的平均排队时间（毫秒） */
+    public synchronized double getAverageQueueTimeMs(Lane lane) {
+        LaneQueue laneQueue = lanes[lane.ordinal()];
+        return laneQueue.dispatched == 0 ? 0 : laneQueue.waitNanos / 1e6 / laneQueue.dispatched;
+    }
+
+    /** 通道任务的最长排队时间（毫秒） */
+    public synchronized double getMaxQueueTimeMs(Lane lane) {
+        return lanes[lane.ordinal()].maxWaitNanos / 1e6;
+    }
+
+    /** 批量任务因等待超过BULK_MAX_WAIT_MS而先于交互任务执行的次数 */
+    public synchronized long getPromotedCount() {
+        return promoted;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** 已完成的任务总数 */
+    public long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    private class EngineThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, THREAD_NAME);
+            thread.setDaemon(true);
+            engineThread = thread;
+            return thread;
+        }
+    }
+}
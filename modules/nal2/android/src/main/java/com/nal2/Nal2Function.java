@@ -0,0 +1,272 @@
+package com.nal2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * NAL2函数的描述符：函数ID、参数声明（名称、类型、长度）、输出数组长度和处理逻辑
+ * 调用前先按参数声明校验输入，校验通过后才会恢复会话状态和调用JNI，
+ * 处理逻辑中可以直接取值而不必再检查参数。函数ID与Nal2BinaryCodec的函数字典相同。
+ * 通过Nal2FunctionRegistry注册和调用，只能在NAL2引擎线程上使用。
+ */
+public final class Nal2Function {
+
+    /** 数组参数不限长度 */
+    public static final int ANY_LENGTH = -1;
+
+    static final byte INT = 1;
+    static final byte DOUBLE = 2;
+    static final byte INT_ARRAY = 3;
+    static final byte DOUBLE_ARRAY = 4;
+
+    /** 函数的处理逻辑：从call.getParams()取参数，把输出参数写入call.getOutput() */
+    public interface Handler {
+        void handle(Call call) throws Exception;
+    }
+
+    /** 一个参数的声明 */
+    static final class Param {
+        final String name;
+        final byte type;
+        final boolean required;
+        // 数组的固定长度，ANY_LENGTH为不限
+        final int length;
+        // 数组长度必须等于该参数的值（如centreFreq与channels），可为null
+        final String lengthParam;
+
+        Param(String name, byte type, boolean required, int length, String lengthParam) {
+            this.name = name;
+            this.type = type;
+            this.required = required;
+            this.length = length;
+            this.lengthParam = lengthParam;
+        }
+    }
+
+    /** 一次调用的参数、会话和输出 */
+    public static final class Call {
+        private Nal2Function function;
+        private Nal2Params params;
+        private String sessionId;
+        private Nal2ResponseWriter output;
+
+        void set(Nal2Function function, Nal2Params params, String sessionId, Nal2ResponseWriter output) {
+            this.function = function;
+            this.params = params;
+            this.sessionId = sessionId;
+            this.output = output;
+        }
+
+        void clear() {
+            set(null, null, null, null);
+        }
+
+        public Nal2Params getParams() {
+            return params;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public Nal2ResponseWriter getOutput() {
+            return output;
+        }
+
+        /**
+         * 按声明的输出长度预先分配的double输出数组，已清零
+         * 每个函数复用同一个数组，只能在本次调用中使用（写入响应前不能保存引用）
+         */
+        public double[] doubleOutput() {
+            if (function.doubleOutput == null) {
+                function.doubleOutput = new double[function.outputLength];
+            } else {
+                Arrays.fill(function.doubleOutput, 0);
+            }
+            return function.doubleOutput;
+        }
+
+        /** 与doubleOutput()相同，int类型（如lineType） */
+        public int[] intOutput() {
+            if (function.intOutput == null) {
+                function.intOutput = new int[function.outputLength];
+            } else {
+                Arrays.fill(function.intOutput, 0);
+            }
+            return function.intOutput;
+        }
+    }
+
+    private final int id;
+    private final String name;
+    private final Param[] params;
+    private final int outputLength;
+    private final boolean readOnly;
+    private final Handler handler;
+
+    private double[] doubleOutput;
+    private int[] intOutput;
+
+    private Nal2Function(int id, String name, Param[] params, int outputLength, boolean readOnly,
+            Handler handler) {
+        this.id = id;
+        this.name = name;
+        this.params = params;
+        this.outputLength = outputLength;
+        this.readOnly = readOnly;
+        this.handler = handler;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    /** 不修改NativeManager状态和会话快照，相同参数和状态下结果相同（并发的相同请求可以合并） */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** 声明的参数个数 */
+    public int getParamCount() {
+        return params.length;
+    }
+
+    Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * 按参数声明校验输入：必填参数存在，数值参数可转换为数值，数组参数为数值数组且长度符合声明
+     * 未声明的参数不检查
+     *
+     * @throws IllegalArgumentException 校验失败
+     */
+    public void validate(Nal2Params input) {
+        for (Param param : params) {
+            if (!input.has(param.name)) {
+                if (param.required) {
+                    throw new IllegalArgumentException("缺少参数: " + param.name);
+                }
+                continue;
+            }
+            if (param.type == INT || param.type == DOUBLE) {
+                // 不是数值时getDouble抛出“参数X不是数值”
+                input.getDouble(param.name);
+                continue;
+            }
+            int actual = input.getArrayLength(param.name);
+            int expected = param.length;
+            if (param.lengthParam != null) {
+                expected = input.getInt(param.lengthParam);
+            }
+            if (expected != ANY_LENGTH && actual != expected) {
+                String rule = param.lengthParam != null
+                        ? "应与" + param.lengthParam + "相同（" + expected + "）" : "应为" + expected;
+                throw new IllegalArgumentException("参数" + param.name + "的长度" + rule + "，实际为" + actual);
+            }
+        }
+    }
+
+    public static final class Builder {
+        private final String name;
+        private final List<Param> params = new ArrayList<Param>();
+        private int outputLength;
+        private boolean readOnly;
+
+        public Builder(String name) {
+            this.name = name;
+        }
+
+        public Builder intParam(String param) {
+            return add(new Param(param, INT, true, ANY_LENGTH, null));
+        }
+
+        public Builder optionalIntParam(String param) {
+            return add(new Param(param, INT, false, ANY_LENGTH, null));
+        }
+
+        public Builder doubleParam(String param) {
+            return add(new Param(param, DOUBLE, true, ANY_LENGTH, null));
+        }
+
+        public Builder optionalDoubleParam(String param) {
+            return add(new Param(param, DOUBLE, false, ANY_LENGTH, null));
+        }
+
+        /** @param length 固定长度或ANY_LENGTH */
+        public Builder doubleArray(String param, int length) {
+            return add(new Param(param, DOUBLE_ARRAY, true, length, null));
+        }
+
+        public Builder optionalDoubleArray(String param, int length) {
+            return add(new Param(param, DOUBLE_ARRAY, false, length, null));
+        }
+
+        public Builder intArray(String param, int length) {
+            return add(new Param(param, INT_ARRAY, true, length, null));
+        }
+
+        /** 长度必须等于参数lengthParam（需先声明）的值 */
+        public Builder intArray(String param, String lengthParam) {
+            return add(new Param(param, INT_ARRAY, true, ANY_LENGTH, lengthParam));
+        }
+
+        public Builder optionalIntArray(String param, int length) {
+            return add(new Param(param, INT_ARRAY, false, length, null));
+        }
+
+        /** doubleOutput()/intOutput()数组的长度 */
+        public Builder outputLength(int length) {
+            outputLength = length;
+            return this;
+        }
+
+        /** 声明函数不修改状态，见isReadOnly() */
+        public Builder readOnly() {
+            readOnly = true;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException 函数不在Nal2BinaryCodec的函数字典中
+         */
+        public Nal2Function build(Handler handler) {
+            int id = Nal2BinaryCodec.functionId(name);
+            if (id == Nal2BinaryCodec.UNKNOWN_FUNCTION) {
+                throw new IllegalArgumentException("函数不在二进制协议的函数字典中: " + name);
+            }
+            return new Nal2Function(id, name, params.toArray(new Param[0]), outputLength, readOnly, handler);
+        }
+
+        private Builder add(Param param) {
+            for (Param existing : params) {
+                if (existing.name.equals(param.name)) {
+                    throw new IllegalArgumentException("参数重复: " + name + "." + param.name);
+                }
+            }
+            if (param.lengthParam != null && !declared(param.lengthParam)) {
+                throw new IllegalArgumentException("长度参数未声明: " + name + "." + param.lengthParam);
+            }
+            params.add(param);
+            return this;
+        }
+
+        private boolean declared(String param) {
+            for (Param existing : params) {
+                if (existing.name.equals(param) && existing.required && existing.type == INT) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
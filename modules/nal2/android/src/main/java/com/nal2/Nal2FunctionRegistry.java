@@ -0,0 +1,90 @@
+package com.nal2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * NAL2函数表：按函数ID（数组下标）或函数名查找Nal2Function
+ * JSON、二进制和批量请求共用同一张表：解码器已把函数名转换为函数ID，
+ * 分发只需一次数组访问；函数名查找只用于没有ID的调用方。
+ * 注册在构造Nal2Module时完成，之后get()可在任意线程调用，其余方法只能在NAL2引擎线程上使用。
+ */
+public final class Nal2FunctionRegistry {
+
+    private final Nal2Function[] byId = new Nal2Function[Nal2BinaryCodec.functionCount() + 1];
+    private final Map<String, Nal2Function> byName = new HashMap<String, Nal2Function>();
+    private final Nal2Function.Call call = new Nal2Function.Call();
+
+    private volatile long calls;
+    private volatile long validationFailures;
+
+    /**
+     * @throws IllegalArgumentException 函数重复注册
+     */
+    public void register(Nal2Function function) {
+        if (byId[function.getId()] != null) {
+            throw new IllegalArgumentException("函数重复注册: " + function.getName());
+        }
+        byId[function.getId()] = function;
+        byName.put(function.getName(), function);
+    }
+
+    /** 按函数ID查找，没有时返回null */
+    public Nal2Function get(int id) {
+        return id > 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /** 按函数名查找，没有时返回null */
+    public Nal2Function get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * 查找请求的函数：有函数ID时按ID，否则按函数名
+     *
+     * @throws IllegalArgumentException 未知函数
+     */
+    public Nal2Function find(int id, String name) {
+        Nal2Function function = id != Nal2BinaryCodec.UNKNOWN_FUNCTION ? get(id) : get(name);
+        if (function == null) {
+            throw new IllegalArgumentException("未知函数: " + name);
+        }
+        return function;
+    }
+
+    /** 校验参数，失败时计入统计并抛出IllegalArgumentException */
+    public void validate(Nal2Function function, Nal2Params params) {
+        try {
+            function.validate(params);
+        } catch (IllegalArgumentException e) {
+            validationFailures++;
+            throw e;
+        }
+    }
+
+    /** 调用函数（参数应已通过validate），输出参数写入output */
+    public void invoke(Nal2Function function, Nal2Params params, String sessionId, Nal2ResponseWriter output)
+            throws Exception {
+        call.set(function, params, sessionId, output);
+        try {
+            function.getHandler().handle(call);
+        } finally {
+            call.clear();
+        }
+        calls++;
+    }
+
+    /** 已注册的函数数 */
+    public int size() {
+        return byName.size();
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    /** 参数校验失败（未调用JNI）的请求数 */
+    public long getValidationFailures() {
+        return validationFailures;
+    }
+}
@@ -0,0 +1,53 @@
+package com.nal2;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 固定分桶的计数直方图，用于运行统计
+ * 可在任意线程调用。
+ */
+public final class Nal2Histogram {
+
+    private final double[] bounds;
+    private final String[] labels;
+    private final long[] counts;
+    private long count;
+    private double sum;
+
+    /**
+     * @param bounds 各桶的上界（含），升序；最后一个桶没有上界
+     * @param labels 各桶的名称，比bounds多一个
+     */
+    public Nal2Histogram(double[] bounds, String[] labels) {
+        if (labels.length != bounds.length + 1) {
+            throw new IllegalArgumentException("桶名称数应比上界数多一个");
+        }
+        this.bounds = bounds.clone();
+        this.labels = labels.clone();
+        this.counts = new long[labels.length];
+    }
+
+    public synchronized void record(double value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts[i]++;
+        count++;
+        sum += value;
+    }
+
+    /** {"count": n, "avg": x, "buckets": {名称: 次数}} */
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < labels.length; i++) {
+            buckets.put(labels[i], counts[i]);
+        }
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("avg", count == 0 ? 0 : sum / count);
+        json.put("buckets", buckets);
+        return json;
+    }
+}
@@ -0,0 +1,318 @@
+package com.nal2;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把响应直接序列化为UTF-8 JSON字节的写入器
+ * 写入池化的字节数组，double使用Nal2DoubleFormatter格式化，不构造JSONObject/JSONArray和中间String。
+ * 逗号根据上一个写入的字节自动添加，因此可以用truncate()回退到之前的位置重写（批量请求中某项失败时）。
+ */
+public final class Nal2JsonResponseWriter extends Nal2ResponseWriter {
+    /** JSON响应的Content-Type */
+    public static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf;
+    private int length;
+
+    @Override
+    public void begin() {
+        if (buf == null) {
+            buf = Nal2ResponseBuffer.acquire(Nal2ResponseBuffer.INITIAL_SIZE);
+        }
+        length = 0;
+    }
+
+    @Override
+    public Nal2ResponseBuffer finish() {
+        Nal2ResponseBuffer response = new Nal2ResponseBuffer(buf, length, CONTENT_TYPE);
+        buf = null;
+        length = 0;
+        return response;
+    }
+
+    @Override
+    public int position() {
+        return length;
+    }
+
+    @Override
+    public void truncate(int position) {
+        length = position;
+    }
+
+    @Override
+    public void beginBatch() {
+        beginArray();
+    }
+
+    @Override
+    public void endBatch() {
+        endArray();
+    }
+
+    @Override
+    public void beginResponse(int sequenceNum, String function, String sessionId, int returnCode) {
+        beginObject();
+        name("sequence_num").value(sequenceNum);
+        name("function").value(function);
+        if (sessionId != null) {
+            name("session_id").value(sessionId);
+        }
+        name("return").value(returnCode);
+        name("output_parameters").beginObject();
+    }
+
+    @Override
+    public void endResponse(String stepId) {
+        endObject();
+        if (stepId != null) {
+            name("id").value(stepId);
+        }
+        endObject();
+    }
+
+    @Override
+    public JSONObject readOutputs(int start, int end) throws JSONException {
+        String response = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        return new JSONObject(response).getJSONObject("output_parameters");
+    }
+
+    @Override
+    public Nal2ResponseWriter beginObject() {
+        separate();
+        append('{');
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter endObject() {
+        append('}');
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter beginArray() {
+        separate();
+        append('[');
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter endArray() {
+        append(']');
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter name(String name) {
+        separate();
+        writeString(name);
+        append(':');
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(double value) {
+        separate();
+        ensure(Nal2DoubleFormatter.MAX_CHARS);
+        length = Nal2DoubleFormatter.format(value, buf, length);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(long value) {
+        separate();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(int value) {
+        return value((long) value);
+    }
+
+    @Override
+    public Nal2ResponseWriter value(boolean value) {
+        separate();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(String value) {
+        separate();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter nullValue() {
+        separate();
+        writeAscii("null");
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(double[] values) {
+        separate();
+        ensure(2 + values.length * (Nal2DoubleFormatter.MAX_CHARS + 1));
+        buf[length++] = '[';
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                buf[length++] = ',';
+            }
+            length = Nal2DoubleFormatter.format(values[i], buf, length);
+        }
+        buf[length++] = ']';
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(ImmutableDoubleArray values) {
+        separate();
+        ensure(2 + values.length() * (Nal2DoubleFormatter.MAX_CHARS + 1));
+        buf[length++] = '[';
+        for (int i = 0; i < values.length(); i++) {
+            if (i > 0) {
+                buf[length++] = ',';
+            }
+            length = Nal2DoubleFormatter.format(values.get(i), buf, length);
+        }
+        buf[length++] = ']';
+        return this;
+    }
+
+    @Override
+    public Nal2ResponseWriter value(int[] values) {
+        beginArray();
+        for (int value : values) {
+            value((long) value);
+        }
+        return endArray();
+    }
+
+    // 前一个字节是值的结尾时补逗号
+    private void separate() {
+        if (length == 0) {
+            return;
+        }
+        byte last = buf[length - 1];
+        if (last != '{' && last != '[' && last != ':') {
+            append(',');
+        }
+    }
+
+    private void append(char c) {
+        ensure(1);
+        buf[length++] = (byte) c;
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeLong(long value) {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buf[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buf[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // 反转
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    // 按JSON规则转义，同时编码为UTF-8
+    private void writeString(String s) {
+        // 每个char最多6字节（\\uXXXX）
+        ensure(2 + s.length() * 6);
+        buf[length++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                buf[length++] = (byte) c;
+                continue;
+            }
+            switch (c) {
+                case '"':
+                case '\\':
+                    buf[length++] = '\\';
+                    buf[length++] = (byte) c;
+                    continue;
+                case '\n':
+                    buf[length++] = '\\';
+                    buf[length++] = 'n';
+                    continue;
+                case '\r':
+                    buf[length++] = '\\';
+                    buf[length++] = 'r';
+                    continue;
+                case '\t':
+                    buf[length++] = '\\';
+                    buf[length++] = 't';
+                    continue;
+                default:
+                    break;
+            }
+            if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                buf[length++] = '\\';
+                buf[length++] = 'u';
+                buf[length++] = HEX[(c >> 12) & 0xf];
+                buf[length++] = HEX[(c >> 8) & 0xf];
+                buf[length++] = HEX[(c >> 4) & 0xf];
+                buf[length++] = HEX[c & 0xf];
+            } else if (c < 0x800) {
+                buf[length++] = (byte) (0xc0 | (c >> 6));
+                buf[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[length++] = (byte) (0xf0 | (cp >> 18));
+                buf[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符
+                buf[length++] = '?';
+            } else {
+                buf[length++] = (byte) (0xe0 | (c >> 12));
+                buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buf[length++] = '"';
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buf.length) {
+            // 旧的小缓冲区不放回池中，池里保留的是实际响应需要的大小
+            byte[] old = buf;
+            buf = Nal2ResponseBuffer.acquire(Math.max(old.length * 2, length + extra));
+            System.arraycopy(old, 0, buf, 0, length);
+        }
+    }
+}
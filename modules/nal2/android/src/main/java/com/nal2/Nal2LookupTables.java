@@ -0,0 +1,264 @@
+package com.nal2;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * 只依赖少量枚举型整数参数的NAL2查询的查找表
+ * GetTubing/GetVentOut/GetMLE/GetREDDindiv/GetREURindiv（含9频点版本）首次查询时调用JNI填充，
+ * 之后直接返回共享的只读结果，查询过程不分配内存。引擎版本变化时清空重建。
+ * 只能在NAL2引擎线程上使用。
+ */
+public final class Nal2LookupTables {
+    private static final String TAG = "Nal2LookupTables";
+
+    // 表编号，占键的高4位
+    private static final int TUBING = 1;
+    private static final int TUBING9 = 2;
+    private static final int VENT_OUT = 3;
+    private static final int VENT_OUT9 = 4;
+    private static final int MLE = 5;
+    private static final int REDD = 6;
+    private static final int REDD9 = 7;
+    static final int REUR = 8;
+    static final int REUR9 = 9;
+
+    // 枚举参数允许的范围，超出范围时不查表，直接调用JNI
+    private static final int MIN_ENUM = -128;
+    private static final int MAX_ENUM = 127;
+
+    // 开放寻址表的初始容量（2的幂）
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static Nal2LookupTables instance;
+
+    private final Nal2Manager nal2Manager;
+    private final NativeStateApplier stateApplier;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private ImmutableDoubleArray[] values = new ImmutableDoubleArray[INITIAL_CAPACITY];
+    private int size;
+    private int[] engineVersion;
+
+    private volatile long hits;
+    private volatile long fills;
+
+    // 单元测试直接构造，只使用find/fill
+    Nal2LookupTables(Nal2Manager nal2Manager, NativeStateApplier stateApplier) {
+        this.nal2Manager = nal2Manager;
+        this.stateApplier = stateApplier;
+    }
+
+    public static synchronized Nal2LookupTables getInstance(Context context) {
+        if (instance == null) {
+            instance = new Nal2LookupTables(Nal2Manager.getInstance(context), NativeStateApplier.getInstance(context));
+            instance.checkEngineVersion(Nal2Manager.getInstance(context).getDllVersion());
+        }
+        return instance;
+    }
+
+    /**
+     * 检查引擎版本，与建表时的版本不同则清空所有表
+     */
+    public void checkEngineVersion(int[] version) {
+        if (engineVersion != null && Arrays.equals(engineVersion, version)) {
+            return;
+        }
+        if (engineVersion != null) {
+            Log.i(TAG, "引擎版本变化: " + Arrays.toString(engineVersion) + " -> " + Arrays.toString(version)
+                    + "，重建查找表");
+        }
+        engineVersion = version.clone();
+        Arrays.fill(keys, 0L);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public ImmutableDoubleArray getTubing(int tubing) {
+        long key = key(TUBING, tubing, 0, 0);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getTubing(tubing));
+        }
+        return value;
+    }
+
+    public ImmutableDoubleArray getTubing9(int tubing) {
+        long key = key(TUBING9, tubing, 0, 0);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getTubing9(tubing));
+        }
+        return value;
+    }
+
+    public ImmutableDoubleArray getVentOut(int vent) {
+        long key = key(VENT_OUT, vent, 0, 0);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getVentOut(vent));
+        }
+        return value;
+    }
+
+    public ImmutableDoubleArray getVentOut9(int vent) {
+        long key = key(VENT_OUT9, vent, 0, 0);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getVentOut9(vent));
+        }
+        return value;
+    }
+
+    public ImmutableDoubleArray getMLE(int aidType, int direction, int mic) {
+        long key = key(MLE, aidType, direction, mic);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getMLE(aidType, direction, mic));
+        }
+        return value;
+    }
+
+    /**
+     * REDD在推送过个体化值（SetREDDindiv）后可能返回该值，此时不查表
+     */
+    public ImmutableDoubleArray getREDDindiv(int defValues) {
+        if (stateApplier.getAppliedState().redd != null) {
+            return new ImmutableDoubleArray(nal2Manager.getREDDindiv(defValues));
+        }
+        long key = key(REDD, defValues, 0, 0);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getREDDindiv(defValues));
+        }
+        return value;
+    }
+
+    public ImmutableDoubleArray getREDDindiv9(int defValues) {
+        if (stateApplier.getAppliedState().redd != null) {
+            return new ImmutableDoubleArray(nal2Manager.getREDDindiv9(defValues));
+        }
+        long key = key(REDD9, defValues, 0, 0);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getREDDindiv9(defValues));
+        }
+        return value;
+    }
+
+    /**
+     * REUR在推送过个体化值（SetREURindiv）后可能返回该值，此时不查表
+     */
+    public ImmutableDoubleArray getREURindiv(int defValues, int dateOfBirth, int direction, int mic) {
+        if (stateApplier.getAppliedState().reur != null) {
+            return new ImmutableDoubleArray(nal2Manager.getREURindiv(defValues, dateOfBirth, direction, mic));
+        }
+        long key = reurKey(REUR, defValues, dateOfBirth, direction, mic);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getREURindiv(defValues, dateOfBirth, direction, mic));
+        }
+        return value;
+    }
+
+    public ImmutableDoubleArray getREURindiv9(int defValues, int dateOfBirth, int direction, int mic) {
+        if (stateApplier.getAppliedState().reur != null) {
+            return new ImmutableDoubleArray(nal2Manager.getREURindiv9(defValues, dateOfBirth, direction, mic));
+        }
+        long key = reurKey(REUR9, defValues, dateOfBirth, direction, mic);
+        ImmutableDoubleArray value = find(key);
+        if (value == null) {
+            value = fill(key, nal2Manager.getREURindiv9(defValues, dateOfBirth, direction, mic));
+        }
+        return value;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getFills() {
+        return fills;
+    }
+
+    // 键布局：[表编号:4][保留:4][dateOfBirth:32 或 0][a:8][b:8][c:8]，0表示超出范围（不查表）
+    private static long key(int table, int a, int b, int c) {
+        if (!inRange(a) || !inRange(b) || !inRange(c)) {
+            return 0L;
+        }
+        return ((long) table << 60) | ((long) (a & 0xff) << 16) | ((long) (b & 0xff) << 8) | (c & 0xff);
+    }
+
+    static long reurKey(int table, int defValues, int dateOfBirth, int direction, int mic) {
+        // 日期格式为yyyymmdd（如20100615），超过24位，按无符号32位放入第24-55位
+        long key = key(table, defValues, direction, mic);
+        return key == 0L ? 0L : key | ((dateOfBirth & 0xffffffffL) << 24);
+    }
+
+    private static boolean inRange(int value) {
+        return value >= MIN_ENUM && value <= MAX_ENUM;
+    }
+
+    ImmutableDoubleArray find(long key) {
+        if (key == 0L) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (keys[index] != 0L) {
+            if (keys[index] == key) {
+                hits++;
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    ImmutableDoubleArray fill(long key, double[] data) {
+        ImmutableDoubleArray value = new ImmutableDoubleArray(data);
+        if (key == 0L) {
+            return value;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        insert(key, value);
+        size++;
+        fills++;
+        return value;
+    }
+
+    private void insert(long key, ImmutableDoubleArray value) {
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (keys[index] != 0L) {
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        ImmutableDoubleArray[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new ImmutableDoubleArray[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0L) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
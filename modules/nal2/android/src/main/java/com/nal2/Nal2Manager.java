@@ -6,7 +6,6 @@ import android.util.Log;
 import au.org.nal.NativeManager;
 import au.org.nal.OutputResult;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
 public class Nal2Manager {
@@ -525,20 +524,10 @@ public class Nal2Manager {
         }
     }
 
-    // 通过反射获取OutputResult中的数据
+    // 获取OutputResult中的数据
     private double[] getOutputData(OutputResult result, double[] defaultValue) {
         try {
-            // 尝试使用getOutput1方法
-            try {
-                Method method = result.getClass().getMethod("getOutput1");
-                return (double[]) method.invoke(result);
-            } catch (Exception e) {
-                Log.e(TAG, "获取output1方法失败，尝试直接访问字段", e);
-                // 尝试直接访问output1字段
-                Field field = result.getClass().getDeclaredField("output1");
-                field.setAccessible(true);
-                return (double[]) field.get(result);
-            }
+            return OutputResultAccessor.getOutput1(result, defaultValue);
         } catch (Exception e) {
             Log.e(TAG, "获取OutputResult数据失败", e);
             return defaultValue;
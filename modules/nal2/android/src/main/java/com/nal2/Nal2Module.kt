@@ -7,34 +7,215 @@ import com.facebook.react.bridge.ReactApplicationContext
 import com.facebook.react.bridge.ReactContextBaseJavaModule
 import com.facebook.react.bridge.ReactMethod
 import com.facebook.react.bridge.ReadableArray
+import com.facebook.react.bridge.ReadableMap
 import org.json.JSONArray
 import org.json.JSONObject
-
-class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaModule(reactContext) {
+import java.nio.charset.StandardCharsets
+import java.util.EnumSet
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * 通过getInstance()获取实例：RN注册的模块和HTTP/WebSocket服务器共用同一个实例，
+ * 请求合并的纪元、latest_wins、时限和调度统计在所有入口之间一致
+ */
+class Nal2Module private constructor(reactContext: ReactApplicationContext) :
+        ReactContextBaseJavaModule(reactContext), Nal2Engine {
 
   private val nal2Manager = Nal2Manager.getInstance(reactContext)
 
+  // 所有Nal2Manager调用都在唯一的引擎线程上执行，保证NativeManager全局状态一致
+  private val engine = Nal2EngineExecutor.getInstance()
+
+  // 记录已推入NativeManager的状态，只发起输入有变化的Set* JNI调用
+  private val stateApplier = NativeStateApplier.getInstance(reactContext)
+
+  // 按session_id隔离多个患者的NativeManager状态
+  private val sessionManager = Nal2SessionManager.getInstance(reactContext)
+
+  // 确定性处方函数的结果缓存
+  private val resultCache = Nal2ResultCache.getInstance(reactContext)
+
+  // 只依赖枚举参数的查询（Tubing、VentOut、MLE、REDD、REUR）的查找表
+  private val lookupTables = Nal2LookupTables.getInstance(reactContext)
+
+  // 增量处方的上一次输入和结果
+  private val prescriptionSnapshots = PrescriptionSnapshots.getInstance()
+
+  // 请求体流式解码器，在提交请求的线程上使用（由自身的锁保护），每个请求只解码一次
+  private val requestDecoder = Nal2RequestDecoder()
+
+  // 响应写入器，只在引擎线程上使用
+  private val jsonWriter = Nal2JsonResponseWriter()
+  private val binaryWriter = Nal2BinaryResponseWriter()
+
+  // 支持的函数及其参数声明，见registerFunctions()
+  private val functions = Nal2FunctionRegistry()
+
+  // callFunction()复用的参数和响应写入器
+  private val bridgeParams = Nal2Params()
+  private val bridgeWriter = Nal2BridgeResponseWriter()
+
+  init {
+    registerFunctions()
+  }
+
+  // 请求在引擎线程上按提交顺序执行，跳过已过期或已被取代的请求
+  private val scheduler =
+          Nal2RequestScheduler(engine, functions, object : Nal2RequestScheduler.Processor {
+            override fun process(ticket: Nal2RequestScheduler.Ticket): Nal2ResponseBuffer {
+              return processRequestBody(ticket.request, ticket.isBinaryResponse)
+            }
+
+            override fun skip(ticket: Nal2RequestScheduler.Ticket, reason: String): Nal2ResponseBuffer {
+              Log.d("Nal2Module", "跳过请求: ${ticket.function}, $reason")
+              val output = if (ticket.isBinaryResponse) binaryWriter else jsonWriter
+              output.begin()
+              val error = CancellationException(reason)
+              writeErrorResponse(ticket.sequenceNum, ticket.function ?: "unknown", error, output)
+              return output.finish()
+            }
+          })
+
+  // 在请求提交到引擎前合并并发的相同请求
+  private val coalescer = Nal2RequestCoalescer(functions, scheduler)
+
   override fun getName(): String {
     return NAME
   }
 
   companion object {
     const val NAME = "Nal2"
+
+    private var instance: Nal2Module? = null
+    private var instanceContext: ReactApplicationContext? = null
+
+    /** 同一ReactApplicationContext中共享的实例，RN重新加载（新的context）后创建新实例 */
+    @JvmStatic
+    @Synchronized
+    fun getInstance(reactContext: ReactApplicationContext): Nal2Module {
+      val current = instance
+      if (current != null && instanceContext === reactContext) {
+        return current
+      }
+      val module = Nal2Module(reactContext)
+      instance = module
+      instanceContext = reactContext
+      return module
+    }
+
+    // 听力图的频点数（AC、BC、ACother等）
+    private const val AUDIOGRAM_POINTS = 9
+
+    // 处理结果的频带数（CR、MPO、REIG等），也是JNI输出数组的长度
+    private const val BANDS = 19
+
+    // FullPrescription输入参数所属的分组，用于增量重算
+    private val PRESCRIPTION_INPUT_GROUPS =
+            mapOf(
+                    "adultChild" to PrescriptionGraph.InputGroup.DEMOGRAPHICS,
+                    "dateOfBirth" to PrescriptionGraph.InputGroup.DEMOGRAPHICS,
+                    "experience" to PrescriptionGraph.InputGroup.DEMOGRAPHICS,
+                    "compSpeed" to PrescriptionGraph.InputGroup.DEMOGRAPHICS,
+                    "tonal" to PrescriptionGraph.InputGroup.DEMOGRAPHICS,
+                    "gender" to PrescriptionGraph.InputGroup.DEMOGRAPHICS,
+                    "AC" to PrescriptionGraph.InputGroup.AUDIOGRAM,
+                    "BC" to PrescriptionGraph.InputGroup.AUDIOGRAM,
+                    "ACother" to PrescriptionGraph.InputGroup.AUDIOGRAM,
+                    "channels" to PrescriptionGraph.InputGroup.CHANNELS,
+                    "bandWidth" to PrescriptionGraph.InputGroup.CHANNELS,
+                    "selection" to PrescriptionGraph.InputGroup.CHANNELS,
+                    "WBCT" to PrescriptionGraph.InputGroup.CHANNELS,
+                    "calcCh" to PrescriptionGraph.InputGroup.CHANNELS,
+                    "levels" to PrescriptionGraph.InputGroup.LEVELS,
+                    "graphFreqs" to PrescriptionGraph.InputGroup.LEVELS,
+                    "startLevel" to PrescriptionGraph.InputGroup.LEVELS,
+                    "finishLevel" to PrescriptionGraph.InputGroup.LEVELS,
+                    "speechLevel" to PrescriptionGraph.InputGroup.LEVELS,
+                    "aidType" to PrescriptionGraph.InputGroup.TRANSDUCER,
+                    "direction" to PrescriptionGraph.InputGroup.TRANSDUCER,
+                    "mic" to PrescriptionGraph.InputGroup.TRANSDUCER,
+                    "limiting" to PrescriptionGraph.InputGroup.TRANSDUCER,
+                    "noOfAids" to PrescriptionGraph.InputGroup.TRANSDUCER,
+                    "mpoType" to PrescriptionGraph.InputGroup.TRANSDUCER,
+                    "target" to PrescriptionGraph.InputGroup.TRANSDUCER
+            )
   }
 
-  @ReactMethod
-  fun dllVersion(promise: Promise) {
+  /** 把任务投递到NAL2引擎线程，队列已满时直接reject */
+  private fun runOnEngine(promise: Promise, functionName: String, block: () -> Unit) {
     try {
-      val version = nal2Manager.getDllVersion()
-      val versionMap = Arguments.createMap()
-      versionMap.putInt("major", version[0])
-      versionMap.putInt("minor", version[1])
+      engine.execute(block)
+    } catch (e: RejectedExecutionException) {
+      Log.w("Nal2Module", "NAL2引擎繁忙，拒绝$functionName")
+      promise.reject("NAL2_BUSY", "NAL2引擎繁忙，请稍后重试: $functionName", e)
+    }
+  }
 
-      Log.d("Nal2Module", "DLL版本: major=${version[0]}, minor=${version[1]}")
-      promise.resolve(versionMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用dllVersion失败", e)
-      promise.reject("NAL2_ERROR", "调用dllVersion失败: ${e.message}", e)
+  /**
+   * 在引擎线程上执行修改NativeManager状态的RN方法
+   * 与callFunction相同按无会话请求处理（enter(null)/leave(null)），之后的会话请求会先恢复自己的状态
+   */
+  private fun runStatefulOnEngine(promise: Promise, functionName: String, block: () -> Unit) {
+    runOnEngine(promise, functionName) {
+      sessionManager.enter(null)
+      try {
+        block()
+      } finally {
+        sessionManager.leave(null)
+      }
+    }
+  }
+
+  /**
+   * 按函数名调用registerFunctions()中注册的任意函数
+   * params与HTTP接口的input_parameters相同，resolve的值为output_parameters。
+   * 参数直接从ReadableMap读入、输出直接写入WritableMap，与JSON、二进制协议共用参数声明和校验，
+   * 新增函数只需注册一次，不需要再编写单独的ReactMethod
+   */
+  @ReactMethod
+  fun callFunction(functionName: String, params: ReadableMap, promise: Promise) {
+    runOnEngine(promise, functionName) {
+      try {
+        val function = functions.find(Nal2BinaryCodec.UNKNOWN_FUNCTION, functionName)
+        bridgeParams.clear()
+        Nal2BridgeResponseWriter.readParams(params, bridgeParams)
+        functions.validate(function, bridgeParams)
+
+        bridgeWriter.beginResponse(0, functionName, null, 0)
+        sessionManager.enter(null)
+        try {
+          functions.invoke(function, bridgeParams, null, bridgeWriter)
+        } finally {
+          sessionManager.leave(null)
+        }
+        bridgeWriter.endResponse(null)
+        promise.resolve(bridgeWriter.result)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用${functionName}失败", e)
+        promise.reject("NAL2_ERROR", "调用${functionName}失败: ${e.message}", e)
+      }
+    }
+  }
+
+  @ReactMethod
+  fun dllVersion(promise: Promise) {
+    runOnEngine(promise, "dllVersion") {
+      try {
+        val version = nal2Manager.getDllVersion()
+        resultCache.checkEngineVersion(version)
+        lookupTables.checkEngineVersion(version)
+        val versionMap = Arguments.createMap()
+        versionMap.putInt("major", version[0])
+        versionMap.putInt("minor", version[1])
+
+        Log.d("Nal2Module", "DLL版本: major=${version[0]}, minor=${version[1]}")
+        promise.resolve(versionMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用dllVersion失败", e)
+        promise.reject("NAL2_ERROR", "调用dllVersion失败: ${e.message}", e)
+      }
     }
   }
 
@@ -51,67 +232,70 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           noOfAids: Int,
           promise: Promise
   ) {
+    runOnEngine(promise, "realEarInsertionGain") {
+      try {
+        // 准备输出数组 - REIG固定为19个元素（third-octaves）
+        val reig = DoubleArray(19)
 
-    try {
-      // 准备输出数组 - REIG固定为19个元素（third-octaves）
-      val reig = DoubleArray(19)
-
-      // 转换输入数组
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+        // 转换输入数组
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      Log.d(
-              "Nal2Module",
-              "调用RealEarInsertionGain_NL2: AC=${acDouble.joinToString()}, L=$L, channels=$channels"
-      )
+        Log.d(
+                "Nal2Module",
+                "调用RealEarInsertionGain_NL2: AC=${acDouble.joinToString()}, L=$L, channels=$channels"
+        )
 
-      // 调用NAL2 Manager
-      val result =
-              nal2Manager.getRealEarInsertionGain(
-                      reig,
-                      acDouble,
-                      bcDouble,
-                      L,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      acOtherDouble,
-                      noOfAids
-              )
+        // 调用NAL2 Manager
+        val result =
+                cachedRealEarInsertionGain(
+                        reig,
+                        acDouble,
+                        bcDouble,
+                        L,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        acOtherDouble,
+                        noOfAids
+                )
 
-      // 构建返回结果
-      val writableMap = Arguments.createMap()
-      val reigArray = Arguments.createArray()
-      result.forEach { reigArray.pushDouble(it) }
-      writableMap.putArray("REIG", reigArray)
+        // 构建返回结果
+        val writableMap = Arguments.createMap()
+        val reigArray = Arguments.createArray()
+        result.forEach { reigArray.pushDouble(it) }
+        writableMap.putArray("REIG", reigArray)
 
-      Log.d("Nal2Module", "RealEarInsertionGain_NL2成功: REIG=${result.joinToString()}")
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用RealEarInsertionGain_NL2失败", e)
-      promise.reject("NAL2_ERROR", "调用RealEarInsertionGain_NL2失败: ${e.message}", e)
+        Log.d("Nal2Module", "RealEarInsertionGain_NL2成功: REIG=${result.joinToString()}")
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用RealEarInsertionGain_NL2失败", e)
+        promise.reject("NAL2_ERROR", "调用RealEarInsertionGain_NL2失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun crossOverFrequencies(channels: Int, ac: ReadableArray, bc: ReadableArray, promise: Promise) {
-    try {
-      val cfArr = DoubleArray(19)
-      val freqInCh = IntArray(19)
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+    runOnEngine(promise, "crossOverFrequencies") {
+      try {
+        val cfArr = DoubleArray(19)
+        val freqInCh = IntArray(19)
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
 
-      val result =
-              nal2Manager.getCrossOverFrequencies(cfArr, channels, acDouble, bcDouble, freqInCh)
+        val result =
+                nal2Manager.getCrossOverFrequencies(cfArr, channels, acDouble, bcDouble, freqInCh)
 
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用CrossOverFrequencies失败", e)
-      promise.reject("NAL2_ERROR", "调用CrossOverFrequencies失败: ${e.message}", e)
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用CrossOverFrequencies失败", e)
+        promise.reject("NAL2_ERROR", "调用CrossOverFrequencies失败: ${e.message}", e)
+      }
     }
   }
 
@@ -124,18 +308,19 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           calcCh: ReadableArray,
           promise: Promise
   ) {
-    try {
-      val ct = DoubleArray(19)
-      val calcChArray = IntArray(calcCh.size()) { calcCh.getInt(it) }
+    runStatefulOnEngine(promise, "compressionThreshold") {
+      try {
+        val calcChArray = IntArray(calcCh.size()) { calcCh.getInt(it) }
 
-      nal2Manager.setCompressionThreshold(ct, 0, 1, WBCT, aidType, direction, mic, calcChArray)
+        val ct = stateApplier.compressionThreshold(0, 1, WBCT, aidType, direction, mic, calcChArray)
 
-      val resultArray = Arguments.createArray()
-      ct.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用CompressionThreshold失败", e)
-      promise.reject("NAL2_ERROR", "调用CompressionThreshold失败: ${e.message}", e)
+        val resultArray = Arguments.createArray()
+        ct.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用CompressionThreshold失败", e)
+        promise.reject("NAL2_ERROR", "调用CompressionThreshold失败: ${e.message}", e)
+      }
     }
   }
 
@@ -147,68 +332,80 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           selection: Int,
           promise: Promise
   ) {
-    try {
-      val crossOverDouble = DoubleArray(crossOver.size()) { crossOver.getDouble(it) }
-      nal2Manager.setBWC(channels, crossOverDouble)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setBWC失败", e)
-      promise.reject("NAL2_ERROR", "调用setBWC失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setBWC") {
+      try {
+        val crossOverDouble = DoubleArray(crossOver.size()) { crossOver.getDouble(it) }
+        stateApplier.setBWC(channels, crossOverDouble)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setBWC失败", e)
+        promise.reject("NAL2_ERROR", "调用setBWC失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setAdultChild(adultChild: Int, dateOfBirth: Int, promise: Promise) {
-    try {
-      nal2Manager.setAdultChild(adultChild, dateOfBirth)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setAdultChild失败", e)
-      promise.reject("NAL2_ERROR", "调用setAdultChild失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setAdultChild") {
+      try {
+        stateApplier.setAdultChild(adultChild, dateOfBirth)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setAdultChild失败", e)
+        promise.reject("NAL2_ERROR", "调用setAdultChild失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setExperience(experience: Int, promise: Promise) {
-    try {
-      nal2Manager.setExperience(experience)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setExperience失败", e)
-      promise.reject("NAL2_ERROR", "调用setExperience失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setExperience") {
+      try {
+        stateApplier.setExperience(experience)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setExperience失败", e)
+        promise.reject("NAL2_ERROR", "调用setExperience失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setCompSpeed(compSpeed: Int, promise: Promise) {
-    try {
-      nal2Manager.setCompSpeed(compSpeed)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setCompSpeed失败", e)
-      promise.reject("NAL2_ERROR", "调用setCompSpeed失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setCompSpeed") {
+      try {
+        stateApplier.setCompSpeed(compSpeed)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setCompSpeed失败", e)
+        promise.reject("NAL2_ERROR", "调用setCompSpeed失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setTonalLanguage(tonal: Int, promise: Promise) {
-    try {
-      nal2Manager.setTonalLanguage(tonal)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setTonalLanguage失败", e)
-      promise.reject("NAL2_ERROR", "调用setTonalLanguage失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setTonalLanguage") {
+      try {
+        stateApplier.setTonalLanguage(tonal)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setTonalLanguage失败", e)
+        promise.reject("NAL2_ERROR", "调用setTonalLanguage失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setGender(gender: Int, promise: Promise) {
-    try {
-      nal2Manager.setGender(gender)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setGender失败", e)
-      promise.reject("NAL2_ERROR", "调用setGender失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setGender") {
+      try {
+        stateApplier.setGender(gender)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setGender失败", e)
+        promise.reject("NAL2_ERROR", "调用setGender失败: ${e.message}", e)
+      }
     }
   }
 
@@ -222,22 +419,24 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           fittingDepth: Int,
           promise: Promise
   ) {
-    try {
-      val result =
-              nal2Manager.getRECDhIndiv(
-                      RECDmeasType,
-                      dateOfBirth,
-                      aidType,
-                      tubing,
-                      coupler,
-                      fittingDepth
-              )
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getRECDhIndiv失败", e)
-      promise.reject("NAL2_ERROR", "调用getRECDhIndiv失败: ${e.message}", e)
+    runOnEngine(promise, "getRECDhIndiv") {
+      try {
+        val result =
+                nal2Manager.getRECDhIndiv(
+                        RECDmeasType,
+                        dateOfBirth,
+                        aidType,
+                        tubing,
+                        coupler,
+                        fittingDepth
+                )
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getRECDhIndiv失败", e)
+        promise.reject("NAL2_ERROR", "调用getRECDhIndiv失败: ${e.message}", e)
+      }
     }
   }
 
@@ -251,22 +450,24 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           fittingDepth: Int,
           promise: Promise
   ) {
-    try {
-      val result =
-              nal2Manager.getRECDhIndiv9(
-                      RECDmeasType,
-                      dateOfBirth,
-                      aidType,
-                      tubing,
-                      coupler,
-                      fittingDepth
-              )
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getRECDhIndiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用getRECDhIndiv9失败: ${e.message}", e)
+    runOnEngine(promise, "getRECDhIndiv9") {
+      try {
+        val result =
+                nal2Manager.getRECDhIndiv9(
+                        RECDmeasType,
+                        dateOfBirth,
+                        aidType,
+                        tubing,
+                        coupler,
+                        fittingDepth
+                )
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getRECDhIndiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用getRECDhIndiv9失败: ${e.message}", e)
+      }
     }
   }
 
@@ -282,24 +483,26 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           fittingDepth: Int,
           promise: Promise
   ) {
-    try {
-      val result =
-              nal2Manager.getRECDtIndiv(
-                      RECDmeasType,
-                      dateOfBirth,
-                      aidType,
-                      tubing,
-                      vent,
-                      earpiece,
-                      coupler,
-                      fittingDepth
-              )
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getRECDtIndiv失败", e)
-      promise.reject("NAL2_ERROR", "调用getRECDtIndiv失败: ${e.message}", e)
+    runOnEngine(promise, "getRECDtIndiv") {
+      try {
+        val result =
+                nal2Manager.getRECDtIndiv(
+                        RECDmeasType,
+                        dateOfBirth,
+                        aidType,
+                        tubing,
+                        vent,
+                        earpiece,
+                        coupler,
+                        fittingDepth
+                )
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getRECDtIndiv失败", e)
+        promise.reject("NAL2_ERROR", "调用getRECDtIndiv失败: ${e.message}", e)
+      }
     }
   }
 
@@ -315,91 +518,103 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           fittingDepth: Int,
           promise: Promise
   ) {
-    try {
-      val result =
-              nal2Manager.getRECDtIndiv9(
-                      RECDmeasType,
-                      dateOfBirth,
-                      aidType,
-                      tubing,
-                      vent,
-                      earpiece,
-                      coupler,
-                      fittingDepth
-              )
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getRECDtIndiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用getRECDtIndiv9失败: ${e.message}", e)
+    runOnEngine(promise, "getRECDtIndiv9") {
+      try {
+        val result =
+                nal2Manager.getRECDtIndiv9(
+                        RECDmeasType,
+                        dateOfBirth,
+                        aidType,
+                        tubing,
+                        vent,
+                        earpiece,
+                        coupler,
+                        fittingDepth
+                )
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getRECDtIndiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用getRECDtIndiv9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setRECDhIndiv(recdh: ReadableArray, promise: Promise) {
-    try {
-      val recdhDouble = DoubleArray(recdh.size()) { recdh.getDouble(it) }
-      nal2Manager.setRECDhIndiv(recdhDouble)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setRECDhIndiv失败", e)
-      promise.reject("NAL2_ERROR", "调用setRECDhIndiv失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setRECDhIndiv") {
+      try {
+        val recdhDouble = DoubleArray(recdh.size()) { recdh.getDouble(it) }
+        stateApplier.setRECDhIndiv(recdhDouble)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setRECDhIndiv失败", e)
+        promise.reject("NAL2_ERROR", "调用setRECDhIndiv失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setRECDhIndiv9(recdh: ReadableArray, promise: Promise) {
-    try {
-      val recdhDouble = DoubleArray(recdh.size()) { recdh.getDouble(it) }
-      nal2Manager.setRECDhIndiv9(recdhDouble)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setRECDhIndiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用setRECDhIndiv9失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setRECDhIndiv9") {
+      try {
+        val recdhDouble = DoubleArray(recdh.size()) { recdh.getDouble(it) }
+        stateApplier.setRECDhIndiv(recdhDouble)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setRECDhIndiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用setRECDhIndiv9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setRECDtIndiv(recdt: ReadableArray, promise: Promise) {
-    try {
-      val recdtDouble = DoubleArray(recdt.size()) { recdt.getDouble(it) }
-      nal2Manager.setRECDtIndiv(recdtDouble)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setRECDtIndiv失败", e)
-      promise.reject("NAL2_ERROR", "调用setRECDtIndiv失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setRECDtIndiv") {
+      try {
+        val recdtDouble = DoubleArray(recdt.size()) { recdt.getDouble(it) }
+        stateApplier.setRECDtIndiv(recdtDouble)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setRECDtIndiv失败", e)
+        promise.reject("NAL2_ERROR", "调用setRECDtIndiv失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setRECDtIndiv9(recdt: ReadableArray, promise: Promise) {
-    try {
-      val recdtDouble = DoubleArray(recdt.size()) { recdt.getDouble(it) }
-      nal2Manager.setRECDtIndiv9(recdtDouble)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setRECDtIndiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用setRECDtIndiv9失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setRECDtIndiv9") {
+      try {
+        val recdtDouble = DoubleArray(recdt.size()) { recdt.getDouble(it) }
+        stateApplier.setRECDtIndiv(recdtDouble)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setRECDtIndiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用setRECDtIndiv9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun centerFrequencies(channels: Int, promise: Promise) {
-    try {
-      // CFArray是输出参数，SDK内部会填充
-      val cfArrayDouble = DoubleArray(19)
-      val result = nal2Manager.getCenterFrequencies(channels, cfArrayDouble)
+    runOnEngine(promise, "centerFrequencies") {
+      try {
+        // CFArray是输出参数，SDK内部会填充
+        val cfArrayDouble = DoubleArray(19)
+        val result = nal2Manager.getCenterFrequencies(channels, cfArrayDouble)
 
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushInt(it) }
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushInt(it) }
 
-      Log.d("Nal2Module", "centerFrequencies成功: channels=$channels, result size=${result.size}")
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用centerFrequencies失败", e)
-      e.printStackTrace()
-      promise.reject("NAL2_ERROR", "调用centerFrequencies失败: ${e.message}", e)
+        Log.d("Nal2Module", "centerFrequencies成功: channels=$channels, result size=${result.size}")
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用centerFrequencies失败", e)
+        e.printStackTrace()
+        promise.reject("NAL2_ERROR", "调用centerFrequencies失败: ${e.message}", e)
+      }
     }
   }
 
@@ -416,64 +631,66 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           noOfAids: Int,
           promise: Promise
   ) {
-    try {
-      // CR数组固定为19个元素（third-octave frequencies），是输出参数
-      val crDouble = DoubleArray(19)
+    runOnEngine(promise, "compressionRatio") {
+      try {
+        // CR数组固定为19个元素（third-octave frequencies），是输出参数
+        val crDouble = DoubleArray(19)
 
-      Log.d(
-              "Nal2Module",
-              "CompressionRatio输入: channels=$channels, centreFreq.size=${centreFreq.size()}, ac.size=${ac.size()}, bc.size=${bc.size()}, acOther.size=${acOther.size()}"
-      )
+        Log.d(
+                "Nal2Module",
+                "CompressionRatio输入: channels=$channels, centreFreq.size=${centreFreq.size()}, ac.size=${ac.size()}, bc.size=${bc.size()}, acOther.size=${acOther.size()}"
+        )
 
-      // centreFreq可能是Int数组或Double数组，需要兼容处理
-      val centreFreqInt =
-              IntArray(centreFreq.size()) { i ->
-                val value = centreFreq.getDynamic(i)
-                when {
-                  value.type == com.facebook.react.bridge.ReadableType.Number -> {
-                    // 尝试获取整数，如果是浮点数则转换
-                    try {
-                      value.asInt()
-                    } catch (e: Exception) {
-                      value.asDouble().toInt()
+        // centreFreq可能是Int数组或Double数组，需要兼容处理
+        val centreFreqInt =
+                IntArray(centreFreq.size()) { i ->
+                  val value = centreFreq.getDynamic(i)
+                  when {
+                    value.type == com.facebook.react.bridge.ReadableType.Number -> {
+                      // 尝试获取整数，如果是浮点数则转换
+                      try {
+                        value.asInt()
+                      } catch (e: Exception) {
+                        value.asDouble().toInt()
+                      }
                     }
+                    else -> 0
                   }
-                  else -> 0
                 }
-              }
 
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      Log.d(
-              "Nal2Module",
-              "转换后: centreFreqInt.size=${centreFreqInt.size}, centreFreq=${centreFreqInt.joinToString()}, ac.size=${acDouble.size}, bc.size=${bcDouble.size}, acOther.size=${acOtherDouble.size}"
-      )
+        Log.d(
+                "Nal2Module",
+                "转换后: centreFreqInt.size=${centreFreqInt.size}, centreFreq=${centreFreqInt.joinToString()}, ac.size=${acDouble.size}, bc.size=${bcDouble.size}, acOther.size=${acOtherDouble.size}"
+        )
 
-      val result =
-              nal2Manager.getCompressionRatio(
-                      crDouble,
-                      channels,
-                      centreFreqInt,
-                      acDouble,
-                      bcDouble,
-                      direction,
-                      mic,
-                      limiting,
-                      acOtherDouble,
-                      noOfAids
-              )
+        val result =
+                cachedCompressionRatio(
+                        crDouble,
+                        channels,
+                        centreFreqInt,
+                        acDouble,
+                        bcDouble,
+                        direction,
+                        mic,
+                        limiting,
+                        acOtherDouble,
+                        noOfAids
+                )
 
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
 
-      Log.d("Nal2Module", "CompressionRatio_NL2成功: CR=${result.joinToString()}")
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用compressionRatio失败", e)
-      e.printStackTrace()
-      promise.reject("NAL2_ERROR", "调用compressionRatio失败: ${e.message}", e)
+        Log.d("Nal2Module", "CompressionRatio_NL2成功: CR=${result.joinToString()}")
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用compressionRatio失败", e)
+        e.printStackTrace()
+        promise.reject("NAL2_ERROR", "调用compressionRatio失败: ${e.message}", e)
+      }
     }
   }
 
@@ -487,23 +704,25 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           limiting: Int,
           promise: Promise
   ) {
-    try {
-      val mpoDouble = DoubleArray(mpo.size()) { mpo.getDouble(it) }
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+    runOnEngine(promise, "getMPO") {
+      try {
+        val mpoDouble = DoubleArray(mpo.size()) { mpo.getDouble(it) }
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
 
-      Log.d("Nal2Module", "调用getMPO_NL2: type=$type, channels=$channels, limiting=$limiting")
+        Log.d("Nal2Module", "调用getMPO_NL2: type=$type, channels=$channels, limiting=$limiting")
 
-      val result = nal2Manager.getMPO(mpoDouble, type, acDouble, bcDouble, channels, limiting)
+        val result = cachedMPO(mpoDouble, type, acDouble, bcDouble, channels, limiting)
 
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
 
-      Log.d("Nal2Module", "getMPO_NL2成功: MPO=${result.joinToString()}")
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getMPO失败", e)
-      promise.reject("NAL2_ERROR", "调用getMPO失败: ${e.message}", e)
+        Log.d("Nal2Module", "getMPO_NL2成功: MPO=${result.joinToString()}")
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getMPO失败", e)
+        promise.reject("NAL2_ERROR", "调用getMPO失败: ${e.message}", e)
+      }
     }
   }
 
@@ -520,35 +739,37 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           noOfAids: Int,
           promise: Promise
   ) {
-    try {
-      val data = DoubleArray(19)
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-
-      val result =
-              nal2Manager.getRealEarAidedGain(
-                      data,
-                      acDouble,
-                      bcDouble,
-                      L,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      noOfAids
-              )
-
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用realEarAidedGain失败", e)
-      promise.reject("NAL2_ERROR", "调用realEarAidedGain失败: ${e.message}", e)
-    }
-  }
+    runOnEngine(promise, "realEarAidedGain") {
+      try {
+        val data = DoubleArray(19)
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
 
-  @ReactMethod
-  fun tccCouplerGain(
+        val result =
+                cachedRealEarAidedGain(
+                        data,
+                        acDouble,
+                        bcDouble,
+                        L,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        noOfAids
+                )
+
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用realEarAidedGain失败", e)
+        promise.reject("NAL2_ERROR", "调用realEarAidedGain失败: ${e.message}", e)
+      }
+    }
+  }
+
+  @ReactMethod
+  fun tccCouplerGain(
           ac: ReadableArray,
           bc: ReadableArray,
           L: Double,
@@ -565,47 +786,49 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           RECDmeasType: Int,
           promise: Promise
   ) {
-    try {
-      val gain = DoubleArray(19)
-      val lineType = IntArray(19)
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "tccCouplerGain") {
+      try {
+        val gain = DoubleArray(19)
+        val lineType = IntArray(19)
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getTccCouplerGain(
-                      gain,
-                      acDouble,
-                      bcDouble,
-                      L,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      target,
-                      aidType,
-                      acOtherDouble,
-                      noOfAids,
-                      tubing,
-                      vent,
-                      RECDmeasType,
-                      lineType
-              )
+        val result =
+                nal2Manager.getTccCouplerGain(
+                        gain,
+                        acDouble,
+                        bcDouble,
+                        L,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        target,
+                        aidType,
+                        acOtherDouble,
+                        noOfAids,
+                        tubing,
+                        vent,
+                        RECDmeasType,
+                        lineType
+                )
 
-      // 返回对象包含TccGain和lineType
-      val writableMap = Arguments.createMap()
-      val tccGainArray = Arguments.createArray()
-      result.TccGain.forEach { tccGainArray.pushDouble(it) }
-      val lineTypeArray = Arguments.createArray()
-      result.lineType.forEach { lineTypeArray.pushInt(it) }
+        // 返回对象包含TccGain和lineType
+        val writableMap = Arguments.createMap()
+        val tccGainArray = Arguments.createArray()
+        result.TccGain.forEach { tccGainArray.pushDouble(it) }
+        val lineTypeArray = Arguments.createArray()
+        result.lineType.forEach { lineTypeArray.pushInt(it) }
 
-      writableMap.putArray("TccGain", tccGainArray)
-      writableMap.putArray("lineType", lineTypeArray)
+        writableMap.putArray("TccGain", tccGainArray)
+        writableMap.putArray("lineType", lineTypeArray)
 
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用tccCouplerGain失败", e)
-      promise.reject("NAL2_ERROR", "调用tccCouplerGain失败: ${e.message}", e)
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用tccCouplerGain失败", e)
+        promise.reject("NAL2_ERROR", "调用tccCouplerGain失败: ${e.message}", e)
+      }
     }
   }
 
@@ -627,47 +850,49 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           RECDmeasType: Int,
           promise: Promise
   ) {
-    try {
-      val gain = DoubleArray(19)
-      val lineType = IntArray(19)
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "earSimulatorGain") {
+      try {
+        val gain = DoubleArray(19)
+        val lineType = IntArray(19)
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getEarSimulatorGain(
-                      gain,
-                      acDouble,
-                      bcDouble,
-                      L,
-                      direction,
-                      mic,
-                      limiting,
-                      channels,
-                      target,
-                      aidType,
-                      acOtherDouble,
-                      noOfAids,
-                      tubing,
-                      vent,
-                      RECDmeasType,
-                      lineType
-              )
+        val result =
+                nal2Manager.getEarSimulatorGain(
+                        gain,
+                        acDouble,
+                        bcDouble,
+                        L,
+                        direction,
+                        mic,
+                        limiting,
+                        channels,
+                        target,
+                        aidType,
+                        acOtherDouble,
+                        noOfAids,
+                        tubing,
+                        vent,
+                        RECDmeasType,
+                        lineType
+                )
 
-      // 返回对象包含ESG和lineType
-      val writableMap = Arguments.createMap()
-      val esgArray = Arguments.createArray()
-      result.ESG.forEach { esgArray.pushDouble(it) }
-      val lineTypeArray = Arguments.createArray()
-      result.lineType.forEach { lineTypeArray.pushInt(it) }
+        // 返回对象包含ESG和lineType
+        val writableMap = Arguments.createMap()
+        val esgArray = Arguments.createArray()
+        result.ESG.forEach { esgArray.pushDouble(it) }
+        val lineTypeArray = Arguments.createArray()
+        result.lineType.forEach { lineTypeArray.pushInt(it) }
 
-      writableMap.putArray("ESG", esgArray)
-      writableMap.putArray("lineType", lineTypeArray)
+        writableMap.putArray("ESG", esgArray)
+        writableMap.putArray("lineType", lineTypeArray)
 
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用earSimulatorGain失败", e)
-      promise.reject("NAL2_ERROR", "调用earSimulatorGain失败: ${e.message}", e)
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用earSimulatorGain失败", e)
+        promise.reject("NAL2_ERROR", "调用earSimulatorGain失败: ${e.message}", e)
+      }
     }
   }
 
@@ -689,40 +914,42 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           noOfAids: Int,
           promise: Promise
   ) {
-    try {
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "getRealEarInputOutputCurve") {
+      try {
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getRealEarInputOutputCurve(
-                      acDouble,
-                      bcDouble,
-                      graphFreq,
-                      startLevel,
-                      finishLevel,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      target,
-                      acOtherDouble,
-                      noOfAids
-              )
+        val result =
+                nal2Manager.getRealEarInputOutputCurve(
+                        acDouble,
+                        bcDouble,
+                        graphFreq,
+                        startLevel,
+                        finishLevel,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        target,
+                        acOtherDouble,
+                        noOfAids
+                )
 
-      val writableMap = Arguments.createMap()
-      val reioArray = Arguments.createArray()
-      result.IO.forEach { reioArray.pushDouble(it) }
-      val reiounlArray = Arguments.createArray()
-      result.IOunl.forEach { reiounlArray.pushDouble(it) }
+        val writableMap = Arguments.createMap()
+        val reioArray = Arguments.createArray()
+        result.IO.forEach { reioArray.pushDouble(it) }
+        val reiounlArray = Arguments.createArray()
+        result.IOunl.forEach { reiounlArray.pushDouble(it) }
 
-      writableMap.putArray("REIO", reioArray)
-      writableMap.putArray("REIOunl", reiounlArray)
+        writableMap.putArray("REIO", reioArray)
+        writableMap.putArray("REIOunl", reiounlArray)
 
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getRealEarInputOutputCurve失败", e)
-      promise.reject("NAL2_ERROR", "调用getRealEarInputOutputCurve失败: ${e.message}", e)
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getRealEarInputOutputCurve失败", e)
+        promise.reject("NAL2_ERROR", "调用getRealEarInputOutputCurve失败: ${e.message}", e)
+      }
     }
   }
 
@@ -746,47 +973,49 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           RECDmeasType: Int,
           promise: Promise
   ) {
-    try {
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "getTccInputOutputCurve") {
+      try {
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getTccInputOutputCurve(
-                      acDouble,
-                      bcDouble,
-                      graphFreq,
-                      startLevel,
-                      finishLevel,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      target,
-                      aidType,
-                      acOtherDouble,
-                      noOfAids,
-                      tubing,
-                      vent,
-                      RECDmeasType
-              )
+        val result =
+                nal2Manager.getTccInputOutputCurve(
+                        acDouble,
+                        bcDouble,
+                        graphFreq,
+                        startLevel,
+                        finishLevel,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        target,
+                        aidType,
+                        acOtherDouble,
+                        noOfAids,
+                        tubing,
+                        vent,
+                        RECDmeasType
+                )
 
-      val writableMap = Arguments.createMap()
-      val tccIOArray = Arguments.createArray()
-      result.TccIO.forEach { tccIOArray.pushDouble(it) }
-      val tccIOunlArray = Arguments.createArray()
-      result.TccIOunl.forEach { tccIOunlArray.pushDouble(it) }
-      val lineTypeArray = Arguments.createArray()
-      result.lineType.forEach { lineTypeArray.pushInt(it) }
-
-      writableMap.putArray("TccIO", tccIOArray)
-      writableMap.putArray("TccIOunl", tccIOunlArray)
-      writableMap.putArray("lineType", lineTypeArray)
-
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getTccInputOutputCurve失败", e)
-      promise.reject("NAL2_ERROR", "调用getTccInputOutputCurve失败: ${e.message}", e)
+        val writableMap = Arguments.createMap()
+        val tccIOArray = Arguments.createArray()
+        result.TccIO.forEach { tccIOArray.pushDouble(it) }
+        val tccIOunlArray = Arguments.createArray()
+        result.TccIOunl.forEach { tccIOunlArray.pushDouble(it) }
+        val lineTypeArray = Arguments.createArray()
+        result.lineType.forEach { lineTypeArray.pushInt(it) }
+
+        writableMap.putArray("TccIO", tccIOArray)
+        writableMap.putArray("TccIOunl", tccIOunlArray)
+        writableMap.putArray("lineType", lineTypeArray)
+
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getTccInputOutputCurve失败", e)
+        promise.reject("NAL2_ERROR", "调用getTccInputOutputCurve失败: ${e.message}", e)
+      }
     }
   }
 
@@ -810,47 +1039,49 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           RECDmeasType: Int,
           promise: Promise
   ) {
-    try {
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "getEarSimulatorInputOutputCurve") {
+      try {
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getEarSimulatorInputOutputCurve(
-                      acDouble,
-                      bcDouble,
-                      graphFreq,
-                      startLevel,
-                      finishLevel,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      target,
-                      aidType,
-                      acOtherDouble,
-                      noOfAids,
-                      tubing,
-                      vent,
-                      RECDmeasType
-              )
+        val result =
+                nal2Manager.getEarSimulatorInputOutputCurve(
+                        acDouble,
+                        bcDouble,
+                        graphFreq,
+                        startLevel,
+                        finishLevel,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        target,
+                        aidType,
+                        acOtherDouble,
+                        noOfAids,
+                        tubing,
+                        vent,
+                        RECDmeasType
+                )
 
-      val writableMap = Arguments.createMap()
-      val esIOArray = Arguments.createArray()
-      result.ESIO.forEach { esIOArray.pushDouble(it) }
-      val esIOunlArray = Arguments.createArray()
-      result.ESIOunl.forEach { esIOunlArray.pushDouble(it) }
-      val lineTypeArray = Arguments.createArray()
-      result.lineType.forEach { lineTypeArray.pushInt(it) }
-
-      writableMap.putArray("ESIO", esIOArray)
-      writableMap.putArray("ESIOunl", esIOunlArray)
-      writableMap.putArray("lineType", lineTypeArray)
-
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getEarSimulatorInputOutputCurve失败", e)
-      promise.reject("NAL2_ERROR", "调用getEarSimulatorInputOutputCurve失败: ${e.message}", e)
+        val writableMap = Arguments.createMap()
+        val esIOArray = Arguments.createArray()
+        result.ESIO.forEach { esIOArray.pushDouble(it) }
+        val esIOunlArray = Arguments.createArray()
+        result.ESIOunl.forEach { esIOunlArray.pushDouble(it) }
+        val lineTypeArray = Arguments.createArray()
+        result.lineType.forEach { lineTypeArray.pushInt(it) }
+
+        writableMap.putArray("ESIO", esIOArray)
+        writableMap.putArray("ESIOunl", esIOunlArray)
+        writableMap.putArray("lineType", lineTypeArray)
+
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getEarSimulatorInputOutputCurve失败", e)
+        promise.reject("NAL2_ERROR", "调用getEarSimulatorInputOutputCurve失败: ${e.message}", e)
+      }
     }
   }
 
@@ -867,43 +1098,45 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           noOfAids: Int,
           promise: Promise
   ) {
-    try {
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "getSpeechOGram") {
+      try {
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getSpeechOGram(
-                      acDouble,
-                      bcDouble,
-                      L,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      acOtherDouble,
-                      noOfAids
-              )
+        val result =
+                nal2Manager.getSpeechOGram(
+                        acDouble,
+                        bcDouble,
+                        L,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        acOtherDouble,
+                        noOfAids
+                )
 
-      val writableMap = Arguments.createMap()
-      val rmsArray = Arguments.createArray()
-      result.Speech_rms.forEach { rmsArray.pushDouble(it) }
-      val maxArray = Arguments.createArray()
-      result.Speech_max.forEach { maxArray.pushDouble(it) }
-      val minArray = Arguments.createArray()
-      result.Speech_min.forEach { minArray.pushDouble(it) }
-      val threshArray = Arguments.createArray()
-      result.Speech_thresh.forEach { threshArray.pushDouble(it) }
-
-      writableMap.putArray("Speech_rms", rmsArray)
-      writableMap.putArray("Speech_max", maxArray)
-      writableMap.putArray("Speech_min", minArray)
-      writableMap.putArray("Speech_thresh", threshArray)
-
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getSpeechOGram失败", e)
-      promise.reject("NAL2_ERROR", "调用getSpeechOGram失败: ${e.message}", e)
+        val writableMap = Arguments.createMap()
+        val rmsArray = Arguments.createArray()
+        result.Speech_rms.forEach { rmsArray.pushDouble(it) }
+        val maxArray = Arguments.createArray()
+        result.Speech_max.forEach { maxArray.pushDouble(it) }
+        val minArray = Arguments.createArray()
+        result.Speech_min.forEach { minArray.pushDouble(it) }
+        val threshArray = Arguments.createArray()
+        result.Speech_thresh.forEach { threshArray.pushDouble(it) }
+
+        writableMap.putArray("Speech_rms", rmsArray)
+        writableMap.putArray("Speech_max", maxArray)
+        writableMap.putArray("Speech_min", minArray)
+        writableMap.putArray("Speech_thresh", threshArray)
+
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getSpeechOGram失败", e)
+        promise.reject("NAL2_ERROR", "调用getSpeechOGram失败: ${e.message}", e)
+      }
     }
   }
 
@@ -921,108 +1154,122 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           mic: Int,
           promise: Promise
   ) {
-    try {
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val ctDouble = DoubleArray(ct.size()) { ct.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "getAidedThreshold") {
+      try {
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val ctDouble = DoubleArray(ct.size()) { ct.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getAidedThreshold(
-                      acDouble,
-                      bcDouble,
-                      ctDouble,
-                      dbOption,
-                      acOtherDouble,
-                      noOfAids,
-                      limiting,
-                      channels,
-                      direction,
-                      mic
-              )
+        val result =
+                nal2Manager.getAidedThreshold(
+                        acDouble,
+                        bcDouble,
+                        ctDouble,
+                        dbOption,
+                        acOtherDouble,
+                        noOfAids,
+                        limiting,
+                        channels,
+                        direction,
+                        mic
+                )
 
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getAidedThreshold失败", e)
-      promise.reject("NAL2_ERROR", "调用getAidedThreshold失败: ${e.message}", e)
+        val resultArray = Arguments.createArray()
+        result.forEach { resultArray.pushDouble(it) }
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getAidedThreshold失败", e)
+        promise.reject("NAL2_ERROR", "调用getAidedThreshold失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getREDDindiv(defValues: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getREDDindiv(defValues)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getREDDindiv失败", e)
-      promise.reject("NAL2_ERROR", "调用getREDDindiv失败: ${e.message}", e)
+    runOnEngine(promise, "getREDDindiv") {
+      try {
+        val result = lookupTables.getREDDindiv(defValues)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getREDDindiv失败", e)
+        promise.reject("NAL2_ERROR", "调用getREDDindiv失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getREDDindiv9(defValues: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getREDDindiv9(defValues)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getREDDindiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用getREDDindiv9失败: ${e.message}", e)
+    runOnEngine(promise, "getREDDindiv9") {
+      try {
+        val result = lookupTables.getREDDindiv9(defValues)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getREDDindiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用getREDDindiv9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getREURindiv(defValues: Int, dateOfBirth: Int, direction: Int, mic: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getREURindiv(defValues, dateOfBirth, direction, mic)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getREURindiv失败", e)
-      promise.reject("NAL2_ERROR", "调用getREURindiv失败: ${e.message}", e)
+    runOnEngine(promise, "getREURindiv") {
+      try {
+        val result = lookupTables.getREURindiv(defValues, dateOfBirth, direction, mic)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getREURindiv失败", e)
+        promise.reject("NAL2_ERROR", "调用getREURindiv失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getREURindiv9(defValues: Int, dateOfBirth: Int, direction: Int, mic: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getREURindiv9(defValues, dateOfBirth, direction, mic)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getREURindiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用getREURindiv9失败: ${e.message}", e)
+    runOnEngine(promise, "getREURindiv9") {
+      try {
+        val result = lookupTables.getREURindiv9(defValues, dateOfBirth, direction, mic)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getREURindiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用getREURindiv9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setREDDindiv(redd: ReadableArray, defValues: Int, promise: Promise) {
-    try {
-      val reddDouble = DoubleArray(redd.size()) { redd.getDouble(it) }
-      nal2Manager.setREDDindiv(reddDouble, defValues)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setREDDindiv失败", e)
-      promise.reject("NAL2_ERROR", "调用setREDDindiv失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setREDDindiv") {
+      try {
+        val reddDouble = DoubleArray(redd.size()) { redd.getDouble(it) }
+        stateApplier.setREDDindiv(reddDouble, defValues)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setREDDindiv失败", e)
+        promise.reject("NAL2_ERROR", "调用setREDDindiv失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun setREDDindiv9(redd: ReadableArray, defValues: Int, promise: Promise) {
-    try {
-      val reddDouble = DoubleArray(redd.size()) { redd.getDouble(it) }
-      nal2Manager.setREDDindiv9(reddDouble, defValues)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setREDDindiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用setREDDindiv9失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setREDDindiv9") {
+      try {
+        val reddDouble = DoubleArray(redd.size()) { redd.getDouble(it) }
+        stateApplier.setREDDindiv(reddDouble, defValues)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setREDDindiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用setREDDindiv9失败: ${e.message}", e)
+      }
     }
   }
 
@@ -1035,13 +1282,15 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           mic: Int,
           promise: Promise
   ) {
-    try {
-      val reurDouble = DoubleArray(reur.size()) { reur.getDouble(it) }
-      nal2Manager.setREURindiv(reurDouble, defValues, dateOfBirth, direction, mic)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setREURindiv失败", e)
-      promise.reject("NAL2_ERROR", "调用setREURindiv失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setREURindiv") {
+      try {
+        val reurDouble = DoubleArray(reur.size()) { reur.getDouble(it) }
+        stateApplier.setREURindiv(reurDouble, defValues, dateOfBirth, direction, mic)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setREURindiv失败", e)
+        promise.reject("NAL2_ERROR", "调用setREURindiv失败: ${e.message}", e)
+      }
     }
   }
 
@@ -1054,13 +1303,15 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           mic: Int,
           promise: Promise
   ) {
-    try {
-      val reurDouble = DoubleArray(reur.size()) { reur.getDouble(it) }
-      nal2Manager.setREURindiv9(reurDouble, defValues, dateOfBirth, direction, mic)
-      promise.resolve(true)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用setREURindiv9失败", e)
-      promise.reject("NAL2_ERROR", "调用setREURindiv9失败: ${e.message}", e)
+    runStatefulOnEngine(promise, "setREURindiv9") {
+      try {
+        val reurDouble = DoubleArray(reur.size()) { reur.getDouble(it) }
+        stateApplier.setREURindiv(reurDouble, defValues, dateOfBirth, direction, mic)
+        promise.resolve(true)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用setREURindiv9失败", e)
+        promise.reject("NAL2_ERROR", "调用setREURindiv9失败: ${e.message}", e)
+      }
     }
   }
 
@@ -1086,84 +1337,91 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           levels: ReadableArray,
           promise: Promise
   ) {
+    runStatefulOnEngine(promise, "processData") {
+      // 将 ReadableArray 转换为 IntArray 和 DoubleArray
+      val acArray = IntArray(ac.size()) { ac.getInt(it) }
+      Log.d("Nal2Module", "ac: ${acArray.joinToString()}")
 
-    // 将 ReadableArray 转换为 IntArray 和 DoubleArray
-    val acArray = IntArray(ac.size()) { ac.getInt(it) }
-    Log.d("Nal2Module", "ac: ${acArray.joinToString()}")
-
-    val writableMap = Arguments.createMap()
+      val writableMap = Arguments.createMap()
 
-    val limiting = 1
+      val limiting = 1
 
-    val cfArr = DoubleArray(19)
-    val freqInCh = IntArray(19)
-    val ct = DoubleArray(19)
-    val mpo = DoubleArray(19)
+      val cfArr = DoubleArray(19)
+      val freqInCh = IntArray(19)
+      val mpo = DoubleArray(19)
 
-    // 转换数组
-    val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-    val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-    val levelsInt = IntArray(levels.size()) { levels.getInt(it) }
-    val calcChArray = IntArray(calcCh.size()) { calcCh.getInt(it) }
+      // 转换数组
+      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+      val levelsInt = IntArray(levels.size()) { levels.getInt(it) }
+      val calcChArray = IntArray(calcCh.size()) { calcCh.getInt(it) }
 
-    try {
-      // 使用Nal2Manager单例处理所有NAL2相关操作
-      nal2Manager.setAdultChild(adultChild, dateOfBirth)
-      nal2Manager.setExperience(experience)
-      nal2Manager.setCompSpeed(compSpeed)
-      nal2Manager.setTonalLanguage(tonal)
-      nal2Manager.setGender(gender)
-
-      // 获取交叉频率
-      val outputData =
-              nal2Manager.getCrossOverFrequencies(cfArr, channels, acDouble, bcDouble, freqInCh)
-      nal2Manager.setBWC(channels, outputData)
-      nal2Manager.setCompressionThreshold(
-              ct,
-              bandWidth,
-              selection,
-              WBCT,
-              haType,
-              direction,
-              mic,
-              calcChArray
-      )
+      try {
+        // 人口学参数：只推送与上一次不同的部分
+        val profile =
+                FittingProfile.Builder()
+                        .demographics(adultChild, dateOfBirth, experience, compSpeed, tonal, gender)
+                        .audiogram(acDouble, bcDouble, null)
+                        .channels(channels)
+                        .build()
+        stateApplier.apply(profile)
+
+        // 获取交叉频率
+        val outputData =
+                nal2Manager.getCrossOverFrequencies(cfArr, channels, acDouble, bcDouble, freqInCh)
+
+        // BWC和CT同样按变化推送
+        stateApplier.apply(
+                profile.toBuilder()
+                        .bwc(channels, outputData)
+                        .compressionThreshold(
+                                bandWidth,
+                                selection,
+                                WBCT,
+                                haType,
+                                direction,
+                                mic,
+                                calcChArray
+                        )
+                        .build()
+        )
 
-      val cfArray = Arguments.createArray()
-      outputData.forEach { cfArray.pushDouble(it) }
-      writableMap.putArray("cfArray", cfArray)
-
-      // 获取MPO (type=1 for SSPL)
-      val mpoData = nal2Manager.getMPO(mpo, 1, acDouble, bcDouble, channels, limiting)
-      val mpoArray = Arguments.createArray()
-      mpoData.forEach { mpoArray.pushDouble(it) }
-      writableMap.putArray("mpo", mpoArray)
-
-      // 获取各级别增益
-      for (level in levelsInt) {
-        val data = DoubleArray(19)
-        val gainData =
-                nal2Manager.getRealEarAidedGain(
-                        data,
-                        acDouble,
-                        bcDouble,
-                        level.toDouble(),
-                        limiting,
-                        channels,
-                        direction,
-                        mic,
-                        noOfAids
-                )
-
-        val array = Arguments.createArray()
-        gainData.forEach { array.pushDouble(it) }
-        writableMap.putArray(level.toString(), array)
+        val cfArray = Arguments.createArray()
+        outputData.forEach { cfArray.pushDouble(it) }
+        writableMap.putArray("cfArray", cfArray)
+
+        // 获取MPO (type=1 for SSPL)
+        val mpoData = cachedMPO(mpo, 1, acDouble, bcDouble, channels, limiting)
+        val mpoArray = Arguments.createArray()
+        mpoData.forEach { mpoArray.pushDouble(it) }
+        writableMap.putArray("mpo", mpoArray)
+
+        // 获取各级别增益
+        for (level in levelsInt) {
+          val data = DoubleArray(19)
+          val gainData =
+                  cachedRealEarAidedGain(
+                          data,
+                          acDouble,
+                          bcDouble,
+                          level.toDouble(),
+                          limiting,
+                          channels,
+                          direction,
+                          mic,
+                          noOfAids
+                  )
+
+          val array = Arguments.createArray()
+          gainData.forEach { array.pushDouble(it) }
+          writableMap.putArray(level.toString(), array)
+        }
+
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "处理NAL2数据时出错", e)
+        promise.reject("NAL2_ERROR", "处理NAL2数据时出错: ${e.message}", e)
       }
-
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "处理NAL2数据时出错", e)
-      promise.reject("NAL2_ERROR", "处理NAL2数据时出错: ${e.message}", e)
     }
   }
 
@@ -1190,139 +1448,155 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           RECDmeasType: Int,
           promise: Promise
   ) {
-    try {
-      val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
-      val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
-      val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
+    runOnEngine(promise, "getGainAt") {
+      try {
+        val acDouble = DoubleArray(ac.size()) { ac.getDouble(it) }
+        val bcDouble = DoubleArray(bc.size()) { bc.getDouble(it) }
+        val acOtherDouble = DoubleArray(acOther.size()) { acOther.getDouble(it) }
 
-      val result =
-              nal2Manager.getGainAt(
-                      freqRequired,
-                      targetType,
-                      acDouble,
-                      bcDouble,
-                      L,
-                      limiting,
-                      channels,
-                      direction,
-                      mic,
-                      acOtherDouble,
-                      noOfAids,
-                      bandWidth,
-                      target,
-                      aidType,
-                      tubing,
-                      vent,
-                      RECDmeasType
-              )
+        val result =
+                nal2Manager.getGainAt(
+                        freqRequired,
+                        targetType,
+                        acDouble,
+                        bcDouble,
+                        L,
+                        limiting,
+                        channels,
+                        direction,
+                        mic,
+                        acOtherDouble,
+                        noOfAids,
+                        bandWidth,
+                        target,
+                        aidType,
+                        tubing,
+                        vent,
+                        RECDmeasType
+                )
 
-      promise.resolve(result)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getGainAt失败", e)
-      promise.reject("NAL2_ERROR", "调用getGainAt失败: ${e.message}", e)
+        promise.resolve(result)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getGainAt失败", e)
+        promise.reject("NAL2_ERROR", "调用getGainAt失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getMLE(aidType: Int, direction: Int, mic: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getMLE(aidType, direction, mic)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getMLE失败", e)
-      promise.reject("NAL2_ERROR", "调用getMLE失败: ${e.message}", e)
+    runOnEngine(promise, "getMLE") {
+      try {
+        val result = lookupTables.getMLE(aidType, direction, mic)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getMLE失败", e)
+        promise.reject("NAL2_ERROR", "调用getMLE失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getReturnValues(promise: Promise) {
-    try {
-      val result = nal2Manager.getReturnValues()
-      val writableMap = Arguments.createMap()
+    runOnEngine(promise, "getReturnValues") {
+      try {
+        val result = nal2Manager.getReturnValues()
+        val writableMap = Arguments.createMap()
 
-      val mafArray = Arguments.createArray()
-      result.MAF.forEach { mafArray.pushDouble(it) }
-      val bwcArray = Arguments.createArray()
-      result.BWC.forEach { bwcArray.pushDouble(it) }
-      val escdArray = Arguments.createArray()
-      result.ESCD.forEach { escdArray.pushDouble(it) }
+        val mafArray = Arguments.createArray()
+        result.MAF.forEach { mafArray.pushDouble(it) }
+        val bwcArray = Arguments.createArray()
+        result.BWC.forEach { bwcArray.pushDouble(it) }
+        val escdArray = Arguments.createArray()
+        result.ESCD.forEach { escdArray.pushDouble(it) }
 
-      writableMap.putArray("MAF", mafArray)
-      writableMap.putArray("BWC", bwcArray)
-      writableMap.putArray("ESCD", escdArray)
+        writableMap.putArray("MAF", mafArray)
+        writableMap.putArray("BWC", bwcArray)
+        writableMap.putArray("ESCD", escdArray)
 
-      promise.resolve(writableMap)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getReturnValues失败", e)
-      promise.reject("NAL2_ERROR", "调用getReturnValues失败: ${e.message}", e)
+        promise.resolve(writableMap)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getReturnValues失败", e)
+        promise.reject("NAL2_ERROR", "调用getReturnValues失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getTubing(tubing: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getTubing(tubing)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getTubing失败", e)
-      promise.reject("NAL2_ERROR", "调用getTubing失败: ${e.message}", e)
+    runOnEngine(promise, "getTubing") {
+      try {
+        val result = lookupTables.getTubing(tubing)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getTubing失败", e)
+        promise.reject("NAL2_ERROR", "调用getTubing失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getTubing9(tubing: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getTubing9(tubing)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getTubing9失败", e)
-      promise.reject("NAL2_ERROR", "调用getTubing9失败: ${e.message}", e)
+    runOnEngine(promise, "getTubing9") {
+      try {
+        val result = lookupTables.getTubing9(tubing)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getTubing9失败", e)
+        promise.reject("NAL2_ERROR", "调用getTubing9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getVentOut(vent: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getVentOut(vent)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getVentOut失败", e)
-      promise.reject("NAL2_ERROR", "调用getVentOut失败: ${e.message}", e)
+    runOnEngine(promise, "getVentOut") {
+      try {
+        val result = lookupTables.getVentOut(vent)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getVentOut失败", e)
+        promise.reject("NAL2_ERROR", "调用getVentOut失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getVentOut9(vent: Int, promise: Promise) {
-    try {
-      val result = nal2Manager.getVentOut9(vent)
-      val resultArray = Arguments.createArray()
-      result.forEach { resultArray.pushDouble(it) }
-      promise.resolve(resultArray)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getVentOut9失败", e)
-      promise.reject("NAL2_ERROR", "调用getVentOut9失败: ${e.message}", e)
+    runOnEngine(promise, "getVentOut9") {
+      try {
+        val result = lookupTables.getVentOut9(vent)
+        val resultArray = Arguments.createArray()
+        for (i in 0 until result.length()) resultArray.pushDouble(result.get(i))
+        promise.resolve(resultArray)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getVentOut9失败", e)
+        promise.reject("NAL2_ERROR", "调用getVentOut9失败: ${e.message}", e)
+      }
     }
   }
 
   @ReactMethod
   fun getSI(s: Int, REAG: ReadableArray, Limit: ReadableArray, promise: Promise) {
-    try {
-      val reagDouble = DoubleArray(REAG.size()) { REAG.getDouble(it) }
-      val limitDouble = DoubleArray(Limit.size()) { Limit.getDouble(it) }
+    runOnEngine(promise, "getSI") {
+      try {
+        val reagDouble = DoubleArray(REAG.size()) { REAG.getDouble(it) }
+        val limitDouble = DoubleArray(Limit.size()) { Limit.getDouble(it) }
 
-      val result = nal2Manager.getSI(s, reagDouble, limitDouble)
-      promise.resolve(result)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getSI失败", e)
-      promise.reject("NAL2_ERROR", "调用getSI失败: ${e.message}", e)
+        val result = nal2Manager.getSI(s, reagDouble, limitDouble)
+        promise.resolve(result)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getSI失败", e)
+        promise.reject("NAL2_ERROR", "调用getSI失败: ${e.message}", e)
+      }
     }
   }
 
@@ -1337,648 +1611,1456 @@ class Nal2Module(reactContext: ReactApplicationContext) : ReactContextBaseJavaMo
           REUR: ReadableArray,
           promise: Promise
   ) {
-    try {
-      val speechThreshDouble = DoubleArray(Speech_thresh.size()) { Speech_thresh.getDouble(it) }
-      val reagDouble = DoubleArray(REAG.size()) { REAG.getDouble(it) }
-      val reagpDouble = DoubleArray(REAGp.size()) { REAGp.getDouble(it) }
-      val reagmDouble = DoubleArray(REAGm.size()) { REAGm.getDouble(it) }
-      val reurDouble = DoubleArray(REUR.size()) { REUR.getDouble(it) }
+    runOnEngine(promise, "getSII") {
+      try {
+        val speechThreshDouble = DoubleArray(Speech_thresh.size()) { Speech_thresh.getDouble(it) }
+        val reagDouble = DoubleArray(REAG.size()) { REAG.getDouble(it) }
+        val reagpDouble = DoubleArray(REAGp.size()) { REAGp.getDouble(it) }
+        val reagmDouble = DoubleArray(REAGm.size()) { REAGm.getDouble(it) }
+        val reurDouble = DoubleArray(REUR.size()) { REUR.getDouble(it) }
 
-      val result =
-              nal2Manager.getSII(
-                      nCompSpeed,
-                      speechThreshDouble,
-                      s,
-                      reagDouble,
-                      reagpDouble,
-                      reagmDouble,
-                      reurDouble
-              )
-      promise.resolve(result)
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "调用getSII失败", e)
-      promise.reject("NAL2_ERROR", "调用getSII失败: ${e.message}", e)
+        val result =
+                nal2Manager.getSII(
+                        nCompSpeed,
+                        speechThreshDouble,
+                        s,
+                        reagDouble,
+                        reagpDouble,
+                        reagmDouble,
+                        reurDouble
+                )
+        promise.resolve(result)
+      } catch (e: Exception) {
+        Log.e("Nal2Module", "调用getSII失败", e)
+        promise.reject("NAL2_ERROR", "调用getSII失败: ${e.message}", e)
+      }
     }
   }
 
-  /** 同步处理HTTP请求的NAL2函数调用 接收JSON字符串，解析后调用相应的NAL2函数，返回JSON结果 */
+  /** 处理HTTP请求的NAL2函数调用 接收JSON字符串，在NAL2引擎线程上解析并调用相应的NAL2函数，返回JSON结果 */
   @ReactMethod
   fun processRequestSync(requestJson: String, promise: Promise) {
+    Log.d("Nal2Module", "processRequestSync: 收到请求，长度=${requestJson.length}")
+    // Promise只在这里适配，HTTP/WebSocket服务器直接调用process()
+    process(requestJson.toByteArray(StandardCharsets.UTF_8), false, false).whenComplete { response, error ->
+      if (error != null) {
+        if (error is RejectedExecutionException) {
+          promise.reject("NAL2_BUSY", "NAL2引擎繁忙，请稍后重试: processRequestSync", error)
+        } else {
+          promise.reject("PROCESS_ERROR", error.message, error)
+        }
+      } else {
+        try {
+          promise.resolve(response.toUtf8String())
+        } finally {
+          response.release()
+        }
+      }
+    }
+  }
+
+  /** 并发的相同只读请求合并为一次执行（见Nal2RequestCoalescer），再由Nal2RequestScheduler排队执行 */
+  override fun process(
+          body: ByteArray,
+          binaryRequest: Boolean,
+          binaryResponse: Boolean
+  ): CompletableFuture<Nal2ResponseBuffer> {
+    Log.d("Nal2Module", "process: 收到请求，长度=${body.size}, 二进制=$binaryRequest/$binaryResponse")
+    // 只在这里解码一次，合并、调度和引擎线程上的处理都使用同一个解码结果
+    val request = synchronized(requestDecoder) { requestDecoder.take(body, binaryRequest) }
+    return coalescer.process(request, binaryResponse)
+  }
+
+  /** 在引擎线程上处理已解码的请求，返回完整的响应 */
+  private fun processRequestBody(
+          request: Nal2RequestDecoder.Result,
+          binaryResponse: Boolean
+  ): Nal2ResponseBuffer {
+    val output = if (binaryResponse) binaryWriter else jsonWriter
+    output.begin()
     try {
-      Log.d("Nal2Module", "processRequestSync: 收到请求，长度=${requestJson.length}")
+      request.error?.let { throw it }
+      if (request.isBatch) {
+        // 批量请求：在同一个引擎任务中按顺序执行，返回响应数组（二进制协议为依次相接的响应帧）
+        val requests = request.batch
+        val stepOutputs = StepOutputs(output)
+        output.beginBatch()
+        for (i in requests.indices) {
+          processBatchItem(requests[i], i, stepOutputs, output)
+        }
+        output.endBatch()
+        Log.d("Nal2Module", "processRequestSync: 批量处理完成，共${requests.size}个请求")
+      } else {
+        processRequest(request.request, null, output)
+        Log.d("Nal2Module", "processRequestSync: 处理完成")
+      }
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "processRequestSync失败", e)
 
-      val request = JSONObject(requestJson)
-      val sequenceNum = request.optInt("sequence_num", 0)
-      val functionName = request.getString("function")
-      val inputParams = request.getJSONObject("input_parameters")
+      // 丢弃已写入的部分，返回错误响应
+      output.truncate(0)
+      writeErrorResponse(0, "unknown", e, output)
+    }
+    return output.finish()
+  }
 
-      Log.d("Nal2Module", "processRequestSync: 函数=$functionName, 序号=$sequenceNum")
+  /**
+   * 处理单个请求对象，把响应直接写入output
+   *
+   * @param stepId 批量请求中该项的步骤ID，非null时写入响应的id字段
+   * @return 该响应在output中的起止位置
+   */
+  private fun processRequest(
+          request: Nal2RequestDecoder.Request,
+          stepId: String?,
+          output: Nal2ResponseWriter
+  ): IntArray {
+    val sequenceNum = request.sequenceNum
+    val functionName = request.function ?: throw IllegalArgumentException("请求缺少function")
+    if (!request.hasParams()) {
+      throw IllegalArgumentException("请求缺少input_parameters对象")
+    }
+    val inputParams = request.params
+    val sessionId = request.sessionId
 
-      // 构建响应
-      val response = JSONObject()
-      response.put("sequence_num", sequenceNum)
-      response.put("function", functionName)
-      response.put("return", 0)
+    Log.d("Nal2Module", "processRequestSync: 函数=$functionName, 序号=$sequenceNum, 会话=$sessionId")
 
-      // 处理函数并获取输出参数
-      val outputParams = processFunction(functionName, inputParams)
-      response.put("output_parameters", outputParams)
+    // 先按函数的参数声明校验，参数有误时不恢复会话状态、不调用JNI
+    val function = functions.find(request.functionId, functionName)
+    functions.validate(function, inputParams)
 
-      Log.d("Nal2Module", "processRequestSync: 处理完成")
-      promise.resolve(response.toString())
-    } catch (e: Exception) {
-      Log.e("Nal2Module", "processRequestSync失败", e)
+    // 恢复会话状态后处理函数并写入输出参数
+    val start = output.position()
+    output.beginResponse(sequenceNum, functionName, sessionId, 0)
+    sessionManager.enter(sessionId)
+    try {
+      functions.invoke(function, inputParams, sessionId, output)
+    } finally {
+      sessionManager.leave(sessionId)
+    }
+    output.endResponse(stepId)
+    return intArrayOf(start, output.position())
+  }
 
-      // 返回错误响应
-      try {
-        val errorResponse = JSONObject()
-        errorResponse.put("sequence_num", 0)
-        errorResponse.put("function", "unknown")
-        errorResponse.put("return", -1)
-
-        val errorParams = JSONObject()
-        errorParams.put("error", e.message ?: "Unknown error")
-        errorResponse.put("output_parameters", errorParams)
-
-        promise.resolve(errorResponse.toString())
-      } catch (e2: Exception) {
-        promise.reject("PROCESS_ERROR", e.message, e)
+  /**
+   * 处理批量请求中的一项，失败时写入该项的错误响应，不影响后续项
+   * 输入参数中的{"$ref": "stepN.field"}在执行前替换为前面步骤的输出，
+   * 步骤ID为该项的"id"字段，默认为step<序号>（从1开始）
+   */
+  private fun processBatchItem(
+          request: Nal2RequestDecoder.Request,
+          index: Int,
+          stepOutputs: StepOutputs,
+          output: Nal2ResponseWriter
+  ) {
+    val stepId = request.id?.ifEmpty { null } ?: "step${index + 1}"
+    val mark = output.position()
+    try {
+      if (!request.isObject) {
+        throw IllegalArgumentException("批量请求的每一项必须是JSON对象")
       }
+      resolveRefs(request.params, stepOutputs)
+      val range = processRequest(request, if (request.id != null) stepId else null, output)
+      stepOutputs.put(stepId, range[0], range[1])
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "批量请求中的一项处理失败", e)
+      output.truncate(mark)
+      writeErrorResponse(request.sequenceNum, request.function ?: "unknown", e, output)
     }
   }
 
-  /** 根据函数名处理请求并返回输出参数 */
-  private fun processFunction(functionName: String, params: JSONObject): JSONObject {
-    val output = JSONObject()
+  /** 批量请求中已完成步骤的响应在输出中的位置，被引用时才解析出output_parameters */
+  private class StepOutputs(private val writer: Nal2ResponseWriter) {
+    private val ranges = HashMap<String, IntArray>()
+    private val parsed = HashMap<String, JSONObject>()
 
-    when (functionName) {
-      "dllVersion" -> {
-        val version = nal2Manager.getDllVersion()
-        output.put("major", version[0])
-        output.put("minor", version[1])
-      }
-      "CrossOverFrequencies_NL2" -> {
-        val channels = params.getInt("channels")
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
+    fun put(stepId: String, start: Int, end: Int) {
+      ranges[stepId] = intArrayOf(start, end)
+      parsed.remove(stepId)
+    }
 
-        val cfArr = DoubleArray(19)
-        val freqInCh = IntArray(19)
-        val result = nal2Manager.getCrossOverFrequencies(cfArr, channels, ac, bc, freqInCh)
-        output.put("crossOverFreq", doubleArrayToJSONArray(result))
-      }
-      "CenterFrequencies" -> {
-        val channels = params.getInt("channels")
-        val cfArrayDouble = DoubleArray(19)
-        val result = nal2Manager.getCenterFrequencies(channels, cfArrayDouble)
-        output.put("centreFreq", intArrayToJSONArray(result))
-      }
-      "CompressionThreshold_NL2" -> {
-        val ct = DoubleArray(19)
-        nal2Manager.setCompressionThreshold(
-                ct,
-                0,
-                1,
-                params.getInt("WBCT"),
-                params.getInt("aidType"),
-                params.getInt("direction"),
-                params.getInt("mic"),
-                intArrayOf(1)
-        )
-        output.put("CT", doubleArrayToJSONArray(ct))
-      }
-      "setBWC" -> {
-        val channels = params.getInt("channels")
-        val crossOver = jsonArrayToDoubleArray(params.getJSONArray("crossOver"))
-        nal2Manager.setBWC(channels, crossOver)
-        output.put("success", true)
-      }
-      "SetAdultChild" -> {
-        nal2Manager.setAdultChild(params.getInt("adultChild"), params.getInt("dateOfBirth"))
-        output.put("success", true)
-      }
-      "SetExperience" -> {
-        nal2Manager.setExperience(params.getInt("experience"))
-        output.put("success", true)
-      }
-      "SetCompSpeed" -> {
-        nal2Manager.setCompSpeed(params.getInt("compSpeed"))
-        output.put("success", true)
-      }
-      "SetTonalLanguage" -> {
-        nal2Manager.setTonalLanguage(params.getInt("tonal"))
-        output.put("success", true)
-      }
-      "SetGender" -> {
-        nal2Manager.setGender(params.getInt("gender"))
-        output.put("success", true)
-      }
-      "GetRECDh_indiv_NL2" -> {
-        val result =
-                nal2Manager.getRECDhIndiv(
-                        params.getInt("RECDmeasType"),
-                        params.getInt("dateOfBirth"),
-                        params.getInt("aidType"),
-                        params.getInt("tubing"),
-                        params.getInt("coupler"),
-                        params.getInt("fittingDepth")
-                )
-        output.put("RECDh", doubleArrayToJSONArray(result))
-      }
-      "GetRECDh_indiv9_NL2" -> {
-        val result =
-                nal2Manager.getRECDhIndiv9(
-                        params.getInt("RECDmeasType"),
-                        params.getInt("dateOfBirth"),
-                        params.getInt("aidType"),
-                        params.getInt("tubing"),
-                        params.getInt("coupler"),
-                        params.getInt("fittingDepth")
-                )
-        output.put("RECDh", doubleArrayToJSONArray(result))
-      }
-      "GetRECDt_indiv_NL2" -> {
-        val result =
-                nal2Manager.getRECDtIndiv(
-                        params.getInt("RECDmeasType"),
-                        params.getInt("dateOfBirth"),
-                        params.getInt("aidType"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("earpiece"),
-                        params.getInt("coupler"),
-                        params.getInt("fittingDepth")
-                )
-        output.put("RECDt", doubleArrayToJSONArray(result))
-      }
-      "GetRECDt_indiv9_NL2" -> {
-        val result =
-                nal2Manager.getRECDtIndiv9(
-                        params.getInt("RECDmeasType"),
-                        params.getInt("dateOfBirth"),
-                        params.getInt("aidType"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("earpiece"),
-                        params.getInt("coupler"),
-                        params.getInt("fittingDepth")
-                )
-        output.put("RECDt", doubleArrayToJSONArray(result))
-      }
-      "SetRECDh_indiv_NL2" -> {
-        nal2Manager.setRECDhIndiv(jsonArrayToDoubleArray(params.getJSONArray("RECDh")))
-        output.put("success", true)
-      }
-      "SetRECDh_indiv9_NL2" -> {
-        nal2Manager.setRECDhIndiv9(jsonArrayToDoubleArray(params.getJSONArray("RECDh")))
-        output.put("success", true)
+    operator fun get(stepId: String): JSONObject? {
+      parsed[stepId]?.let {
+        return it
       }
-      "SetRECDt_indiv_NL2" -> {
-        nal2Manager.setRECDtIndiv(jsonArrayToDoubleArray(params.getJSONArray("RECDt")))
-        output.put("success", true)
+      val range = ranges[stepId] ?: return null
+      val outputs = writer.readOutputs(range[0], range[1])
+      parsed[stepId] = outputs
+      return outputs
+    }
+  }
+
+  /** 替换输入参数中的引用（只有嵌套对象和非数值数组可能包含引用） */
+  private fun resolveRefs(params: Nal2Params, stepOutputs: StepOutputs) {
+    for (i in 0 until params.size()) {
+      val name = params.getName(i)
+      val value = params.getOther(name) ?: continue
+      params.put(name, resolveRefs(value, stepOutputs))
+    }
+  }
+
+  /** 把参数中的{"$ref": "stepN.field[.key...]"}替换为对应步骤的输出值 */
+  private fun resolveRefs(value: Any, stepOutputs: StepOutputs): Any {
+    return when (value) {
+      is JSONObject -> {
+        if (value.length() == 1 && value.has("\$ref")) {
+          return resolveRef(value.getString("\$ref"), stepOutputs)
+        }
+        val resolved = JSONObject()
+        val keys = value.keys()
+        while (keys.hasNext()) {
+          val key = keys.next()
+          resolved.put(key, resolveRefs(value.get(key), stepOutputs))
+        }
+        resolved
       }
-      "SetRECDt_indiv9_NL2" -> {
-        nal2Manager.setRECDtIndiv9(jsonArrayToDoubleArray(params.getJSONArray("RECDt")))
-        output.put("success", true)
+      is JSONArray -> {
+        val resolved = JSONArray()
+        for (i in 0 until value.length()) {
+          resolved.put(resolveRefs(value.get(i), stepOutputs))
+        }
+        resolved
       }
-      "CompressionRatio_NL2" -> {
-        val cr = DoubleArray(19)
-        val channels = params.getInt("channels")
-        val centreFreq = jsonArrayToIntArray(params.getJSONArray("centreFreq"))
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+      else -> value
+    }
+  }
 
-        val result =
-                nal2Manager.getCompressionRatio(
-                        cr,
-                        channels,
-                        centreFreq,
-                        ac,
-                        bc,
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("limiting"),
-                        acOther,
-                        params.getInt("noOfAids")
-                )
-        output.put("CR", doubleArrayToJSONArray(result))
-      }
-      "getMPO_NL2" -> {
-        val mpo = DoubleArray(19)
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
+  private fun resolveRef(ref: String, stepOutputs: StepOutputs): Any {
+    val path = ref.split(".")
+    if (path.size < 2) {
+      throw IllegalArgumentException("引用格式错误，应为step.field: $ref")
+    }
+    var current: Any =
+            stepOutputs[path[0]]
+                    ?: throw IllegalArgumentException("引用的步骤不存在或执行失败: $ref")
+    for (segment in path.drop(1)) {
+      val container = current
+      val index = segment.toIntOrNull()
+      current =
+              when {
+                container is JSONObject -> container.opt(segment)
+                container is JSONArray && index != null -> container.opt(index)
+                else -> null
+              }
+                      ?: throw IllegalArgumentException("引用的输出不存在: $ref")
+    }
+    return current
+  }
 
-        val result =
-                nal2Manager.getMPO(
-                        mpo,
-                        params.getInt("type"),
-                        ac,
-                        bc,
-                        params.getInt("channels"),
-                        params.getInt("limiting")
-                )
-        output.put("MPO", doubleArrayToJSONArray(result))
-      }
-      "RealEarInsertionGain_NL2" -> {
-        val reig = DoubleArray(19)
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  private fun writeErrorResponse(
+          sequenceNum: Int,
+          functionName: String,
+          e: Exception,
+          output: Nal2ResponseWriter
+  ) {
+    output.beginResponse(sequenceNum, functionName, null, -1)
+    output.name("error").value(e.message ?: "Unknown error")
+    output.endResponse(null)
+  }
 
-        val result =
-                nal2Manager.getRealEarInsertionGain(
-                        reig,
-                        ac,
-                        bc,
-                        params.getDouble("L"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        acOther,
-                        params.getInt("noOfAids")
-                )
-        output.put("REIG", doubleArrayToJSONArray(result))
-      }
-      "RealEarAidedGain_NL2" -> {
-        val data = DoubleArray(19)
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
+  /** 设置会话LRU容量 */
+  @ReactMethod
+  fun setSessionCapacity(capacity: Int, promise: Promise) {
+    try {
+      sessionManager.setCapacity(capacity)
+      promise.resolve(true)
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "设置会话容量失败", e)
+      promise.reject("NAL2_ERROR", "设置会话容量失败: ${e.message}", e)
+    }
+  }
 
-        val result =
-                nal2Manager.getRealEarAidedGain(
-                        data,
-                        ac,
-                        bc,
-                        params.getDouble("L"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("noOfAids")
-                )
-        output.put("REAG", doubleArrayToJSONArray(result))
-      }
-      "TccCouplerGain_NL2" -> {
-        val gain = DoubleArray(19)
-        val lineType = IntArray(19)
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  /** 设置引擎等待队列容量，队列满时新请求立即被拒绝（HTTP返回503） */
+  @ReactMethod
+  fun setEngineQueueCapacity(capacity: Int, promise: Promise) {
+    try {
+      engine.setQueueCapacity(capacity)
+      promise.resolve(true)
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "设置引擎队列容量失败", e)
+      promise.reject("NAL2_ERROR", "设置引擎队列容量失败: ${e.message}", e)
+    }
+  }
 
-        val result =
-                nal2Manager.getTccCouplerGain(
-                        gain,
-                        ac,
-                        bc,
-                        params.getDouble("L"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("target"),
-                        params.getInt("aidType"),
-                        acOther,
-                        params.getInt("noOfAids"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("RECDmeasType"),
-                        lineType
-                )
-        output.put("TccGain", doubleArrayToJSONArray(result.TccGain))
-        output.put("lineType", intArrayToJSONArray(result.lineType))
-      }
-      "EarSimulatorGain_NL2" -> {
-        val gain = DoubleArray(19)
-        val lineType = IntArray(19)
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  /**
+   * 设置分组窗口：队首请求最多等待windowMs毫秒，收集同一会话随后到达的请求一起执行
+   * 0为不等待，只把已在队列中的请求分组。
+   */
+  @ReactMethod
+  fun setBatchWindow(windowMs: Int, promise: Promise) {
+    try {
+      scheduler.setWindowMs(windowMs)
+      promise.resolve(true)
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "设置分组窗口失败", e)
+      promise.reject("NAL2_ERROR", "设置分组窗口失败: ${e.message}", e)
+    }
+  }
 
-        val result =
-                nal2Manager.getEarSimulatorGain(
-                        gain,
-                        ac,
-                        bc,
-                        params.getDouble("L"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("target"),
-                        params.getInt("aidType"),
-                        acOther,
-                        params.getInt("noOfAids"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("RECDmeasType"),
-                        lineType
-                )
-        output.put("ESG", doubleArrayToJSONArray(result.ESG))
-        output.put("lineType", intArrayToJSONArray(result.lineType))
-      }
-      "RealEarInputOutputCurve_NL2" -> {
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  /**
+   * 设置亲和窗口：队首请求等待不超过windowMs毫秒时，可以先执行当前会话排队中的请求，减少状态恢复
+   * 0为按提交顺序分组。
+   */
+  @ReactMethod
+  fun setAffinityWindow(windowMs: Int, promise: Promise) {
+    try {
+      scheduler.setAffinityWindowMs(windowMs)
+      promise.resolve(true)
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "设置亲和窗口失败", e)
+      promise.reject("NAL2_ERROR", "设置亲和窗口失败: ${e.message}", e)
+    }
+  }
 
-        val result =
-                nal2Manager.getRealEarInputOutputCurve(
-                        ac,
-                        bc,
-                        params.getInt("graphFreq"),
-                        params.getInt("startLevel"),
-                        params.getInt("finishLevel"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("target"),
-                        acOther,
-                        params.getInt("noOfAids")
-                )
-        output.put("REIO", doubleArrayToJSONArray(result.IO))
-        output.put("REIOunl", doubleArrayToJSONArray(result.IOunl))
-      }
-      "TccInputOutputCurve_NL2" -> {
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  /** 获取引擎运行统计（JSON字符串） */
+  @ReactMethod
+  fun getStats(promise: Promise) {
+    try {
+      promise.resolve(statsJson())
+    } catch (e: Exception) {
+      Log.e("Nal2Module", "获取统计信息失败", e)
+      promise.reject("NAL2_ERROR", "获取统计信息失败: ${e.message}", e)
+    }
+  }
 
-        val result =
-                nal2Manager.getTccInputOutputCurve(
-                        ac,
-                        bc,
-                        params.getInt("graphFreq"),
-                        params.getInt("startLevel"),
-                        params.getInt("finishLevel"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("target"),
-                        params.getInt("aidType"),
-                        acOther,
-                        params.getInt("noOfAids"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("RECDmeasType")
-                )
-        output.put("TccIO", doubleArrayToJSONArray(result.TccIO))
-        output.put("TccIOunl", doubleArrayToJSONArray(result.TccIOunl))
-        output.put("lineType", intArrayToJSONArray(result.lineType))
-      }
-      "EarSimulatorInputOutputCurve_NL2" -> {
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  /** 引擎运行统计，供HTTP服务器的/api/nal2/stats使用，可在任意线程调用 */
+  fun statsJson(): String {
+    val stats = JSONObject()
+
+    val engineStats = JSONObject()
+    engineStats.put("queue_size", engine.queueSize)
+    engineStats.put("queue_capacity", engine.queueCapacity)
+    engineStats.put("max_queue_size", engine.maxQueueSize)
+    engineStats.put("rejected", engine.rejectedCount)
+    engineStats.put("completed_tasks", engine.completedTaskCount)
+    // 各通道的排队时间，交互通道的排队时间不应受批量请求影响
+    val laneStats = JSONObject()
+    for (lane in Nal2EngineExecutor.Lane.values()) {
+      val stat = JSONObject()
+      stat.put("queue_size", engine.getQueueSize(lane))
+      stat.put("dispatched", engine.getDispatchedCount(lane))
+      stat.put("rejected", engine.getRejectedCount(lane))
+      stat.put("queue_avg_ms", engine.getAverageQueueTimeMs(lane))
+      stat.put("queue_max_ms", engine.getMaxQueueTimeMs(lane))
+      laneStats.put(lane.name.lowercase(), stat)
+    }
+    engineStats.put("lanes", laneStats)
+    engineStats.put("bulk_promotions", engine.promotedCount)
+    stats.put("engine", engineStats)
+
+    val stateStats = JSONObject()
+    stateStats.put("issued_calls", stateApplier.issuedCalls)
+    stateStats.put("skipped_calls", stateApplier.skippedCalls)
+    stats.put("native_state", stateStats)
+
+    val sessionStats = JSONObject()
+    sessionStats.put("size", sessionManager.size)
+    sessionStats.put("capacity", sessionManager.capacity)
+    sessionStats.put("switches", sessionManager.sessionSwitches)
+    sessionStats.put("restores", sessionManager.restores)
+    sessionStats.put("evictions", sessionManager.evictions)
+    sessionStats.put("restore_avg_us", sessionManager.averageRestoreMicros)
+    sessionStats.put("restore_max_us", sessionManager.maxRestoreMicros)
+    stats.put("sessions", sessionStats)
+
+    val cacheStats = JSONObject()
+    cacheStats.put("hits", resultCache.hits)
+    cacheStats.put("misses", resultCache.misses)
+    cacheStats.put("evictions", resultCache.evictions)
+    cacheStats.put("invalidations", resultCache.invalidations)
+    cacheStats.put("bytes", resultCache.currentBytes)
+    cacheStats.put("max_bytes", resultCache.maxBytes)
+    stats.put("result_cache", cacheStats)
+
+    val tableStats = JSONObject()
+    tableStats.put("entries", lookupTables.size)
+    tableStats.put("hits", lookupTables.hits)
+    tableStats.put("fills", lookupTables.fills)
+    stats.put("lookup_tables", tableStats)
+
+    val incrementalStats = JSONObject()
+    incrementalStats.put("updates", prescriptionSnapshots.updates)
+    incrementalStats.put("recomputed_nodes", prescriptionSnapshots.recomputedNodes)
+    incrementalStats.put("reused_nodes", prescriptionSnapshots.reusedNodes)
+    stats.put("incremental", incrementalStats)
+
+    val decoderStats = JSONObject()
+    decoderStats.put("requests", requestDecoder.requests)
+    decoderStats.put("bytes", requestDecoder.bytes)
+    decoderStats.put("numbers", requestDecoder.numbers)
+    decoderStats.put("slow_numbers", requestDecoder.slowNumbers)
+    decoderStats.put("binary_requests", requestDecoder.binaryRequests)
+    stats.put("request_decoder", decoderStats)
+
+    val writerStats = JSONObject()
+    writerStats.put("buffer_allocations", Nal2ResponseBuffer.getAllocations())
+    writerStats.put("buffer_reuses", Nal2ResponseBuffer.getReuses())
+    writerStats.put("pooled_buffers", Nal2ResponseBuffer.getPooled())
+    writerStats.put("binary_responses", binaryWriter.responses)
+    stats.put("response_writer", writerStats)
+
+    val functionStats = JSONObject()
+    functionStats.put("registered", functions.size())
+    functionStats.put("calls", functions.calls)
+    functionStats.put("validation_failures", functions.validationFailures)
+    stats.put("functions", functionStats)
+
+    val coalescingStats = JSONObject()
+    coalescingStats.put("leaders", coalescer.leaders)
+    coalescingStats.put("coalesced", coalescer.coalesced)
+    coalescingStats.put("bypassed", coalescer.bypassed)
+    coalescingStats.put("in_flight", coalescer.inFlight)
+    stats.put("coalescing", coalescingStats)
+
+    val schedulingStats = JSONObject()
+    schedulingStats.put("submitted", scheduler.submitted)
+    schedulingStats.put("expired", scheduler.expired)
+    schedulingStats.put("superseded", scheduler.superseded)
+    schedulingStats.put("cancelled", scheduler.cancelled)
+    schedulingStats.put("latest_wins_keys", scheduler.latestWinsKeys)
+    schedulingStats.put("window_ms", scheduler.windowMs)
+    schedulingStats.put("group_sizes", scheduler.groupSizes.toJSON())
+    schedulingStats.put("window_waits", scheduler.windowWaits.toJSON())
+    schedulingStats.put("affinity_window_ms", scheduler.affinityWindowMs)
+    schedulingStats.put("reordered", scheduler.reordered)
+    schedulingStats.put("switches_avoided", scheduler.switchesAvoided)
+    schedulingStats.put("switches_avoided_per_sec", scheduler.switchesAvoidedPerSecond)
+    stats.put("scheduling", schedulingStats)
+
+    return stats.toString()
+  }
 
-        val result =
-                nal2Manager.getEarSimulatorInputOutputCurve(
-                        ac,
-                        bc,
-                        params.getInt("graphFreq"),
-                        params.getInt("startLevel"),
-                        params.getInt("finishLevel"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        params.getInt("target"),
-                        params.getInt("aidType"),
-                        acOther,
-                        params.getInt("noOfAids"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("RECDmeasType")
-                )
-        output.put("ESIO", doubleArrayToJSONArray(result.ESIO))
-        output.put("ESIOunl", doubleArrayToJSONArray(result.ESIOunl))
-        output.put("lineType", intArrayToJSONArray(result.lineType))
-      }
-      "Speech_o_Gram_NL2" -> {
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  // 带结果缓存的处方函数：参数与Nal2Manager同名方法一致，命中时不调用NAL2
 
-        val result =
-                nal2Manager.getSpeechOGram(
-                        ac,
-                        bc,
-                        params.getDouble("L"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        acOther,
-                        params.getInt("noOfAids")
-                )
-        output.put("Speech_rms", doubleArrayToJSONArray(result.Speech_rms))
-        output.put("Speech_max", doubleArrayToJSONArray(result.Speech_max))
-        output.put("Speech_min", doubleArrayToJSONArray(result.Speech_min))
-        output.put("Speech_thresh", doubleArrayToJSONArray(result.Speech_thresh))
-      }
-      "AidedThreshold_NL2" -> {
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val ct = jsonArrayToDoubleArray(params.getJSONArray("CT"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+  private inline fun cachedResult(key: Nal2ResultCache.Key, compute: () -> DoubleArray): DoubleArray {
+    resultCache.get(key)?.let {
+      return it
+    }
+    val result = compute()
+    resultCache.put(key, result)
+    return result
+  }
 
-        val result =
-                nal2Manager.getAidedThreshold(
-                        ac,
-                        bc,
-                        ct,
-                        params.getInt("dbOption"),
-                        acOther,
-                        params.getInt("noOfAids"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic")
-                )
-        output.put("AT", doubleArrayToJSONArray(result))
-      }
-      "GetREDDindiv" -> {
-        val result = nal2Manager.getREDDindiv(params.getInt("defValues"))
-        output.put("REDD", doubleArrayToJSONArray(result))
-      }
-      "GetREDDindiv9" -> {
-        val result = nal2Manager.getREDDindiv9(params.getInt("defValues"))
-        output.put("REDD", doubleArrayToJSONArray(result))
-      }
-      "GetREURindiv" -> {
-        val result =
-                nal2Manager.getREURindiv(
-                        params.getInt("defValues"),
-                        params.getInt("dateOfBirth"),
-                        params.getInt("direction"),
-                        params.getInt("mic")
-                )
-        output.put("REUR", doubleArrayToJSONArray(result))
+  private fun cachedRealEarInsertionGain(
+          reig: DoubleArray,
+          ac: DoubleArray,
+          bc: DoubleArray,
+          L: Double,
+          limiting: Int,
+          channels: Int,
+          direction: Int,
+          mic: Int,
+          acOther: DoubleArray,
+          noOfAids: Int
+  ): DoubleArray {
+    val key =
+            resultCache
+                    .newKey("RealEarInsertionGain_NL2", stateApplier.appliedState)
+                    .add(ac)
+                    .add(bc)
+                    .add(L)
+                    .add(limiting)
+                    .add(channels)
+                    .add(direction)
+                    .add(mic)
+                    .add(acOther)
+                    .add(noOfAids)
+                    .build()
+    return cachedResult(key) {
+      nal2Manager.getRealEarInsertionGain(
+              reig,
+              ac,
+              bc,
+              L,
+              limiting,
+              channels,
+              direction,
+              mic,
+              acOther,
+              noOfAids
+      )
+    }
+  }
+
+  private fun cachedRealEarAidedGain(
+          data: DoubleArray,
+          ac: DoubleArray,
+          bc: DoubleArray,
+          L: Double,
+          limiting: Int,
+          channels: Int,
+          direction: Int,
+          mic: Int,
+          noOfAids: Int
+  ): DoubleArray {
+    val key =
+            resultCache
+                    .newKey("RealEarAidedGain_NL2", stateApplier.appliedState)
+                    .add(ac)
+                    .add(bc)
+                    .add(L)
+                    .add(limiting)
+                    .add(channels)
+                    .add(direction)
+                    .add(mic)
+                    .add(noOfAids)
+                    .build()
+    return cachedResult(key) {
+      nal2Manager.getRealEarAidedGain(data, ac, bc, L, limiting, channels, direction, mic, noOfAids)
+    }
+  }
+
+  private fun cachedCompressionRatio(
+          cr: DoubleArray,
+          channels: Int,
+          centreFreq: IntArray,
+          ac: DoubleArray,
+          bc: DoubleArray,
+          direction: Int,
+          mic: Int,
+          limiting: Int,
+          acOther: DoubleArray,
+          noOfAids: Int
+  ): DoubleArray {
+    val key =
+            resultCache
+                    .newKey("CompressionRatio_NL2", stateApplier.appliedState)
+                    .add(channels)
+                    .add(centreFreq)
+                    .add(ac)
+                    .add(bc)
+                    .add(direction)
+                    .add(mic)
+                    .add(limiting)
+                    .add(acOther)
+                    .add(noOfAids)
+                    .build()
+    return cachedResult(key) {
+      nal2Manager.getCompressionRatio(
+              cr,
+              channels,
+              centreFreq,
+              ac,
+              bc,
+              direction,
+              mic,
+              limiting,
+              acOther,
+              noOfAids
+      )
+    }
+  }
+
+  private fun cachedMPO(
+          mpo: DoubleArray,
+          type: Int,
+          ac: DoubleArray,
+          bc: DoubleArray,
+          channels: Int,
+          limiting: Int
+  ): DoubleArray {
+    val key =
+            resultCache
+                    .newKey("getMPO_NL2", stateApplier.appliedState)
+                    .add(type)
+                    .add(ac)
+                    .add(bc)
+                    .add(channels)
+                    .add(limiting)
+                    .build()
+    return cachedResult(key) { nal2Manager.getMPO(mpo, type, ac, bc, channels, limiting) }
+  }
+
+  /**
+   * 构建完整处方依赖图：人口学参数 -> 交叉频率 -> BWC -> 中心频率 -> CT -> CR/MPO/REAG/IO曲线/言语图
+   * 交叉频率、中心频率和CT只计算一次，后续节点直接复用
+   */
+  private fun buildPrescriptionGraph(params: Nal2Params): PrescriptionGraph {
+    val demographics = PrescriptionGraph.InputGroup.DEMOGRAPHICS
+    val audiogram = PrescriptionGraph.InputGroup.AUDIOGRAM
+    val channelGroup = PrescriptionGraph.InputGroup.CHANNELS
+    val levelGroup = PrescriptionGraph.InputGroup.LEVELS
+    val transducer = PrescriptionGraph.InputGroup.TRANSDUCER
+
+    val ac = params.getDoubleArray("AC")
+    val bc = params.getDoubleArray("BC")
+    val acOther =
+            if (params.has("ACother")) params.getDoubleArray("ACother") else ac
+    val channels = params.getInt("channels")
+    val limiting = params.optInt("limiting", 0)
+    val direction = params.optInt("direction", 0)
+    val mic = params.optInt("mic", 0)
+    val noOfAids = params.optInt("noOfAids", 0)
+    val levels = params.getIntArray("levels")
+
+    return PrescriptionGraph.Builder()
+            .stateNode("demographics", EnumSet.of(demographics), arrayOf()) {
+              stateApplier.apply(
+                      FittingProfile.Builder()
+                              .demographics(
+                                      params.getInt("adultChild"),
+                                      params.getInt("dateOfBirth"),
+                                      params.getInt("experience"),
+                                      params.getInt("compSpeed"),
+                                      params.getInt("tonal"),
+                                      params.getInt("gender")
+                              )
+                              .build()
+              )
+              null
+            }
+            .node("crossOverFreq", EnumSet.of(audiogram, channelGroup), arrayOf("demographics")) {
+              nal2Manager.getCrossOverFrequencies(DoubleArray(19), channels, ac, bc, IntArray(19))
+            }
+            .stateNode("bwc", EnumSet.of(channelGroup), arrayOf("crossOverFreq")) { results ->
+              stateApplier.setBWC(channels, results.getDoubles("crossOverFreq"))
+              null
+            }
+            .node("centreFreq", EnumSet.of(channelGroup), arrayOf("bwc")) {
+              nal2Manager.getCenterFrequencies(channels, DoubleArray(19))
+            }
+            // CT是NativeManager状态，总是经NativeStateApplier推送（未变化时跳过），不沿用上一次的结果
+            .stateValueNode("CT", EnumSet.of(channelGroup, transducer), arrayOf("demographics", "bwc")) {
+              stateApplier.compressionThreshold(
+                      params.optInt("bandWidth", 0),
+                      params.optInt("selection", 1),
+                      params.getInt("WBCT"),
+                      params.getInt("aidType"),
+                      direction,
+                      mic,
+                      params.getIntArray("calcCh")
+              )
+            }
+            .node(
+                    "CR",
+                    EnumSet.of(demographics, audiogram, channelGroup, transducer),
+                    arrayOf("demographics", "centreFreq", "CT")
+            ) { results ->
+              cachedCompressionRatio(
+                      DoubleArray(19),
+                      channels,
+                      results.getInts("centreFreq"),
+                      ac,
+                      bc,
+                      direction,
+                      mic,
+                      limiting,
+                      acOther,
+                      noOfAids
+              )
+            }
+            .node(
+                    "MPO",
+                    EnumSet.of(demographics, audiogram, channelGroup, transducer),
+                    arrayOf("demographics", "CT")
+            ) {
+              cachedMPO(DoubleArray(19), params.optInt("mpoType", 1), ac, bc, channels, limiting)
+            }
+            .node(
+                    "REAG",
+                    EnumSet.of(demographics, audiogram, channelGroup, transducer, levelGroup),
+                    arrayOf("demographics", "CT")
+            ) {
+              val gains = LinkedHashMap<String, DoubleArray>()
+              for (level in levels) {
+                val gain =
+                        cachedRealEarAidedGain(
+                                DoubleArray(19),
+                                ac,
+                                bc,
+                                level.toDouble(),
+                                limiting,
+                                channels,
+                                direction,
+                                mic,
+                                noOfAids
+                        )
+                gains[level.toString()] = gain
+              }
+              gains
+            }
+            .node(
+                    "REIO",
+                    EnumSet.of(demographics, audiogram, channelGroup, transducer, levelGroup),
+                    arrayOf("demographics", "CT")
+            ) {
+              val curves = LinkedHashMap<String, Map<String, DoubleArray>>()
+              if (params.has("graphFreqs")) {
+                for (graphFreq in params.getIntArray("graphFreqs")) {
+                  val curve =
+                          nal2Manager.getRealEarInputOutputCurve(
+                                  ac,
+                                  bc,
+                                  graphFreq,
+                                  params.optInt("startLevel", 40),
+                                  params.optInt("finishLevel", 90),
+                                  limiting,
+                                  channels,
+                                  direction,
+                                  mic,
+                                  params.optInt("target", 0),
+                                  acOther,
+                                  noOfAids
+                          )
+                  curves[graphFreq.toString()] = linkedMapOf("REIO" to curve.IO, "REIOunl" to curve.IOunl)
+                }
+              }
+              curves
+            }
+            .node(
+                    "Speech_o_Gram",
+                    EnumSet.of(demographics, audiogram, channelGroup, transducer, levelGroup),
+                    arrayOf("demographics", "CT")
+            ) {
+              val speech =
+                      nal2Manager.getSpeechOGram(
+                              ac,
+                              bc,
+                              params.optDouble("speechLevel", 65.0),
+                              limiting,
+                              channels,
+                              direction,
+                              mic,
+                              acOther,
+                              noOfAids
+                      )
+              linkedMapOf(
+                      "Speech_rms" to speech.Speech_rms,
+                      "Speech_max" to speech.Speech_max,
+                      "Speech_min" to speech.Speech_min,
+                      "Speech_thresh" to speech.Speech_thresh
+              )
+            }
+            .build()
+  }
+
+  /** 把处方依赖图数据节点的结果写入输出参数 */
+  private fun putPrescriptionResults(results: Map<String, Any?>, output: Nal2ResponseWriter) {
+    for ((name, value) in results) {
+      output.name(name).value(value)
+    }
+  }
+
+  /**
+   * 增量处方：input_parameters只需包含有变化的参数，与该会话上一次的输入合并后，
+   * 只重算受影响的节点，返回版本号和结果有变化的输出
+   */
+  private fun fullPrescriptionUpdate(params: Nal2Params, sessionId: String?, output: Nal2ResponseWriter) {
+    val previous = if (params.optBoolean("reset", false)) null else prescriptionSnapshots.get(sessionId)
+
+    val merged = previous?.params?.copy() ?: Nal2Params()
+    val changedInputs = EnumSet.noneOf(PrescriptionGraph.InputGroup::class.java)
+    for (i in 0 until params.size()) {
+      val key = params.getName(i)
+      if (key == "reset") {
+        continue
       }
-      "GetREURindiv9" -> {
-        val result =
-                nal2Manager.getREURindiv9(
-                        params.getInt("defValues"),
-                        params.getInt("dateOfBirth"),
-                        params.getInt("direction"),
-                        params.getInt("mic")
-                )
-        output.put("REUR", doubleArrayToJSONArray(result))
+      if (previous == null || !params.sameValue(key, previous.params)) {
+        val group = PRESCRIPTION_INPUT_GROUPS[key]
+        if (group != null) {
+          changedInputs.add(group)
+        } else {
+          // 未知参数无法判断影响范围，全部重算
+          changedInputs.addAll(PrescriptionGraph.InputGroup.values())
+        }
       }
-      "SetREDDindiv" -> {
-        nal2Manager.setREDDindiv(
-                jsonArrayToDoubleArray(params.getJSONArray("REDD")),
-                params.getInt("defValues")
-        )
-        output.put("success", true)
+      merged.copyFrom(params, key)
+    }
+    // 合并后的参数须满足FullPrescription的参数声明
+    functions.validate(functions.get("FullPrescription")!!, merged)
+
+    // 上一次之后NativeManager状态被修改过（Set*调用、不带会话的其它客户端），沿用的结果可能已失效，全部重算
+    if (previous != null && previous.state != stateApplier.appliedState) {
+      changedInputs.addAll(PrescriptionGraph.InputGroup.values())
+    }
+
+    val graph = buildPrescriptionGraph(merged)
+    val evaluation =
+            if (previous == null) {
+              graph.evaluate(EnumSet.allOf(PrescriptionGraph.InputGroup::class.java), emptyMap())
+            } else {
+              graph.evaluate(changedInputs, previous.values)
+            }
+    val snapshot = prescriptionSnapshots.put(sessionId, merged, evaluation, stateApplier.appliedState)
+
+    output.name("version").value(snapshot.version)
+    output.name("changed").value(evaluation.changed)
+    for (name in evaluation.changed) {
+      output.name(name).value(evaluation.values[name])
+    }
+  }
+
+  /**
+   * 注册process()/callFunction()支持的全部函数
+   * 每个函数声明参数（名称、类型、数组长度）和输出数组长度，调用前统一校验，处理逻辑中直接取值。
+   * readOnly()的函数不修改NativeManager状态，并发的相同请求可以合并（见Nal2RequestCoalescer）
+   */
+  private fun registerFunctions() {
+    register(Nal2Function.Builder("dllVersion")) { call ->
+      val version = nal2Manager.getDllVersion()
+      resultCache.checkEngineVersion(version)
+      lookupTables.checkEngineVersion(version)
+      call.output.name("major").value(version[0])
+      call.output.name("minor").value(version[1])
+    }
+    register(prescriptionParams(Nal2Function.Builder("FullPrescription"), true)) { call ->
+      putPrescriptionResults(buildPrescriptionGraph(call.params).evaluate(), call.output)
+    }
+    // 只需包含有变化的参数，合并后的完整参数在fullPrescriptionUpdate中按FullPrescription校验
+    register(prescriptionParams(Nal2Function.Builder("FullPrescriptionUpdate"), false)) { call ->
+      fullPrescriptionUpdate(call.params, call.sessionId, call.output)
+    }
+    register(
+            Nal2Function.Builder("CrossOverFrequencies_NL2").readOnly()
+                    .intParam("channels")
+                    .doubleArray("AC", AUDIOGRAM_POINTS)
+                    .doubleArray("BC", AUDIOGRAM_POINTS)
+                    .outputLength(BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getCrossOverFrequencies(
+                      call.doubleOutput(),
+                      params.getInt("channels"),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      call.intOutput()
+              )
+      call.output.name("crossOverFreq").value(result)
+    }
+    register(Nal2Function.Builder("CenterFrequencies").readOnly().intParam("channels").outputLength(BANDS)) { call ->
+      val result = nal2Manager.getCenterFrequencies(call.params.getInt("channels"), call.doubleOutput())
+      call.output.name("centreFreq").value(result)
+    }
+    register(
+            Nal2Function.Builder("CompressionThreshold_NL2")
+                    .intParam("WBCT")
+                    .intParam("aidType")
+                    .intParam("direction")
+                    .intParam("mic")
+    ) { call ->
+      val params = call.params
+      val ct =
+              stateApplier.compressionThreshold(
+                      0,
+                      1,
+                      params.getInt("WBCT"),
+                      params.getInt("aidType"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      intArrayOf(1)
+              )
+      call.output.name("CT").value(ct)
+    }
+    register(
+            Nal2Function.Builder("setBWC")
+                    .intParam("channels")
+                    .doubleArray("crossOver", Nal2Function.ANY_LENGTH)
+    ) { call ->
+      stateApplier.setBWC(call.params.getInt("channels"), call.params.getDoubleArray("crossOver"))
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("SetAdultChild").intParam("adultChild").intParam("dateOfBirth")) { call ->
+      stateApplier.setAdultChild(call.params.getInt("adultChild"), call.params.getInt("dateOfBirth"))
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("SetExperience").intParam("experience")) { call ->
+      stateApplier.setExperience(call.params.getInt("experience"))
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("SetCompSpeed").intParam("compSpeed")) { call ->
+      stateApplier.setCompSpeed(call.params.getInt("compSpeed"))
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("SetTonalLanguage").intParam("tonal")) { call ->
+      stateApplier.setTonalLanguage(call.params.getInt("tonal"))
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("SetGender").intParam("gender")) { call ->
+      stateApplier.setGender(call.params.getInt("gender"))
+      call.output.name("success").value(true)
+    }
+    register(recdParams(Nal2Function.Builder("GetRECDh_indiv_NL2").readOnly(), false)) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getRECDhIndiv(
+                      params.getInt("RECDmeasType"),
+                      params.getInt("dateOfBirth"),
+                      params.getInt("aidType"),
+                      params.getInt("tubing"),
+                      params.getInt("coupler"),
+                      params.getInt("fittingDepth")
+              )
+      call.output.name("RECDh").value(result)
+    }
+    register(recdParams(Nal2Function.Builder("GetRECDh_indiv9_NL2").readOnly(), false)) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getRECDhIndiv9(
+                      params.getInt("RECDmeasType"),
+                      params.getInt("dateOfBirth"),
+                      params.getInt("aidType"),
+                      params.getInt("tubing"),
+                      params.getInt("coupler"),
+                      params.getInt("fittingDepth")
+              )
+      call.output.name("RECDh").value(result)
+    }
+    register(recdParams(Nal2Function.Builder("GetRECDt_indiv_NL2").readOnly(), true)) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getRECDtIndiv(
+                      params.getInt("RECDmeasType"),
+                      params.getInt("dateOfBirth"),
+                      params.getInt("aidType"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("earpiece"),
+                      params.getInt("coupler"),
+                      params.getInt("fittingDepth")
+              )
+      call.output.name("RECDt").value(result)
+    }
+    register(recdParams(Nal2Function.Builder("GetRECDt_indiv9_NL2").readOnly(), true)) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getRECDtIndiv9(
+                      params.getInt("RECDmeasType"),
+                      params.getInt("dateOfBirth"),
+                      params.getInt("aidType"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("earpiece"),
+                      params.getInt("coupler"),
+                      params.getInt("fittingDepth")
+              )
+      call.output.name("RECDt").value(result)
+    }
+    // Set系列函数按数组长度（9或19）选择JNI函数，见NativeStateApplier，这里不限长度
+    for (name in arrayOf("SetRECDh_indiv_NL2", "SetRECDh_indiv9_NL2")) {
+      register(Nal2Function.Builder(name).doubleArray("RECDh", Nal2Function.ANY_LENGTH)) { call ->
+        stateApplier.setRECDhIndiv(call.params.getDoubleArray("RECDh"))
+        call.output.name("success").value(true)
       }
-      "SetREDDindiv9" -> {
-        nal2Manager.setREDDindiv9(
-                jsonArrayToDoubleArray(params.getJSONArray("REDD")),
-                params.getInt("defValues")
-        )
-        output.put("success", true)
+    }
+    for (name in arrayOf("SetRECDt_indiv_NL2", "SetRECDt_indiv9_NL2")) {
+      register(Nal2Function.Builder(name).doubleArray("RECDt", Nal2Function.ANY_LENGTH)) { call ->
+        stateApplier.setRECDtIndiv(call.params.getDoubleArray("RECDt"))
+        call.output.name("success").value(true)
       }
-      "SetREURindiv" -> {
-        nal2Manager.setREURindiv(
-                jsonArrayToDoubleArray(params.getJSONArray("REUR")),
-                params.getInt("defValues"),
-                params.getInt("dateOfBirth"),
-                params.getInt("direction"),
-                params.getInt("mic")
-        )
-        output.put("success", true)
+    }
+    register(
+            Nal2Function.Builder("CompressionRatio_NL2").readOnly()
+                    .intParam("channels")
+                    .intArray("centreFreq", "channels")
+                    .doubleArray("AC", AUDIOGRAM_POINTS)
+                    .doubleArray("BC", AUDIOGRAM_POINTS)
+                    .doubleArray("ACother", AUDIOGRAM_POINTS)
+                    .intParam("direction")
+                    .intParam("mic")
+                    .intParam("limiting")
+                    .intParam("noOfAids")
+                    .outputLength(BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              cachedCompressionRatio(
+                      call.doubleOutput(),
+                      params.getInt("channels"),
+                      params.getIntArray("centreFreq"),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("limiting"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids")
+              )
+      call.output.name("CR").value(result)
+    }
+    register(
+            Nal2Function.Builder("getMPO_NL2").readOnly()
+                    .intParam("type")
+                    .doubleArray("AC", AUDIOGRAM_POINTS)
+                    .doubleArray("BC", AUDIOGRAM_POINTS)
+                    .intParam("channels")
+                    .intParam("limiting")
+                    .outputLength(BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              cachedMPO(
+                      call.doubleOutput(),
+                      params.getInt("type"),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getInt("channels"),
+                      params.getInt("limiting")
+              )
+      call.output.name("MPO").value(result)
+    }
+    register(
+            gainParams(Nal2Function.Builder("RealEarInsertionGain_NL2").readOnly())
+                    .doubleArray("ACother", AUDIOGRAM_POINTS)
+                    .outputLength(BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              cachedRealEarInsertionGain(
+                      call.doubleOutput(),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDouble("L"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids")
+              )
+      call.output.name("REIG").value(result)
+    }
+    register(gainParams(Nal2Function.Builder("RealEarAidedGain_NL2").readOnly()).outputLength(BANDS)) { call ->
+      val params = call.params
+      val result =
+              cachedRealEarAidedGain(
+                      call.doubleOutput(),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDouble("L"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("noOfAids")
+              )
+      call.output.name("REAG").value(result)
+    }
+    register(
+            transducerParams(gainParams(Nal2Function.Builder("TccCouplerGain_NL2").readOnly()))
+                    .intParam("target")
+                    .doubleArray("ACother", AUDIOGRAM_POINTS)
+                    .outputLength(BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getTccCouplerGain(
+                      call.doubleOutput(),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDouble("L"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("target"),
+                      params.getInt("aidType"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("RECDmeasType"),
+                      call.intOutput()
+              )
+      call.output.name("TccGain").value(result.TccGain)
+      call.output.name("lineType").value(result.lineType)
+    }
+    register(
+            transducerParams(gainParams(Nal2Function.Builder("EarSimulatorGain_NL2").readOnly()))
+                    .intParam("target")
+                    .doubleArray("ACother", AUDIOGRAM_POINTS)
+                    .outputLength(BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getEarSimulatorGain(
+                      call.doubleOutput(),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDouble("L"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("target"),
+                      params.getInt("aidType"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("RECDmeasType"),
+                      call.intOutput()
+              )
+      call.output.name("ESG").value(result.ESG)
+      call.output.name("lineType").value(result.lineType)
+    }
+    register(curveParams(Nal2Function.Builder("RealEarInputOutputCurve_NL2").readOnly())) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getRealEarInputOutputCurve(
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getInt("graphFreq"),
+                      params.getInt("startLevel"),
+                      params.getInt("finishLevel"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("target"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids")
+              )
+      call.output.name("REIO").value(result.IO)
+      call.output.name("REIOunl").value(result.IOunl)
+    }
+    register(transducerParams(curveParams(Nal2Function.Builder("TccInputOutputCurve_NL2").readOnly()))) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getTccInputOutputCurve(
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getInt("graphFreq"),
+                      params.getInt("startLevel"),
+                      params.getInt("finishLevel"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("target"),
+                      params.getInt("aidType"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("RECDmeasType")
+              )
+      call.output.name("TccIO").value(result.TccIO)
+      call.output.name("TccIOunl").value(result.TccIOunl)
+      call.output.name("lineType").value(result.lineType)
+    }
+    register(
+            transducerParams(curveParams(Nal2Function.Builder("EarSimulatorInputOutputCurve_NL2").readOnly()))
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getEarSimulatorInputOutputCurve(
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getInt("graphFreq"),
+                      params.getInt("startLevel"),
+                      params.getInt("finishLevel"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getInt("target"),
+                      params.getInt("aidType"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("RECDmeasType")
+              )
+      call.output.name("ESIO").value(result.ESIO)
+      call.output.name("ESIOunl").value(result.ESIOunl)
+      call.output.name("lineType").value(result.lineType)
+    }
+    register(
+            gainParams(Nal2Function.Builder("Speech_o_Gram_NL2").readOnly()).doubleArray("ACother", AUDIOGRAM_POINTS)
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getSpeechOGram(
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDouble("L"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids")
+              )
+      call.output.name("Speech_rms").value(result.Speech_rms)
+      call.output.name("Speech_max").value(result.Speech_max)
+      call.output.name("Speech_min").value(result.Speech_min)
+      call.output.name("Speech_thresh").value(result.Speech_thresh)
+    }
+    register(
+            Nal2Function.Builder("AidedThreshold_NL2").readOnly()
+                    .doubleArray("AC", AUDIOGRAM_POINTS)
+                    .doubleArray("BC", AUDIOGRAM_POINTS)
+                    .doubleArray("CT", BANDS)
+                    .intParam("dbOption")
+                    .doubleArray("ACother", AUDIOGRAM_POINTS)
+                    .intParam("noOfAids")
+                    .intParam("limiting")
+                    .intParam("channels")
+                    .intParam("direction")
+                    .intParam("mic")
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getAidedThreshold(
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDoubleArray("CT"),
+                      params.getInt("dbOption"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic")
+              )
+      call.output.name("AT").value(result)
+    }
+    register(Nal2Function.Builder("GetREDDindiv").readOnly().intParam("defValues")) { call ->
+      call.output.name("REDD").value(lookupTables.getREDDindiv(call.params.getInt("defValues")))
+    }
+    register(Nal2Function.Builder("GetREDDindiv9").readOnly().intParam("defValues")) { call ->
+      call.output.name("REDD").value(lookupTables.getREDDindiv9(call.params.getInt("defValues")))
+    }
+    register(reurParams(Nal2Function.Builder("GetREURindiv").readOnly())) { call ->
+      val params = call.params
+      val result =
+              lookupTables.getREURindiv(
+                      params.getInt("defValues"),
+                      params.getInt("dateOfBirth"),
+                      params.getInt("direction"),
+                      params.getInt("mic")
+              )
+      call.output.name("REUR").value(result)
+    }
+    register(reurParams(Nal2Function.Builder("GetREURindiv9").readOnly())) { call ->
+      val params = call.params
+      val result =
+              lookupTables.getREURindiv9(
+                      params.getInt("defValues"),
+                      params.getInt("dateOfBirth"),
+                      params.getInt("direction"),
+                      params.getInt("mic")
+              )
+      call.output.name("REUR").value(result)
+    }
+    for (name in arrayOf("SetREDDindiv", "SetREDDindiv9")) {
+      register(Nal2Function.Builder(name).doubleArray("REDD", Nal2Function.ANY_LENGTH).intParam("defValues")) {
+              call ->
+        stateApplier.setREDDindiv(call.params.getDoubleArray("REDD"), call.params.getInt("defValues"))
+        call.output.name("success").value(true)
       }
-      "SetREURindiv9" -> {
-        nal2Manager.setREURindiv9(
-                jsonArrayToDoubleArray(params.getJSONArray("REUR")),
+    }
+    for (name in arrayOf("SetREURindiv", "SetREURindiv9")) {
+      register(reurParams(Nal2Function.Builder(name).doubleArray("REUR", Nal2Function.ANY_LENGTH))) { call ->
+        val params = call.params
+        stateApplier.setREURindiv(
+                params.getDoubleArray("REUR"),
                 params.getInt("defValues"),
                 params.getInt("dateOfBirth"),
                 params.getInt("direction"),
                 params.getInt("mic")
         )
-        output.put("success", true)
+        call.output.name("success").value(true)
       }
-      "GainAt_NL2" -> {
-        val ac = jsonArrayToDoubleArray(params.getJSONArray("AC"))
-        val bc = jsonArrayToDoubleArray(params.getJSONArray("BC"))
-        val acOther = jsonArrayToDoubleArray(params.getJSONArray("ACother"))
+    }
+    // 清除个体化覆盖，之后NAL2使用默认值
+    register(Nal2Function.Builder("ClearREDDindiv")) { call ->
+      stateApplier.clearREDDindiv()
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("ClearREURindiv")) { call ->
+      stateApplier.clearREURindiv()
+      call.output.name("success").value(true)
+    }
+    register(Nal2Function.Builder("ClearRECD_indiv_NL2")) { call ->
+      stateApplier.clearRECDhIndiv()
+      stateApplier.clearRECDtIndiv()
+      call.output.name("success").value(true)
+    }
+    register(
+            transducerParams(
+                    gainParams(
+                            Nal2Function.Builder("GainAt_NL2")
+                                    .readOnly()
+                                    .intParam("freqRequired")
+                                    .intParam("targetType")
+                    )
+            )
+                    .doubleArray("ACother", AUDIOGRAM_POINTS)
+                    .intParam("bandWidth")
+                    .intParam("target")
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getGainAt(
+                      params.getInt("freqRequired"),
+                      params.getInt("targetType"),
+                      params.getDoubleArray("AC"),
+                      params.getDoubleArray("BC"),
+                      params.getDouble("L"),
+                      params.getInt("limiting"),
+                      params.getInt("channels"),
+                      params.getInt("direction"),
+                      params.getInt("mic"),
+                      params.getDoubleArray("ACother"),
+                      params.getInt("noOfAids"),
+                      params.getInt("bandWidth"),
+                      params.getInt("target"),
+                      params.getInt("aidType"),
+                      params.getInt("tubing"),
+                      params.getInt("vent"),
+                      params.getInt("RECDmeasType")
+              )
+      call.output.name("Gain").value(result)
+    }
+    register(
+            Nal2Function.Builder("GetMLE").readOnly().intParam("aidType").intParam("direction").intParam("mic")
+    ) { call ->
+      val params = call.params
+      val result = lookupTables.getMLE(params.getInt("aidType"), params.getInt("direction"), params.getInt("mic"))
+      call.output.name("MLE").value(result)
+    }
+    register(Nal2Function.Builder("ReturnValues_NL2")) { call ->
+      val result = nal2Manager.getReturnValues()
+      call.output.name("MAF").value(result.MAF)
+      call.output.name("BWC").value(result.BWC)
+      call.output.name("ESCD").value(result.ESCD)
+    }
+    register(Nal2Function.Builder("GetTubing_NL2").readOnly().intParam("tubing")) { call ->
+      call.output.name("Tubing").value(lookupTables.getTubing(call.params.getInt("tubing")))
+    }
+    register(Nal2Function.Builder("GetTubing9_NL2").readOnly().intParam("tubing")) { call ->
+      call.output.name("Tubing").value(lookupTables.getTubing9(call.params.getInt("tubing")))
+    }
+    register(Nal2Function.Builder("GetVentOut_NL2").readOnly().intParam("vent")) { call ->
+      call.output.name("VentOut").value(lookupTables.getVentOut(call.params.getInt("vent")))
+    }
+    register(Nal2Function.Builder("GetVentOut9_NL2").readOnly().intParam("vent")) { call ->
+      call.output.name("VentOut").value(lookupTables.getVentOut9(call.params.getInt("vent")))
+    }
+    register(
+            Nal2Function.Builder("Get_SI_NL2").readOnly()
+                    .intParam("s")
+                    .doubleArray("REAG", BANDS)
+                    .doubleArray("Limit", BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getSI(params.getInt("s"), params.getDoubleArray("REAG"), params.getDoubleArray("Limit"))
+      call.output.name("SI").value(result)
+    }
+    register(
+            Nal2Function.Builder("Get_SII").readOnly()
+                    .intParam("nCompSpeed")
+                    .doubleArray("Speech_thresh", BANDS)
+                    .intParam("s")
+                    .doubleArray("REAG", BANDS)
+                    .doubleArray("REAGp", BANDS)
+                    .doubleArray("REAGm", BANDS)
+                    .doubleArray("REUR", BANDS)
+    ) { call ->
+      val params = call.params
+      val result =
+              nal2Manager.getSII(
+                      params.getInt("nCompSpeed"),
+                      params.getDoubleArray("Speech_thresh"),
+                      params.getInt("s"),
+                      params.getDoubleArray("REAG"),
+                      params.getDoubleArray("REAGp"),
+                      params.getDoubleArray("REAGm"),
+                      params.getDoubleArray("REUR")
+              )
+      call.output.name("SII").value(result)
+    }
+  }
 
-        val result =
-                nal2Manager.getGainAt(
-                        params.getInt("freqRequired"),
-                        params.getInt("targetType"),
-                        ac,
-                        bc,
-                        params.getDouble("L"),
-                        params.getInt("limiting"),
-                        params.getInt("channels"),
-                        params.getInt("direction"),
-                        params.getInt("mic"),
-                        acOther,
-                        params.getInt("noOfAids"),
-                        params.getInt("bandWidth"),
-                        params.getInt("target"),
-                        params.getInt("aidType"),
-                        params.getInt("tubing"),
-                        params.getInt("vent"),
-                        params.getInt("RECDmeasType")
-                )
-        output.put("Gain", result)
-      }
-      "GetMLE" -> {
-        val result =
-                nal2Manager.getMLE(
-                        params.getInt("aidType"),
-                        params.getInt("direction"),
-                        params.getInt("mic")
-                )
-        output.put("MLE", doubleArrayToJSONArray(result))
-      }
-      "ReturnValues_NL2" -> {
-        val result = nal2Manager.getReturnValues()
-        output.put("MAF", doubleArrayToJSONArray(result.MAF))
-        output.put("BWC", doubleArrayToJSONArray(result.BWC))
-        output.put("ESCD", doubleArrayToJSONArray(result.ESCD))
-      }
-      "GetTubing_NL2" -> {
-        val result = nal2Manager.getTubing(params.getInt("tubing"))
-        output.put("Tubing", doubleArrayToJSONArray(result))
-      }
-      "GetTubing9_NL2" -> {
-        val result = nal2Manager.getTubing9(params.getInt("tubing"))
-        output.put("Tubing", doubleArrayToJSONArray(result))
-      }
-      "GetVentOut_NL2" -> {
-        val result = nal2Manager.getVentOut(params.getInt("vent"))
-        output.put("VentOut", doubleArrayToJSONArray(result))
-      }
-      "GetVentOut9_NL2" -> {
-        val result = nal2Manager.getVentOut9(params.getInt("vent"))
-        output.put("VentOut", doubleArrayToJSONArray(result))
-      }
-      "Get_SI_NL2" -> {
-        val reag = jsonArrayToDoubleArray(params.getJSONArray("REAG"))
-        val limit = jsonArrayToDoubleArray(params.getJSONArray("Limit"))
-        val result = nal2Manager.getSI(params.getInt("s"), reag, limit)
-        output.put("SI", result)
-      }
-      "Get_SII" -> {
-        val speechThresh = jsonArrayToDoubleArray(params.getJSONArray("Speech_thresh"))
-        val reag = jsonArrayToDoubleArray(params.getJSONArray("REAG"))
-        val reagp = jsonArrayToDoubleArray(params.getJSONArray("REAGp"))
-        val reagm = jsonArrayToDoubleArray(params.getJSONArray("REAGm"))
-        val reur = jsonArrayToDoubleArray(params.getJSONArray("REUR"))
+  private fun register(builder: Nal2Function.Builder, handler: Nal2Function.Handler) {
+    functions.register(builder.build(handler))
+  }
 
-        val result =
-                nal2Manager.getSII(
-                        params.getInt("nCompSpeed"),
-                        speechThresh,
-                        params.getInt("s"),
-                        reag,
-                        reagp,
-                        reagm,
-                        reur
-                )
-        output.put("SII", result)
-      }
-      else -> throw Exception("未知函数: $functionName")
+  /** FullPrescription的参数，required为false时全部可选（FullPrescriptionUpdate） */
+  private fun prescriptionParams(builder: Nal2Function.Builder, required: Boolean): Nal2Function.Builder {
+    for (name in arrayOf("adultChild", "dateOfBirth", "experience", "compSpeed", "tonal", "gender")) {
+      if (required) builder.intParam(name) else builder.optionalIntParam(name)
+    }
+    if (required) {
+      builder.doubleArray("AC", AUDIOGRAM_POINTS)
+              .doubleArray("BC", AUDIOGRAM_POINTS)
+              .intParam("channels")
+              .intParam("WBCT")
+              .intParam("aidType")
+              .intArray("calcCh", Nal2Function.ANY_LENGTH)
+              .intArray("levels", Nal2Function.ANY_LENGTH)
+    } else {
+      builder.optionalDoubleArray("AC", AUDIOGRAM_POINTS)
+              .optionalDoubleArray("BC", AUDIOGRAM_POINTS)
+              .optionalIntParam("channels")
+              .optionalIntParam("WBCT")
+              .optionalIntParam("aidType")
+              .optionalIntArray("calcCh", Nal2Function.ANY_LENGTH)
+              .optionalIntArray("levels", Nal2Function.ANY_LENGTH)
     }
+    return builder
+            .optionalDoubleArray("ACother", AUDIOGRAM_POINTS)
+            .optionalIntParam("bandWidth")
+            .optionalIntParam("selection")
+            .optionalIntParam("limiting")
+            .optionalIntParam("direction")
+            .optionalIntParam("mic")
+            .optionalIntParam("noOfAids")
+            .optionalIntParam("mpoType")
+            .optionalIntArray("graphFreqs", Nal2Function.ANY_LENGTH)
+            .optionalIntParam("startLevel")
+            .optionalIntParam("finishLevel")
+            .optionalIntParam("target")
+            .optionalDoubleParam("speechLevel")
+  }
 
-    return output
+  /** 增益类函数共同的参数：听力图、声级、限幅、通道数、方向性、麦克风、助听器数量 */
+  private fun gainParams(builder: Nal2Function.Builder): Nal2Function.Builder {
+    return builder
+            .doubleArray("AC", AUDIOGRAM_POINTS)
+            .doubleArray("BC", AUDIOGRAM_POINTS)
+            .doubleParam("L")
+            .intParam("limiting")
+            .intParam("channels")
+            .intParam("direction")
+            .intParam("mic")
+            .intParam("noOfAids")
   }
 
-  // 辅助方法：JSON数组转Double数组
-  private fun jsonArrayToDoubleArray(jsonArray: JSONArray): DoubleArray {
-    return DoubleArray(jsonArray.length()) { jsonArray.getDouble(it) }
+  /** I/O曲线函数共同的参数 */
+  private fun curveParams(builder: Nal2Function.Builder): Nal2Function.Builder {
+    return builder
+            .doubleArray("AC", AUDIOGRAM_POINTS)
+            .doubleArray("BC", AUDIOGRAM_POINTS)
+            .doubleArray("ACother", AUDIOGRAM_POINTS)
+            .intParam("graphFreq")
+            .intParam("startLevel")
+            .intParam("finishLevel")
+            .intParam("limiting")
+            .intParam("channels")
+            .intParam("direction")
+            .intParam("mic")
+            .intParam("target")
+            .intParam("noOfAids")
   }
 
-  // 辅助方法：JSON数组转Int数组
-  private fun jsonArrayToIntArray(jsonArray: JSONArray): IntArray {
-    return IntArray(jsonArray.length()) {
-      // 兼容处理：可能是整数也可能是浮点数
-      try {
-        jsonArray.getInt(it)
-      } catch (e: Exception) {
-        jsonArray.getDouble(it).toInt()
-      }
-    }
+  /** 耦合腔/耳模拟器换算需要的换能器参数 */
+  private fun transducerParams(builder: Nal2Function.Builder): Nal2Function.Builder {
+    return builder.intParam("aidType").intParam("tubing").intParam("vent").intParam("RECDmeasType")
   }
 
-  // 辅助方法：Double数组转JSON数组
-  private fun doubleArrayToJSONArray(array: DoubleArray): JSONArray {
-    val jsonArray = JSONArray()
-    array.forEach { jsonArray.put(it) }
-    return jsonArray
+  private fun recdParams(builder: Nal2Function.Builder, withVent: Boolean): Nal2Function.Builder {
+    builder.intParam("RECDmeasType").intParam("dateOfBirth").intParam("aidType").intParam("tubing")
+    if (withVent) {
+      builder.intParam("vent").intParam("earpiece")
+    }
+    return builder.intParam("coupler").intParam("fittingDepth")
   }
 
-  // 辅助方法：Int数组转JSON数组
-  private fun intArrayToJSONArray(array: IntArray): JSONArray {
-    val jsonArray = JSONArray()
-    array.forEach { jsonArray.put(it) }
-    return jsonArray
+  private fun reurParams(builder: Nal2Function.Builder): Nal2Function.Builder {
+    return builder.intParam("defValues").intParam("dateOfBirth").intParam("direction").intParam("mic")
   }
 }
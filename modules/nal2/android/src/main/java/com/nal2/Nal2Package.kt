@@ -8,7 +8,7 @@ import com.facebook.react.uimanager.ViewManager
 
 class Nal2Package : ReactPackage {
   override fun createNativeModules(reactContext: ReactApplicationContext): List<NativeModule> {
-    return listOf(Nal2Module(reactContext))
+    return listOf(Nal2Module.getInstance(reactContext))
   }
 
   override fun createViewManagers(reactContext: ReactApplicationContext): List<ViewManager<*, *>> {
@@ -0,0 +1,452 @@
+package com.nal2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * 请求的input_parameters
+ * 数值和数值数组直接保存为double（数组连续存放在同一个缓冲区中），不经过JSONObject/JSONArray，
+ * 缓冲区在clear()后复用。嵌套对象等其它值（如批量请求中的$ref）保存为org.json对象。
+ * 取值方法的类型转换规则与JSONObject相同（getInt截断小数、数值字符串可转换为数值）。
+ * 不是线程安全的：在调用线程上解析完成后交给NAL2引擎线程使用，同一时间只能由一个线程访问。
+ */
+public final class Nal2Params {
+    static final byte NUMBER = 1;
+    static final byte NUMBER_ARRAY = 2;
+    static final byte STRING = 3;
+    static final byte BOOLEAN = 4;
+    static final byte NULL = 5;
+    static final byte OTHER = 6;
+
+    private static final int INITIAL_FIELDS = 16;
+    private static final int INITIAL_NUMBERS = 256;
+
+    private String[] names = new String[INITIAL_FIELDS];
+    private byte[] types = new byte[INITIAL_FIELDS];
+    // NUMBER的值；BOOLEAN为1或0
+    private double[] scalars = new double[INITIAL_FIELDS];
+    // NUMBER_ARRAY在numbers中的位置
+    private int[] offsets = new int[INITIAL_FIELDS];
+    private int[] lengths = new int[INITIAL_FIELDS];
+    // STRING的值或OTHER的org.json对象
+    private Object[] objects = new Object[INITIAL_FIELDS];
+    private int size;
+
+    private double[] numbers = new double[INITIAL_NUMBERS];
+    private int numberCount;
+
+    public Nal2Params() {
+    }
+
+    /** 清空所有参数，保留已分配的缓冲区 */
+    public void clear() {
+        Arrays.fill(objects, 0, size, null);
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        numberCount = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** 第index个参数名（按首次出现的顺序） */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public boolean has(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    public int getInt(String name) {
+        return (int) getDouble(name);
+    }
+
+    public int optInt(String name, int defaultValue) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return defaultValue;
+        }
+        double value = toDouble(index, Double.NaN);
+        return Double.isNaN(value) ? defaultValue : (int) value;
+    }
+
+    public double getDouble(String name) {
+        int index = require(name);
+        double value = toDouble(index, Double.NaN);
+        if (Double.isNaN(value)) {
+            throw typeError(name, "数值");
+        }
+        return value;
+    }
+
+    public double optDouble(String name, double defaultValue) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return defaultValue;
+        }
+        double value = toDouble(index, Double.NaN);
+        return Double.isNaN(value) ? defaultValue : value;
+    }
+
+    public boolean optBoolean(String name, boolean defaultValue) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return defaultValue;
+        }
+        if (types[index] == BOOLEAN) {
+            return scalars[index] != 0;
+        }
+        if (types[index] == STRING) {
+            String value = (String) objects[index];
+            if ("true".equalsIgnoreCase(value)) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase(value)) {
+                return false;
+            }
+        }
+        return defaultValue;
+    }
+
+    public String getString(String name) {
+        int index = require(name);
+        switch (types[index]) {
+            case STRING:
+                return (String) objects[index];
+            case NUMBER:
+                return numberToString(scalars[index]);
+            case BOOLEAN:
+                return scalars[index] != 0 ? "true" : "false";
+            default:
+                throw typeError(name, "字符串");
+        }
+    }
+
+    /** 参数是否为全部由数值组成的数组 */
+    public boolean isNumberArray(String name) {
+        int index = indexOf(name);
+        return index >= 0 && types[index] == NUMBER_ARRAY;
+    }
+
+    /** 数组参数的长度（不复制数组） */
+    public int getArrayLength(String name) {
+        int index = require(name);
+        if (types[index] == NUMBER_ARRAY) {
+            return lengths[index];
+        }
+        if (types[index] == OTHER && objects[index] instanceof JSONArray) {
+            // 含数值字符串等元素的数组，按getDoubleArray的规则检查能否转换
+            return getDoubleArray(name).length;
+        }
+        throw typeError(name, "数值数组");
+    }
+
+    /** 数值数组的副本 */
+    public double[] getDoubleArray(String name) {
+        int index = require(name);
+        if (types[index] == NUMBER_ARRAY) {
+            return Arrays.copyOfRange(numbers, offsets[index], offsets[index] + lengths[index]);
+        }
+        if (types[index] == OTHER && objects[index] instanceof JSONArray) {
+            // 数组中有数值字符串等非数值元素，按JSONArray的规则转换
+            JSONArray array = (JSONArray) objects[index];
+            double[] result = new double[array.length()];
+            try {
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = array.getDouble(i);
+                }
+            } catch (JSONException e) {
+                throw typeError(name, "数值数组");
+            }
+            return result;
+        }
+        throw typeError(name, "数值数组");
+    }
+
+    /** 数值数组转为int数组（小数截断） */
+    public int[] getIntArray(String name) {
+        double[] values = getDoubleArray(name);
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (int) values[i];
+        }
+        return result;
+    }
+
+    /** 嵌套对象等非基本类型的值，其它类型返回null */
+    public Object getOther(String name) {
+        int index = indexOf(name);
+        return index >= 0 && types[index] == OTHER ? objects[index] : null;
+    }
+
+    void putNumber(String name, double value) {
+        int index = slot(name, NUMBER);
+        scalars[index] = value;
+    }
+
+    void putString(String name, String value) {
+        int index = slot(name, STRING);
+        objects[index] = value;
+    }
+
+    void putBoolean(String name, boolean value) {
+        int index = slot(name, BOOLEAN);
+        scalars[index] = value ? 1 : 0;
+    }
+
+    void putNull(String name) {
+        slot(name, NULL);
+    }
+
+    void putOther(String name, Object value) {
+        int index = slot(name, OTHER);
+        objects[index] = value;
+    }
+
+    /** 开始写入数值数组，返回数组在缓冲区中的起始位置 */
+    int beginArray() {
+        return numberCount;
+    }
+
+    void appendNumber(double value) {
+        if (numberCount == numbers.length) {
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+        }
+        numbers[numberCount++] = value;
+    }
+
+    /** 结束数值数组：数组为缓冲区中从start开始到当前位置的数值 */
+    void endArray(String name, int start) {
+        int index = slot(name, NUMBER_ARRAY);
+        offsets[index] = start;
+        lengths[index] = numberCount - start;
+    }
+
+    /** 放弃从start开始写入的数值（数组中出现非数值元素时），返回这些数值 */
+    double[] abandonArray(int start) {
+        double[] values = Arrays.copyOfRange(numbers, start, numberCount);
+        numberCount = start;
+        return values;
+    }
+
+    /**
+     * 按org.json值设置参数：数值、全部为数值的JSONArray、字符串、布尔值直接保存，其它保存为原对象
+     */
+    public void put(String name, Object value) {
+        if (value instanceof Number) {
+            putNumber(name, ((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            putString(name, (String) value);
+        } else if (value instanceof Boolean) {
+            putBoolean(name, (Boolean) value);
+        } else if (value == null || value == JSONObject.NULL) {
+            putNull(name);
+        } else if (value instanceof JSONArray && isNumberArray((JSONArray) value)) {
+            JSONArray array = (JSONArray) value;
+            int start = beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                appendNumber(((Number) array.opt(i)).doubleValue());
+            }
+            endArray(name, start);
+        } else {
+            putOther(name, value);
+        }
+    }
+
+    /** 把source中的参数name复制到本对象 */
+    public void copyFrom(Nal2Params source, String name) {
+        int index = source.require(name);
+        switch (source.types[index]) {
+            case NUMBER:
+                putNumber(name, source.scalars[index]);
+                break;
+            case NUMBER_ARRAY: {
+                int start = beginArray();
+                int end = source.offsets[index] + source.lengths[index];
+                for (int i = source.offsets[index]; i < end; i++) {
+                    appendNumber(source.numbers[i]);
+                }
+                endArray(name, start);
+                break;
+            }
+            case STRING:
+                putString(name, (String) source.objects[index]);
+                break;
+            case BOOLEAN:
+                putBoolean(name, source.scalars[index] != 0);
+                break;
+            case NULL:
+                putNull(name);
+                break;
+            default:
+                putOther(name, source.objects[index]);
+                break;
+        }
+    }
+
+    /** 独立的副本（只占用实际需要的缓冲区，可在clear()后继续使用） */
+    public Nal2Params copy() {
+        Nal2Params copy = new Nal2Params();
+        for (int i = 0; i < size; i++) {
+            copy.copyFrom(this, names[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * 把参数的规范表示追加到out：按参数名排序，与参数顺序无关，值相同的参数得到相同的结果
+     * 用于请求合并的键（见Nal2RequestCoalescer）
+     */
+    void appendKey(StringBuilder out) {
+        // 参数通常只有十几个，插入排序即可
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            int j = i;
+            while (j > 0 && names[order[j - 1]].compareTo(names[i]) > 0) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        for (int index : order) {
+            out.append(names[index]).append('=').append(types[index]).append(':');
+            switch (types[index]) {
+                case NUMBER:
+                case BOOLEAN:
+                    out.append(scalars[index]);
+                    break;
+                case NUMBER_ARRAY: {
+                    int end = offsets[index] + lengths[index];
+                    out.append(lengths[index]);
+                    for (int i = offsets[index]; i < end; i++) {
+                        out.append(',').append(numbers[i]);
+                    }
+                    break;
+                }
+                case NULL:
+                    break;
+                default: {
+                    // 字符串和嵌套对象带长度前缀，避免与分隔符混淆
+                    String value = objects[index].toString();
+                    out.append(value.length()).append(':').append(value);
+                    break;
+                }
+            }
+            out.append(';');
+        }
+    }
+
+    /** 参数name在两个对象中是否都存在且值相同（数值按double比较） */
+    public boolean sameValue(String name, Nal2Params other) {
+        int a = indexOf(name);
+        int b = other.indexOf(name);
+        if (a < 0 || b < 0 || types[a] != other.types[b]) {
+            return false;
+        }
+        switch (types[a]) {
+            case NUMBER:
+            case BOOLEAN:
+                return Double.compare(scalars[a], other.scalars[b]) == 0;
+            case NUMBER_ARRAY: {
+                if (lengths[a] != other.lengths[b]) {
+                    return false;
+                }
+                for (int i = 0; i < lengths[a]; i++) {
+                    if (Double.compare(numbers[offsets[a] + i], other.numbers[other.offsets[b] + i]) != 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case STRING:
+                return objects[a].equals(other.objects[b]);
+            case NULL:
+                return true;
+            default:
+                return objects[a].toString().equals(other.objects[b].toString());
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int require(String name) {
+        int index = indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("缺少参数: " + name);
+        }
+        return index;
+    }
+
+    // 参数重复时后出现的覆盖先出现的（与JSONObject相同）
+    private int slot(String name, byte type) {
+        int index = indexOf(name);
+        if (index < 0) {
+            if (size == names.length) {
+                grow();
+            }
+            index = size++;
+            names[index] = name;
+        }
+        types[index] = type;
+        objects[index] = null;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        types = Arrays.copyOf(types, capacity);
+        scalars = Arrays.copyOf(scalars, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+    }
+
+    // 不能转换为数值时返回fallback
+    private double toDouble(int index, double fallback) {
+        switch (types[index]) {
+            case NUMBER:
+                return scalars[index];
+            case STRING:
+                try {
+                    return Double.parseDouble(((String) objects[index]).trim());
+                } catch (NumberFormatException e) {
+                    return fallback;
+                }
+            default:
+                return fallback;
+        }
+    }
+
+    private static boolean isNumberArray(JSONArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            if (!(array.opt(i) instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String numberToString(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static IllegalArgumentException typeError(String name, String expected) {
+        return new IllegalArgumentException("参数" + name + "不是" + expected);
+    }
+}
@@ -0,0 +1,235 @@
+package com.nal2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * 请求合并（single-flight）：并发的相同请求只在NAL2引擎上执行一次，共享同一份响应字节
+ * 请求的规范键为响应格式、函数、session_id和按参数名排序的input_parameters，
+ * 与JSON的空白、键顺序、sequence_num以及请求是JSON还是二进制协议无关；合并的请求得到的响应中写入各自的sequence_num。
+ * 只合并声明为readOnly的函数的单个请求。修改状态的请求（Set*、FullPrescription等）和含有这类请求的
+ * 批量请求在提交时推进状态纪元，纪元是键的一部分，之后到达的相同请求不会与之前提交的请求合并，
+ * 结果与按提交顺序逐个执行相同。带latest_wins的请求不合并（由Nal2RequestScheduler按提交顺序判断是否被取代）。
+ * 调用方可以cancel()返回的future；同一个键上的请求全部取消后，取消引擎上的请求。
+ * 请求由调用方解码一次（Nal2RequestDecoder.take()），规范键在锁外生成，锁内只处理纪元和正在执行的请求。
+ * 可在任意线程调用。
+ */
+public final class Nal2RequestCoalescer {
+
+    // 同一个键上正在执行的请求：第一个为实际提交到引擎的请求，其余为合并进来的请求
+    private static final class Flight {
+        final String key;
+        final List<CompletableFuture<Nal2ResponseBuffer>> waiters =
+                new ArrayList<CompletableFuture<Nal2ResponseBuffer>>(2);
+        // 与waiters一一对应的请求sequence_num
+        final List<Integer> sequenceNums = new ArrayList<Integer>(2);
+        // 提交到引擎的请求，提交返回前为null
+        CompletableFuture<Nal2ResponseBuffer> submitted;
+
+        Flight(String key) {
+            this.key = key;
+        }
+    }
+
+    private final Nal2FunctionRegistry functions;
+    private final Nal2RequestScheduler engine;
+
+    // 以下字段由this保护
+    private final Map<String, Flight> inFlight = new HashMap<String, Flight>();
+    private long epoch;
+
+    private volatile long leaders;
+    private volatile long coalesced;
+    private volatile long bypassed;
+
+    /**
+     * @param functions 用于判断函数是否readOnly（注册完成后只读）
+     * @param engine 实际执行请求的调度器
+     */
+    public Nal2RequestCoalescer(Nal2FunctionRegistry functions, Nal2RequestScheduler engine) {
+        this.functions = functions;
+        this.engine = engine;
+    }
+
+    /**
+     * 提交已解码的请求，完成值与Nal2Engine.process()相同
+     *
+     * @param binaryResponse 以二进制协议返回响应，否则返回JSON
+     */
+    public CompletableFuture<Nal2ResponseBuffer> process(Nal2RequestDecoder.Result request, boolean binaryResponse) {
+        final CompletableFuture<Nal2ResponseBuffer> result = new CompletableFuture<Nal2ResponseBuffer>();
+        String params = key(request, binaryResponse);
+        boolean mutates = mutatesState(request);
+        final Flight flight;
+        synchronized (this) {
+            if (mutates) {
+                epoch++;
+            }
+            String key = params != null ? epoch + "|" + params : null;
+            if (key == null) {
+                bypassed++;
+                flight = null;
+            } else {
+                Flight existing = inFlight.get(key);
+                if (existing != null) {
+                    existing.waiters.add(result);
+                    existing.sequenceNums.add(request.getRequest().getSequenceNum());
+                    coalesced++;
+                    onCancel(result, existing);
+                    return result;
+                }
+                flight = new Flight(key);
+                flight.waiters.add(result);
+                flight.sequenceNums.add(request.getRequest().getSequenceNum());
+                inFlight.put(key, flight);
+                leaders++;
+            }
+        }
+        if (flight == null) {
+            return engine.process(request, binaryResponse);
+        }
+        onCancel(result, flight);
+        CompletableFuture<Nal2ResponseBuffer> submitted = engine.process(request, binaryResponse);
+        synchronized (this) {
+            flight.submitted = submitted;
+        }
+        submitted.whenComplete(
+                new BiConsumer<Nal2ResponseBuffer, Throwable>() {
+                    @Override
+                    public void accept(Nal2ResponseBuffer response, Throwable error) {
+                        complete(flight, response, error);
+                    }
+                });
+        // 提交期间所有请求已被取消
+        cancelIfAbandoned(flight);
+        return result;
+    }
+
+    /** 实际提交到引擎的可合并请求数 */
+    public long getLeaders() {
+        return leaders;
+    }
+
+    /** 合并到正在执行的相同请求、没有再提交到引擎的请求数 */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /** 不可合并（修改状态、批量或无法解析）直接提交的请求数 */
+    public long getBypassed() {
+        return bypassed;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight.size();
+    }
+
+    private void onCancel(final CompletableFuture<Nal2ResponseBuffer> waiter, final Flight flight) {
+        waiter.whenComplete(new BiConsumer<Nal2ResponseBuffer, Throwable>() {
+            @Override
+            public void accept(Nal2ResponseBuffer response, Throwable error) {
+                if (waiter.isCancelled()) {
+                    cancelIfAbandoned(flight);
+                }
+            }
+        });
+    }
+
+    // 所有等待的请求都已取消时，不再接受合并并取消引擎上的请求
+    private void cancelIfAbandoned(Flight flight) {
+        CompletableFuture<Nal2ResponseBuffer> submitted;
+        synchronized (this) {
+            for (CompletableFuture<Nal2ResponseBuffer> waiter : flight.waiters) {
+                if (!waiter.isCancelled()) {
+                    return;
+                }
+            }
+            if (inFlight.get(flight.key) == flight) {
+                inFlight.remove(flight.key);
+            }
+            submitted = flight.submitted;
+        }
+        if (submitted != null) {
+            submitted.cancel(false);
+        }
+    }
+
+    private void complete(Flight flight, Nal2ResponseBuffer response, Throwable error) {
+        synchronized (this) {
+            // 移除后不会再有请求加入waiters
+            if (inFlight.get(flight.key) == flight) {
+                inFlight.remove(flight.key);
+            }
+        }
+        List<CompletableFuture<Nal2ResponseBuffer>> waiters = flight.waiters;
+        if (error != null) {
+            for (CompletableFuture<Nal2ResponseBuffer> waiter : waiters) {
+                waiter.completeExceptionally(error);
+            }
+            return;
+        }
+        // 每个调用方各自release()，合并进来的请求得到写入自己sequence_num的副本，原缓冲区交给第一个请求；
+        // 已取消的请求不再需要缓冲区
+        int leaderSequenceNum = flight.sequenceNums.get(0);
+        for (int i = 1; i < waiters.size(); i++) {
+            int sequenceNum = flight.sequenceNums.get(i);
+            Nal2ResponseBuffer copy = sequenceNum == leaderSequenceNum
+                    ? response.copy() : response.copyWithSequenceNum(sequenceNum);
+            if (!waiters.get(i).complete(copy)) {
+                copy.release();
+            }
+        }
+        if (!waiters.get(0).complete(response)) {
+            response.release();
+        }
+    }
+
+    // 请求的规范键（不含纪元），不可合并时返回null
+    private String key(Nal2RequestDecoder.Result decoded, boolean binaryResponse) {
+        Nal2RequestDecoder.Request request = decoded.getRequest();
+        if (request == null) {
+            // 批量请求或格式错误的请求
+            return null;
+        }
+        Nal2Function function = function(request);
+        if (function == null || !function.isReadOnly() || !request.hasParams() || request.isLatestWins()) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(128);
+        key.append(binaryResponse ? 'B' : 'J').append('|').append(function.getId()).append('|')
+                .append(request.getSessionId()).append('|');
+        request.getParams().appendKey(key);
+        return key.toString();
+    }
+
+    // 请求是否修改状态（推进纪元）：修改状态的单个请求，或含有这类请求（或未知函数）的批量请求；
+    // 格式错误、缺少参数的请求只返回错误响应，不影响状态
+    private boolean mutatesState(Nal2RequestDecoder.Result decoded) {
+        if (decoded.isBatch()) {
+            for (Nal2RequestDecoder.Request request : decoded.getBatch()) {
+                Nal2Function function = function(request);
+                if (function == null || !function.isReadOnly()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Nal2RequestDecoder.Request request = decoded.getRequest();
+        if (request == null || !request.hasParams()) {
+            return false;
+        }
+        Nal2Function function = function(request);
+        return function != null && !function.isReadOnly();
+    }
+
+    private Nal2Function function(Nal2RequestDecoder.Request request) {
+        if (request.getFunctionId() != Nal2BinaryCodec.UNKNOWN_FUNCTION) {
+            return functions.get(request.getFunctionId());
+        }
+        return request.getFunction() != null ? functions.get(request.getFunction()) : null;
+    }
+}
@@ -0,0 +1,906 @@
+package com.nal2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 流式请求解码器
+ * 直接在UTF-8请求体字节上一遍解析sequence_num、function、session_id、id、信封字段（deadline_ms、latest_wins、
+ * priority）和input_parameters，数值数组写入Nal2Params的复用缓冲区，不构造JSONObject/JSONArray和装箱的Double。
+ * 单个请求复用同一个Request；批量请求（JSON数组）每项使用独立的Request。
+ * 只接受标准JSON。decodeBinary()解析二进制协议（见Nal2BinaryCodec），结果的结构相同。
+ * 不是线程安全的；take()取出的Result归调用方所有，可以交给引擎线程使用。
+ */
+public final class Nal2RequestDecoder {
+
+    /** 一个请求 */
+    public static final class Request {
+        private int sequenceNum;
+        private String function;
+        private int functionId;
+        private String sessionId;
+        private String id;
+        private long deadlineMs;
+        private boolean latestWins;
+        private String priority;
+        private boolean hasParams;
+        private boolean object;
+        private final Nal2Params params;
+
+        Request(Nal2Params params) {
+            this.params = params;
+        }
+
+        void reset() {
+            sequenceNum = 0;
+            function = null;
+            functionId = Nal2BinaryCodec.UNKNOWN_FUNCTION;
+            sessionId = null;
+            id = null;
+            deadlineMs = 0;
+            latestWins = false;
+            priority = null;
+            hasParams = false;
+            object = true;
+            params.clear();
+        }
+
+        public int getSequenceNum() {
+            return sequenceNum;
+        }
+
+        /** 函数名，请求中没有时为null */
+        public String getFunction() {
+            return function;
+        }
+
+        /** 函数ID（见Nal2BinaryCodec），函数名不在字典中时为UNKNOWN_FUNCTION */
+        public int getFunctionId() {
+            return functionId;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /** 批量请求中的步骤ID，请求中没有时为null */
+        public String getId() {
+            return id;
+        }
+
+        /** 请求的处理时限（毫秒，从服务器收到请求时算起），请求中没有时为0 */
+        public long getDeadlineMs() {
+            return deadlineMs;
+        }
+
+        /** 同一会话的同一函数有更新的请求时是否跳过本请求 */
+        public boolean isLatestWins() {
+            return latestWins;
+        }
+
+        /** 请求的优先级（"interactive"或"bulk"），请求中没有时为null */
+        public String getPriority() {
+            return priority;
+        }
+
+        /** 请求中是否有input_parameters对象 */
+        public boolean hasParams() {
+            return hasParams;
+        }
+
+        /** 批量请求中的该项是否为JSON对象 */
+        public boolean isObject() {
+            return object;
+        }
+
+        public Nal2Params getParams() {
+            return params;
+        }
+    }
+
+    /** take()取出的一次解析结果，之后解码器不再修改其中的Request */
+    public static final class Result {
+        private final Request request;
+        private final List<Request> batch;
+        private final Exception error;
+
+        Result(Request request, List<Request> batch, Exception error) {
+            this.request = request;
+            this.batch = batch;
+            this.error = error;
+        }
+
+        /** 请求体是否为批量请求；无法解析时为false */
+        public boolean isBatch() {
+            return batch != null;
+        }
+
+        /** 单个请求，批量请求或无法解析时为null */
+        public Request getRequest() {
+            return request;
+        }
+
+        /** 批量请求的各项，单个请求或无法解析时为null */
+        public List<Request> getBatch() {
+            return batch;
+        }
+
+        /** 解析失败的原因，成功时为null */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    // 快速路径可精确表示的10的幂
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    // 参数名缓存上限
+    private static final int MAX_CACHED_NAMES = 128;
+
+    private Request request = new Request(new Nal2Params());
+    private final List<Request> batch = new ArrayList<Request>();
+    private boolean isBatch;
+
+    private byte[] data;
+    private int pos;
+    private int end;
+
+    // 最近一次解析的数值是否为整数写法（无小数点和指数）
+    private boolean integral;
+
+    // 参数名的UTF-8字节 -> String，避免每个请求重复创建参数名
+    private byte[][] nameBytes = new byte[16][];
+    private String[] nameStrings = new String[16];
+    private int nameCount;
+
+    private final StringBuilder builder = new StringBuilder();
+
+    private volatile long requests;
+    private volatile long bytes;
+    private volatile long numbers;
+    private volatile long slowNumbers;
+    private volatile long binaryRequests;
+
+    /**
+     * 解析请求体，之后用isBatch()判断结果是getRequest()还是getBatch()
+     * 单个请求的结果在下一次decode前有效
+     */
+    public void decode(byte[] body, int offset, int length) throws JSONException {
+        data = body;
+        pos = offset;
+        end = offset + length;
+        batch.clear();
+        try {
+            skipWhitespace();
+            int c = peek();
+            if (c == '[') {
+                isBatch = true;
+                pos++;
+                if (!consumeIf(']')) {
+                    do {
+                        Request item = new Request(new Nal2Params());
+                        item.reset();
+                        skipWhitespace();
+                        if (peek() == '{') {
+                            readRequest(item);
+                        } else {
+                            readValue();
+                            item.object = false;
+                        }
+                        batch.add(item);
+                    } while (consumeIf(','));
+                    expect(']');
+                }
+            } else if (c == '{') {
+                isBatch = false;
+                request.reset();
+                readRequest(request);
+            } else {
+                throw syntaxError("请求必须是JSON对象或数组");
+            }
+            skipWhitespace();
+            if (pos < end) {
+                throw syntaxError("请求结尾有多余的内容");
+            }
+            requests++;
+            bytes += length;
+        } finally {
+            data = null;
+        }
+    }
+
+    /**
+     * 解析二进制协议的请求体：只有一帧时为单个请求，多帧时为批量请求（isBatch()为true）
+     * 二进制请求没有步骤ID，批量请求中的步骤ID为默认的step<序号>
+     */
+    public void decodeBinary(byte[] body, int offset, int length) throws JSONException {
+        data = body;
+        pos = offset;
+        end = offset + length;
+        batch.clear();
+        try {
+            if (length >= 4 && readInt() == length - 4) {
+                isBatch = false;
+                pos = offset;
+                request.reset();
+                readFrame(request);
+            } else {
+                if (length == 0) {
+                    throw binaryError("请求为空");
+                }
+                isBatch = true;
+                pos = offset;
+                while (pos < end) {
+                    Request item = new Request(new Nal2Params());
+                    item.reset();
+                    readFrame(item);
+                    batch.add(item);
+                }
+            }
+            requests++;
+            binaryRequests++;
+            bytes += length;
+        } catch (BufferUnderflowException e) {
+            throw binaryError("请求不完整");
+        } finally {
+            data = null;
+        }
+    }
+
+    /**
+     * 解析请求体并取出结果，结果归调用方所有，解码器之后使用新的Request
+     * 请求体无法解析时不抛出异常，返回的Result中getError()为解析错误
+     *
+     * @param binary 请求体为二进制协议，否则为UTF-8 JSON
+     */
+    public Result take(byte[] body, boolean binary) {
+        try {
+            if (binary) {
+                decodeBinary(body, 0, body.length);
+            } else {
+                decode(body, 0, body.length);
+            }
+        } catch (Exception e) {
+            return new Result(null, null, e);
+        }
+        if (isBatch) {
+            return new Result(null, new ArrayList<Request>(batch), null);
+        }
+        Request single = request;
+        request = new Request(new Nal2Params());
+        return new Result(single, null, null);
+    }
+
+    public boolean isBatch() {
+        return isBatch;
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    public List<Request> getBatch() {
+        return batch;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** 解析的数值总数 */
+    public long getNumbers() {
+        return numbers;
+    }
+
+    /** 超出快速路径、交给Double.parseDouble的数值数 */
+    public long getSlowNumbers() {
+        return slowNumbers;
+    }
+
+    /** 其中二进制协议的请求数 */
+    public long getBinaryRequests() {
+        return binaryRequests;
+    }
+
+    private void readRequest(Request target) throws JSONException {
+        expect('{');
+        if (consumeIf('}')) {
+            return;
+        }
+        do {
+            skipWhitespace();
+            String key = readName();
+            expect(':');
+            skipWhitespace();
+            if ("input_parameters".equals(key) && peek() == '{') {
+                target.params.clear();
+                readParams(target.params);
+                target.hasParams = true;
+            } else if ("sequence_num".equals(key)) {
+                Object value = readValue();
+                target.sequenceNum = toInt(value);
+            } else if ("function".equals(key)) {
+                target.function = toStringValue(readValue());
+                // 函数名在此处转换为ID，之后按ID分发
+                target.functionId = Nal2BinaryCodec.functionId(target.function);
+            } else if ("session_id".equals(key)) {
+                target.sessionId = toStringValue(readValue());
+            } else if ("id".equals(key)) {
+                target.id = toStringValue(readValue());
+            } else if ("deadline_ms".equals(key)) {
+                target.deadlineMs = Math.max(0, toInt(readValue()));
+            } else if ("latest_wins".equals(key)) {
+                target.latestWins = readValue() == Boolean.TRUE;
+            } else if ("priority".equals(key)) {
+                target.priority = toStringValue(readValue());
+            } else {
+                readValue();
+            }
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    private void readParams(Nal2Params params) throws JSONException {
+        expect('{');
+        if (consumeIf('}')) {
+            return;
+        }
+        do {
+            skipWhitespace();
+            String name = readName();
+            expect(':');
+            skipWhitespace();
+            switch (peek()) {
+                case '[':
+                    readParamArray(params, name);
+                    break;
+                case '{':
+                    params.putOther(name, readObject());
+                    break;
+                case '"':
+                    params.putString(name, readString());
+                    break;
+                case 't':
+                case 'f':
+                    params.putBoolean(name, readLiteral() == Boolean.TRUE);
+                    break;
+                case 'n':
+                    readLiteral();
+                    params.putNull(name);
+                    break;
+                default:
+                    params.putNumber(name, readNumber());
+                    break;
+            }
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    // 数组元素全部为数值时写入数值缓冲区，否则保存为JSONArray
+    private void readParamArray(Nal2Params params, String name) throws JSONException {
+        expect('[');
+        int start = params.beginArray();
+        if (consumeIf(']')) {
+            params.endArray(name, start);
+            return;
+        }
+        do {
+            skipWhitespace();
+            int c = peek();
+            if (c != '-' && (c < '0' || c > '9')) {
+                JSONArray array = new JSONArray();
+                for (double value : params.abandonArray(start)) {
+                    array.put(value);
+                }
+                readArrayRest(array);
+                params.putOther(name, array);
+                return;
+            }
+            params.appendNumber(readNumber());
+        } while (consumeIf(','));
+        expect(']');
+        params.endArray(name, start);
+    }
+
+    private Object readValue() throws JSONException {
+        skipWhitespace();
+        switch (peek()) {
+            case '{':
+                return readObject();
+            case '[':
+                expect('[');
+                JSONArray array = new JSONArray();
+                if (consumeIf(']')) {
+                    return array;
+                }
+                readArrayRest(array);
+                return array;
+            case '"':
+                return readString();
+            case 't':
+            case 'f':
+            case 'n':
+                return readLiteral();
+            default:
+                double value = readNumber();
+                if (integral && value == (int) value) {
+                    return (int) value;
+                }
+                if (integral && Math.abs(value) < MAX_EXACT_MANTISSA) {
+                    return (long) value;
+                }
+                return value;
+        }
+    }
+
+    private JSONObject readObject() throws JSONException {
+        expect('{');
+        JSONObject object = new JSONObject();
+        if (consumeIf('}')) {
+            return object;
+        }
+        do {
+            skipWhitespace();
+            String key = readName();
+            expect(':');
+            object.put(key, readValue());
+        } while (consumeIf(','));
+        expect('}');
+        return object;
+    }
+
+    // 左括号和可能的前几个元素已读取
+    private void readArrayRest(JSONArray array) throws JSONException {
+        do {
+            array.put(readValue());
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    private Object readLiteral() throws JSONException {
+        if (matches("true")) {
+            return Boolean.TRUE;
+        }
+        if (matches("false")) {
+            return Boolean.FALSE;
+        }
+        if (matches("null")) {
+            return JSONObject.NULL;
+        }
+        throw syntaxError("无法识别的值");
+    }
+
+    private boolean matches(String literal) {
+        if (end - pos < literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (data[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += literal.length();
+        return true;
+    }
+
+    /**
+     * 解析数值：有效数字不超过2^53且10的指数不超过22时，一次乘除即可得到正确舍入的结果，
+     * 否则交给Double.parseDouble
+     */
+    private double readNumber() throws JSONException {
+        int start = pos;
+        boolean negative = consumeIf('-');
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        integral = true;
+
+        int intStart = pos;
+        while (pos < end && isDigit(data[pos])) {
+            int digit = data[pos++] - '0';
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                exact = false;
+            }
+        }
+        if (pos == intStart) {
+            throw syntaxError("无法识别的值");
+        }
+        if (pos < end && data[pos] == '.') {
+            integral = false;
+            pos++;
+            int fracStart = pos;
+            while (pos < end && isDigit(data[pos])) {
+                int digit = data[pos++] - '0';
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    exponent--;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                } else if (digit != 0) {
+                    exact = false;
+                }
+            }
+            if (pos == fracStart) {
+                throw syntaxError("小数点后缺少数字");
+            }
+        }
+        if (pos < end && (data[pos] == 'e' || data[pos] == 'E')) {
+            integral = false;
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (data[pos] == '+' || data[pos] == '-')) {
+                negativeExponent = data[pos++] == '-';
+            }
+            int expStart = pos;
+            int value = 0;
+            while (pos < end && isDigit(data[pos])) {
+                if (value < 10000) {
+                    value = value * 10 + (data[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == expStart) {
+                throw syntaxError("指数缺少数字");
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        numbers++;
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            return negative ? -value : value;
+        }
+        slowNumbers++;
+        return Double.parseDouble(new String(data, start, pos - start, StandardCharsets.US_ASCII));
+    }
+
+    // 对象的键：参数名基本固定，命中缓存时不创建新的String
+    private String readName() throws JSONException {
+        if (peek() != '"') {
+            throw syntaxError("期望'\"'");
+        }
+        int start = pos + 1;
+        int i = start;
+        while (i < end && data[i] != '"' && data[i] != '\\') {
+            i++;
+        }
+        if (i >= end || data[i] == '\\') {
+            return readString();
+        }
+        int length = i - start;
+        pos = i + 1;
+        for (int n = 0; n < nameCount; n++) {
+            byte[] cached = nameBytes[n];
+            if (cached.length == length && regionEquals(cached, start)) {
+                return nameStrings[n];
+            }
+        }
+        String name = new String(data, start, length, StandardCharsets.UTF_8);
+        if (nameCount < MAX_CACHED_NAMES) {
+            if (nameCount == nameBytes.length) {
+                nameBytes = Arrays.copyOf(nameBytes, nameCount * 2);
+                nameStrings = Arrays.copyOf(nameStrings, nameCount * 2);
+            }
+            nameBytes[nameCount] = Arrays.copyOfRange(data, start, start + length);
+            nameStrings[nameCount] = name;
+            nameCount++;
+        }
+        return name;
+    }
+
+    private boolean regionEquals(byte[] cached, int start) {
+        for (int i = 0; i < cached.length; i++) {
+            if (cached[i] != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString() throws JSONException {
+        expect('"');
+        int runStart = pos;
+        builder.setLength(0);
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                String value;
+                if (builder.length() == 0) {
+                    value = new String(data, runStart, pos - runStart, StandardCharsets.UTF_8);
+                } else {
+                    builder.append(new String(data, runStart, pos - runStart, StandardCharsets.UTF_8));
+                    value = builder.toString();
+                }
+                pos++;
+                return value;
+            }
+            if (b == '\\') {
+                builder.append(new String(data, runStart, pos - runStart, StandardCharsets.UTF_8));
+                pos++;
+                builder.append(readEscape());
+                runStart = pos;
+                continue;
+            }
+            if ((b & 0xff) < 0x20) {
+                throw syntaxError("字符串中有未转义的控制字符");
+            }
+            pos++;
+        }
+        throw syntaxError("字符串未结束");
+    }
+
+    private char readEscape() throws JSONException {
+        if (pos >= end) {
+            throw syntaxError("字符串未结束");
+        }
+        byte c = data[pos++];
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u': {
+                if (end - pos < 4) {
+                    throw syntaxError("\\u转义不完整");
+                }
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(data[pos++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("\\u转义格式错误");
+                    }
+                    value = value * 16 + digit;
+                }
+                // 代理对的两半分别追加，StringBuilder中自然组合
+                return (char) value;
+            }
+            default:
+                throw syntaxError("无效的转义字符");
+        }
+    }
+
+    private void readFrame(Request target) throws JSONException {
+        int frameLength = readInt();
+        if (frameLength < Nal2BinaryCodec.HEADER_SIZE || frameLength > end - pos) {
+            throw binaryError("帧长度错误: " + frameLength);
+        }
+        int frameEnd = pos + frameLength;
+        int version = readUnsignedByte();
+        if (version != Nal2BinaryCodec.VERSION) {
+            throw binaryError("不支持的协议版本: " + version);
+        }
+        int functionId = readUnsignedShort();
+        String function = Nal2BinaryCodec.functionName(functionId);
+        // 未知的函数ID交给processFunction报告未知函数
+        target.function = function != null ? function : "#" + functionId;
+        target.functionId = function != null ? functionId : Nal2BinaryCodec.UNKNOWN_FUNCTION;
+        target.sequenceNum = readInt();
+        int sessionLength = readUnsignedByte();
+        if (sessionLength > 0) {
+            target.sessionId = readUtf8(sessionLength);
+        }
+        target.params.clear();
+        readBinaryParams(target.params);
+        target.hasParams = true;
+        if (pos != frameEnd) {
+            throw binaryError("帧长度与内容不一致");
+        }
+    }
+
+    private void readBinaryParams(Nal2Params params) throws JSONException {
+        int count = readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String name = readBinaryName();
+            int type = readUnsignedByte();
+            switch (type) {
+                case Nal2BinaryCodec.TYPE_NULL:
+                    params.putNull(name);
+                    break;
+                case Nal2BinaryCodec.TYPE_INT32:
+                    params.putNumber(name, readInt());
+                    break;
+                case Nal2BinaryCodec.TYPE_FLOAT64:
+                    params.putNumber(name, readDouble());
+                    break;
+                case Nal2BinaryCodec.TYPE_INT64:
+                    params.putNumber(name, readLong());
+                    break;
+                case Nal2BinaryCodec.TYPE_INT32_ARRAY: {
+                    int n = readUnsignedShort();
+                    require(n * 4);
+                    int start = params.beginArray();
+                    for (int k = 0; k < n; k++) {
+                        params.appendNumber(readInt());
+                    }
+                    params.endArray(name, start);
+                    break;
+                }
+                case Nal2BinaryCodec.TYPE_FLOAT64_ARRAY: {
+                    int n = readUnsignedShort();
+                    require(n * 8);
+                    int start = params.beginArray();
+                    for (int k = 0; k < n; k++) {
+                        params.appendNumber(readDouble());
+                    }
+                    params.endArray(name, start);
+                    break;
+                }
+                case Nal2BinaryCodec.TYPE_STRING:
+                    params.putString(name, readUtf8(readUnsignedShort()));
+                    break;
+                case Nal2BinaryCodec.TYPE_BOOLEAN:
+                    params.putBoolean(name, readUnsignedByte() != 0);
+                    break;
+                case Nal2BinaryCodec.TYPE_OBJECT:
+                case Nal2BinaryCodec.TYPE_LIST: {
+                    // 嵌套对象（如$ref）和列表很少出现，用参考解码器读取后转为org.json对象
+                    ByteBuffer in = ByteBuffer.wrap(data, pos, end - pos).order(ByteOrder.LITTLE_ENDIAN);
+                    Object value;
+                    try {
+                        value = Nal2BinaryCodec.readValue(in, type);
+                    } catch (IllegalArgumentException e) {
+                        throw binaryError(e.getMessage());
+                    }
+                    pos = in.position();
+                    params.putOther(name, Nal2BinaryResponseWriter.toJSON(value));
+                    break;
+                }
+                default:
+                    throw binaryError("未知的值类型: " + type);
+            }
+        }
+    }
+
+    private String readBinaryName() throws JSONException {
+        int id = readUnsignedByte();
+        if (id == Nal2BinaryCodec.INLINE_NAME) {
+            return readUtf8(readUnsignedByte());
+        }
+        String name = Nal2BinaryCodec.fieldName(id);
+        if (name == null) {
+            throw binaryError("未知的字段ID: " + id);
+        }
+        return name;
+    }
+
+    private String readUtf8(int length) throws JSONException {
+        require(length);
+        String value = new String(data, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    private int readUnsignedByte() throws JSONException {
+        require(1);
+        return data[pos++] & 0xff;
+    }
+
+    private int readUnsignedShort() throws JSONException {
+        require(2);
+        int value = (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8;
+        pos += 2;
+        return value;
+    }
+
+    private int readInt() throws JSONException {
+        require(4);
+        int value = (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8
+                | (data[pos + 2] & 0xff) << 16 | (data[pos + 3] & 0xff) << 24;
+        pos += 4;
+        return value;
+    }
+
+    private long readLong() throws JSONException {
+        long low = readInt() & 0xffffffffL;
+        return low | (long) readInt() << 32;
+    }
+
+    private double readDouble() throws JSONException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    private void require(int length) throws JSONException {
+        if (end - pos < length) {
+            throw binaryError("请求不完整");
+        }
+    }
+
+    private JSONException binaryError(String message) {
+        return new JSONException("二进制请求格式错误: " + message + "（位置" + pos + "）");
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = data[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private int peek() throws JSONException {
+        if (pos >= end) {
+            throw syntaxError("请求不完整");
+        }
+        return data[pos];
+    }
+
+    private boolean consumeIf(char c) {
+        skipWhitespace();
+        if (pos < end && data[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (!consumeIf(c)) {
+            throw syntaxError("期望'" + c + "'");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + "（位置" + pos + "）");
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // 与JSONObject.optInt相同：数值截断，数值字符串可转换，其它为0
+    private static int toInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return (int) Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static String toStringValue(Object value) {
+        return value == JSONObject.NULL ? null : String.valueOf(value);
+    }
+}
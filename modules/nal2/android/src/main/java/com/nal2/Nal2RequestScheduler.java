@@ -0,0 +1,590 @@
+package com.nal2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NAL2请求调度：请求由调用方解码一次（Nal2RequestDecoder.take()），在调用线程上读取信封后排队，
+ * 由引擎线程取出执行，引擎线程直接使用解码结果
+ * 单个请求默认进入交互通道，批量请求默认进入批量通道，信封中的priority（"interactive"/"bulk"）可以指定通道；
+ * 通道间的顺序由Nal2EngineExecutor决定，但以下请求跨通道仍按提交顺序执行：同一会话的请求，
+ * 以及批量通道中无会话（或涉及多个会话）、含有修改状态函数的请求（屏障）与其它通道的任何请求。
+ * 轮到的请求前面有这样的请求在其它通道等待时，先执行那个通道的请求。
+ * 同一通道内按状态分组执行：取出队首请求时，把队列中同一会话（即同一NativeManager状态）
+ * 的单个请求一起取出连续执行，会话状态只恢复一次；同一会话的请求仍按提交顺序执行。
+ * 无会话的请求使用共享状态，看到的是之前执行的请求留下的状态，不与有会话的请求交换顺序：
+ * 只与相邻的无会话请求分组，有会话的请求也不会越过它。
+ * 设置了分组窗口时，队首请求提交后最多等待窗口时长，收集同一会话随后到达的请求；
+ * 引擎上有其它任务（界面调用）等待时不再等待。批量请求单独执行，不与其它请求分组，其后的请求不会越过它。
+ * 队首请求的会话与当前状态（上一组的会话）不同时，在亲和窗口内优先执行当前会话排队中的请求，
+ * 多个患者的请求交错到达时减少状态恢复；队首请求等待超过亲和窗口后不再被越过。
+ * 执行前跳过不再需要的请求，使引擎总是处理最新的输入：
+ * <ul>
+ * <li>超过信封中deadline_ms（从提交时算起）的请求返回错误响应，不调用NAL2；</li>
+ * <li>带latest_wins和session_id的只读函数请求，同一会话的同一函数有更新的请求提交后返回错误响应；</li>
+ * <li>调用方已取消future（客户端断开）的请求直接丢弃。</li>
+ * </ul>
+ * 批量请求的时限为各项中最小的deadline_ms，通道由第一项的priority指定，批量请求中的latest_wins不生效。
+ * process()可在任意线程调用，Processor在引擎线程上调用。
+ */
+public final class Nal2RequestScheduler {
+
+    /** 分组窗口的上限（毫秒） */
+    public static final int MAX_WINDOW_MS = 50;
+
+    /** 默认亲和窗口（毫秒） */
+    public static final int DEFAULT_AFFINITY_WINDOW_MS = 20;
+
+    /** 亲和窗口的上限（毫秒） */
+    public static final int MAX_AFFINITY_WINDOW_MS = 1000;
+
+    // 一组最多连续执行的请求数，避免其它会话的请求等待过久
+    private static final int MAX_GROUP_SIZE = 16;
+
+    // 分组窗口中重新检查引擎上是否有其它任务等待的间隔（毫秒）：
+    // 界面调用等scheduler之外的任务提交时不会唤醒窗口中的等待
+    private static final long WINDOW_POLL_MS = 1;
+
+    // 计算每秒避免的状态切换数的时间范围
+    private static final int RATE_SECONDS = 10;
+
+    /** 在引擎线程上处理请求 */
+    public interface Processor {
+
+        /** 处理请求，返回完整的响应 */
+        Nal2ResponseBuffer process(Ticket ticket) throws Exception;
+
+        /** 请求被跳过（过期或被取代），返回错误响应 */
+        Nal2ResponseBuffer skip(Ticket ticket, String reason);
+    }
+
+    /** 一个已提交的请求 */
+    public static final class Ticket {
+        private final Nal2RequestDecoder.Result request;
+        private final boolean binaryResponse;
+        private final long submitNanos;
+        private final CompletableFuture<Nal2ResponseBuffer> future = new CompletableFuture<Nal2ResponseBuffer>();
+
+        // 以下由信封解析得到，请求无法解析时保持默认值，交给Processor报告错误
+        private int sequenceNum;
+        private String function;
+        private Nal2EngineExecutor.Lane lane = Nal2EngineExecutor.Lane.INTERACTIVE;
+        private boolean hasDeadline;
+        private long deadlineNanos;
+        private String latestKey;
+        // 可以与同一会话的请求分组执行（单个请求）
+        private boolean groupable;
+        private String sessionId;
+        // 按提交顺序执行时，本请求之前需要切换状态（与上一个提交的请求会话不同）
+        private boolean fifoSwitch;
+        // 提交顺序，用于跨通道排序
+        private long order;
+        // 批量通道中无会话、涉及多个会话或修改状态的请求，与其它通道的请求都按提交顺序执行
+        private boolean barrier;
+
+        Ticket(Nal2RequestDecoder.Result request, boolean binaryResponse) {
+            this.request = request;
+            this.binaryResponse = binaryResponse;
+            this.submitNanos = System.nanoTime();
+        }
+
+        /** 解码后的请求，无法解析时getError()不为null */
+        public Nal2RequestDecoder.Result getRequest() {
+            return request;
+        }
+
+        public boolean isBinaryResponse() {
+            return binaryResponse;
+        }
+
+        /** 单个请求的sequence_num，批量请求为0 */
+        public int getSequenceNum() {
+            return sequenceNum;
+        }
+
+        /** 单个请求的函数名，批量请求或无法解析时为null */
+        public String getFunction() {
+            return function;
+        }
+
+        public Nal2EngineExecutor.Lane getLane() {
+            return lane;
+        }
+    }
+
+    private final Nal2EngineExecutor executor;
+    private final Nal2FunctionRegistry functions;
+    private final Processor processor;
+
+    // 以下字段由this保护
+    // 每个通道的等待队列
+    private final ArrayDeque<Ticket>[] queues = newQueues();
+    // 会话 + 函数 -> 尚未结束的latest_wins请求（按提交顺序，最后一个为最新）
+    private final Map<String, ArrayDeque<Ticket>> latest = new HashMap<String, ArrayDeque<Ticket>>();
+    // 已提交到执行器、尚未开始执行的drain任务数，用于判断引擎上是否有其它任务等待
+    private int pendingDrains;
+    private long windowNanos;
+    private long affinityNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AFFINITY_WINDOW_MS);
+    private long nextOrder;
+
+    // 最近提交的和最近执行的单个请求的会话，批量请求之后未知
+    private boolean hasLastSubmitted;
+    private String lastSubmitted;
+    private boolean hasLastSession;
+    private String lastSession;
+
+    private long reordered;
+    private long switchesAvoided;
+    // 最近RATE_SECONDS秒中每秒避免的状态切换数
+    private final long[] avoidedBySecond = new long[RATE_SECONDS];
+    private final long[] avoidedSecond = new long[RATE_SECONDS];
+
+    // 每组的请求数和队首请求在分组窗口中的等待时间（毫秒，窗口为0时不记录）
+    private final Nal2Histogram groupSizes = new Nal2Histogram(
+            new double[] {1, 2, 4, 8}, new String[] {"1", "2", "3-4", "5-8", "9+"});
+    private final Nal2Histogram windowWaits = new Nal2Histogram(
+            new double[] {1, 2, 5, 10}, new String[] {"<=1ms", "<=2ms", "<=5ms", "<=10ms", ">10ms"});
+
+    private volatile long submitted;
+    private volatile long expired;
+    private volatile long superseded;
+    private volatile long cancelled;
+
+    // 每个成功提交到执行器的drain任务从对应通道的队列中取出一组请求执行；
+    // 对应通道的请求已被之前的组取走时执行其它通道的请求，都没有时不做任何事
+    private final Runnable[] drains = new Runnable[queues.length];
+
+    /**
+     * @param functions 用于判断函数是否readOnly（注册完成后只读）
+     */
+    public Nal2RequestScheduler(Nal2EngineExecutor executor, Nal2FunctionRegistry functions, Processor processor) {
+        this.executor = executor;
+        this.functions = functions;
+        this.processor = processor;
+        for (int i = 0; i < drains.length; i++) {
+            final ArrayDeque<Ticket> queue = queues[i];
+            drains[i] = new Runnable() {
+                @Override
+                public void run() {
+                    for (Ticket ticket : takeGroup(queue)) {
+                        execute(ticket);
+                    }
+                }
+            };
+        }
+    }
+
+    // 泛型数组只能由原始类型创建
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Ticket>[] newQueues() {
+        ArrayDeque<Ticket>[] queues = new ArrayDeque[Nal2EngineExecutor.Lane.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<Ticket>();
+        }
+        return queues;
+    }
+
+    /**
+     * 提交已解码的请求，引擎队列已满时返回以RejectedExecutionException完成的future
+     * 调用方可以cancel()返回的future，尚未开始执行的请求不再执行。
+     *
+     * @param binaryResponse 以二进制协议返回响应，否则返回JSON
+     */
+    public CompletableFuture<Nal2ResponseBuffer> process(Nal2RequestDecoder.Result request, boolean binaryResponse) {
+        Ticket ticket = new Ticket(request, binaryResponse);
+        RejectedExecutionException rejected = null;
+        synchronized (this) {
+            boolean hadLastSubmitted = hasLastSubmitted;
+            String previousSubmitted = lastSubmitted;
+            readEnvelope(ticket);
+            ticket.order = nextOrder++;
+            ArrayDeque<Ticket> queue = queues[ticket.lane.ordinal()];
+            queue.add(ticket);
+            submitted++;
+            pendingDrains++;
+            // 唤醒在分组窗口中等待的drain任务
+            notifyAll();
+            // 持有锁提交drain任务：drain任务取请求时需要这把锁，被拒绝时本请求一定还在队尾，只拒绝本请求
+            try {
+                executor.execute(drains[ticket.lane.ordinal()], ticket.lane);
+            } catch (RejectedExecutionException e) {
+                rejected = e;
+                pendingDrains--;
+                queue.removeLastOccurrence(ticket);
+                release(ticket);
+                hasLastSubmitted = hadLastSubmitted;
+                lastSubmitted = previousSubmitted;
+            }
+        }
+        if (rejected != null) {
+            ticket.future.completeExceptionally(rejected);
+        }
+        return ticket.future;
+    }
+
+    /**
+     * 设置分组窗口，0为不等待（只把已在队列中的同一会话请求分组）
+     *
+     * @throws IllegalArgumentException windowMs小于0或大于MAX_WINDOW_MS
+     */
+    public synchronized void setWindowMs(int windowMs) {
+        if (windowMs < 0 || windowMs > MAX_WINDOW_MS) {
+            throw new IllegalArgumentException("分组窗口应在0到" + MAX_WINDOW_MS + "毫秒之间");
+        }
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    public synchronized int getWindowMs() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    /**
+     * 设置亲和窗口：队首请求等待不超过该时长时，可以先执行当前会话的请求；0为按提交顺序分组
+     *
+     * @throws IllegalArgumentException windowMs小于0或大于MAX_AFFINITY_WINDOW_MS
+     */
+    public synchronized void setAffinityWindowMs(int windowMs) {
+        if (windowMs < 0 || windowMs > MAX_AFFINITY_WINDOW_MS) {
+            throw new IllegalArgumentException("亲和窗口应在0到" + MAX_AFFINITY_WINDOW_MS + "毫秒之间");
+        }
+        affinityNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    public synchronized int getAffinityWindowMs() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(affinityNanos);
+    }
+
+    /** 为保持当前状态而越过队首请求的次数 */
+    public synchronized long getReordered() {
+        return reordered;
+    }
+
+    /** 与按提交顺序执行相比避免的状态切换数（净值） */
+    public synchronized long getSwitchesAvoided() {
+        return switchesAvoided;
+    }
+
+    /** 最近RATE_SECONDS秒平均每秒避免的状态切换数 */
+    public synchronized double getSwitchesAvoidedPerSecond() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long sum = 0;
+        for (int i = 0; i < RATE_SECONDS; i++) {
+            if (second - avoidedSecond[i] < RATE_SECONDS) {
+                sum += avoidedBySecond[i];
+            }
+        }
+        return (double) sum / RATE_SECONDS;
+    }
+
+    /** 每组请求数的直方图 */
+    public Nal2Histogram getGroupSizes() {
+        return groupSizes;
+    }
+
+    /** 队首请求在分组窗口中等待时间的直方图 */
+    public Nal2Histogram getWindowWaits() {
+        return windowWaits;
+    }
+
+    /** 超过deadline_ms未开始执行而跳过的请求数 */
+    public long getExpired() {
+        return expired;
+    }
+
+    /** 被同一会话同一函数的更新请求取代而跳过的请求数 */
+    public long getSuperseded() {
+        return superseded;
+    }
+
+    /** 调用方取消（客户端断开）后丢弃的请求数 */
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public synchronized int getLatestWinsKeys() {
+        return latest.size();
+    }
+
+    // 在引擎线程上取出下一组请求，队列为空时返回空列表
+    private synchronized List<Ticket> takeGroup(ArrayDeque<Ticket> queue) {
+        pendingDrains--;
+        Ticket head = queue.peek();
+        if (head == null) {
+            // 本通道的请求可能已由其它通道的drain任务先执行（见下），其它通道的请求因此少了一个drain任务
+            for (ArrayDeque<Ticket> other : queues) {
+                if (!other.isEmpty()) {
+                    queue = other;
+                    head = other.peek();
+                    break;
+                }
+            }
+            if (head == null) {
+                return new ArrayList<Ticket>(0);
+            }
+        }
+        // 其它通道中有必须先执行的请求时改为执行那个通道的请求，那个通道的drain任务之后取不到请求时不做任何事；
+        // 换过去的队首请求比原来的更早提交，最终一定停在不被阻挡的请求上
+        ArrayDeque<Ticket> earlier;
+        while ((earlier = blockingQueue(head, queue)) != null) {
+            queue = earlier;
+            head = queue.peek();
+        }
+        List<Ticket> group = new ArrayList<Ticket>(4);
+        if (!head.groupable) {
+            group.add(queue.poll());
+            groupSizes.record(1);
+            hasLastSession = false;
+            return group;
+        }
+
+        Ticket leader = affinityLeader(queue, head);
+        if (windowNanos > 0) {
+            long start = System.nanoTime();
+            long until = leader.submitNanos + windowNanos;
+            try {
+                // 引擎上有scheduler之外的任务等待时不再等待；新请求提交时notifyAll，其它任务靠定期检查发现
+                while (until - System.nanoTime() > 0 && executor.getQueueSize() <= pendingDrains) {
+                    wait(WINDOW_POLL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            windowWaits.record((System.nanoTime() - start) / 1e6);
+        }
+
+        // 按提交顺序取出同一会话的请求；批量请求可能涉及任何会话，无会话的请求依赖之前留下的状态，都不越过
+        Iterator<Ticket> it = queue.iterator();
+        while (it.hasNext() && group.size() < MAX_GROUP_SIZE) {
+            Ticket ticket = it.next();
+            if (!ticket.groupable) {
+                break;
+            }
+            if (Objects.equals(ticket.sessionId, leader.sessionId)) {
+                if (ticket != leader && blockingQueue(ticket, queue) != null) {
+                    break;
+                }
+                it.remove();
+                group.add(ticket);
+            } else if (ticket.sessionId == null || leader.sessionId == null) {
+                break;
+            }
+        }
+        groupSizes.record(group.size());
+
+        // 与按提交顺序执行相比，本组避免（或增加）的状态切换
+        for (int i = 0; i < group.size(); i++) {
+            Ticket ticket = group.get(i);
+            boolean switched = i == 0 && hasLastSession && !Objects.equals(lastSession, leader.sessionId);
+            if (ticket.fifoSwitch && !switched) {
+                recordAvoided(1);
+            } else if (!ticket.fifoSwitch && switched) {
+                recordAvoided(-1);
+            }
+        }
+        hasLastSession = true;
+        lastSession = leader.sessionId;
+        return group;
+    }
+
+    /**
+     * 队首请求与当前状态（上一组的会话）不同、且等待未超过亲和窗口时，
+     * 优先执行队列中当前会话的请求，省去一次状态切换；不越过、也不提前无会话的请求
+     */
+    private Ticket affinityLeader(ArrayDeque<Ticket> queue, Ticket head) {
+        if (!hasLastSession || affinityNanos == 0 || head.sessionId == null || lastSession == null
+                || head.sessionId.equals(lastSession) || System.nanoTime() - head.submitNanos >= affinityNanos) {
+            return head;
+        }
+        for (Ticket ticket : queue) {
+            if (!ticket.groupable || ticket.sessionId == null) {
+                break;
+            }
+            if (Objects.equals(ticket.sessionId, lastSession)) {
+                if (blockingQueue(ticket, queue) != null) {
+                    return head;
+                }
+                reordered++;
+                return ticket;
+            }
+        }
+        return head;
+    }
+
+    /**
+     * 其它通道中比ticket更早提交、必须先执行的请求所在的队列，没有时返回null
+     * 同一会话的请求，或其中之一是屏障请求时，两个请求必须按提交顺序执行
+     */
+    private ArrayDeque<Ticket> blockingQueue(Ticket ticket, ArrayDeque<Ticket> own) {
+        for (ArrayDeque<Ticket> queue : queues) {
+            if (queue == own) {
+                continue;
+            }
+            for (Ticket other : queue) {
+                if (other.order > ticket.order) {
+                    break;
+                }
+                if (other.barrier || ticket.barrier
+                        || (other.sessionId != null && other.sessionId.equals(ticket.sessionId))) {
+                    return queue;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void recordAvoided(int delta) {
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        int i = (int) (second % RATE_SECONDS);
+        if (avoidedSecond[i] != second) {
+            avoidedSecond[i] = second;
+            avoidedBySecond[i] = 0;
+        }
+        avoidedBySecond[i] += delta;
+        switchesAvoided += delta;
+    }
+
+    // 在引擎线程上执行或跳过一个请求
+    private void execute(Ticket ticket) {
+        try {
+            if (ticket.future.isDone()) {
+                cancelled++;
+                return;
+            }
+            String reason = skipReason(ticket);
+            Nal2ResponseBuffer response = reason != null
+                    ? processor.skip(ticket, reason) : processor.process(ticket);
+            if (!ticket.future.complete(response)) {
+                // 执行期间被取消
+                response.release();
+            }
+        } catch (Exception e) {
+            ticket.future.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                release(ticket);
+            }
+        }
+    }
+
+    private String skipReason(Ticket ticket) {
+        if (ticket.hasDeadline && System.nanoTime() - ticket.deadlineNanos > 0) {
+            expired++;
+            return "请求已超过处理时限";
+        }
+        if (ticket.latestKey != null) {
+            synchronized (this) {
+                if (latest.get(ticket.latestKey).peekLast() != ticket) {
+                    superseded++;
+                    return "请求已被同一会话的更新请求取代";
+                }
+            }
+        }
+        return null;
+    }
+
+    // 请求结束或被拒绝后移除其latest_wins登记，被拒绝的更新请求不会取代之前的请求
+    private void release(Ticket ticket) {
+        if (ticket.latestKey != null) {
+            ArrayDeque<Ticket> tickets = latest.get(ticket.latestKey);
+            tickets.remove(ticket);
+            if (tickets.isEmpty()) {
+                latest.remove(ticket.latestKey);
+            }
+        }
+    }
+
+    // 读取信封中的时限和latest_wins，登记为同一会话同一函数的最新请求
+    private void readEnvelope(Ticket ticket) {
+        Nal2RequestDecoder.Result decoded = ticket.request;
+        if (decoded.getError() != null) {
+            // 格式错误的请求由Processor返回错误响应
+            hasLastSubmitted = false;
+            return;
+        }
+        long deadlineMs = 0;
+        if (decoded.isBatch()) {
+            hasLastSubmitted = false;
+            List<Nal2RequestDecoder.Request> batch = decoded.getBatch();
+            ticket.lane = lane(batch.isEmpty() ? null : batch.get(0).getPriority(), Nal2EngineExecutor.Lane.BULK);
+            // 各项都属于同一个会话时，跨通道排序按该会话处理（批量请求不参与分组）
+            String sessionId = batch.isEmpty() ? null : batch.get(0).getSessionId();
+            boolean mutates = false;
+            for (Nal2RequestDecoder.Request request : batch) {
+                if (request.getDeadlineMs() > 0 && (deadlineMs == 0 || request.getDeadlineMs() < deadlineMs)) {
+                    deadlineMs = request.getDeadlineMs();
+                }
+                if (sessionId != null && !sessionId.equals(request.getSessionId())) {
+                    sessionId = null;
+                }
+                mutates |= mutatesState(request);
+            }
+            ticket.sessionId = sessionId;
+            ticket.barrier = ticket.lane == Nal2EngineExecutor.Lane.BULK && (sessionId == null || mutates);
+        } else {
+            Nal2RequestDecoder.Request request = decoded.getRequest();
+            ticket.sequenceNum = request.getSequenceNum();
+            ticket.function = request.getFunction();
+            deadlineMs = request.getDeadlineMs();
+            ticket.lane = lane(request.getPriority(), Nal2EngineExecutor.Lane.INTERACTIVE);
+            ticket.groupable = true;
+            ticket.sessionId = request.getSessionId();
+            ticket.barrier = ticket.lane == Nal2EngineExecutor.Lane.BULK
+                    && (ticket.sessionId == null || mutatesState(request));
+            ticket.fifoSwitch = hasLastSubmitted && !Objects.equals(lastSubmitted, ticket.sessionId);
+            hasLastSubmitted = true;
+            lastSubmitted = ticket.sessionId;
+            // 无会话的请求无法区分来自哪个客户端，latest_wins不生效，避免取代其它客户端的请求
+            if (request.isLatestWins() && request.getSessionId() != null) {
+                Nal2Function function = request.getFunctionId() != Nal2BinaryCodec.UNKNOWN_FUNCTION
+                        ? functions.get(request.getFunctionId()) : null;
+                // 只有只读函数可以跳过，修改状态的请求必须按顺序执行
+                if (function != null && function.isReadOnly()) {
+                    ticket.latestKey = request.getSessionId() + '|' + function.getId();
+                    ArrayDeque<Ticket> tickets = latest.get(ticket.latestKey);
+                    if (tickets == null) {
+                        tickets = new ArrayDeque<Ticket>(2);
+                        latest.put(ticket.latestKey, tickets);
+                    }
+                    tickets.add(ticket);
+                }
+            }
+        }
+        if (deadlineMs > 0) {
+            ticket.hasDeadline = true;
+            ticket.deadlineNanos = ticket.submitNanos + deadlineMs * 1000000L;
+        }
+    }
+
+    // 请求是否修改状态：修改状态或未知的函数
+    private boolean mutatesState(Nal2RequestDecoder.Request request) {
+        Nal2Function function;
+        if (request.getFunctionId() != Nal2BinaryCodec.UNKNOWN_FUNCTION) {
+            function = functions.get(request.getFunctionId());
+        } else {
+            function = request.getFunction() != null ? functions.get(request.getFunction()) : null;
+        }
+        return function == null || !function.isReadOnly();
+    }
+
+    private static Nal2EngineExecutor.Lane lane(String priority, Nal2EngineExecutor.Lane defaultLane) {
+        if ("interactive".equals(priority)) {
+            return Nal2EngineExecutor.Lane.INTERACTIVE;
+        }
+        if ("bulk".equals(priority)) {
+            return Nal2EngineExecutor.Lane.BULK;
+        }
+        return defaultLane;
+    }
+}
@@ -0,0 +1,154 @@
+package com.nal2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * 序列化完成的响应（UTF-8 JSON或二进制协议，见getContentType()）
+ * 底层字节数组来自共享的缓冲池，写出后调用release()归还。没有归还的缓冲区由GC回收，不影响正确性。
+ * release()之后不能再访问array()。
+ */
+public final class Nal2ResponseBuffer {
+    /** 新建缓冲区的初始大小 */
+    static final int INITIAL_SIZE = 4 * 1024;
+
+    // 超过该大小的缓冲区不回收，避免少数大响应长期占用内存
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    // 单个JSON响应的开头（Nal2JsonResponseWriter.beginResponse()最先写sequence_num）
+    private static final byte[] JSON_SEQUENCE_PREFIX = "{\"sequence_num\":".getBytes(StandardCharsets.UTF_8);
+    // 二进制帧中sequence_num的位置：u32长度 | u8版本 | u16函数ID | i32 sequence_num
+    private static final int BINARY_SEQUENCE_OFFSET = 4 + 1 + 2;
+
+    private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+    private static volatile long allocations;
+    private static volatile long reuses;
+
+    private byte[] array;
+    private final int length;
+    private final String contentType;
+
+    Nal2ResponseBuffer(byte[] array, int length, String contentType) {
+        this.array = array;
+        this.length = length;
+        this.contentType = contentType;
+    }
+
+    /** 底层数组，有效数据为[0, length()) */
+    public byte[] array() {
+        if (array == null) {
+            throw new IllegalStateException("缓冲区已归还");
+        }
+        return array;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** 响应的Content-Type */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String toUtf8String() {
+        return new String(array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** 内容相同的独立副本（缓冲区同样来自缓冲池，需要单独release()） */
+    public Nal2ResponseBuffer copy() {
+        byte[] copy = acquire(length);
+        System.arraycopy(array(), 0, copy, 0, length);
+        return new Nal2ResponseBuffer(copy, length, contentType);
+    }
+
+    /**
+     * 单个响应的副本，sequence_num改为指定值（合并的请求各自得到自己的sequence_num）
+     * 无法识别sequence_num的位置时返回普通副本
+     */
+    Nal2ResponseBuffer copyWithSequenceNum(int sequenceNum) {
+        byte[] source = array();
+        if (Nal2BinaryCodec.CONTENT_TYPE.equals(contentType)) {
+            Nal2ResponseBuffer copy = copy();
+            if (length >= 4 + Nal2BinaryCodec.HEADER_SIZE) {
+                byte[] target = copy.array();
+                for (int i = 0; i < 4; i++) {
+                    target[BINARY_SEQUENCE_OFFSET + i] = (byte) (sequenceNum >>> (8 * i));
+                }
+            }
+            return copy;
+        }
+        int start = JSON_SEQUENCE_PREFIX.length;
+        if (length < start) {
+            return copy();
+        }
+        for (int i = 0; i < start; i++) {
+            if (source[i] != JSON_SEQUENCE_PREFIX[i]) {
+                return copy();
+            }
+        }
+        int end = start;
+        while (end < length && (source[end] == '-' || (source[end] >= '0' && source[end] <= '9'))) {
+            end++;
+        }
+        byte[] digits = Integer.toString(sequenceNum).getBytes(StandardCharsets.UTF_8);
+        int newLength = length - (end - start) + digits.length;
+        byte[] copy = acquire(newLength);
+        System.arraycopy(source, 0, copy, 0, start);
+        System.arraycopy(digits, 0, copy, start, digits.length);
+        System.arraycopy(source, end, copy, start + digits.length, length - end);
+        return new Nal2ResponseBuffer(copy, newLength, contentType);
+    }
+
+    /** 归还缓冲区，可重复调用 */
+    public synchronized void release() {
+        if (array != null) {
+            recycle(array);
+            array = null;
+        }
+    }
+
+    /** 从池中取一个至少minSize字节的缓冲区 */
+    static byte[] acquire(int minSize) {
+        synchronized (pool) {
+            byte[] buffer = pool.pollFirst();
+            if (buffer != null) {
+                if (buffer.length >= minSize) {
+                    reuses++;
+                    return buffer;
+                }
+                pool.addFirst(buffer);
+            }
+        }
+        allocations++;
+        return new byte[Math.max(minSize, INITIAL_SIZE)];
+    }
+
+    static void recycle(byte[] buffer) {
+        if (buffer.length < INITIAL_SIZE || buffer.length > MAX_POOLED_SIZE) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.addFirst(buffer);
+            }
+        }
+    }
+
+    /** 新分配的缓冲区数 */
+    public static long getAllocations() {
+        return allocations;
+    }
+
+    /** 从池中复用的缓冲区数 */
+    public static long getReuses() {
+        return reuses;
+    }
+
+    public static int getPooled() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.nal2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 响应写入器：把响应直接序列化到池化的字节数组中
+ * 实现为Nal2JsonResponseWriter（JSON）和Nal2BinaryResponseWriter（二进制协议），
+ * 处理函数只通过本类写入输出参数，不关心响应格式。
+ * 用法：begin() -> [beginBatch()] -> beginResponse() -> 写入输出参数 -> endResponse() -> ... -> finish()。
+ * 只能在NAL2引擎线程上使用。
+ */
+public abstract class Nal2ResponseWriter {
+
+    /** 开始一个新响应体 */
+    public abstract void begin();
+
+    /** 结束响应体，缓冲区的所有权转给返回值 */
+    public abstract Nal2ResponseBuffer finish();
+
+    /** 当前写入位置 */
+    public abstract int position();
+
+    /** 丢弃position之后写入的内容 */
+    public abstract void truncate(int position);
+
+    /** 开始批量请求的响应 */
+    public abstract void beginBatch();
+
+    public abstract void endBatch();
+
+    /** 写入响应头部（sequence_num、function、session_id、return），之后写入output_parameters的各项 */
+    public abstract void beginResponse(int sequenceNum, String function, String sessionId, int returnCode);
+
+    /**
+     * 结束当前响应
+     *
+     * @param stepId 批量请求中该项的步骤ID，非null时写入响应的id字段（二进制协议没有该字段）
+     */
+    public abstract void endResponse(String stepId);
+
+    /** 重新解析[start, end)处的一个完整响应，返回其output_parameters（用于批量请求的$ref） */
+    public abstract JSONObject readOutputs(int start, int end) throws JSONException;
+
+    public abstract Nal2ResponseWriter beginObject();
+
+    public abstract Nal2ResponseWriter endObject();
+
+    public abstract Nal2ResponseWriter beginArray();
+
+    public abstract Nal2ResponseWriter endArray();
+
+    /** 写入对象的键，之后必须写入一个值 */
+    public abstract Nal2ResponseWriter name(String name);
+
+    public abstract Nal2ResponseWriter value(double value);
+
+    public abstract Nal2ResponseWriter value(long value);
+
+    public abstract Nal2ResponseWriter value(int value);
+
+    public abstract Nal2ResponseWriter value(boolean value);
+
+    public abstract Nal2ResponseWriter value(String value);
+
+    public abstract Nal2ResponseWriter nullValue();
+
+    public abstract Nal2ResponseWriter value(double[] values);
+
+    public abstract Nal2ResponseWriter value(ImmutableDoubleArray values);
+
+    public abstract Nal2ResponseWriter value(int[] values);
+
+    /**
+     * 写入任意值：double[]、int[]、ImmutableDoubleArray、Map、Collection、Number、Boolean、String、
+     * JSONObject/JSONArray，null写为null
+     */
+    public Nal2ResponseWriter value(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return nullValue();
+        }
+        if (value instanceof double[]) {
+            return value((double[]) value);
+        }
+        if (value instanceof int[]) {
+            return value((int[]) value);
+        }
+        if (value instanceof ImmutableDoubleArray) {
+            return value((ImmutableDoubleArray) value);
+        }
+        if (value instanceof String) {
+            return value((String) value);
+        }
+        if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return value(((Number) value).intValue());
+        }
+        if (value instanceof Long) {
+            return value(((Long) value).longValue());
+        }
+        if (value instanceof Number) {
+            return value(((Number) value).doubleValue());
+        }
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof Collection) {
+            beginArray();
+            for (Object item : (Collection<?>) value) {
+                value(item);
+            }
+            return endArray();
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            beginObject();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                name(key).value(object.opt(key));
+            }
+            return endObject();
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                value(array.opt(i));
+            }
+            return endArray();
+        }
+        return value(value.toString());
+    }
+}
@@ -0,0 +1,253 @@
+package com.nal2;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * NAL2处方结果缓存（LRU，按占用字节数淘汰）
+ * RealEarInsertionGain_NL2、CompressionRatio_NL2、getMPO_NL2等函数在输入参数和当前
+ * NativeManager状态相同时结果确定，键由函数名、规范化后的参数和已推送状态组成。
+ * 存取都返回副本；引擎版本（getDllVersion）变化时整体失效。只能在NAL2引擎线程上读写。
+ */
+public final class Nal2ResultCache {
+    private static final String TAG = "Nal2ResultCache";
+
+    /** 默认最大占用（字节） */
+    public static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+    // 每个条目除数组外的估算开销（键、链表节点等）
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private static Nal2ResultCache instance;
+
+    private final LinkedHashMap<Key, double[]> entries = new LinkedHashMap<Key, double[]>(64, 0.75f, true);
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long currentBytes;
+    private int[] engineVersion;
+
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long evictions;
+    private volatile long invalidations;
+
+    private Nal2ResultCache() {
+    }
+
+    public static synchronized Nal2ResultCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new Nal2ResultCache();
+            instance.checkEngineVersion(Nal2Manager.getInstance(context).getDllVersion());
+        }
+        return instance;
+    }
+
+    /**
+     * 开始构建缓存键
+     *
+     * @param function 函数名
+     * @param state    当前已推入NativeManager的状态
+     */
+    public KeyBuilder newKey(String function, FittingProfile state) {
+        return new KeyBuilder(function, state);
+    }
+
+    /** 命中时返回结果副本，未命中返回null */
+    public double[] get(Key key) {
+        double[] value = entries.get(key);
+        if (value == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return value.clone();
+    }
+
+    /** 保存结果副本 */
+    public void put(Key key, double[] value) {
+        if (value == null) {
+            return;
+        }
+        long weight = weightOf(key, value);
+        if (weight > maxBytes) {
+            return;
+        }
+        double[] previous = entries.put(key, value.clone());
+        if (previous != null) {
+            currentBytes -= weightOf(key, previous);
+        }
+        currentBytes += weight;
+        trimToSize();
+    }
+
+    /**
+     * 检查引擎版本，与缓存建立时的版本不同则清空
+     */
+    public void checkEngineVersion(int[] version) {
+        if (engineVersion != null && Arrays.equals(engineVersion, version)) {
+            return;
+        }
+        if (engineVersion != null) {
+            Log.i(TAG, "引擎版本变化: " + Arrays.toString(engineVersion) + " -> " + Arrays.toString(version)
+                    + "，清空结果缓存");
+            invalidations++;
+        }
+        engineVersion = version.clone();
+        clear();
+    }
+
+    public void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("缓存容量不能为负: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<Key, double[]>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Key, double[]> eldest = it.next();
+            currentBytes -= weightOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static long weightOf(Key key, double[] value) {
+        return ENTRY_OVERHEAD_BYTES + 8L * (key.values.length + value.length);
+    }
+
+    /**
+     * 缓存键：函数名 + 规范化参数 + 状态指纹
+     */
+    public static final class Key {
+        final String function;
+        final long[] values;
+        final FittingProfile state;
+        private final int hash;
+
+        Key(String function, long[] values, FittingProfile state) {
+            this.function = function;
+            this.values = values;
+            this.state = state;
+            this.hash = 31 * (31 * function.hashCode() + Arrays.hashCode(values)) + state.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && function.equals(k.function) && Arrays.equals(values, k.values)
+                    && state.equals(k.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * 缓存键构建器
+     * 所有参数按顺序编码为long：double规范化（-0.0视为0.0，NaN统一），数组前写入长度
+     */
+    public static final class KeyBuilder {
+        private final String function;
+        private final FittingProfile state;
+        private long[] values = new long[32];
+        private int size;
+
+        KeyBuilder(String function, FittingProfile state) {
+            this.function = function;
+            this.state = state;
+        }
+
+        public KeyBuilder add(int value) {
+            append(value);
+            return this;
+        }
+
+        public KeyBuilder add(double value) {
+            append(canonical(value));
+            return this;
+        }
+
+        public KeyBuilder add(int[] array) {
+            if (array == null) {
+                append(-1);
+                return this;
+            }
+            append(array.length);
+            for (int value : array) {
+                append(value);
+            }
+            return this;
+        }
+
+        public KeyBuilder add(double[] array) {
+            if (array == null) {
+                append(-1);
+                return this;
+            }
+            append(array.length);
+            for (double value : array) {
+                append(canonical(value));
+            }
+            return this;
+        }
+
+        public Key build() {
+            return new Key(function, Arrays.copyOf(values, size), state);
+        }
+
+        private void append(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private static long canonical(double value) {
+            // doubleToLongBits已把所有NaN统一为同一个值
+            return Double.doubleToLongBits(value == 0.0 ? 0.0 : value);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.nal2;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 多患者会话管理
+ * 按请求中的session_id保存每个患者推入NativeManager的完整状态（LRU，容量可配置），
+ * 执行某个会话的请求前先恢复该会话的完整状态，新会话从FittingProfile.DEFAULTS开始，不继承其它会话的状态。
+ * 修改状态的无会话调用应包在enter(null)/leave(null)中；没有这样做时，enter()也会发现已推送的状态
+ * 不再是该会话保存的状态并重新恢复。
+ * 只能在NAL2引擎线程上调用enter/leave。
+ */
+public final class Nal2SessionManager {
+    private static final String TAG = "Nal2SessionManager";
+
+    /** 会话切换所需的NativeManager状态操作（NativeStateApplier），单元测试可替换 */
+    interface NativeState {
+
+        /** 把档案的完整状态推入NativeManager */
+        void restore(FittingProfile profile);
+
+        /** 当前已推入NativeManager的状态，每次修改都是新的对象 */
+        FittingProfile getAppliedState();
+    }
+
+    /** 默认最多保留的会话数 */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static Nal2SessionManager instance;
+
+    private final NativeState stateApplier;
+    private final LinkedHashMap<String, FittingProfile> sessions =
+            new LinkedHashMap<String, FittingProfile>(16, 0.75f, true);
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    // 当前NativeManager中的状态属于哪个会话，null表示无主（被无会话请求修改过）
+    private String stateOwner;
+
+    private volatile int size;
+    private volatile long sessionSwitches;
+    private volatile long restores;
+    private volatile long evictions;
+    private volatile long restoreNanosTotal;
+    private volatile long restoreNanosMax;
+
+    Nal2SessionManager(NativeState stateApplier) {
+        this.stateApplier = stateApplier;
+    }
+
+    public static synchronized Nal2SessionManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new Nal2SessionManager(NativeStateApplier.getInstance(context));
+        }
+        return instance;
+    }
+
+    /**
+     * 开始执行某个会话的请求：如果NativeManager当前不是该会话的状态，则恢复
+     *
+     * @param sessionId 会话ID，null表示不使用会话（共享状态）
+     */
+    public void enter(String sessionId) {
+        if (sessionId == null) {
+            // 无会话请求可能修改状态，之后任何会话都需要重新恢复
+            stateOwner = null;
+            return;
+        }
+        FittingProfile profile = sessions.get(sessionId);
+        // 状态仍是该会话上次保存的对象时不需要恢复；对象不同说明期间有调用绕过enter()修改了状态
+        if (sessionId.equals(stateOwner) && stateApplier.getAppliedState() == profile) {
+            return;
+        }
+
+        sessionSwitches++;
+        long start = System.nanoTime();
+        stateApplier.restore(profile != null ? profile : FittingProfile.DEFAULTS);
+        long elapsed = System.nanoTime() - start;
+        restores++;
+        restoreNanosTotal += elapsed;
+        if (elapsed > restoreNanosMax) {
+            restoreNanosMax = elapsed;
+        }
+        stateOwner = sessionId;
+    }
+
+    /**
+     * 会话请求执行完毕：保存该会话当前的完整状态
+     */
+    public void leave(String sessionId) {
+        if (sessionId == null) {
+            return;
+        }
+        sessions.put(sessionId, stateApplier.getAppliedState());
+        trimToCapacity();
+    }
+
+    /**
+     * 删除会话（患者验配结束）
+     */
+    public void remove(String sessionId) {
+        sessions.remove(sessionId);
+        if (sessionId.equals(stateOwner)) {
+            stateOwner = null;
+        }
+        size = sessions.size();
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("会话容量必须大于0: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getSessionSwitches() {
+        return sessionSwitches;
+    }
+
+    public long getRestores() {
+        return restores;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** 平均状态恢复耗时（微秒） */
+    public double getAverageRestoreMicros() {
+        long count = restores;
+        return count == 0 ? 0 : restoreNanosTotal / 1000.0 / count;
+    }
+
+    /** 最大状态恢复耗时（微秒） */
+    public double getMaxRestoreMicros() {
+        return restoreNanosMax / 1000.0;
+    }
+
+    private void trimToCapacity() {
+        Iterator<Map.Entry<String, FittingProfile>> it = sessions.entrySet().iterator();
+        while (sessions.size() > capacity && it.hasNext()) {
+            String evicted = it.next().getKey();
+            it.remove();
+            evictions++;
+            if (evicted.equals(stateOwner)) {
+                stateOwner = null;
+            }
+            Log.d(TAG, "会话被淘汰: " + evicted);
+        }
+        size = sessions.size();
+    }
+}
@@ -0,0 +1,317 @@
+package com.nal2;
+
+import android.content.Context;
+
+import java.util.Arrays;
+
+/**
+ * NativeManager状态推送器
+ * 记录最近一次推入NativeManager的状态，只在输入变化时才发起对应的Set* JNI调用。
+ * REDD/REUR/RECD为null表示未个体化，clear*把已推送的个体化值恢复为默认值。
+ * 只能在NAL2引擎线程上使用（见Nal2EngineExecutor）。
+ */
+public final class NativeStateApplier implements Nal2SessionManager.NativeState {
+    private static NativeStateApplier instance;
+
+    private static final int BANDS = 19;
+
+    // SetREDDindiv/SetREURindiv的defValues为1时NAL2使用默认值，忽略传入的数组
+    private static final int USE_DEFAULT_VALUES = 1;
+
+    private final Nal2Manager nal2Manager;
+
+    // 已推入NativeManager的状态（不含听力图）
+    private FittingProfile applied = FittingProfile.EMPTY;
+
+    // CompressionThreshold_NL2依赖其它状态，任一其它setter被调用后需要重新计算
+    private boolean ctStale = true;
+    private double[] lastCT;
+
+    private volatile long issuedCalls;
+    private volatile long skippedCalls;
+
+    private NativeStateApplier(Nal2Manager nal2Manager) {
+        this.nal2Manager = nal2Manager;
+    }
+
+    public static synchronized NativeStateApplier getInstance(Context context) {
+        if (instance == null) {
+            instance = new NativeStateApplier(Nal2Manager.getInstance(context));
+        }
+        return instance;
+    }
+
+    /**
+     * 把档案中已设置的部分推入NativeManager，未变化的部分跳过
+     * 推送顺序：人口学参数 -> REDD/REUR/RECD -> BWC -> CT
+     */
+    public void apply(FittingProfile profile) {
+        if (profile.adultChild != FittingProfile.UNSET) {
+            setAdultChild(profile.adultChild, profile.dateOfBirth);
+        }
+        if (profile.experience != FittingProfile.UNSET) {
+            setExperience(profile.experience);
+        }
+        if (profile.compSpeed != FittingProfile.UNSET) {
+            setCompSpeed(profile.compSpeed);
+        }
+        if (profile.tonal != FittingProfile.UNSET) {
+            setTonalLanguage(profile.tonal);
+        }
+        if (profile.gender != FittingProfile.UNSET) {
+            setGender(profile.gender);
+        }
+        if (profile.redd != null) {
+            setREDDindiv(profile.redd, profile.reddDefValues);
+        }
+        if (profile.reur != null) {
+            setREURindiv(profile.reur, profile.reurDefValues, profile.reurDateOfBirth, profile.reurDirection,
+                    profile.reurMic);
+        }
+        if (profile.recdh != null) {
+            setRECDhIndiv(profile.recdh);
+        }
+        if (profile.recdt != null) {
+            setRECDtIndiv(profile.recdt);
+        }
+        if (profile.hasBWC()) {
+            setBWC(profile.channels, profile.crossOver);
+        }
+        if (profile.hasCompressionThreshold()) {
+            compressionThreshold(profile.bandWidth, profile.selection, profile.wbct, profile.aidType,
+                    profile.direction, profile.mic, profile.calcCh);
+        }
+    }
+
+    /**
+     * 把档案的完整状态推入NativeManager，用于会话切换
+     * 未设置的人口学参数、BWC和CT输入按FittingProfile.DEFAULTS推送，未个体化的REDD/REUR/RECD恢复为默认值，
+     * 推送后NativeManager的状态只取决于档案，与之前的会话无关。未变化的部分同样跳过。
+     */
+    @Override
+    public void restore(FittingProfile profile) {
+        FittingProfile p = profile.withDefaults();
+        setAdultChild(p.adultChild, p.dateOfBirth);
+        setExperience(p.experience);
+        setCompSpeed(p.compSpeed);
+        setTonalLanguage(p.tonal);
+        setGender(p.gender);
+        if (p.redd != null) {
+            setREDDindiv(p.redd, p.reddDefValues);
+        } else {
+            clearREDDindiv();
+        }
+        if (p.reur != null) {
+            setREURindiv(p.reur, p.reurDefValues, p.reurDateOfBirth, p.reurDirection, p.reurMic);
+        } else {
+            clearREURindiv();
+        }
+        if (p.recdh != null) {
+            setRECDhIndiv(p.recdh);
+        } else {
+            clearRECDhIndiv();
+        }
+        if (p.recdt != null) {
+            setRECDtIndiv(p.recdt);
+        } else {
+            clearRECDtIndiv();
+        }
+        setBWC(p.channels, p.crossOver);
+        compressionThreshold(p.bandWidth, p.selection, p.wbct, p.aidType, p.direction, p.mic, p.calcCh);
+    }
+
+    public void setAdultChild(int adultChild, int dateOfBirth) {
+        if (applied.adultChild == adultChild && applied.dateOfBirth == dateOfBirth) {
+            skipped();
+            return;
+        }
+        nal2Manager.setAdultChild(adultChild, dateOfBirth);
+        update(applied.toBuilder().adultChild(adultChild, dateOfBirth));
+    }
+
+    public void setExperience(int experience) {
+        if (applied.experience == experience) {
+            skipped();
+            return;
+        }
+        nal2Manager.setExperience(experience);
+        update(applied.toBuilder().experience(experience));
+    }
+
+    public void setCompSpeed(int compSpeed) {
+        if (applied.compSpeed == compSpeed) {
+            skipped();
+            return;
+        }
+        nal2Manager.setCompSpeed(compSpeed);
+        update(applied.toBuilder().compSpeed(compSpeed));
+    }
+
+    public void setTonalLanguage(int tonal) {
+        if (applied.tonal == tonal) {
+            skipped();
+            return;
+        }
+        nal2Manager.setTonalLanguage(tonal);
+        update(applied.toBuilder().tonalLanguage(tonal));
+    }
+
+    public void setGender(int gender) {
+        if (applied.gender == gender) {
+            skipped();
+            return;
+        }
+        nal2Manager.setGender(gender);
+        update(applied.toBuilder().gender(gender));
+    }
+
+    public void setBWC(int channels, double[] crossOver) {
+        if (applied.channels == channels && Arrays.equals(applied.crossOver, crossOver)) {
+            skipped();
+            return;
+        }
+        nal2Manager.setBWC(channels, crossOver);
+        update(applied.toBuilder().bwc(channels, crossOver));
+    }
+
+    public void setREDDindiv(double[] redd, int defValues) {
+        if (applied.reddDefValues == defValues && Arrays.equals(applied.redd, redd)) {
+            skipped();
+            return;
+        }
+        if (redd.length == 9) {
+            nal2Manager.setREDDindiv9(redd, defValues);
+        } else {
+            nal2Manager.setREDDindiv(redd, defValues);
+        }
+        update(applied.toBuilder().redd(redd, defValues));
+    }
+
+    public void setREURindiv(double[] reur, int defValues, int dateOfBirth, int direction, int mic) {
+        if (applied.reurDefValues == defValues && applied.reurDateOfBirth == dateOfBirth
+                && applied.reurDirection == direction && applied.reurMic == mic
+                && Arrays.equals(applied.reur, reur)) {
+            skipped();
+            return;
+        }
+        if (reur.length == 9) {
+            nal2Manager.setREURindiv9(reur, defValues, dateOfBirth, direction, mic);
+        } else {
+            nal2Manager.setREURindiv(reur, defValues, dateOfBirth, direction, mic);
+        }
+        update(applied.toBuilder().reur(reur, defValues, dateOfBirth, direction, mic));
+    }
+
+    /** 清除个体化REDD，NAL2改用默认值 */
+    public void clearREDDindiv() {
+        if (applied.redd == null) {
+            skipped();
+            return;
+        }
+        nal2Manager.setREDDindiv(new double[BANDS], USE_DEFAULT_VALUES);
+        update(applied.toBuilder().redd(null, FittingProfile.UNSET));
+    }
+
+    /** 清除个体化REUR，NAL2改用默认值 */
+    public void clearREURindiv() {
+        if (applied.reur == null) {
+            skipped();
+            return;
+        }
+        nal2Manager.setREURindiv(new double[BANDS], USE_DEFAULT_VALUES, 0, 0, 0);
+        update(applied.toBuilder().reur(null, FittingProfile.UNSET, FittingProfile.UNSET, FittingProfile.UNSET,
+                FittingProfile.UNSET));
+    }
+
+    public void setRECDhIndiv(double[] recdh) {
+        if (Arrays.equals(applied.recdh, recdh)) {
+            skipped();
+            return;
+        }
+        if (recdh.length == 9) {
+            nal2Manager.setRECDhIndiv9(recdh);
+        } else {
+            nal2Manager.setRECDhIndiv(recdh);
+        }
+        update(applied.toBuilder().recdh(recdh));
+    }
+
+    public void setRECDtIndiv(double[] recdt) {
+        if (Arrays.equals(applied.recdt, recdt)) {
+            skipped();
+            return;
+        }
+        if (recdt.length == 9) {
+            nal2Manager.setRECDtIndiv9(recdt);
+        } else {
+            nal2Manager.setRECDtIndiv(recdt);
+        }
+        update(applied.toBuilder().recdt(recdt));
+    }
+
+    /** 清除个体化RECDh，恢复为未设置时的全0 */
+    public void clearRECDhIndiv() {
+        if (applied.recdh == null) {
+            skipped();
+            return;
+        }
+        nal2Manager.setRECDhIndiv(new double[BANDS]);
+        update(applied.toBuilder().recdh(null));
+    }
+
+    /** 清除个体化RECDt，恢复为未设置时的全0 */
+    public void clearRECDtIndiv() {
+        if (applied.recdt == null) {
+            skipped();
+            return;
+        }
+        nal2Manager.setRECDtIndiv(new double[BANDS]);
+        update(applied.toBuilder().recdt(null));
+    }
+
+    /**
+     * 计算压缩阈值
+     * 输入和其它状态都未变化时直接返回上一次的CT，不再调用CompressionThreshold_NL2
+     */
+    public double[] compressionThreshold(int bandWidth, int selection, int wbct, int aidType, int direction,
+            int mic, int[] calcCh) {
+        if (!ctStale && lastCT != null && applied.bandWidth == bandWidth && applied.selection == selection
+                && applied.wbct == wbct && applied.aidType == aidType && applied.direction == direction
+                && applied.mic == mic && Arrays.equals(applied.calcCh, calcCh)) {
+            skipped();
+            return lastCT.clone();
+        }
+        double[] ct = new double[19];
+        nal2Manager.setCompressionThreshold(ct, bandWidth, selection, wbct, aidType, direction, mic, calcCh);
+        issuedCalls++;
+        applied = applied.toBuilder().compressionThreshold(bandWidth, selection, wbct, aidType, direction, mic,
+                calcCh).build();
+        lastCT = ct.clone();
+        ctStale = false;
+        return ct;
+    }
+
+    /** 当前已推入NativeManager的状态 */
+    @Override
+    public FittingProfile getAppliedState() {
+        return applied;
+    }
+
+    public long getIssuedCalls() {
+        return issuedCalls;
+    }
+
+    public long getSkippedCalls() {
+        return skippedCalls;
+    }
+
+    private void update(FittingProfile.Builder builder) {
+        applied = builder.build();
+        ctStale = true;
+        issuedCalls++;
+    }
+
+    private void skipped() {
+        skippedCalls++;
+    }
+}
@@ -0,0 +1,24 @@
+package com.nal2;
+
+import au.org.nal.OutputResult;
+
+/**
+ * OutputResult.output1 的访问器
+ * SDK的OutputResult提供getOutput1()，编译期直接调用，不再每次NAL2调用都做反射查找和异常回退
+ */
+final class OutputResultAccessor {
+
+    private OutputResultAccessor() {
+    }
+
+    /**
+     * 读取output1，结果或output1为空时返回defaultValue
+     */
+    static double[] getOutput1(OutputResult result, double[] defaultValue) {
+        if (result == null) {
+            return defaultValue;
+        }
+        double[] output = result.getOutput1();
+        return output != null ? output : defaultValue;
+    }
+}
@@ -0,0 +1,312 @@
+package com.nal2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 处方计算依赖图
+ * 每个节点声明依赖的输入分组和前置节点，按声明顺序（即拓扑顺序）执行，
+ * 中间结果（交叉频率、中心频率、CT等）只计算一次，供后续节点直接使用。
+ * 增量执行时只重算输入分组有变化、或前置节点结果有变化的节点，其余节点沿用上一次的结果；
+ * 修改NativeManager状态的节点（状态节点和CT等状态结果节点）总是执行，保证后续节点在正确的状态上计算；
+ * 这类节点推送的状态有变化时，之后的所有节点都重算（JNI计算读取NativeManager的全部状态，不限于声明的前置节点）。
+ * 只能在NAL2引擎线程上执行。
+ */
+public final class PrescriptionGraph {
+
+    /** 输入参数分组 */
+    public enum InputGroup {
+        /** 年龄、出生日期、经验、压缩速度、声调语言、性别 */
+        DEMOGRAPHICS,
+        /** AC、BC、ACother */
+        AUDIOGRAM,
+        /** 通道数、带宽、CT选择等通道配置 */
+        CHANNELS,
+        /** 输入声级 */
+        LEVELS,
+        /** 助听器类型、方向性、麦克风、限幅、助听器数量等 */
+        TRANSDUCER
+    }
+
+    /** 节点计算逻辑 */
+    public interface Step {
+        /**
+         * @param results 前置节点的结果
+         * @return 节点结果，状态节点返回null。结果为double[]、int[]、Map或实现了equals的值，
+         *         增量执行时据此判断结果是否变化
+         */
+        Object compute(Results results) throws Exception;
+    }
+
+    /** 已计算节点的结果 */
+    public static final class Results {
+        private final Map<String, Object> values;
+
+        Results(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        public Object get(String node) {
+            if (!values.containsKey(node)) {
+                throw new IllegalStateException("节点尚未计算: " + node);
+            }
+            return values.get(node);
+        }
+
+        public double[] getDoubles(String node) {
+            return (double[]) get(node);
+        }
+
+        public int[] getInts(String node) {
+            return (int[]) get(node);
+        }
+    }
+
+    /** 一次执行的结果 */
+    public static final class Evaluation {
+        private final Map<String, Object> values;
+        private final Set<String> changed;
+        private final int recomputed;
+        private final int reused;
+
+        Evaluation(Map<String, Object> values, Set<String> changed, int recomputed, int reused) {
+            this.values = values;
+            this.changed = changed;
+            this.recomputed = recomputed;
+            this.reused = reused;
+        }
+
+        /** 所有数据节点的结果（按执行顺序，不含状态节点） */
+        public Map<String, Object> getValues() {
+            return values;
+        }
+
+        /** 结果与上一次不同的数据节点 */
+        public Set<String> getChanged() {
+            return changed;
+        }
+
+        /** 实际执行的数据节点数 */
+        public int getRecomputed() {
+            return recomputed;
+        }
+
+        /** 沿用上一次结果的数据节点数 */
+        public int getReused() {
+            return reused;
+        }
+    }
+
+    private static final class Node {
+        final String name;
+        final Set<InputGroup> inputs;
+        final String[] dependsOn;
+        final Step step;
+        // 状态节点只修改NativeManager状态，增量执行时总是执行（NativeStateApplier会跳过未变化的调用）
+        final boolean stateOnly;
+        // 状态结果节点修改NativeManager状态并输出结果，同样总是执行
+        final boolean alwaysRun;
+
+        Node(String name, Set<InputGroup> inputs, String[] dependsOn, Step step, boolean stateOnly,
+                boolean alwaysRun) {
+            this.name = name;
+            this.inputs = inputs;
+            this.dependsOn = dependsOn;
+            this.step = step;
+            this.stateOnly = stateOnly;
+            this.alwaysRun = alwaysRun;
+        }
+    }
+
+    private final List<Node> nodes;
+
+    private PrescriptionGraph(List<Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    /** 所有节点名（执行顺序） */
+    public List<String> getNodeNames() {
+        List<String> names = new ArrayList<String>(nodes.size());
+        for (Node node : nodes) {
+            names.add(node.name);
+        }
+        return names;
+    }
+
+    /**
+     * 按顺序执行全部节点
+     *
+     * @return 数据节点名 -> 结果（按执行顺序）
+     */
+    public Map<String, Object> evaluate() throws Exception {
+        return evaluate(EnumSet.allOf(InputGroup.class), Collections.<String, Object>emptyMap()).getValues();
+    }
+
+    /**
+     * 增量执行：数据节点在以下情况下重算，否则沿用previous中的结果
+     * - 状态结果节点
+     * - 直接依赖的输入分组在changedInputs中
+     * - 任一前置节点的结果有变化
+     * - 之前的状态节点输入有变化，或状态结果节点的结果有变化
+     * - previous中没有该节点的结果
+     *
+     * @param changedInputs 有变化的输入分组
+     * @param previous      上一次执行的getValues()
+     */
+    public Evaluation evaluate(Set<InputGroup> changedInputs, Map<String, Object> previous) throws Exception {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        Map<String, Object> all = new HashMap<String, Object>();
+        Results results = new Results(all);
+        Set<String> changedNodes = new HashSet<String>();
+        Set<String> changedOutputs = new LinkedHashSet<String>();
+        int recomputed = 0;
+        int reused = 0;
+        // 之前的节点修改了NativeManager状态
+        boolean stateChanged = false;
+
+        for (Node node : nodes) {
+            boolean dirty = stateChanged || intersects(node.inputs, changedInputs)
+                    || anyChanged(node.dependsOn, changedNodes);
+            if (node.stateOnly) {
+                node.step.compute(results);
+                all.put(node.name, null);
+                if (dirty) {
+                    changedNodes.add(node.name);
+                    stateChanged = true;
+                }
+                continue;
+            }
+            if (!node.alwaysRun && !dirty && previous.containsKey(node.name)) {
+                Object value = previous.get(node.name);
+                all.put(node.name, value);
+                values.put(node.name, value);
+                reused++;
+                continue;
+            }
+            Object value = node.step.compute(results);
+            recomputed++;
+            all.put(node.name, value);
+            values.put(node.name, value);
+            if (!previous.containsKey(node.name) || !deepEquals(value, previous.get(node.name))) {
+                changedNodes.add(node.name);
+                changedOutputs.add(node.name);
+                if (node.alwaysRun) {
+                    stateChanged = true;
+                }
+            }
+        }
+        return new Evaluation(Collections.unmodifiableMap(values), Collections.unmodifiableSet(changedOutputs),
+                recomputed, reused);
+    }
+
+    private static boolean intersects(Set<InputGroup> a, Set<InputGroup> b) {
+        for (InputGroup group : a) {
+            if (b.contains(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean anyChanged(String[] dependsOn, Set<String> changedNodes) {
+        for (String dependency : dependsOn) {
+            if (changedNodes.contains(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean deepEquals(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof double[] && b instanceof double[]) {
+            return Arrays.equals((double[]) a, (double[]) b);
+        }
+        if (a instanceof int[] && b instanceof int[]) {
+            return Arrays.equals((int[]) a, (int[]) b);
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> ma = (Map<?, ?>) a;
+            Map<?, ?> mb = (Map<?, ?>) b;
+            if (ma.size() != mb.size()) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : ma.entrySet()) {
+                if (!mb.containsKey(entry.getKey()) || !deepEquals(entry.getValue(), mb.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+
+    public static final class Builder {
+        private final List<Node> nodes = new ArrayList<Node>();
+        private final Map<String, Node> byName = new HashMap<String, Node>();
+
+        /**
+         * 添加节点，前置节点必须已经添加
+         *
+         * @param name      节点名
+         * @param inputs    直接依赖的输入分组
+         * @param dependsOn 前置节点
+         * @param step      计算逻辑
+         */
+        public Builder node(String name, Set<InputGroup> inputs, String[] dependsOn, Step step) {
+            return add(name, inputs, dependsOn, step, false, false);
+        }
+
+        /**
+         * 添加只修改NativeManager状态的节点（结果不输出）
+         */
+        public Builder stateNode(String name, Set<InputGroup> inputs, String[] dependsOn, Step step) {
+            return add(name, inputs, dependsOn, step, true, true);
+        }
+
+        /**
+         * 添加修改NativeManager状态并输出结果的节点（如CT）：增量执行时不沿用上一次的结果，
+         * 总是通过NativeStateApplier执行，结果与上一次相同时后续节点不因此重算
+         */
+        public Builder stateValueNode(String name, Set<InputGroup> inputs, String[] dependsOn, Step step) {
+            return add(name, inputs, dependsOn, step, false, true);
+        }
+
+        private Builder add(String name, Set<InputGroup> inputs, String[] dependsOn, Step step, boolean stateOnly,
+                boolean alwaysRun) {
+            if (byName.containsKey(name)) {
+                throw new IllegalArgumentException("节点重复: " + name);
+            }
+            for (String dependency : dependsOn) {
+                if (!byName.containsKey(dependency)) {
+                    throw new IllegalArgumentException("节点" + name + "的前置节点未定义: " + dependency);
+                }
+            }
+            Set<InputGroup> inputSet = inputs.isEmpty()
+                    ? EnumSet.noneOf(InputGroup.class) : EnumSet.copyOf(inputs);
+            Node node = new Node(name, Collections.unmodifiableSet(inputSet), dependsOn.clone(), step,
+                    stateOnly, alwaysRun);
+            nodes.add(node);
+            byName.put(name, node);
+            return this;
+        }
+
+        public PrescriptionGraph build() {
+            return new PrescriptionGraph(new ArrayList<Node>(nodes));
+        }
+    }
+}
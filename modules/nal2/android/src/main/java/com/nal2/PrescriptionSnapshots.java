@@ -0,0 +1,101 @@
+package com.nal2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 增量处方（FullPrescriptionUpdate）的上一次输入和结果
+ * 按会话保存（LRU），不带session_id的请求共用一份。只能在NAL2引擎线程上使用。
+ */
+public final class PrescriptionSnapshots {
+    /** 默认最多保留的快照数 */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    // 不带session_id的请求使用的键
+    private static final String SHARED_KEY = "";
+
+    private static PrescriptionSnapshots instance;
+
+    private final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+
+    private volatile long updates;
+    private volatile long recomputedNodes;
+    private volatile long reusedNodes;
+
+    private PrescriptionSnapshots() {
+    }
+
+    public static synchronized PrescriptionSnapshots getInstance() {
+        if (instance == null) {
+            instance = new PrescriptionSnapshots();
+        }
+        return instance;
+    }
+
+    /** 某个会话的上一次快照，没有则返回null */
+    public Snapshot get(String sessionId) {
+        return snapshots.get(sessionId == null ? SHARED_KEY : sessionId);
+    }
+
+    /**
+     * 保存本次输入和结果，返回新快照；params由快照持有，之后不能再修改
+     *
+     * @param state 计算结束时已推入NativeManager的状态
+     */
+    public Snapshot put(String sessionId, Nal2Params params, PrescriptionGraph.Evaluation evaluation,
+            FittingProfile state) {
+        Snapshot previous = get(sessionId);
+        long version = previous == null ? 1 : previous.version;
+        if (previous != null && !evaluation.getChanged().isEmpty()) {
+            version++;
+        }
+        Snapshot snapshot = new Snapshot(params, evaluation.getValues(), state, version);
+        snapshots.put(sessionId == null ? SHARED_KEY : sessionId, snapshot);
+        trimToCapacity();
+
+        updates++;
+        recomputedNodes += evaluation.getRecomputed();
+        reusedNodes += evaluation.getReused();
+        return snapshot;
+    }
+
+    public void remove(String sessionId) {
+        snapshots.remove(sessionId == null ? SHARED_KEY : sessionId);
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    public long getRecomputedNodes() {
+        return recomputedNodes;
+    }
+
+    public long getReusedNodes() {
+        return reusedNodes;
+    }
+
+    private void trimToCapacity() {
+        Iterator<Map.Entry<String, Snapshot>> it = snapshots.entrySet().iterator();
+        while (snapshots.size() > DEFAULT_CAPACITY && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** 一次增量处方的完整输入、全部数据节点结果、计算时的NativeManager状态和版本号 */
+    public static final class Snapshot {
+        public final Nal2Params params;
+        public final Map<String, Object> values;
+        public final FittingProfile state;
+        public final long version;
+
+        Snapshot(Nal2Params params, Map<String, Object> values, FittingProfile state, long version) {
+            this.params = params;
+            this.values = values;
+            this.state = state;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.nal2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Nal2BinaryCodecTest {
+
+    // API_GUIDE.md“二进制协议”中的请求帧：
+    // u32 帧长度 | u8 版本 | u16 函数ID | i32 sequence_num | u8 session_id字节数 | session_id | 对象
+    @Test
+    public void requestFrameMatchesGuideLayout() {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("gender", 1);
+        byte[] frame = Nal2BinaryCodec.encodeRequest("SetGender", 5, "ab", params);
+
+        assertArrayEquals(bytes(
+                18, 0, 0, 0,        // 帧长度
+                1,                  // 版本
+                12, 0,              // 函数ID 12 SetGender
+                5, 0, 0, 0,         // sequence_num
+                2, 'a', 'b',        // session_id
+                1, 0,               // 对象项数
+                15,                 // 字段ID 15 gender
+                1, 1, 0, 0, 0),     // INT32 1
+                frame);
+    }
+
+    // 响应帧：u32 帧长度 | u8 版本 | u16 函数ID | i32 sequence_num | i8 return | 对象
+    @Test
+    public void responseFrameMatchesGuideLayout() {
+        Nal2BinaryResponseWriter writer = new Nal2BinaryResponseWriter();
+        writer.begin();
+        writer.beginResponse(-2, "GetMLE", "ignored", -1);
+        writer.name("MLE").value(new double[] { 1.0 });
+        writer.name("x").value(true);
+        writer.name("levels").beginArray().value(7).nullValue().endArray();
+        writer.endResponse(null);
+        Nal2ResponseBuffer response = writer.finish();
+        try {
+            assertEquals(Nal2BinaryCodec.CONTENT_TYPE, response.getContentType());
+            assertArrayEquals(bytes(
+                    37, 0, 0, 0,                        // 帧长度
+                    1,                                  // 版本
+                    41, 0,                              // 函数ID 41 GetMLE
+                    0xfe, 0xff, 0xff, 0xff,             // sequence_num -2
+                    0xff,                               // return -1，二进制响应不回传session_id
+                    3, 0,                               // 对象项数
+                    79, 4, 1, 0,                        // MLE：FLOAT64_ARRAY，1个
+                    0, 0, 0, 0, 0, 0, 0xf0, 0x3f,       // 1.0
+                    0, 1, 'x', 6, 1,                    // 字典中没有的键，BOOLEAN true
+                    9, 9, 2, 0,                         // levels：LIST，2个
+                    1, 7, 0, 0, 0,                      // INT32 7
+                    0),                                 // NULL
+                    Arrays.copyOf(response.array(), response.length()));
+        } finally {
+            response.release();
+        }
+    }
+
+    @Test
+    public void dictionaryIdsAreStable() {
+        assertEquals(1, Nal2BinaryCodec.functionId("dllVersion"));
+        assertEquals(2, Nal2BinaryCodec.functionId("FullPrescription"));
+        assertEquals(48, Nal2BinaryCodec.functionId("Get_SII"));
+        assertEquals(51, Nal2BinaryCodec.functionId("ClearRECD_indiv_NL2"));
+        assertEquals(51, Nal2BinaryCodec.functionCount());
+        assertEquals(Nal2BinaryCodec.UNKNOWN_FUNCTION, Nal2BinaryCodec.functionId("NoSuchFunction"));
+        assertNull(Nal2BinaryCodec.functionName(0));
+        assertNull(Nal2BinaryCodec.functionName(52));
+
+        assertEquals(1, Nal2BinaryCodec.fieldId("AC"));
+        assertEquals(41, Nal2BinaryCodec.fieldId("CT"));
+        assertEquals(87, Nal2BinaryCodec.fieldId("$ref"));
+        assertEquals(Nal2BinaryCodec.INLINE_NAME, Nal2BinaryCodec.fieldId("x"));
+        assertNull(Nal2BinaryCodec.fieldName(88));
+    }
+
+    @Test
+    public void requestRoundTrip() {
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("$ref", "step1.crossOverFreq");
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("AC", new double[] { 10, 20.5, -0.0, Double.MIN_VALUE, Double.MAX_VALUE });
+        params.put("BC", new int[] { Integer.MIN_VALUE, 0, Integer.MAX_VALUE });
+        params.put("channels", 18);
+        params.put("dateOfBirth", 20100615L);
+        params.put("limiting", 2.5);
+        params.put("reset", true);
+        params.put("名称", "值");
+        params.put("crossOver", nested);
+        params.put("levels", Arrays.<Object>asList(50, 65.5, null, "80"));
+        params.put("empty", new double[0]);
+
+        byte[] frame = Nal2BinaryCodec.encodeRequest("FullPrescription", 42, "患者-1", params);
+        List<Nal2BinaryCodec.Frame> frames = Nal2BinaryCodec.decodeRequests(frame, 0, frame.length);
+
+        assertEquals(1, frames.size());
+        Nal2BinaryCodec.Frame decoded = frames.get(0);
+        assertEquals("FullPrescription", decoded.getFunction());
+        assertEquals(42, decoded.getSequenceNum());
+        assertEquals("患者-1", decoded.getSessionId());
+        Map<String, Object> values = decoded.getValues();
+        assertEquals(Arrays.asList(params.keySet().toArray()), Arrays.asList(values.keySet().toArray()));
+        assertArrayEquals((double[]) params.get("AC"), (double[]) values.get("AC"), 0);
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(((double[]) values.get("AC"))[2]));
+        assertArrayEquals((int[]) params.get("BC"), (int[]) values.get("BC"));
+        assertEquals(18, values.get("channels"));
+        assertEquals(20100615L, values.get("dateOfBirth"));
+        assertEquals(2.5, values.get("limiting"));
+        assertEquals(true, values.get("reset"));
+        assertEquals("值", values.get("名称"));
+        assertEquals(nested, values.get("crossOver"));
+        assertEquals(params.get("levels"), values.get("levels"));
+        assertEquals(0, ((double[]) values.get("empty")).length);
+    }
+
+    @Test
+    public void serverDecodesEncodedRequests() throws JSONException {
+        Map<String, Object> first = new LinkedHashMap<String, Object>();
+        first.put("channels", 18);
+        first.put("AC", new int[] { 10, 20, 30 });
+        first.put("BC", new double[] { 15.5, 25, 35 });
+        Map<String, Object> second = new LinkedHashMap<String, Object>();
+        second.put("gender", 2);
+
+        Nal2RequestDecoder decoder = new Nal2RequestDecoder();
+        byte[] single = Nal2BinaryCodec.encodeRequest("CrossOverFrequencies_NL2", 3, null, first);
+        decoder.decodeBinary(single, 0, single.length);
+        assertFalse(decoder.isBatch());
+        Nal2RequestDecoder.Request request = decoder.getRequest();
+        assertEquals("CrossOverFrequencies_NL2", request.getFunction());
+        assertEquals(3, request.getSequenceNum());
+        assertNull(request.getSessionId());
+        assertEquals(18, request.getParams().getInt("channels"));
+        assertArrayEquals(new double[] { 10, 20, 30 }, request.getParams().getDoubleArray("AC"), 0);
+        assertArrayEquals(new double[] { 15.5, 25, 35 }, request.getParams().getDoubleArray("BC"), 0);
+
+        byte[] other = Nal2BinaryCodec.encodeRequest("SetGender", 4, "s", second);
+        byte[] body = new byte[3 + single.length + other.length];
+        System.arraycopy(single, 0, body, 3, single.length);
+        System.arraycopy(other, 0, body, 3 + single.length, other.length);
+        decoder.decodeBinary(body, 3, single.length + other.length);
+        assertTrue(decoder.isBatch());
+        assertEquals(2, decoder.getBatch().size());
+        assertEquals(3, decoder.getBatch().get(0).getSequenceNum());
+        assertEquals("SetGender", decoder.getBatch().get(1).getFunction());
+        assertEquals("s", decoder.getBatch().get(1).getSessionId());
+        assertEquals(2, decoder.getBatch().get(1).getParams().getInt("gender"));
+    }
+
+    @Test
+    public void writerMatchesReferenceEncoder() {
+        Map<String, Object> reag = new LinkedHashMap<String, Object>();
+        reag.put("50", new double[] { 1.25, -3 });
+        reag.put("65", new double[] { 0.1, 1e300 });
+        Map<String, Object> outputs = new LinkedHashMap<String, Object>();
+        outputs.put("REAG", reag);
+        outputs.put("CR", new int[] { 1, 2, 3 });
+        outputs.put("version", "1.0.0.0");
+        outputs.put("error", null);
+        outputs.put("Speech_rms", 61.5);
+        outputs.put("changed", Arrays.<Object>asList("CR", 2));
+        outputs.put("big", 1L << 40);
+
+        Nal2BinaryResponseWriter writer = new Nal2BinaryResponseWriter();
+        writer.begin();
+        writer.beginBatch();
+        writer.beginResponse(9, "FullPrescription", null, 0);
+        writer.name("REAG").beginObject();
+        writer.name("50").value(new double[] { 1.25, -3 });
+        writer.name("65").value(new ImmutableDoubleArray(new double[] { 0.1, 1e300 }));
+        writer.endObject();
+        writer.name("CR").value(new int[] { 1, 2, 3 });
+        writer.name("version").value("1.0.0.0");
+        writer.name("error").value((String) null);
+        writer.name("Speech_rms").value(61.5);
+        writer.name("changed").beginArray().value("CR").value(2L).endArray();
+        writer.name("big").value(1L << 40);
+        writer.endResponse(null);
+        int second = writer.position();
+        writer.beginResponse(10, "NoSuchFunction", null, -1);
+        writer.name("error").value("失败");
+        writer.endResponse(null);
+        writer.endBatch();
+        Nal2ResponseBuffer response = writer.finish();
+        try {
+            byte[] actual = Arrays.copyOf(response.array(), response.length());
+            assertArrayEquals(Nal2BinaryCodec.encodeResponse("FullPrescription", 9, 0, outputs),
+                    Arrays.copyOf(actual, second));
+
+            List<Nal2BinaryCodec.Frame> frames = Nal2BinaryCodec.decodeResponses(actual, 0, actual.length);
+            assertEquals(2, frames.size());
+            assertEquals("FullPrescription", frames.get(0).getFunction());
+            assertEquals(0, frames.get(0).getReturnCode());
+            Map<String, Object> values = frames.get(0).getValues();
+            assertArrayEquals(new double[] { 0.1, 1e300 },
+                    (double[]) ((Map<?, ?>) values.get("REAG")).get("65"), 0);
+            assertEquals(1L << 40, values.get("big"));
+            assertNull(frames.get(1).getFunction());
+            assertEquals(10, frames.get(1).getSequenceNum());
+            assertEquals(-1, frames.get(1).getReturnCode());
+            assertEquals("失败", frames.get(1).getValues().get("error"));
+        } finally {
+            response.release();
+        }
+    }
+
+    @Test
+    public void truncateDropsWholeFrames() {
+        Nal2BinaryResponseWriter writer = new Nal2BinaryResponseWriter();
+        writer.begin();
+        writer.beginResponse(1, "GetMLE", null, 0);
+        writer.name("MLE").value(new double[] { 1, 2 });
+        writer.endResponse(null);
+        int mark = writer.position();
+        writer.beginResponse(2, "GetMLE", null, 0);
+        writer.name("MLE").beginArray().value(1);
+        writer.truncate(mark);
+        writer.beginResponse(3, "SetGender", null, 0);
+        writer.name("success").value(true);
+        writer.endResponse(null);
+        Nal2ResponseBuffer response = writer.finish();
+        try {
+            List<Nal2BinaryCodec.Frame> frames =
+                    Nal2BinaryCodec.decodeResponses(response.array(), 0, response.length());
+            assertEquals(2, frames.size());
+            assertEquals(1, frames.get(0).getSequenceNum());
+            assertEquals(3, frames.get(1).getSequenceNum());
+            assertEquals(true, frames.get(1).getValues().get("success"));
+        } finally {
+            response.release();
+        }
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        byte[] frame = Nal2BinaryCodec.encodeRequest("GetMLE", 1, null, new LinkedHashMap<String, Object>());
+        assertMalformed(Arrays.copyOf(frame, frame.length - 1));
+
+        byte[] version = frame.clone();
+        version[4] = 2;
+        assertMalformed(version);
+
+        byte[] longer = frame.clone();
+        longer[0]++;
+        assertMalformed(longer);
+
+        assertMalformed(bytes(3, 0, 0, 0, 1, 0, 0));
+    }
+
+    private static void assertMalformed(byte[] data) {
+        try {
+            Nal2BinaryCodec.decodeRequests(data, 0, data.length);
+            fail("应拒绝: " + Arrays.toString(data));
+        } catch (IllegalArgumentException e) {
+            // 期望的结果
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,155 @@
+package com.nal2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class Nal2DoubleFormatterTest {
+
+    @Test
+    public void formatsLikeJavaScript() {
+        assertFormat("0", 0.0);
+        assertFormat("-0", -0.0);
+        assertFormat("1", 1.0);
+        assertFormat("-65", -65.0);
+        assertFormat("0.1", 0.1);
+        assertFormat("0.30000000000000004", 0.1 + 0.2);
+        assertFormat("123.456", 123.456);
+        assertFormat("100000000000000000000", 1e20);
+        assertFormat("1e+21", 1e21);
+        assertFormat("1.5e+21", 1.5e21);
+        assertFormat("0.000001", 1e-6);
+        assertFormat("1e-7", 1e-7);
+        assertFormat("1.23e-7", 1.23e-7);
+        assertFormat("1e+23", 1e23);
+        assertFormat("9007199254740992", 9007199254740992.0);
+        assertFormat("1.7976931348623157e+308", Double.MAX_VALUE);
+        assertFormat("2.2250738585072014e-308", Double.MIN_NORMAL);
+    }
+
+    @Test
+    public void formatsSmallestSubnormalsWithShortestDigits() {
+        assertFormat("5e-324", Double.MIN_VALUE);
+        assertFormat("1e-323", 2 * Double.MIN_VALUE);
+        assertFormat("1.5e-323", 3 * Double.MIN_VALUE);
+        assertFormat("2e-323", 4 * Double.MIN_VALUE);
+    }
+
+    @Test
+    public void roundTripsRandomBits() {
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            double v = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(v) || Double.isInfinite(v)) {
+                continue;
+            }
+            assertRoundTrip(v);
+        }
+    }
+
+    @Test
+    public void roundTripsSubnormalsAndPowers() {
+        for (long t = 1; t <= 5000; t++) {
+            assertRoundTrip(Double.longBitsToDouble(t));
+        }
+        for (int e = -1074; e <= 1023; e++) {
+            double p = Math.scalb(1.0, e);
+            assertRoundTrip(p);
+            assertRoundTrip(Math.nextUp(p));
+            assertRoundTrip(Math.nextDown(p));
+        }
+        for (int k = -323; k <= 308; k++) {
+            assertRoundTrip(Double.parseDouble("1e" + k));
+        }
+    }
+
+    @Test
+    public void outputIsShortest() {
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            double v = Double.longBitsToDouble(random.nextLong() & Long.MAX_VALUE);
+            if (Double.isNaN(v) || Double.isInfinite(v) || v == 0) {
+                continue;
+            }
+            assertShortest(v);
+        }
+        for (long t = 1; t <= 1000; t++) {
+            assertShortest(Double.longBitsToDouble(t));
+        }
+        for (int i = 0; i < 20000; i++) {
+            long t = random.nextLong() & 0x000F_FFFF_FFFF_FFFFL >>> random.nextInt(52);
+            if (t != 0) {
+                assertShortest(Double.longBitsToDouble(t));
+            }
+        }
+        // 常见的听力学数值
+        for (int i = -200; i <= 1400; i++) {
+            assertShortest(Math.abs(i / 10.0) + 0.05 * (i & 1));
+        }
+    }
+
+    @Test
+    public void writesAtOffsetWithinMaxChars() {
+        byte[] buf = new byte[3 + Nal2DoubleFormatter.MAX_CHARS];
+        buf[0] = 'x';
+        int end = Nal2DoubleFormatter.format(-2.2250738585072014e-308, buf, 3);
+        assertEquals("-2.2250738585072014e-308", new String(buf, 3, end - 3, StandardCharsets.US_ASCII));
+        assertEquals('x', buf[0]);
+        assertTrue(end - 3 <= Nal2DoubleFormatter.MAX_CHARS);
+    }
+
+    @Test
+    public void rejectsNonFiniteValues() {
+        for (double v : new double[] { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY }) {
+            try {
+                Nal2DoubleFormatter.toString(v);
+                fail("应拒绝: " + v);
+            } catch (IllegalArgumentException e) {
+                // 期望的结果
+            }
+        }
+    }
+
+    private static void assertFormat(String expected, double v) {
+        assertEquals(expected, Nal2DoubleFormatter.toString(v));
+        assertRoundTrip(v);
+    }
+
+    private static void assertRoundTrip(double v) {
+        String s = Nal2DoubleFormatter.toString(v);
+        assertEquals(s, Double.doubleToRawLongBits(v), Double.doubleToRawLongBits(Double.parseDouble(s)));
+    }
+
+    // 有效数字个数等于能还原v的最少有效数字个数
+    private static void assertShortest(double v) {
+        String s = Nal2DoubleFormatter.toString(v);
+        BigDecimal exact = new BigDecimal(v);
+        int shortest = 1;
+        while (exact.round(new MathContext(shortest, RoundingMode.HALF_EVEN)).doubleValue() != v) {
+            shortest++;
+        }
+        assertEquals(s + " (" + v + ")", shortest, significantDigits(s));
+    }
+
+    private static int significantDigits(String s) {
+        int e = s.indexOf('e');
+        String digits = (e >= 0 ? s.substring(0, e) : s).replace("-", "").replace(".", "");
+        int start = 0;
+        while (start < digits.length() - 1 && digits.charAt(start) == '0') {
+            start++;
+        }
+        int end = digits.length();
+        while (end > start + 1 && digits.charAt(end - 1) == '0') {
+            end--;
+        }
+        return end - start;
+    }
+}
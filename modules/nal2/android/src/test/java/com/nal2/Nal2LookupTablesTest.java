@@ -0,0 +1,52 @@
+package com.nal2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class Nal2LookupTablesTest {
+
+    // 只使用查找表本身，不调用JNI
+    private final Nal2LookupTables tables = new Nal2LookupTables(null, null);
+
+    @Test
+    public void reurKeyAcceptsRealDatesOfBirth() {
+        for (int dateOfBirth : new int[] { 19690420, 20100615, 19991231, 0, Integer.MAX_VALUE, -1 }) {
+            assertNotEquals(dateOfBirth + "应可查表", 0L,
+                    Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, dateOfBirth, 0, 0));
+        }
+    }
+
+    @Test
+    public void reurKeyDistinguishesAllParameters() {
+        long key = Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 20100615, 0, 1);
+        assertNotEquals(key, Nal2LookupTables.reurKey(Nal2LookupTables.REUR9, 1, 20100615, 0, 1));
+        assertNotEquals(key, Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 0, 20100615, 0, 1));
+        assertNotEquals(key, Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 20100616, 0, 1));
+        assertNotEquals(key, Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 20100615, 1, 1));
+        assertNotEquals(key, Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 20100615, 0, 0));
+        assertNotEquals(Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, -1, 0, 0),
+                Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, Integer.MAX_VALUE, 0, 0));
+        // 枚举参数超出范围时不查表
+        assertEquals(0L, Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 20100615, 128, 0));
+    }
+
+    @Test
+    public void hitsTableForRealDateOfBirth() {
+        long adult = Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 19690420, 0, 0);
+        long child = Nal2LookupTables.reurKey(Nal2LookupTables.REUR, 1, 20100615, 0, 0);
+        assertNull(tables.find(adult));
+
+        ImmutableDoubleArray adultValue = tables.fill(adult, new double[] { 1, 2, 3 });
+        ImmutableDoubleArray childValue = tables.fill(child, new double[] { 4, 5, 6 });
+
+        assertSame(adultValue, tables.find(adult));
+        assertSame(childValue, tables.find(child));
+        assertEquals(2, tables.getSize());
+        assertEquals(2, tables.getFills());
+        assertEquals(2, tables.getHits());
+    }
+}
@@ -0,0 +1,118 @@
+package com.nal2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class Nal2RequestCoalescerTest {
+
+    private static final String REQUEST = "{\"sequence_num\": %d, \"function\": \"GetMLE\", \"session_id\": \"A\", "
+            + "\"input_parameters\": {\"aidType\": 1}}";
+
+    private final Nal2EngineExecutor executor = Nal2EngineExecutor.getInstance();
+    private final Nal2RequestDecoder decoder = new Nal2RequestDecoder();
+    // 引擎线程上处理的请求的sequence_num
+    private final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private Nal2RequestCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        Nal2FunctionRegistry functions = new Nal2FunctionRegistry();
+        functions.register(new Nal2Function.Builder("GetMLE").readOnly().intParam("aidType")
+                .build(new Nal2Function.Handler() {
+                    @Override
+                    public void handle(Nal2Function.Call call) {
+                    }
+                }));
+        Nal2RequestScheduler scheduler = new Nal2RequestScheduler(executor, functions,
+                new Nal2RequestScheduler.Processor() {
+                    @Override
+                    public Nal2ResponseBuffer process(Nal2RequestScheduler.Ticket ticket) throws Exception {
+                        gate.await();
+                        processed.add(ticket.getSequenceNum());
+                        Nal2JsonResponseWriter writer = new Nal2JsonResponseWriter();
+                        writer.begin();
+                        writer.beginResponse(ticket.getSequenceNum(), ticket.getFunction(), "A", 0);
+                        writer.name("MLE").value(1);
+                        writer.endResponse(null);
+                        return writer.finish();
+                    }
+
+                    @Override
+                    public Nal2ResponseBuffer skip(Nal2RequestScheduler.Ticket ticket, String reason) {
+                        throw new AssertionError(reason);
+                    }
+                });
+        coalescer = new Nal2RequestCoalescer(functions, scheduler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gate.countDown();
+        // 等待本测试提交的任务执行完
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void coalescesRequestsThatDifferOnlyInSequenceNum() throws Exception {
+        CompletableFuture<Nal2ResponseBuffer> first = submit(7);
+        CompletableFuture<Nal2ResponseBuffer> second = submit(-12345);
+        CompletableFuture<Nal2ResponseBuffer> third = submit(7);
+        gate.countDown();
+
+        assertEquals("{\"sequence_num\":7,\"function\":\"GetMLE\",\"session_id\":\"A\",\"return\":0,"
+                + "\"output_parameters\":{\"MLE\":1}}", text(first));
+        assertEquals("{\"sequence_num\":-12345,\"function\":\"GetMLE\",\"session_id\":\"A\",\"return\":0,"
+                + "\"output_parameters\":{\"MLE\":1}}", text(second));
+        assertEquals(text(first), text(third));
+        assertEquals(Collections.singletonList(7), processed);
+        assertEquals(1, coalescer.getLeaders());
+        assertEquals(2, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void rewritesSequenceNumOfBinaryResponse() {
+        Map<String, Object> outputs = new HashMap<String, Object>();
+        outputs.put("MLE", 1);
+        byte[] frame = Nal2BinaryCodec.encodeResponse("GetMLE", 7, 0, outputs);
+        Nal2ResponseBuffer response = new Nal2ResponseBuffer(frame, frame.length, Nal2BinaryCodec.CONTENT_TYPE);
+
+        Nal2ResponseBuffer copy = response.copyWithSequenceNum(0x12345678);
+        List<Nal2BinaryCodec.Frame> frames = Nal2BinaryCodec.decodeResponses(copy.array(), 0, copy.length());
+        assertEquals(1, frames.size());
+        assertEquals(0x12345678, frames.get(0).getSequenceNum());
+        assertEquals(7, Nal2BinaryCodec.decodeResponses(frame, 0, frame.length).get(0).getSequenceNum());
+        assertTrue(frames.get(0).getValues().containsKey("MLE"));
+        copy.release();
+    }
+
+    private CompletableFuture<Nal2ResponseBuffer> submit(int sequenceNum) {
+        byte[] body = String.format(REQUEST, sequenceNum).getBytes(StandardCharsets.UTF_8);
+        return coalescer.process(decoder.take(body, false), false);
+    }
+
+    private static String text(CompletableFuture<Nal2ResponseBuffer> future) throws Exception {
+        Nal2ResponseBuffer response = future.get(5, TimeUnit.SECONDS);
+        return response.toUtf8String();
+    }
+}
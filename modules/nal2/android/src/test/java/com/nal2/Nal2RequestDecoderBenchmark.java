@@ -0,0 +1,154 @@
+package com.nal2;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 请求解码的微基准：JSONObject DOM + jsonArrayToDoubleArray（旧实现） vs Nal2RequestDecoder
+ * 使用input_json_data下的全部请求样例，计时前先检查两种方式解析出的参数一致
+ *
+ * 运行方式（宿主JVM，classpath需包含org.json）：
+ * java -cp json.jar:build/... com.nal2.Nal2RequestDecoderBenchmark [input_json_data目录] [iterations]
+ */
+public class Nal2RequestDecoderBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 10;
+
+    // 防止JIT消除无副作用的循环
+    private static double sink;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "input_json_data");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".json"));
+        if (files == null || files.length == 0) {
+            throw new IllegalArgumentException("找不到请求样例: " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        List<byte[]> bodies = new ArrayList<>();
+        long totalBytes = 0;
+        for (File file : files) {
+            byte[] body = Files.readAllBytes(file.toPath());
+            bodies.add(body);
+            totalBytes += body.length;
+        }
+        System.out.println("样例: " + bodies.size() + "个，共" + totalBytes + "字节");
+
+        Nal2RequestDecoder decoder = new Nal2RequestDecoder();
+        for (byte[] body : bodies) {
+            verify(decoder, body);
+        }
+        System.out.println("两种解析方式结果一致");
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runLegacy(bodies, iterations);
+            runDecoder(decoder, bodies, iterations);
+        }
+
+        long legacyNanos = Long.MAX_VALUE;
+        long decoderNanos = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            legacyNanos = Math.min(legacyNanos, runLegacy(bodies, iterations));
+            decoderNanos = Math.min(decoderNanos, runDecoder(decoder, bodies, iterations));
+        }
+
+        long requests = (long) iterations * bodies.size();
+        System.out.printf("JSONObject DOM: %.2f ns/请求%n", (double) legacyNanos / requests);
+        System.out.printf("Nal2RequestDecoder: %.2f ns/请求%n", (double) decoderNanos / requests);
+        System.out.printf("加速比: %.1fx%n", (double) legacyNanos / decoderNanos);
+        System.out.println("(sink=" + sink + ")");
+    }
+
+    private static long runLegacy(List<byte[]> bodies, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] body : bodies) {
+                JSONObject request = (JSONObject) new JSONTokener(new String(body, StandardCharsets.UTF_8)).nextValue();
+                sink += request.optInt("sequence_num", 0) + request.getString("function").length();
+                JSONObject params = request.getJSONObject("input_parameters");
+                Iterator<String> keys = params.keys();
+                while (keys.hasNext()) {
+                    Object value = params.get(keys.next());
+                    if (value instanceof JSONArray) {
+                        sink += legacyJsonArrayToDoubleArray((JSONArray) value).length;
+                    } else {
+                        sink += ((Number) value).doubleValue();
+                    }
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runDecoder(Nal2RequestDecoder decoder, List<byte[]> bodies, int iterations)
+            throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] body : bodies) {
+                decoder.decode(body, 0, body.length);
+                Nal2RequestDecoder.Request request = decoder.getRequest();
+                sink += request.getSequenceNum() + request.getFunction().length();
+                Nal2Params params = request.getParams();
+                for (int p = 0; p < params.size(); p++) {
+                    String name = params.getName(p);
+                    if (params.isNumberArray(name)) {
+                        sink += params.getDoubleArray(name).length;
+                    } else {
+                        sink += params.getDouble(name);
+                    }
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void verify(Nal2RequestDecoder decoder, byte[] body) throws Exception {
+        JSONObject expected = (JSONObject) new JSONTokener(new String(body, StandardCharsets.UTF_8)).nextValue();
+        decoder.decode(body, 0, body.length);
+        Nal2RequestDecoder.Request request = decoder.getRequest();
+        check(request.getSequenceNum() == expected.optInt("sequence_num", 0), "sequence_num");
+        check(expected.getString("function").equals(request.getFunction()), "function");
+
+        JSONObject params = expected.getJSONObject("input_parameters");
+        check(params.length() == request.getParams().size(), "参数个数");
+        Iterator<String> keys = params.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = params.get(key);
+            if (value instanceof JSONArray) {
+                check(request.getParams().isNumberArray(key), key);
+                double[] actual = request.getParams().getDoubleArray(key);
+                check(Arrays.equals(legacyJsonArrayToDoubleArray((JSONArray) value), actual), key);
+            } else {
+                check(((Number) value).doubleValue() == request.getParams().getDouble(key), key);
+                check(params.getInt(key) == request.getParams().getInt(key), key);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("解析结果不一致: " + what);
+        }
+    }
+
+    // 与Nal2Module原jsonArrayToDoubleArray相同的实现
+    private static double[] legacyJsonArrayToDoubleArray(JSONArray jsonArray) throws Exception {
+        double[] result = new double[jsonArray.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = jsonArray.getDouble(i);
+        }
+        return result;
+    }
+}
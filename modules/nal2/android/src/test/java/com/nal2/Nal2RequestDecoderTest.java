@@ -0,0 +1,236 @@
+package com.nal2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+public class Nal2RequestDecoderTest {
+
+    private final Nal2RequestDecoder decoder = new Nal2RequestDecoder();
+
+    @Test
+    public void decodesEnvelope() throws Exception {
+        Nal2RequestDecoder.Request request = decode("{\"sequence_num\": 7, \"function\": \"GetMLE\", "
+                + "\"session_id\": \"patient-1\", \"deadline_ms\": 250, \"latest_wins\": true, "
+                + "\"priority\": \"bulk\", \"unknown\": {\"nested\": [1, {\"x\": null}]}, "
+                + "\"input_parameters\": {\"aidType\": 1}}");
+
+        assertEquals(7, request.getSequenceNum());
+        assertEquals("GetMLE", request.getFunction());
+        assertEquals(Nal2BinaryCodec.functionId("GetMLE"), request.getFunctionId());
+        assertEquals("patient-1", request.getSessionId());
+        assertEquals(250, request.getDeadlineMs());
+        assertTrue(request.isLatestWins());
+        assertEquals("bulk", request.getPriority());
+        assertTrue(request.hasParams());
+        assertEquals(1, request.getParams().getInt("aidType"));
+    }
+
+    @Test
+    public void envelopeDefaults() throws Exception {
+        Nal2RequestDecoder.Request request = decode("{\"function\": \"NoSuchFunction\", \"deadline_ms\": -5, "
+                + "\"latest_wins\": \"true\", \"session_id\": null}");
+
+        assertEquals(0, request.getSequenceNum());
+        assertEquals(Nal2BinaryCodec.UNKNOWN_FUNCTION, request.getFunctionId());
+        assertNull(request.getSessionId());
+        assertEquals(0, request.getDeadlineMs());
+        assertFalse(request.isLatestWins());
+        assertNull(request.getPriority());
+        assertFalse(request.hasParams());
+    }
+
+    @Test
+    public void decodesParameterTypes() throws Exception {
+        Nal2Params params = decode("{\"input_parameters\": {\"AC\": [10, 20.5, -30e1], \"empty\": [], "
+                + "\"n\": 65, \"s\": \"text\", \"t\": true, \"f\": false, \"z\": null, "
+                + "\"mixed\": [1, \"2\", 3], \"obj\": {\"k\": 1}}}").getParams();
+
+        assertTrue(params.isNumberArray("AC"));
+        assertArrayEquals(new double[] { 10, 20.5, -300 }, params.getDoubleArray("AC"), 0);
+        assertArrayEquals(new double[0], params.getDoubleArray("empty"), 0);
+        assertEquals(65, params.getDouble("n"), 0);
+        assertEquals("text", params.getString("s"));
+        assertTrue(params.optBoolean("t", false));
+        assertFalse(params.optBoolean("f", true));
+        assertTrue(params.has("z"));
+        // 含非数值元素的数组保存为JSONArray，仍可按数值数组读取
+        assertFalse(params.isNumberArray("mixed"));
+        assertTrue(params.getOther("mixed") instanceof JSONArray);
+        assertArrayEquals(new double[] { 1, 2, 3 }, params.getDoubleArray("mixed"), 0);
+        assertEquals(1, ((JSONObject) params.getOther("obj")).getInt("k"));
+    }
+
+    @Test
+    public void fastPathMatchesParseDouble() throws Exception {
+        String[] samples = {
+                "0", "-0", "1", "-1", "0.1", "0.2", "0.3", "1.5", "-1.5e-3", "1E+2", "1e22", "1e-22",
+                "123.456", "65", "9007199254740992", "9007199254740993", "18014398509481985",
+                "123456789012345678", "1234567890123456789012345", "0.000000000000000000000001",
+                "1e23", "1e-23", "4.9e-324", "2.2250738585072014e-308", "1.7976931348623157e308", "1e400",
+                "1e-400", "3.141592653589793", "2.718281828459045", "0.30000000000000004", "100.000000000000000001",
+        };
+        for (String sample : samples) {
+            assertSameDouble(sample);
+        }
+    }
+
+    @Test
+    public void randomNumbersMatchParseDouble() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextBoolean()) {
+                sb.append('-');
+            }
+            // 整数部分为0或不以0开头的1-20位数字
+            int intDigits = random.nextInt(21);
+            if (intDigits == 0) {
+                sb.append('0');
+            } else {
+                sb.append(1 + random.nextInt(9));
+                for (int d = 1; d < intDigits; d++) {
+                    sb.append(random.nextInt(10));
+                }
+            }
+            if (random.nextBoolean()) {
+                sb.append('.');
+                int fracDigits = 1 + random.nextInt(18);
+                for (int d = 0; d < fracDigits; d++) {
+                    sb.append(random.nextInt(10));
+                }
+            }
+            if (random.nextInt(3) == 0) {
+                sb.append(random.nextBoolean() ? 'e' : 'E');
+                int exponent = random.nextInt(61) - 30;
+                sb.append(exponent < 0 ? "-" : random.nextBoolean() ? "+" : "").append(Math.abs(exponent));
+            }
+            assertSameDouble(sb.toString());
+        }
+    }
+
+    @Test
+    public void countsSlowNumbers() throws Exception {
+        decode("{\"input_parameters\": {\"a\": [1.5, 65, 0.25]}}");
+        assertEquals(3, decoder.getNumbers());
+        assertEquals(0, decoder.getSlowNumbers());
+
+        // 有效数字超过2^53、10的指数超出±22时走Double.parseDouble
+        decode("{\"input_parameters\": {\"a\": [9007199254740993, 1e23, 1e-23]}}");
+        assertEquals(6, decoder.getNumbers());
+        assertEquals(3, decoder.getSlowNumbers());
+    }
+
+    @Test
+    public void decodesEscapes() throws Exception {
+        Nal2Params params = decode("{\"input_parameters\": {"
+                + "\"s\": \"q\\\" b\\\\ s\\/ \\b\\f\\n\\r\\t\", "
+                + "\"u\": \"\\u00e9\\u4e2d\", "
+                + "\"pair\": \"\\ud83d\\ude00\", "
+                + "\"raw\": \"中文é\", "
+                + "\"k\\u0065y\": 1}}").getParams();
+
+        assertEquals("q\" b\\ s/ \b\f\n\r\t", params.getString("s"));
+        assertEquals("\u00e9\u4e2d", params.getString("u"));
+        assertEquals("\ud83d\ude00", params.getString("pair"));
+        assertEquals("中文é", params.getString("raw"));
+        // 参数名中的转义
+        assertEquals(1, params.getInt("key"));
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] inputs = {
+                "", "   ", "123", "\"text\"", "{", "[", "{\"a\"}", "{\"a\" 1}", "{'a': 1}", "{a: 1}",
+                "{\"a\": 1,}", "{\"a\": 1} x", "[{}, ]", "[1 2]", "{\"a\": tru}", "{\"a\": nul}",
+                "{\"a\": 1.}", "{\"a\": .5}", "{\"a\": 1e}", "{\"a\": -}", "{\"a\": +1}",
+                "{\"a\": \"unterminated}", "{\"a\": \"\\x\"}", "{\"a\": \"\\u12\"}", "{\"a\": \"\\u12zz\"}",
+                "{\"a\": \"tab\there\"}", "{\"input_parameters\": {\"AC\": [1, 2}}",
+                "{\"input_parameters\": {\"AC\": [1, 2,]}}", "{\"input_parameters\": {\"a\": }}",
+        };
+        for (String input : inputs) {
+            try {
+                decode(input);
+                fail("应拒绝: " + input);
+            } catch (JSONException e) {
+                // 期望的结果
+            }
+        }
+    }
+
+    @Test
+    public void decodesBatchWithReferences() throws Exception {
+        byte[] body = utf8("[{\"id\": \"ct\", \"sequence_num\": 1, \"function\": \"CompressionThreshold_NL2\", "
+                + "\"input_parameters\": {\"WBCT\": 52}}, "
+                + "{\"sequence_num\": 2, \"function\": \"getMPO_NL2\", "
+                + "\"input_parameters\": {\"CT\": {\"$ref\": \"ct.CT\"}, \"channels\": 4}}, 5]");
+        decoder.decode(body, 0, body.length);
+
+        assertTrue(decoder.isBatch());
+        List<Nal2RequestDecoder.Request> batch = decoder.getBatch();
+        assertEquals(3, batch.size());
+        assertEquals("ct", batch.get(0).getId());
+        assertEquals(52, batch.get(0).getParams().getInt("WBCT"));
+        assertNull(batch.get(1).getId());
+        assertEquals(2, batch.get(1).getSequenceNum());
+        JSONObject ref = (JSONObject) batch.get(1).getParams().getOther("CT");
+        assertEquals("ct.CT", ref.getString("$ref"));
+        assertEquals(4, batch.get(1).getParams().getInt("channels"));
+        // 非对象的项保留位置，由调用方返回该项的错误
+        assertFalse(batch.get(2).isObject());
+        // 每项的参数互相独立
+        assertFalse(batch.get(0).getParams().has("CT"));
+    }
+
+    @Test
+    public void decodesEmptyBatch() throws Exception {
+        byte[] body = utf8(" [ ] ");
+        decoder.decode(body, 0, body.length);
+
+        assertTrue(decoder.isBatch());
+        assertTrue(decoder.getBatch().isEmpty());
+    }
+
+    @Test
+    public void decodesSubrangeAndReusesRequest() throws Exception {
+        byte[] body = utf8("xx{\"sequence_num\": 1, \"input_parameters\": {\"a\": [1, 2]}}yy");
+        decoder.decode(body, 2, body.length - 4);
+        assertArrayEquals(new double[] { 1, 2 }, decoder.getRequest().getParams().getDoubleArray("a"), 0);
+
+        Nal2RequestDecoder.Request second = decode("{\"sequence_num\": 2, \"input_parameters\": {\"b\": 3}}");
+        assertFalse(decoder.isBatch());
+        assertEquals(2, second.getSequenceNum());
+        assertFalse(second.getParams().has("a"));
+        assertEquals(3, second.getParams().getInt("b"));
+    }
+
+    private void assertSameDouble(String number) throws Exception {
+        Nal2Params params = decode("{\"input_parameters\": {\"v\": " + number + ", \"a\": [" + number + "]}}")
+                .getParams();
+        long expected = Double.doubleToRawLongBits(Double.parseDouble(number));
+        assertEquals(number, expected, Double.doubleToRawLongBits(params.getDouble("v")));
+        assertEquals(number, expected, Double.doubleToRawLongBits(params.getDoubleArray("a")[0]));
+    }
+
+    private Nal2RequestDecoder.Request decode(String json) throws JSONException {
+        byte[] body = utf8(json);
+        decoder.decode(body, 0, body.length);
+        return decoder.getRequest();
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
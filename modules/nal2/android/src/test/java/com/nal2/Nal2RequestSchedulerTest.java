@@ -0,0 +1,337 @@
+package com.nal2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class Nal2RequestSchedulerTest {
+
+    private static final String REQUEST = "{\"sequence_num\": %d, \"function\": \"GetMLE\", \"session_id\": %s, "
+            + "\"input_parameters\": {\"aidType\": 1}}";
+    private static final String BULK = "{\"sequence_num\": %d, \"function\": \"%s\", \"session_id\": %s, "
+            + "\"priority\": \"bulk\", \"input_parameters\": {\"aidType\": 1, \"gender\": 1}}";
+
+    private final Nal2EngineExecutor executor = Nal2EngineExecutor.getInstance();
+    private final Nal2RequestDecoder decoder = new Nal2RequestDecoder();
+    // 引擎线程上处理的请求的sequence_num，按执行顺序
+    private final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<CountDownLatch> gates = new ArrayList<CountDownLatch>();
+    private Nal2RequestScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        Nal2FunctionRegistry functions = new Nal2FunctionRegistry();
+        functions.register(new Nal2Function.Builder("GetMLE").readOnly().intParam("aidType")
+                .build(new Nal2Function.Handler() {
+                    @Override
+                    public void handle(Nal2Function.Call call) {
+                    }
+                }));
+        functions.register(new Nal2Function.Builder("SetGender").intParam("gender")
+                .build(new Nal2Function.Handler() {
+                    @Override
+                    public void handle(Nal2Function.Call call) {
+                    }
+                }));
+        scheduler = new Nal2RequestScheduler(executor, functions, new Nal2RequestScheduler.Processor() {
+            @Override
+            public Nal2ResponseBuffer process(Nal2RequestScheduler.Ticket ticket) {
+                processed.add(ticket.getSequenceNum());
+                return response("ok");
+            }
+
+            @Override
+            public Nal2ResponseBuffer skip(Nal2RequestScheduler.Ticket ticket, String reason) {
+                return response(reason);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (CountDownLatch gate : gates) {
+            gate.countDown();
+        }
+        executor.setQueueCapacity(Nal2EngineExecutor.DEFAULT_QUEUE_CAPACITY);
+        awaitEngineIdle();
+    }
+
+    @Test
+    public void rejectsOnlyTheSubmittedTicketWhenQueueIsFull() throws Exception {
+        CountDownLatch gate = blockEngine();
+        executor.setQueueCapacity(2);
+        CompletableFuture<Nal2ResponseBuffer> first = submit(1, "\"A\"");
+        CompletableFuture<Nal2ResponseBuffer> second = submit(2, "\"B\"");
+        CompletableFuture<Nal2ResponseBuffer> third = submit(3, "\"A\"");
+
+        assertTrue(third.isCompletedExceptionally());
+        try {
+            third.get();
+            fail("队列已满时应拒绝");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        gate.countDown();
+        assertEquals("ok", text(first));
+        assertEquals("ok", text(second));
+        assertEquals(3, scheduler.getSubmitted());
+        assertEquals(0, scheduler.getLatestWinsKeys());
+    }
+
+    @Test
+    public void skipsSupersededAndExpiredRequests() throws Exception {
+        CountDownLatch gate = blockEngine();
+        String latest = "{\"sequence_num\": %d, \"function\": \"GetMLE\", \"session_id\": \"A\", "
+                + "\"latest_wins\": true, \"input_parameters\": {\"aidType\": %d}}";
+        CompletableFuture<Nal2ResponseBuffer> older = submit(String.format(latest, 1, 1));
+        CompletableFuture<Nal2ResponseBuffer> newer = submit(String.format(latest, 2, 2));
+        CompletableFuture<Nal2ResponseBuffer> expired = submit(
+                "{\"sequence_num\": 3, \"function\": \"GetMLE\", \"deadline_ms\": 1, \"input_parameters\": {\"aidType\": 1}}");
+        CompletableFuture<Nal2ResponseBuffer> cancelled = submit(4, "null");
+        cancelled.cancel(false);
+        Thread.sleep(20);
+        gate.countDown();
+
+        assertEquals("请求已被同一会话的更新请求取代", text(older));
+        assertEquals("ok", text(newer));
+        assertEquals("请求已超过处理时限", text(expired));
+        // 已取消的请求没有响应可等待
+        awaitEngineIdle();
+        assertEquals(Collections.singletonList(2), processed);
+        assertEquals(1, scheduler.getSuperseded());
+        assertEquals(1, scheduler.getExpired());
+        assertEquals(1, scheduler.getCancelled());
+        assertEquals(0, scheduler.getLatestWinsKeys());
+    }
+
+    @Test
+    public void latestWinsIgnoresSessionlessRequests() throws Exception {
+        CountDownLatch gate = blockEngine();
+        // 两个不带session_id的客户端请求同一函数，互不取代
+        String sessionless = "{\"sequence_num\": %d, \"function\": \"GetMLE\", \"latest_wins\": true, "
+                + "\"input_parameters\": {\"aidType\": %d}}";
+        CompletableFuture<Nal2ResponseBuffer> first = submit(String.format(sessionless, 1, 1));
+        CompletableFuture<Nal2ResponseBuffer> second = submit(String.format(sessionless, 2, 2));
+        assertEquals(0, scheduler.getLatestWinsKeys());
+        gate.countDown();
+
+        assertEquals("ok", text(first));
+        assertEquals("ok", text(second));
+        assertEquals(Arrays.asList(1, 2), processed);
+        assertEquals(0, scheduler.getSuperseded());
+    }
+
+    @Test
+    public void windowEndsWhenOtherEngineWorkArrives() throws Exception {
+        scheduler.setWindowMs(Nal2RequestScheduler.MAX_WINDOW_MS);
+        long start = System.nanoTime();
+        CompletableFuture<Nal2ResponseBuffer> request = submit(1, "\"A\"");
+        Thread.sleep(5);
+        // 界面调用直接提交到执行器，不经过scheduler
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+
+        assertEquals("ok", text(request));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("分组窗口应提前结束: " + elapsedMs + "ms", elapsedMs < Nal2RequestScheduler.MAX_WINDOW_MS - 10);
+    }
+
+    @Test
+    public void groupsSameSessionInSubmissionOrder() throws Exception {
+        scheduler.setAffinityWindowMs(0);
+        // 第一个请求执行时其余请求还未提交，之后队首为B
+        assertEquals(Arrays.asList(1, 2, 4, 3, 5), run("\"A\"", "\"B\"", "\"A\"", "\"B\"", "\"A\""));
+        assertEquals(0, scheduler.getReordered());
+    }
+
+    @Test
+    public void sessionlessRequestsAreNotReordered() throws Exception {
+        scheduler.setAffinityWindowMs(0);
+        // 无会话的请求看到之前的请求留下的状态：A不越过它，它也不越过B与后面的无会话请求分组
+        assertEquals(Arrays.asList(1, 2, 4, 3, 5, 6, 7, 8, 9),
+                run("\"A\"", "\"B\"", "\"A\"", "\"B\"", "null", "null", "\"A\"", "null", "\"A\""));
+    }
+
+    @Test
+    public void affinityPrefersCurrentSession() throws Exception {
+        scheduler.setAffinityWindowMs(Nal2RequestScheduler.MAX_AFFINITY_WINDOW_MS);
+        // 上一组为A，队首为B时先执行A
+        assertEquals(Arrays.asList(1, 3, 2), run("\"A\"", "\"B\"", "\"A\""));
+        assertEquals(1, scheduler.getReordered());
+    }
+
+    @Test
+    public void affinityDoesNotCrossSessionlessRequests() throws Exception {
+        scheduler.setAffinityWindowMs(Nal2RequestScheduler.MAX_AFFINITY_WINDOW_MS);
+        assertEquals(Arrays.asList(1, 2, 3, 4), run("\"A\"", "\"B\"", "null", "\"A\""));
+        processed.clear();
+        // 上一组为A，队首为无会话请求
+        assertEquals(Arrays.asList(1, 2, 3), run("\"A\"", "null", "\"A\""));
+        processed.clear();
+        // 上一组为无会话请求，不把后面的无会话请求提前
+        assertEquals(Arrays.asList(1, 2, 3), run("null", "\"B\"", "null"));
+        assertEquals(0, scheduler.getReordered());
+    }
+
+    @Test
+    public void sessionKeepsSubmissionOrderAcrossLanes() throws Exception {
+        resetLaneWeights();
+        CountDownLatch gate = blockEngine();
+        // 交互通道先轮到，但A的交互请求不越过先提交的A的批量请求；B不受影响
+        List<CompletableFuture<Nal2ResponseBuffer>> futures = Arrays.asList(
+                submitBulk(1, "GetMLE", "\"A\""), submit(2, "\"A\""), submit(3, "\"B\""));
+        gate.countDown();
+        for (CompletableFuture<Nal2ResponseBuffer> future : futures) {
+            assertEquals("ok", text(future));
+        }
+        assertEquals(Arrays.asList(1, 2, 3), processed);
+    }
+
+    @Test
+    public void groupDoesNotPassEarlierBulkRequestOfSameSession() throws Exception {
+        resetLaneWeights();
+        CountDownLatch gate = blockEngine();
+        List<CompletableFuture<Nal2ResponseBuffer>> futures = Arrays.asList(
+                submit(1, "\"A\""), submitBulk(2, "GetMLE", "\"A\""), submit(3, "\"A\""));
+        gate.countDown();
+        for (CompletableFuture<Nal2ResponseBuffer> future : futures) {
+            assertEquals("ok", text(future));
+        }
+        assertEquals(Arrays.asList(1, 2, 3), processed);
+    }
+
+    @Test
+    public void interactiveRequestsPassUnrelatedBulkRequests() throws Exception {
+        resetLaneWeights();
+        CountDownLatch gate = blockEngine();
+        List<CompletableFuture<Nal2ResponseBuffer>> futures = Arrays.asList(
+                submitBulk(1, "GetMLE", "\"A\""), submit(2, "\"B\""), submit(3, "null"));
+        gate.countDown();
+        for (CompletableFuture<Nal2ResponseBuffer> future : futures) {
+            assertEquals("ok", text(future));
+        }
+        assertEquals(Arrays.asList(2, 3, 1), processed);
+    }
+
+    @Test
+    public void sessionlessOrStateChangingBulkRequestsAreBarriers() throws Exception {
+        resetLaneWeights();
+        CountDownLatch gate = blockEngine();
+        List<CompletableFuture<Nal2ResponseBuffer>> futures = Arrays.asList(
+                submitBulk(1, "GetMLE", "null"), submit(2, "\"B\""),
+                submitBulk(3, "SetGender", "\"A\""), submit(4, "\"C\""));
+        gate.countDown();
+        for (CompletableFuture<Nal2ResponseBuffer> future : futures) {
+            assertEquals("ok", text(future));
+        }
+        assertEquals(Arrays.asList(1, 2, 3, 4), processed);
+    }
+
+    // 第一个请求单独执行（成为上一组），其余请求在引擎阻塞时排队，返回执行顺序
+    private List<Integer> run(String... sessionIds) throws Exception {
+        text(submit(1, sessionIds[0]));
+        CountDownLatch gate = blockEngine();
+        List<CompletableFuture<Nal2ResponseBuffer>> futures = new ArrayList<CompletableFuture<Nal2ResponseBuffer>>();
+        for (int i = 1; i < sessionIds.length; i++) {
+            futures.add(submit(i + 1, sessionIds[i]));
+        }
+        gate.countDown();
+        for (CompletableFuture<Nal2ResponseBuffer> future : futures) {
+            assertEquals("ok", text(future));
+        }
+        return new ArrayList<Integer>(processed);
+    }
+
+    // 在引擎线程上执行一个等待返回的gate的任务，之后提交的请求都在队列中等待
+    private CountDownLatch blockEngine() throws InterruptedException {
+        final CountDownLatch gate = new CountDownLatch(1);
+        gates.add(gate);
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    // 等待之前提交的任务执行完：批量通道的任务可能排在交互任务之后，两个通道各等待一次
+    private void awaitEngineIdle() throws Exception {
+        for (Nal2EngineExecutor.Lane lane : Nal2EngineExecutor.Lane.values()) {
+            final CountDownLatch ran = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            }, lane);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    // 执行一个批量通道的任务，使交互通道的连续执行计数归零，之后排队的交互请求先于批量请求轮到
+    private void resetLaneWeights() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, Nal2EngineExecutor.Lane.BULK);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    private CompletableFuture<Nal2ResponseBuffer> submitBulk(int sequenceNum, String function, String sessionId) {
+        return submit(String.format(BULK, sequenceNum, function, sessionId));
+    }
+
+    private CompletableFuture<Nal2ResponseBuffer> submit(int sequenceNum, String sessionId) {
+        return submit(String.format(REQUEST, sequenceNum, sessionId));
+    }
+
+    private CompletableFuture<Nal2ResponseBuffer> submit(String json) {
+        return scheduler.process(decoder.take(json.getBytes(StandardCharsets.UTF_8), false), false);
+    }
+
+    private static String text(CompletableFuture<Nal2ResponseBuffer> future) throws Exception {
+        Nal2ResponseBuffer response = future.get(5, TimeUnit.SECONDS);
+        try {
+            return response.toUtf8String();
+        } finally {
+            response.release();
+        }
+    }
+
+    private static Nal2ResponseBuffer response(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new Nal2ResponseBuffer(bytes, bytes.length, "text/plain");
+    }
+}
@@ -0,0 +1,80 @@
+package com.nal2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Nal2SessionManagerTest {
+
+    // 记录恢复过的档案，setGender模拟NativeStateApplier的setter
+    private static final class FakeState implements Nal2SessionManager.NativeState {
+        final List<FittingProfile> restored = new ArrayList<FittingProfile>();
+        FittingProfile applied = FittingProfile.EMPTY;
+
+        @Override
+        public void restore(FittingProfile profile) {
+            restored.add(profile);
+            applied = profile;
+        }
+
+        @Override
+        public FittingProfile getAppliedState() {
+            return applied;
+        }
+
+        void setGender(int gender) {
+            applied = applied.toBuilder().gender(gender).build();
+        }
+    }
+
+    private final FakeState state = new FakeState();
+    private final Nal2SessionManager sessions = new Nal2SessionManager(state);
+
+    @Test
+    public void sameSessionSkipsRestore() {
+        request("A", 1);
+        request("A", FittingProfile.UNSET);
+
+        assertEquals(1, state.restored.size());
+        assertEquals(1, sessions.getSessionSwitches());
+    }
+
+    @Test
+    public void sessionlessSetterBetweenSessionRequestsIsUndone() {
+        FittingProfile a = request("A", 1);
+        // RN setter：与callFunction相同包在enter(null)/leave(null)中
+        sessions.enter(null);
+        state.setGender(0);
+        sessions.leave(null);
+        request("A", FittingProfile.UNSET);
+
+        assertEquals(2, state.restored.size());
+        assertSame(a, state.restored.get(1));
+        assertEquals(1, state.applied.getGender());
+    }
+
+    @Test
+    public void setterThatBypassesEnterIsStillDetected() {
+        FittingProfile a = request("A", 1);
+        state.setGender(0);
+        request("A", FittingProfile.UNSET);
+
+        assertEquals(2, state.restored.size());
+        assertSame(a, state.restored.get(1));
+        assertEquals(1, state.applied.getGender());
+    }
+
+    // 执行会话请求，gender不为UNSET时在会话中设置gender，返回会话保存的状态
+    private FittingProfile request(String sessionId, int gender) {
+        sessions.enter(sessionId);
+        if (gender != FittingProfile.UNSET) {
+            state.setGender(gender);
+        }
+        sessions.leave(sessionId);
+        return state.applied;
+    }
+}
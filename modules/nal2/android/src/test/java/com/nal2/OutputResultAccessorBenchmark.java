@@ -0,0 +1,78 @@
+package com.nal2;
+
+import au.org.nal.OutputResult;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * OutputResult访问方式的微基准：每次反射（旧实现） vs 直接调用getOutput1()的OutputResultAccessor
+ *
+ * 运行方式（宿主JVM，classpath需包含nl2-release.aar中的classes.jar）：
+ * java -cp classes.jar:build/... com.nal2.OutputResultAccessorBenchmark [iterations]
+ */
+public class OutputResultAccessorBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 10;
+
+    // 防止JIT消除无副作用的循环
+    private static double sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        OutputResult result = new OutputResult();
+        result.setOutput1(new double[19]);
+        double[] defaultValue = new double[19];
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runLegacy(result, defaultValue, iterations);
+            runAccessor(result, defaultValue, iterations);
+        }
+
+        long legacyNanos = Long.MAX_VALUE;
+        long accessorNanos = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            legacyNanos = Math.min(legacyNanos, runLegacy(result, defaultValue, iterations));
+            accessorNanos = Math.min(accessorNanos, runAccessor(result, defaultValue, iterations));
+        }
+
+        System.out.printf("反射(每次查找): %.2f ns/op%n", (double) legacyNanos / iterations);
+        System.out.printf("OutputResultAccessor: %.2f ns/op%n", (double) accessorNanos / iterations);
+        System.out.printf("加速比: %.1fx%n", (double) legacyNanos / accessorNanos);
+        System.out.println("(sink=" + sink + ")");
+    }
+
+    private static long runLegacy(OutputResult result, double[] defaultValue, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += legacyGetOutputData(result, defaultValue).length;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runAccessor(OutputResult result, double[] defaultValue, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += OutputResultAccessor.getOutput1(result, defaultValue).length;
+        }
+        return System.nanoTime() - start;
+    }
+
+    // 与Nal2Manager原getOutputData相同的实现（去掉日志）
+    private static double[] legacyGetOutputData(OutputResult result, double[] defaultValue) {
+        try {
+            try {
+                Method method = result.getClass().getMethod("getOutput1");
+                return (double[]) method.invoke(result);
+            } catch (Exception e) {
+                Field field = result.getClass().getDeclaredField("output1");
+                field.setAccessible(true);
+                return (double[]) field.get(result);
+            }
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}
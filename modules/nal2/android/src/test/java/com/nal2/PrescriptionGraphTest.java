@@ -0,0 +1,71 @@
+package com.nal2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+
+public class PrescriptionGraphTest {
+
+    // 模拟NativeManager中的性别状态，gain节点的结果依赖该状态
+    private int nativeGender;
+    private int gender;
+    private int gainCalls;
+
+    // 与FullPrescription的结构相同：人口学参数只经状态节点推入NativeManager，gain节点不读取gender参数
+    private final PrescriptionGraph graph = new PrescriptionGraph.Builder()
+            .stateNode("demographics", EnumSet.of(PrescriptionGraph.InputGroup.DEMOGRAPHICS), new String[0],
+                    new PrescriptionGraph.Step() {
+                        @Override
+                        public Object compute(PrescriptionGraph.Results results) {
+                            nativeGender = gender;
+                            return null;
+                        }
+                    })
+            .stateValueNode("CT", EnumSet.of(PrescriptionGraph.InputGroup.CHANNELS), new String[0],
+                    new PrescriptionGraph.Step() {
+                        @Override
+                        public Object compute(PrescriptionGraph.Results results) {
+                            return new double[] {50};
+                        }
+                    })
+            .node("REAG", EnumSet.of(PrescriptionGraph.InputGroup.AUDIOGRAM), new String[] {"CT"},
+                    new PrescriptionGraph.Step() {
+                        @Override
+                        public Object compute(PrescriptionGraph.Results results) {
+                            gainCalls++;
+                            return new double[] {nativeGender == 0 ? 20 : 21};
+                        }
+                    })
+            .build();
+
+    @Test
+    public void gainsAreRecomputedWhenOnlyDemographicsChange() throws Exception {
+        Map<String, Object> first = graph.evaluate();
+        assertArrayEquals(new double[] {20}, (double[]) first.get("REAG"), 0);
+
+        gender = 1;
+        PrescriptionGraph.Evaluation second =
+                graph.evaluate(EnumSet.of(PrescriptionGraph.InputGroup.DEMOGRAPHICS), first);
+
+        assertEquals(2, gainCalls);
+        assertTrue(second.getChanged().contains("REAG"));
+        assertArrayEquals(new double[] {21}, (double[]) second.getValues().get("REAG"), 0);
+    }
+
+    @Test
+    public void unchangedInputsReuseGains() throws Exception {
+        Map<String, Object> first = graph.evaluate();
+        PrescriptionGraph.Evaluation second =
+                graph.evaluate(EnumSet.noneOf(PrescriptionGraph.InputGroup.class), first);
+
+        assertEquals(1, gainCalls);
+        assertEquals(1, second.getReused());
+        assertEquals(Collections.emptySet(), second.getChanged());
+    }
+}
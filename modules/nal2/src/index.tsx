@@ -24,6 +24,17 @@ interface Nal2Result {
 
 // ==================== NAL2 函数导出 ====================
 
+/**
+ * 按函数名调用任意 NAL2 函数，参数名与 HTTP 接口的 input_parameters 相同，
+ * 返回 output_parameters（如 callFunction('RealEarInsertionGain_NL2', { AC, BC, L: 65, ... }) 返回 { REIG }）
+ */
+export function callFunction(
+  functionName: string,
+  params: Record<string, unknown>
+): Promise<Record<string, unknown>> {
+  return Nal2.callFunction(functionName, params);
+}
+
 export function dllVersion(): Promise<{ major: number; minor: number }> {
   return Nal2.dllVersion();
 }
@@ -544,6 +555,27 @@ export function setREURindiv9(
   );
 }
 
+/** 清除 SetREDDindiv 推送的个体化 REDD，之后 NAL2 使用默认值 */
+export function clearREDDindiv(): Promise<boolean> {
+  return callFunction('ClearREDDindiv', {}).then(
+    (r) => r.success as boolean
+  );
+}
+
+/** 清除 SetREURindiv 推送的个体化 REUR，之后 NAL2 使用默认值 */
+export function clearREURindiv(): Promise<boolean> {
+  return callFunction('ClearREURindiv', {}).then(
+    (r) => r.success as boolean
+  );
+}
+
+/** 清除 SetRECDh/SetRECDt 推送的个体化 RECD */
+export function clearRECDindiv(): Promise<boolean> {
+  return callFunction('ClearRECD_indiv_NL2', {}).then(
+    (r) => r.success as boolean
+  );
+}
+
 export function processData(params: {
   dateOfBirth: number;
   adultChild: number;